@@ -0,0 +1,63 @@
+package com.moneytransfer.benchmark;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Picks account indexes in {@code [0, n)} either uniformly or from a Zipfian
+ * distribution, where index 0 is the hottest account.
+ */
+final class AccountChooser {
+
+	static final String UNIFORM = "uniform";
+	static final String ZIPFIAN = "zipfian";
+
+	private final int n;
+	// cumulative probabilities, null for the uniform distribution
+	private final double[] cdf;
+
+	private AccountChooser(int n, double[] cdf) {
+		this.n = n;
+		this.cdf = cdf;
+	}
+
+	/**
+	 * @param distribution {@link #UNIFORM} or {@link #ZIPFIAN}
+	 * @param n            number of accounts
+	 * @param skew         Zipfian exponent, 0.99 as in YCSB
+	 */
+	static AccountChooser of(String distribution, int n, double skew) {
+		if (UNIFORM.equals(distribution)) {
+			return new AccountChooser(n, null);
+		}
+		if (!ZIPFIAN.equals(distribution)) {
+			throw new IllegalArgumentException("Unknown distribution: " + distribution);
+		}
+		double[] cdf = new double[n];
+		double sum = 0;
+		for (int i = 0; i < n; i++) {
+			sum += 1 / Math.pow(i + 1, skew);
+			cdf[i] = sum;
+		}
+		for (int i = 0; i < n; i++) {
+			cdf[i] /= sum;
+		}
+		return new AccountChooser(n, cdf);
+	}
+
+	int next(Random random) {
+		if (cdf == null) {
+			return random.nextInt(n);
+		}
+		int index = Arrays.binarySearch(cdf, random.nextDouble());
+		return Math.min(index >= 0 ? index : -index - 1, n - 1);
+	}
+
+	/**
+	 * @return an index other than {@code other}
+	 */
+	int nextOther(Random random, int other) {
+		int index = next(random);
+		return index != other ? index : (index + 1) % n;
+	}
+}
@@ -0,0 +1,91 @@
+package com.moneytransfer.benchmark;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.moneytransfer.dao.AccountDAO;
+import com.moneytransfer.dao.DAOFactory;
+import com.moneytransfer.exception.MoneyTransferException;
+import com.moneytransfer.model.Account;
+import com.moneytransfer.model.Money;
+import com.moneytransfer.model.Transaction;
+
+/**
+ * Account DAO hot paths against accounts picked uniformly or with Zipfian hot
+ * spots. The DAO implementation is the one selected by {@code dao_factory}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AccountDAOBenchmark {
+
+	private static final BigDecimal INITIAL_BALANCE = new BigDecimal(1000000000).setScale(4, RoundingMode.HALF_EVEN);
+	private static final long AMOUNT = Money.toUnits(BigDecimal.ONE);
+
+	@Param({ "1000" })
+	public int accounts;
+
+	@Param({ AccountChooser.UNIFORM, AccountChooser.ZIPFIAN })
+	public String distribution;
+
+	private AccountDAO accountDAO;
+	private long[] accountIds;
+	private AccountChooser chooser;
+
+	@Setup(Level.Trial)
+	public void setup() throws MoneyTransferException {
+		DAOFactory daoFactory = DAOFactory.getDAOFactory();
+		daoFactory.populateTestData();
+		accountDAO = daoFactory.getAccountDAO();
+		accountIds = new long[accounts];
+		for (int i = 0; i < accounts; i++) {
+			accountIds[i] = accountDAO.createAccount(new Account("jmh" + i, INITIAL_BALANCE, "USD"));
+		}
+		chooser = AccountChooser.of(distribution, accounts, 0.99);
+	}
+
+	@Benchmark
+	public int transferAccountBalance() {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		int from = chooser.next(random);
+		int to = chooser.nextOther(random, from);
+		try {
+			return accountDAO.transferAccountBalance(new Transaction("USD", AMOUNT, accountIds[from], accountIds[to]));
+		} catch (MoneyTransferException e) {
+			// lock timeouts under contention are part of the measurement
+			return -1;
+		}
+	}
+
+	@Benchmark
+	public int updateAccountBalance() {
+		try {
+			return accountDAO.updateAccountBalance(accountIds[chooser.next(ThreadLocalRandom.current())], AMOUNT);
+		} catch (MoneyTransferException e) {
+			return -1;
+		}
+	}
+
+	@Benchmark
+	public Account getAccountById() throws MoneyTransferException {
+		return accountDAO.getAccountById(accountIds[chooser.next(ThreadLocalRandom.current())]);
+	}
+}
@@ -0,0 +1,43 @@
+package com.moneytransfer.benchmark;
+
+import java.io.File;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the JMH benchmarks once per thread count and writes one JSON result
+ * file per run, to be compared against a baseline. Run with:
+ *
+ * <pre>
+ * mvn -Pjmh test-compile exec:exec
+ * </pre>
+ *
+ * Maven properties: jmh.include (benchmark regex, default all), jmh.threads (comma
+ * separated thread counts, default 1,4,16), jmh.jvmArgs (extra arguments for
+ * the forked JVMs, e.g. -Ddao_factory=ledger) and jmh.resultDir (default
+ * target/jmh).
+ */
+public class BenchmarkRunner {
+
+	public static void main(String[] args) throws RunnerException {
+		String include = System.getProperty("jmh.include", ".*");
+		String[] threadCounts = System.getProperty("jmh.threads", "1,4,16").split(",");
+		String jvmArgs = System.getProperty("jmh.jvmArgs", "").trim();
+		String resultDir = System.getProperty("jmh.resultDir", "target/jmh");
+		new File(resultDir).mkdirs();
+
+		for (String threadCount : threadCounts) {
+			int threads = Integer.parseInt(threadCount.trim());
+			ChainedOptionsBuilder options = new OptionsBuilder().include(include).threads(threads)
+					.resultFormat(ResultFormatType.JSON).result(resultDir + "/result-" + threads + "t.json");
+			if (!jvmArgs.isEmpty()) {
+				options.jvmArgsAppend(jvmArgs.split("\\s+"));
+			}
+			new Runner(options.build()).run();
+		}
+	}
+}
@@ -0,0 +1,68 @@
+package com.moneytransfer.benchmark;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.moneytransfer.model.Account;
+import com.moneytransfer.model.Transaction;
+
+/**
+ * Jackson (de)serialization of the request and response bodies.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JsonBenchmark {
+
+	private final ObjectMapper mapper = new ObjectMapper();
+	private Account account;
+	private Transaction transaction;
+	private String accountJson;
+	private String transactionJson;
+
+	@Setup
+	public void setup() throws IOException {
+		BigDecimal amount = new BigDecimal("1234.5678").setScale(4, RoundingMode.HALF_EVEN);
+		account = new Account(42L, "barry", amount, "USD");
+		transaction = new Transaction("USD", amount, 1L, 2L);
+		accountJson = mapper.writeValueAsString(account);
+		transactionJson = mapper.writeValueAsString(transaction);
+	}
+
+	@Benchmark
+	public String serializeAccount() throws IOException {
+		return mapper.writeValueAsString(account);
+	}
+
+	@Benchmark
+	public Account deserializeAccount() throws IOException {
+		return mapper.readValue(accountJson, Account.class);
+	}
+
+	@Benchmark
+	public String serializeTransaction() throws IOException {
+		return mapper.writeValueAsString(transaction);
+	}
+
+	@Benchmark
+	public Transaction deserializeTransaction() throws IOException {
+		return mapper.readValue(transactionJson, Transaction.class);
+	}
+}
@@ -0,0 +1,62 @@
+package com.moneytransfer.benchmark;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.moneytransfer.dao.DAOFactory;
+import com.moneytransfer.dao.UserDAO;
+import com.moneytransfer.exception.MoneyTransferException;
+import com.moneytransfer.model.User;
+
+/**
+ * {@link UserDAO#getUserByName(String)} over a user table of configurable size.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UserDAOBenchmark {
+
+	@Param({ "1000" })
+	public int users;
+
+	@Param({ AccountChooser.UNIFORM, AccountChooser.ZIPFIAN })
+	public String distribution;
+
+	private UserDAO userDAO;
+	private String[] userNames;
+	private AccountChooser chooser;
+
+	@Setup(Level.Trial)
+	public void setup() throws MoneyTransferException {
+		DAOFactory daoFactory = DAOFactory.getDAOFactory();
+		daoFactory.populateTestData();
+		userDAO = daoFactory.getUserDAO();
+		userNames = new String[users];
+		for (int i = 0; i < users; i++) {
+			userNames[i] = "jmh" + i;
+			userDAO.createUser(new User(userNames[i], userNames[i] + "@gmail.com"));
+		}
+		chooser = AccountChooser.of(distribution, users, 0.99);
+	}
+
+	@Benchmark
+	public User getUserByName() throws MoneyTransferException {
+		return userDAO.getUserByName(userNames[chooser.next(ThreadLocalRandom.current())]);
+	}
+}
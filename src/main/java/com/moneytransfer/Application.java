@@ -1,15 +1,28 @@
 package com.moneytransfer;
 
+import com.moneytransfer.cluster.Cluster;
 import com.moneytransfer.dao.DAOFactory;
+import com.moneytransfer.metrics.MetricsRegistry;
 import com.moneytransfer.service.AccountService;
+import com.moneytransfer.service.AsyncService;
+import com.moneytransfer.service.ClusterService;
+import com.moneytransfer.service.MetricsFilter;
+import com.moneytransfer.service.MetricsService;
 import com.moneytransfer.service.ServiceExceptionMapper;
 import com.moneytransfer.service.TransactionService;
 import com.moneytransfer.service.UserService;
+import com.moneytransfer.utils.PropsUitl;
 
+import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.HttpConnectionFactory;
 import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
 import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.BlockingArrayQueue;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
 import org.glassfish.jersey.servlet.ServletContainer;
 
 /**
@@ -24,29 +37,91 @@ public class Application {
 		LOGGER.info("Initialize money transfer in memory database");
 		DAOFactory h2DaoFactory = DAOFactory.getDAOFactory();
 		h2DaoFactory.populateTestData();
+		Cluster cluster = Cluster.getInstance();
+		if (cluster.isEnabled()) {
+			// the demo accounts outside this node's range live on their owners
+			h2DaoFactory.restrictAccountIds(cluster.getFirstAccountId(), cluster.getLastAccountId());
+		}
+		// redo the account changes journaled by earlier runs
+		h2DaoFactory.recover();
 		LOGGER.info("Initialisation of money transfer in memory database complete");
 		// Host service on jetty
-		startService();
+		Server server = startService();
+		try {
+			server.join();
+		} finally {
+			server.destroy();
+			// flush the events still queued in the async appender
+			LogManager.shutdown();
+		}
 	}
 
-	private static void startService() throws Exception {
+	/**
+	 * Start the REST services on Jetty without blocking, e.g. to run them in
+	 * process from a load test.
+	 *
+	 * @return the started server
+	 */
+	public static Server startService() throws Exception {
 		LOGGER.info("Initialising Jetty service");
-		Server server = new Server(8080);
+		Server server = createServer();
 		ServletContextHandler context = new ServletContextHandler(ServletContextHandler.SESSIONS);
 		context.setContextPath("/");
 		server.setHandler(context);
 		ServletHolder servletHolder = context.addServlet(ServletContainer.class, "/*");
-		servletHolder.setInitParameter("jersey.config.server.provider.classnames",
-				UserService.class.getCanonicalName() + "," + AccountService.class.getCanonicalName() + ","
-						+ ServiceExceptionMapper.class.getCanonicalName() + ","
-						+ TransactionService.class.getCanonicalName());
-		try {
-			server.start();
-			server.join();
-		} finally {
-			server.destroy();
+		// needed by the AsyncResponse endpoints of AsyncService
+		servletHolder.setAsyncSupported(true);
+		String providers = UserService.class.getCanonicalName() + "," + AccountService.class.getCanonicalName() + ","
+				+ ServiceExceptionMapper.class.getCanonicalName() + "," + TransactionService.class.getCanonicalName()
+				+ "," + AsyncService.class.getCanonicalName() + "," + MetricsService.class.getCanonicalName() + ","
+				+ ClusterService.class.getCanonicalName();
+		if (MetricsRegistry.ENABLED) {
+			providers += "," + MetricsFilter.class.getCanonicalName();
 		}
+		servletHolder.setInitParameter("jersey.config.server.provider.classnames", providers);
+		server.start();
 		LOGGER.info("Initialisation of Jetty server complete");
+		return server;
+	}
+
+	/**
+	 * Build the Jetty server from the {@code jetty_*} properties: a thread pool
+	 * with a bounded job queue, one HTTP connector with explicit acceptor and
+	 * selector counts, and connection / request timeouts.
+	 */
+	static Server createServer() {
+		int maxThreads = PropsUitl.getIntegerProperty("jetty_max_threads", 200);
+		int minThreads = PropsUitl.getIntegerProperty("jetty_min_threads", 8);
+		int queueSize = PropsUitl.getIntegerProperty("jetty_queue_size", 6000);
+		// jobs beyond the queue capacity are rejected instead of piling up
+		QueuedThreadPool threadPool = new QueuedThreadPool(maxThreads, minThreads,
+				PropsUitl.getIntegerProperty("jetty_thread_idle_timeout_ms", 60000),
+				new BlockingArrayQueue<Runnable>(Math.min(queueSize, 1024), 1024, queueSize));
+		threadPool.setName("jetty");
+		Server server = new Server(threadPool);
+
+		HttpConfiguration httpConfig = new HttpConfiguration();
+		httpConfig.setSendServerVersion(false);
+		httpConfig.setPersistentConnectionsEnabled(
+				Boolean.parseBoolean(PropsUitl.getStringProperty("jetty_keep_alive", "true")));
+		// longest a request may wait on blocking reads / writes and on its IO
+		httpConfig.setBlockingTimeout(PropsUitl.getIntegerProperty("jetty_request_timeout_ms", 30000));
+		httpConfig.setIdleTimeout(PropsUitl.getIntegerProperty("jetty_request_timeout_ms", 30000));
+		httpConfig.setOutputBufferSize(PropsUitl.getIntegerProperty("jetty_output_buffer_size", 32768));
+
+		// -1 lets Jetty pick acceptors and selectors from the number of cores
+		ServerConnector connector = new ServerConnector(server, PropsUitl.getIntegerProperty("jetty_acceptors", -1),
+				PropsUitl.getIntegerProperty("jetty_selectors", -1), new HttpConnectionFactory(httpConfig));
+		// a cluster node listens on the port of its own url
+		Cluster cluster = Cluster.getInstance();
+		connector.setPort(cluster.isEnabled() ? cluster.getPort() : PropsUitl.getIntegerProperty("jetty_port", 8080));
+		// how long a keep-alive connection may stay idle between requests
+		connector.setIdleTimeout(PropsUitl.getIntegerProperty("jetty_idle_timeout_ms", 30000));
+		connector.setAcceptQueueSize(PropsUitl.getIntegerProperty("jetty_accept_queue_size", 128));
+		server.addConnector(connector);
+		LOGGER.info("Jetty threads " + minThreads + "-" + maxThreads + ", queue " + queueSize + ", acceptors "
+				+ connector.getAcceptors() + ", selectors " + connector.getSelectorManager().getSelectorCount());
+		return server;
 	}
 
 }
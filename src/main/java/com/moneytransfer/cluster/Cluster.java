@@ -0,0 +1,444 @@
+package com.moneytransfer.cluster;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.UriInfo;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.RequestBuilder;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.apache.log4j.Logger;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.moneytransfer.dao.DAOFactory;
+import com.moneytransfer.exception.MoneyTransferException;
+import com.moneytransfer.exception.TransferOutcomeUnknownException;
+import com.moneytransfer.metrics.Counter;
+import com.moneytransfer.metrics.MetricsRegistry;
+import com.moneytransfer.model.Transaction;
+import com.moneytransfer.model.TransferLeg;
+import com.moneytransfer.utils.PropsUitl;
+
+/**
+ * Nodes of a cluster, each owning a range of account ids, selected by setting
+ * {@code cluster_nodes} to the base urls of every node and
+ * {@code cluster_node} to the index of this one.
+ * <p>
+ * Node {@code k} owns the ids {@code k * cluster_range_size + 1} to
+ * {@code (k + 1) * cluster_range_size}, ids past the last range belong to the
+ * last node. Requests for an account owned elsewhere are forwarded to its
+ * owner and answered with the owner's response. A transfer between accounts
+ * of two nodes is coordinated by the node receiving it: both legs are
+ * reserved on their owners, then the debit is committed, which decides the
+ * transfer, then the credit. The coordinator logs the credit in its
+ * {@link LegLog} before committing the debit; a transfer whose commits do not
+ * go through is resumed in the background for up to
+ * {@code cluster_commit_max_attempts} attempts and again when the node starts.
+ */
+public final class Cluster {
+
+	/**
+	 * Header marking a request sent by another node, it is never forwarded
+	 * again.
+	 */
+	public static final String FORWARDED_HEADER = "X-Cluster-Node";
+
+	// 421 Misdirected Request, missing from Response.Status
+	private static final int MISDIRECTED_REQUEST = 421;
+
+	private static Logger LOGGER = Logger.getLogger(Cluster.class);
+
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+
+	private static final Cluster INSTANCE = new Cluster();
+
+	private final List<String> nodes = new ArrayList<String>();
+	private final int self;
+	private final long rangeSize;
+	private final long timeoutMs;
+	private final int maxAttempts;
+	private final AtomicLong transferIds = new AtomicLong();
+	// distinguishes the transfer ids of successive runs of this node
+	private final long runId = System.currentTimeMillis();
+	private CloseableHttpClient client;
+	private TransferLegs legs;
+	private ScheduledExecutorService scheduler;
+	private Counter forwarded;
+
+	private Cluster() {
+		for (String node : PropsUitl.getStringProperty("cluster_nodes", "").split(",")) {
+			if (!node.trim().isEmpty()) {
+				nodes.add(node.trim().replaceAll("/+$", ""));
+			}
+		}
+		self = PropsUitl.getIntegerProperty("cluster_node", 0);
+		rangeSize = Math.max(1, Long.parseLong(PropsUitl.getStringProperty("cluster_range_size", "1000000")));
+		timeoutMs = PropsUitl.getIntegerProperty("cluster_reservation_timeout_ms", 30000);
+		maxAttempts = Math.max(1, PropsUitl.getIntegerProperty("cluster_commit_max_attempts", 20));
+		if (!isEnabled()) {
+			return;
+		}
+		if (self < 0 || self >= nodes.size()) {
+			throw new IllegalStateException("cluster_node " + self + " is not one of the " + nodes.size() + " nodes");
+		}
+		int requestTimeoutMs = PropsUitl.getIntegerProperty("cluster_request_timeout_ms", 5000);
+		PoolingHttpClientConnectionManager connections = new PoolingHttpClientConnectionManager();
+		connections.setDefaultMaxPerRoute(PropsUitl.getIntegerProperty("cluster_max_connections", 64));
+		connections.setMaxTotal(connections.getDefaultMaxPerRoute() * nodes.size());
+		client = HttpClients.custom().setConnectionManager(connections)
+				.setDefaultRequestConfig(RequestConfig.custom().setConnectTimeout(requestTimeoutMs)
+						.setSocketTimeout(requestTimeoutMs).setConnectionRequestTimeout(requestTimeoutMs).build())
+				.build();
+		try {
+			legs = new TransferLegs(DAOFactory.getDAOFactory().getAccountDAO(), timeoutMs,
+					Math.max(2 * timeoutMs, PropsUitl.getIntegerProperty("cluster_outcome_retention_ms", 3600000)),
+					LegLog.fromProperties(self));
+		} catch (MoneyTransferException e) {
+			throw new IllegalStateException("Cannot recover the transfer legs of node " + self, e);
+		}
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "cluster-legs");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				legs.expire();
+			}
+		}, timeoutMs / 2, timeoutMs / 2, TimeUnit.MILLISECONDS);
+		for (LegLog.Record record : legs.getPending()) {
+			LOGGER.info("Resuming transfer " + record.leg.getTransferId());
+			resume(record.state, record.leg, 1);
+		}
+		forwarded = MetricsRegistry.INSTANCE.counter("moneytransfer_cluster_forwarded_requests_total",
+				"Requests forwarded to the node owning the account");
+		MetricsRegistry.INSTANCE.gauge("moneytransfer_cluster_reserved_legs",
+				"Cross node transfer legs reserved on this node", () -> legs.getReservedCount());
+		MetricsRegistry.INSTANCE.gauge("moneytransfer_cluster_pending_credits",
+				"Credits of transfers decided on this node and not committed yet", () -> legs.getPendingCount());
+		LOGGER.info("Cluster node " + self + " of " + nodes.size() + ", owning account ids " + getFirstAccountId()
+				+ " to " + getLastAccountId());
+	}
+
+	/**
+	 * @return cluster configured from the {@code cluster_*} properties
+	 */
+	public static Cluster getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * @return true when {@code cluster_nodes} lists more than one node
+	 */
+	public boolean isEnabled() {
+		return nodes.size() > 1;
+	}
+
+	/**
+	 * @return index of this node
+	 */
+	public int getNode() {
+		return self;
+	}
+
+	/**
+	 * @return port of this node's url, the one Jetty listens on
+	 */
+	public int getPort() {
+		return URI.create(nodes.get(self)).getPort();
+	}
+
+	public long getFirstAccountId() {
+		return self * rangeSize + 1;
+	}
+
+	/**
+	 * @return last id of this node's range, unbounded on the last node
+	 */
+	public long getLastAccountId() {
+		return self == nodes.size() - 1 ? Long.MAX_VALUE : (self + 1) * rangeSize;
+	}
+
+	/**
+	 * @return index of the node owning the account
+	 */
+	public int ownerOf(long accountId) {
+		if (accountId < 1) {
+			return self;
+		}
+		return (int) Math.min((accountId - 1) / rangeSize, nodes.size() - 1);
+	}
+
+	/**
+	 * @return true if the account is owned by this node, always true when the
+	 *         cluster is disabled
+	 */
+	public boolean owns(long accountId) {
+		return !isEnabled() || ownerOf(accountId) == self;
+	}
+
+	/**
+	 * @return legs of cross node transfers reserved on this node
+	 */
+	public TransferLegs getLegs() {
+		return legs;
+	}
+
+	/**
+	 * Forward the current request to the owner of the account, unless this
+	 * node owns it.
+	 *
+	 * @param entity request body, null for none
+	 * @throws WebApplicationException holding the owner's response
+	 */
+	public void forwardIfRemote(long accountId, String method, UriInfo uriInfo, HttpHeaders headers,
+			Object entity) {
+		if (owns(accountId)) {
+			return;
+		}
+		URI uri = uriInfo.getRequestUri();
+		String path = uri.getRawPath() + (uri.getRawQuery() != null ? "?" + uri.getRawQuery() : "");
+		throw new WebApplicationException(forward(ownerOf(accountId), method, path, headers, entity));
+	}
+
+	/**
+	 * Send a request to another node.
+	 *
+	 * @param path    path and query of the request
+	 * @param headers headers of the request being served
+	 * @param entity  request body, null for none
+	 * @return the node's response
+	 * @throws WebApplicationException 421 if the request being served was
+	 *                                 itself forwarded, 502 if the node cannot
+	 *                                 be reached
+	 */
+	public Response forward(int node, String method, String path, HttpHeaders headers, Object entity) {
+		if (headers.getHeaderString(FORWARDED_HEADER) != null) {
+			// the nodes disagree on the ranges, do not bounce the request around
+			throw new WebApplicationException("Node " + self + " is not the owner", MISDIRECTED_REQUEST);
+		}
+		String target = nodes.get(node) + path;
+		forwarded.increment();
+		try {
+			return send(method, target, entity);
+		} catch (IOException e) {
+			LOGGER.error("forward(): Error sending " + method + " " + target, e);
+			throw new WebApplicationException("Node " + node + " is unavailable", Response.Status.BAD_GATEWAY);
+		}
+	}
+
+	/**
+	 * Transfer between accounts owned by different nodes, this node
+	 * coordinating. The transfer is decided once its debit is committed.
+	 *
+	 * @throws TransferOutcomeUnknownException if the debit commit failed, the
+	 *                                         transfer is resolved in the
+	 *                                         background then
+	 * @throws MoneyTransferException          if a leg is refused, nothing is
+	 *                                         applied then
+	 */
+	public void transfer(Transaction transaction) throws MoneyTransferException {
+		String transferId = self + "-" + runId + "-" + transferIds.incrementAndGet();
+		final int fromNode = ownerOf(transaction.getFromAccountId());
+		final int toNode = ownerOf(transaction.getToAccountId());
+		TransferLeg debit = new TransferLeg(transferId, transaction.getFromAccountId(),
+				transaction.getToAccountId(), -transaction.getAmountUnits(), transaction.getCurrencyCode());
+		final TransferLeg credit = new TransferLeg(transferId, transaction.getToAccountId(),
+				transaction.getFromAccountId(), transaction.getAmountUnits(), transaction.getCurrencyCode());
+
+		leg(fromNode, "reserve", debit);
+		try {
+			leg(toNode, "reserve", credit);
+		} catch (MoneyTransferException | RuntimeException e) {
+			abortQuietly(fromNode, debit);
+			throw e;
+		}
+		try {
+			legs.decide(credit);
+		} catch (MoneyTransferException | RuntimeException e) {
+			abortQuietly(fromNode, debit);
+			abortQuietly(toNode, credit);
+			throw e;
+		}
+		try {
+			leg(fromNode, "commit", debit);
+		} catch (IllegalStateException e) {
+			// refused, the debit was given back on its timeout
+			abortQuietly(toNode, credit);
+			legs.done(credit);
+			throw new MoneyTransferException(e.getMessage(), e);
+		} catch (MoneyTransferException | RuntimeException e) {
+			LOGGER.warn("transfer(): debit of " + transferId + " not committed, resolving in the background", e);
+			resume(LegLog.DECIDED, credit, 1);
+			throw new TransferOutcomeUnknownException("Transfer " + transferId + " is in doubt, resolved later", null);
+		}
+		try {
+			legs.creditDue(credit);
+			leg(toNode, "commit", credit);
+			legs.done(credit);
+		} catch (MoneyTransferException | RuntimeException e) {
+			LOGGER.warn("transfer(): credit of " + transferId + " not committed yet, retrying", e);
+			resume(LegLog.CREDIT_DUE, credit, 1);
+		}
+	}
+
+	/**
+	 * Finish a pending transfer in the background: commit its debit if it is
+	 * only decided, aborting the credit if the debit is refused, then commit
+	 * its credit. Gives up after {@code cluster_commit_max_attempts}, leaving
+	 * the transfer to the next start of the node.
+	 */
+	private void resume(final byte state, final TransferLeg credit, final int attempt) {
+		scheduler.schedule(new Runnable() {
+			@Override
+			public void run() {
+				byte current = state;
+				try {
+					if (current == LegLog.DECIDED) {
+						int fromNode = ownerOf(credit.getCounterpartyAccountId());
+						TransferLeg debit = new TransferLeg(credit.getTransferId(), credit.getCounterpartyAccountId(),
+								credit.getAccountId(), -credit.getAmountUnits(), credit.getCurrencyCode());
+						try {
+							leg(fromNode, "commit", debit);
+						} catch (IllegalStateException e) {
+							LOGGER.warn("resume(): debit refused, aborting " + credit);
+							abortQuietly(ownerOf(credit.getAccountId()), credit);
+							legs.done(credit);
+							return;
+						}
+						legs.creditDue(credit);
+						current = LegLog.CREDIT_DUE;
+					}
+					leg(ownerOf(credit.getAccountId()), "commit", credit);
+					legs.done(credit);
+					LOGGER.info("resume(): committed " + credit + " after " + attempt + " attempts");
+				} catch (MoneyTransferException | RuntimeException e) {
+					if (attempt >= maxAttempts) {
+						LOGGER.error("resume(): giving up on " + credit + " after " + attempt
+								+ " attempts, resumed again when the node starts", e);
+						return;
+					}
+					LOGGER.error("resume(): transfer still not committed " + credit, e);
+					resume(current, credit, attempt + 1);
+				}
+			}
+		}, Math.min(timeoutMs, 100L << Math.min(attempt, 10)), TimeUnit.MILLISECONDS);
+	}
+
+	private void abortQuietly(int node, TransferLeg leg) {
+		try {
+			leg(node, "abort", leg);
+		} catch (MoneyTransferException | RuntimeException e) {
+			// left to the timeout of the reservation
+			LOGGER.error("abortQuietly(): Error aborting " + leg, e);
+		}
+	}
+
+	/**
+	 * Reserve, commit or abort a leg on its node, directly on this node.
+	 *
+	 * @throws IllegalStateException if the node refused to commit the leg
+	 */
+	private void leg(int node, String action, TransferLeg leg) throws MoneyTransferException {
+		if (node == self) {
+			switch (action) {
+			case "reserve":
+				legs.reserve(leg);
+				break;
+			case "commit":
+				legs.commit(leg);
+				break;
+			default:
+				legs.abort(leg);
+			}
+			return;
+		}
+		String target = nodes.get(node) + "/cluster/legs/" + action;
+		Response response;
+		try {
+			response = send("POST", target, leg);
+		} catch (IOException e) {
+			throw new MoneyTransferException("Node " + node + " is unavailable", e);
+		}
+		if (response.getStatus() == Response.Status.CONFLICT.getStatusCode()) {
+			throw new IllegalStateException(errorCode(response));
+		}
+		if (response.getStatus() != Response.Status.OK.getStatusCode()) {
+			throw new MoneyTransferException(errorCode(response));
+		}
+	}
+
+	private Response send(String method, String target, Object entity) throws IOException {
+		RequestBuilder request = RequestBuilder.create(method).setUri(target).setHeader(FORWARDED_HEADER,
+				String.valueOf(self));
+		if (entity != null) {
+			request.setEntity(new ByteArrayEntity(json(entity), ContentType.APPLICATION_JSON));
+		}
+		CloseableHttpResponse response = client.execute(request.build());
+		try {
+			Response.ResponseBuilder builder = Response.status(response.getStatusLine().getStatusCode());
+			HttpEntity body = response.getEntity();
+			if (body != null) {
+				byte[] bytes = EntityUtils.toByteArray(body);
+				if (bytes.length > 0) {
+					builder.entity(bytes);
+					if (body.getContentType() != null) {
+						builder.type(body.getContentType().getValue());
+					}
+				}
+			}
+			return builder.build();
+		} finally {
+			response.close();
+		}
+	}
+
+	private static byte[] json(Object entity) {
+		try {
+			return MAPPER.writeValueAsBytes(entity);
+		} catch (JsonProcessingException e) {
+			throw new IllegalArgumentException("Cannot serialize " + entity, e);
+		}
+	}
+
+	/**
+	 * @return error code of an ErrorResponse body of a forwarded response, or
+	 *         its status
+	 */
+	public static String errorCode(Response response) {
+		if (response.hasEntity()) {
+			try {
+				String code = MAPPER.readTree((byte[]) response.getEntity()).path("errorCode").asText(null);
+				if (code != null) {
+					return code;
+				}
+			} catch (IOException e) {
+				// not an ErrorResponse
+			}
+		}
+		return "Transaction failed with status " + response.getStatus();
+	}
+}
@@ -0,0 +1,263 @@
+package com.moneytransfer.cluster;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+import com.moneytransfer.exception.MoneyTransferException;
+import com.moneytransfer.model.TransferLeg;
+import com.moneytransfer.utils.PropsUitl;
+
+/**
+ * Recovery log of the cross node transfer legs of one node, see
+ * {@link TransferLegs}.
+ * <p>
+ * Every record holds a state and the whole leg and is on disk before
+ * {@link #append(byte, TransferLeg)} returns. A step that changes a balance
+ * writes its intent before the change and its outcome after it, so a record
+ * left in an intent state after a restart marks a leg whose balance change is
+ * in doubt. The log keeps the last record of every leg in memory and is
+ * rewritten with only those once it grew by {@code maxBytes} since the last
+ * rewrite. Records are a length, the state and leg, and a CRC of both; a torn
+ * tail is dropped when the log is opened.
+ */
+public class LegLog {
+
+	private static Logger LOGGER = Logger.getLogger(LegLog.class);
+
+	// participant states, keyed by transfer and account
+	static final byte RESERVING = 1;
+	static final byte RESERVED = 2;
+	static final byte COMMITTING = 3;
+	static final byte COMMITTED = 4;
+	static final byte ABORTING = 5;
+	static final byte ABORTED = 6;
+	// coordinator states of the credit leg, keyed by transfer
+	static final byte DECIDED = 7;
+	static final byte CREDIT_DUE = 8;
+	static final byte DONE = 9;
+
+	private static final int MAX_RECORD_SIZE = 64 * 1024;
+
+	private final File file;
+	private final long maxBytes;
+	// last record of every leg not forgotten yet, in the order of their first record
+	private final Map<String, Record> last = new LinkedHashMap<String, Record>();
+	private final CRC32 crc = new CRC32();
+	private RandomAccessFile raf;
+	private FileChannel channel;
+	private long position;
+	// size right after the last rewrite, the live records
+	private long rewrittenSize;
+
+	/**
+	 * Open the log, reading back the last record of every leg.
+	 *
+	 * @param file     log file, created if missing
+	 * @param maxBytes size after which the log is rewritten
+	 */
+	public LegLog(File file, long maxBytes) throws MoneyTransferException {
+		this.file = file;
+		this.maxBytes = maxBytes;
+		try {
+			File dir = file.getAbsoluteFile().getParentFile();
+			if (!dir.isDirectory() && !dir.mkdirs()) {
+				throw new IOException("Cannot create directory " + dir);
+			}
+			raf = new RandomAccessFile(file, "rw");
+			channel = raf.getChannel();
+			ByteBuffer header = ByteBuffer.allocate(4);
+			while (channel.read(header, position) == 4) {
+				header.flip();
+				int length = header.getInt();
+				header.clear();
+				if (length <= 0 || length > MAX_RECORD_SIZE) {
+					break;
+				}
+				ByteBuffer body = ByteBuffer.allocate(length + 4);
+				if (channel.read(body, position + 4) != length + 4) {
+					break;
+				}
+				body.flip();
+				byte[] payload = new byte[length];
+				body.get(payload);
+				if (body.getInt() != checksum(payload)) {
+					break;
+				}
+				Record record = decode(payload);
+				last.put(record.key(), record);
+				position += 8 + length;
+			}
+			// drop a torn tail
+			channel.truncate(position);
+		} catch (IOException e) {
+			throw new MoneyTransferException("Error opening transfer leg log " + file, e);
+		}
+		LOGGER.info("Opened transfer leg log " + file + ", " + last.size() + " legs");
+	}
+
+	/**
+	 * Build the log of a node from the {@code cluster_leg_log*} properties.
+	 */
+	public static LegLog fromProperties(int node) throws MoneyTransferException {
+		return new LegLog(
+				new File(PropsUitl.getStringProperty("cluster_leg_log", "journal/cluster-legs-" + node + ".log")),
+				PropsUitl.getIntegerProperty("cluster_leg_log_max_kb", 1024) * 1024L);
+	}
+
+	/**
+	 * @return last record of every leg read back when the log was opened
+	 */
+	public synchronized List<Record> getRecords() {
+		return new ArrayList<Record>(last.values());
+	}
+
+	/**
+	 * Write a record, returning once it is on disk.
+	 */
+	public synchronized void append(byte state, TransferLeg leg) throws MoneyTransferException {
+		Record record = new Record(state, leg);
+		write(record);
+		last.put(record.key(), record);
+		try {
+			channel.force(false);
+		} catch (IOException e) {
+			throw new MoneyTransferException("Error forcing transfer leg log " + file, e);
+		}
+		if (position > maxBytes + rewrittenSize) {
+			rewrite();
+		}
+	}
+
+	/**
+	 * Drop a finished leg from the next rewrite, it is not needed to answer
+	 * repeats any more.
+	 */
+	public synchronized void forget(byte state, TransferLeg leg) {
+		String key = new Record(state, leg).key();
+		Record record = last.get(key);
+		if (record != null && record.state == state) {
+			last.remove(key);
+		}
+	}
+
+	public synchronized void close() {
+		try {
+			channel.force(false);
+			raf.close();
+		} catch (IOException e) {
+			LOGGER.warn("close(): Error closing " + file, e);
+		}
+	}
+
+	// caller holds this
+	private void write(Record record) throws MoneyTransferException {
+		byte[] payload = encode(record);
+		ByteBuffer buffer = ByteBuffer.allocate(payload.length + 8);
+		buffer.putInt(payload.length).put(payload).putInt(checksum(payload));
+		buffer.flip();
+		try {
+			while (buffer.hasRemaining()) {
+				channel.write(buffer, position + buffer.position());
+			}
+		} catch (IOException e) {
+			throw new MoneyTransferException("Error writing transfer leg log " + file, e);
+		}
+		position += payload.length + 8;
+	}
+
+	/**
+	 * Replace the file with one holding only the last record of every leg,
+	 * caller holds this.
+	 */
+	private void rewrite() throws MoneyTransferException {
+		File temp = new File(file.getPath() + ".tmp");
+		try {
+			RandomAccessFile tempRaf = new RandomAccessFile(temp, "rw");
+			FileChannel tempChannel = tempRaf.getChannel();
+			tempChannel.truncate(0);
+			RandomAccessFile oldRaf = raf;
+			channel = tempChannel;
+			position = 0;
+			for (Record record : last.values()) {
+				write(record);
+			}
+			tempChannel.force(false);
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+			raf = tempRaf;
+			rewrittenSize = position;
+			oldRaf.close();
+		} catch (IOException e) {
+			throw new MoneyTransferException("Error rewriting transfer leg log " + file, e);
+		}
+	}
+
+	private static byte[] encode(Record record) throws MoneyTransferException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeByte(record.state);
+			out.writeUTF(record.leg.getTransferId());
+			out.writeLong(record.leg.getAccountId());
+			out.writeLong(record.leg.getCounterpartyAccountId());
+			out.writeLong(record.leg.getAmountUnits());
+			out.writeUTF(record.leg.getCurrencyCode());
+		} catch (IOException e) {
+			throw new MoneyTransferException("Error encoding " + record.leg, e);
+		}
+		return bytes.toByteArray();
+	}
+
+	private static Record decode(byte[] payload) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+		byte state = in.readByte();
+		return new Record(state,
+				new TransferLeg(in.readUTF(), in.readLong(), in.readLong(), in.readLong(), in.readUTF()));
+	}
+
+	private int checksum(byte[] payload) {
+		crc.reset();
+		crc.update(payload, 0, payload.length);
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * State of a leg.
+	 */
+	public static final class Record {
+		final byte state;
+		final TransferLeg leg;
+
+		Record(byte state, TransferLeg leg) {
+			this.state = state;
+			this.leg = leg;
+		}
+
+		/**
+		 * @return true for a state written by the coordinator of the transfer
+		 */
+		boolean isCoordinator() {
+			return state >= DECIDED;
+		}
+
+		String key() {
+			return isCoordinator() ? leg.getTransferId() : leg.getTransferId() + ':' + leg.getAccountId();
+		}
+	}
+}
@@ -0,0 +1,384 @@
+package com.moneytransfer.cluster;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+import com.moneytransfer.dao.AccountDAO;
+import com.moneytransfer.exception.MoneyTransferException;
+import com.moneytransfer.model.Account;
+import com.moneytransfer.model.TransferLeg;
+
+/**
+ * Legs of cross node transfers on the node owning their accounts.
+ * <p>
+ * Reserving a debit takes the amount off the balance right away, so the funds
+ * cannot be spent twice; aborting it puts them back. Reserving a credit only
+ * checks the account, the balance moves on commit. A debit that is neither
+ * committed nor aborted within the reservation timeout is aborted (presumed
+ * abort) and a later commit of it fails, which makes the coordinator abort the
+ * credit. A credit commit carries the whole leg and applies even if its
+ * reservation is gone: the coordinator only sends it once the debit is
+ * committed, so a credit reservation past the timeout is only dropped.
+ * Repeated requests for a finished leg are answered with its outcome. The
+ * steps on a leg hold the lock stripe of its key, so a repeated reserve waits
+ * for the first one and does not apply the debit again.
+ * <p>
+ * With a {@link LegLog} every step is on disk before it is answered and the
+ * legs are read back when the node starts. A step that moves a balance logs
+ * its intent first; one found without its outcome is in doubt, logged as an
+ * error and closed without moving the balance again. The coordinator side
+ * logs the credits it still has to commit, see {@link #decide(TransferLeg)}.
+ */
+public class TransferLegs {
+
+	private static Logger LOGGER = Logger.getLogger(TransferLegs.class);
+
+	private static final int KEY_LOCK_STRIPES = 64;
+
+	private final AccountDAO accountDAO;
+	private final long timeoutMs;
+	private final long retentionMs;
+	private final LegLog log;
+	// reserved legs by key, value is the expiry time
+	private final Map<String, Reserved> reserved = new ConcurrentHashMap<String, Reserved>();
+	// finished legs by key, kept for the retention time to answer repeats
+	private final Map<String, Finished> finished = new ConcurrentHashMap<String, Finished>();
+	// credits of transfers coordinated here and decided, by transfer id
+	private final Map<String, LegLog.Record> pending = new ConcurrentHashMap<String, LegLog.Record>();
+	private final Object[] keyLocks = new Object[KEY_LOCK_STRIPES];
+
+	/**
+	 * Legs kept in memory only, outcomes are kept for twice the timeout.
+	 */
+	public TransferLegs(AccountDAO accountDAO, long timeoutMs) throws MoneyTransferException {
+		this(accountDAO, timeoutMs, 2 * timeoutMs, null);
+	}
+
+	/**
+	 * @param retentionMs time the outcome of a finished leg is kept to answer
+	 *                    repeats
+	 * @param log         log the legs are read back from and written to, null
+	 *                    for none
+	 * @throws MoneyTransferException if the legs in doubt cannot be closed in
+	 *                                the log
+	 */
+	public TransferLegs(AccountDAO accountDAO, long timeoutMs, long retentionMs, LegLog log)
+			throws MoneyTransferException {
+		this.accountDAO = accountDAO;
+		this.timeoutMs = timeoutMs;
+		this.retentionMs = retentionMs;
+		this.log = log;
+		for (int i = 0; i < keyLocks.length; i++) {
+			keyLocks[i] = new Object();
+		}
+		if (log != null) {
+			recover(log.getRecords());
+		}
+	}
+
+	/**
+	 * Reserve a leg: check its account and, for a debit, take the amount off
+	 * the balance.
+	 *
+	 * @throws MoneyTransferException if the leg cannot be applied, e.g. for
+	 *                                lack of funds
+	 */
+	public void reserve(TransferLeg leg) throws MoneyTransferException {
+		String key = key(leg);
+		synchronized (lockOf(key)) {
+			Finished outcome = finished.get(key);
+			if (outcome != null) {
+				if (!outcome.committed) {
+					throw new MoneyTransferException("Transfer " + leg.getTransferId() + " was aborted");
+				}
+				return;
+			}
+			if (reserved.containsKey(key)) {
+				return;
+			}
+			Account account = accountDAO.getAccountById(leg.getAccountId());
+			if (account == null) {
+				throw new MoneyTransferException("Fail to lock both accounts for write");
+			}
+			if (!account.getCurrencyCode().equals(leg.getCurrencyCode())) {
+				throw new MoneyTransferException(
+						"Fail to transfer Fund, transaction ccy are different from source/destination");
+			}
+			if (leg.isDebit()) {
+				record(LegLog.RESERVING, leg);
+				if (!apply(leg)) {
+					record(LegLog.ABORTED, leg);
+					finished.put(key, new Finished(false, leg));
+					throw new MoneyTransferException("Transaction failed");
+				}
+			}
+			record(LegLog.RESERVED, leg);
+			reserved.put(key, new Reserved(leg, System.currentTimeMillis() + timeoutMs));
+		}
+	}
+
+	/**
+	 * Commit a leg, applying a credit to the balance.
+	 *
+	 * @throws IllegalStateException  if the debit is no longer reserved
+	 * @throws MoneyTransferException if the credit cannot be applied
+	 */
+	public void commit(TransferLeg leg) throws MoneyTransferException {
+		String key = key(leg);
+		synchronized (lockOf(key)) {
+			if (!reserved.containsKey(key)) {
+				Finished outcome = finished.get(key);
+				if (outcome != null && outcome.committed) {
+					return;
+				}
+				if (leg.isDebit() || outcome != null) {
+					throw new IllegalStateException("Transfer " + leg.getTransferId() + " is not reserved on account "
+							+ leg.getAccountId());
+				}
+			}
+			// a credit that cannot be applied stays as it is for the coordinator's retry
+			if (!leg.isDebit()) {
+				record(LegLog.COMMITTING, leg);
+				if (!apply(leg)) {
+					record(LegLog.RESERVED, leg);
+					throw new MoneyTransferException("Transaction failed");
+				}
+			}
+			record(LegLog.COMMITTED, leg);
+			finished.put(key, new Finished(true, leg));
+			reserved.remove(key);
+		}
+	}
+
+	/**
+	 * Abort a leg, giving a reserved debit back to the account.
+	 *
+	 * @throws MoneyTransferException if the abort cannot be logged
+	 */
+	public void abort(TransferLeg leg) throws MoneyTransferException {
+		String key = key(leg);
+		synchronized (lockOf(key)) {
+			if (finished.containsKey(key)) {
+				return;
+			}
+			Reserved reservation = reserved.get(key);
+			if (reservation != null && !release(reservation.leg)) {
+				return;
+			}
+			reserved.remove(key);
+			record(LegLog.ABORTED, leg);
+			finished.put(key, new Finished(false, leg));
+		}
+	}
+
+	/**
+	 * Abort the debits past their timeout, drop the credits past it and
+	 * forget old outcomes.
+	 */
+	public void expire() {
+		long now = System.currentTimeMillis();
+		for (Map.Entry<String, Reserved> entry : reserved.entrySet()) {
+			if (entry.getValue().expiresAt > now) {
+				continue;
+			}
+			String key = entry.getKey();
+			synchronized (lockOf(key)) {
+				Reserved reservation = entry.getValue();
+				if (reserved.get(key) != reservation) {
+					continue;
+				}
+				if (reservation.leg.isDebit()) {
+					LOGGER.warn("expire(): aborting leg past its timeout " + reservation.leg);
+					try {
+						abort(reservation.leg);
+					} catch (MoneyTransferException e) {
+						LOGGER.error("expire(): Error aborting " + reservation.leg, e);
+					}
+				} else {
+					// holds no funds, a later commit still applies it
+					if (LOGGER.isDebugEnabled()) {
+						LOGGER.debug("expire(): dropping credit reservation past its timeout " + reservation.leg);
+					}
+					reserved.remove(key);
+					forget(LegLog.RESERVED, reservation.leg);
+				}
+			}
+		}
+		for (Iterator<Finished> it = finished.values().iterator(); it.hasNext();) {
+			Finished outcome = it.next();
+			if (outcome.at + retentionMs <= now) {
+				it.remove();
+				forget(outcome.committed ? LegLog.COMMITTED : LegLog.ABORTED, outcome.leg);
+			}
+		}
+	}
+
+	/**
+	 * Log that the transfer of a credit coordinated here is decided, before
+	 * its debit is committed. Until {@link #done(TransferLeg)} it is pending
+	 * and resumed after a restart.
+	 */
+	public void decide(TransferLeg credit) throws MoneyTransferException {
+		record(LegLog.DECIDED, credit);
+		pending.put(credit.getTransferId(), new LegLog.Record(LegLog.DECIDED, credit));
+	}
+
+	/**
+	 * Log that the debit of a pending credit is committed, so the credit must
+	 * be committed.
+	 */
+	public void creditDue(TransferLeg credit) throws MoneyTransferException {
+		record(LegLog.CREDIT_DUE, credit);
+		pending.put(credit.getTransferId(), new LegLog.Record(LegLog.CREDIT_DUE, credit));
+	}
+
+	/**
+	 * Log that a pending credit is committed, or aborted with its debit.
+	 */
+	public void done(TransferLeg credit) throws MoneyTransferException {
+		record(LegLog.DONE, credit);
+		forget(LegLog.DONE, credit);
+		pending.remove(credit.getTransferId());
+	}
+
+	/**
+	 * @return credits decided and not done yet, with their last state
+	 */
+	public List<LegLog.Record> getPending() {
+		return new ArrayList<LegLog.Record>(pending.values());
+	}
+
+	/**
+	 * @return number of credits decided and not done yet
+	 */
+	public int getPendingCount() {
+		return pending.size();
+	}
+
+	/**
+	 * @return legs reserved and not finished yet
+	 */
+	public int getReservedCount() {
+		return reserved.size();
+	}
+
+	/**
+	 * Read back the legs of the log. Legs in doubt are closed without moving
+	 * a balance: a debit is aborted without giving the amount back and a
+	 * credit committed without applying it again, so no money is created.
+	 */
+	private void recover(List<LegLog.Record> records) throws MoneyTransferException {
+		for (LegLog.Record record : records) {
+			TransferLeg leg = record.leg;
+			switch (record.state) {
+			case LegLog.RESERVED:
+				reserved.put(key(leg), new Reserved(leg, System.currentTimeMillis() + timeoutMs));
+				break;
+			case LegLog.COMMITTED:
+				finished.put(key(leg), new Finished(true, leg));
+				break;
+			case LegLog.ABORTED:
+				finished.put(key(leg), new Finished(false, leg));
+				break;
+			case LegLog.RESERVING:
+			case LegLog.ABORTING:
+				LOGGER.error("recover(): debit in doubt, aborted without giving it back " + leg);
+				record(LegLog.ABORTED, leg);
+				finished.put(key(leg), new Finished(false, leg));
+				break;
+			case LegLog.COMMITTING:
+				LOGGER.error("recover(): credit in doubt, committed without applying it again " + leg);
+				record(LegLog.COMMITTED, leg);
+				finished.put(key(leg), new Finished(true, leg));
+				break;
+			case LegLog.DECIDED:
+			case LegLog.CREDIT_DUE:
+				pending.put(leg.getTransferId(), record);
+				break;
+			default:
+				// DONE
+				log.forget(record.state, leg);
+			}
+		}
+		LOGGER.info("recover(): " + reserved.size() + " legs reserved, " + finished.size() + " finished, "
+				+ pending.size() + " credits pending");
+	}
+
+	/**
+	 * @return false if the balance of the leg's account was not changed
+	 */
+	private boolean apply(TransferLeg leg) {
+		try {
+			return accountDAO.updateAccountBalanceAndGet(leg.getAccountId(), leg.getAmountUnits()) != null;
+		} catch (MoneyTransferException e) {
+			LOGGER.error("apply(): Error changing the balance for " + leg, e);
+			return false;
+		}
+	}
+
+	/**
+	 * Give a reserved debit back, caller holds the lock of its key.
+	 *
+	 * @return false if the debit is still reserved
+	 */
+	private boolean release(TransferLeg leg) throws MoneyTransferException {
+		if (!leg.isDebit()) {
+			return true;
+		}
+		record(LegLog.ABORTING, leg);
+		TransferLeg back = new TransferLeg(leg.getTransferId(), leg.getAccountId(), leg.getCounterpartyAccountId(),
+				-leg.getAmountUnits(), leg.getCurrencyCode());
+		if (!apply(back)) {
+			LOGGER.error("release(): Error giving back the reserved debit " + leg);
+			record(LegLog.RESERVED, leg);
+			return false;
+		}
+		return true;
+	}
+
+	private void record(byte state, TransferLeg leg) throws MoneyTransferException {
+		if (log != null) {
+			log.append(state, leg);
+		}
+	}
+
+	private void forget(byte state, TransferLeg leg) {
+		if (log != null) {
+			log.forget(state, leg);
+		}
+	}
+
+	private Object lockOf(String key) {
+		return keyLocks[(key.hashCode() & 0x7fffffff) % KEY_LOCK_STRIPES];
+	}
+
+	private static String key(TransferLeg leg) {
+		return leg.getTransferId() + ':' + leg.getAccountId();
+	}
+
+	private static final class Reserved {
+		final TransferLeg leg;
+		final long expiresAt;
+
+		Reserved(TransferLeg leg, long expiresAt) {
+			this.leg = leg;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	private static final class Finished {
+		final boolean committed;
+		final TransferLeg leg;
+		final long at = System.currentTimeMillis();
+
+		Finished(boolean committed, TransferLeg leg) {
+			this.committed = committed;
+			this.leg = leg;
+		}
+	}
+}
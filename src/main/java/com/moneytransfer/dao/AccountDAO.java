@@ -2,9 +2,11 @@ package com.moneytransfer.dao;
 
 import com.moneytransfer.exception.MoneyTransferException;
 import com.moneytransfer.model.Account;
+import com.moneytransfer.model.AccountTransaction;
 import com.moneytransfer.model.Transaction;
+import com.moneytransfer.model.TransactionResult;
 
-import java.math.BigDecimal;
+import java.io.IOException;
 import java.util.List;
 
 /**
@@ -20,6 +22,20 @@ public interface AccountDAO {
 	 */
 	List<Account> getAllAccounts() throws MoneyTransferException;
 
+	/**
+	 * Stream accounts in account id order, without holding them all in memory
+	 * 
+	 * @param afterAccountId only accounts with a higher id, 0 for all
+	 * @param currencyCode   only accounts in this currency, null for all
+	 * @param limit          maximum number of accounts
+	 * @param callback       receives the accounts
+	 * @return number of accounts streamed
+	 * @throws MoneyTransferException
+	 * @throws IOException            thrown by the callback
+	 */
+	int streamAccounts(long afterAccountId, String currencyCode, int limit, RowCallback<Account> callback)
+			throws MoneyTransferException, IOException;
+
 	/**
 	 * Get account by account id.
 	 * 
@@ -38,6 +54,15 @@ public interface AccountDAO {
 	 */
 	long createAccount(Account account) throws MoneyTransferException;
 
+	/**
+	 * Create account
+	 * 
+	 * @param account
+	 * @return created account, as stored
+	 * @throws MoneyTransferException
+	 */
+	Account createAccountAndGet(Account account) throws MoneyTransferException;
+
 	/**
 	 * Delete account
 	 * 
@@ -51,11 +76,21 @@ public interface AccountDAO {
 	 * Update account balance
 	 * 
 	 * @param accountId
-	 * @param deltaAmount amount
+	 * @param deltaUnits amount in {@link com.moneytransfer.model.Money} minor units
 	 * @return number of rows updated
 	 * @throws MoneyTransferException
 	 */
-	int updateAccountBalance(long accountId, BigDecimal deltaAmount) throws MoneyTransferException;
+	int updateAccountBalance(long accountId, long deltaUnits) throws MoneyTransferException;
+
+	/**
+	 * Update account balance
+	 * 
+	 * @param accountId
+	 * @param deltaUnits amount in {@link com.moneytransfer.model.Money} minor units
+	 * @return account with the updated balance, null if no update was made
+	 * @throws MoneyTransferException
+	 */
+	Account updateAccountBalanceAndGet(long accountId, long deltaUnits) throws MoneyTransferException;
 
 	/**
 	 * Transfer amount between accounts
@@ -65,4 +100,28 @@ public interface AccountDAO {
 	 * @throws MoneyTransferException
 	 */
 	int transferAccountBalance(Transaction userTransaction) throws MoneyTransferException;
+
+	/**
+	 * Transfer amounts for a batch of transactions, each transfer succeeds or
+	 * fails on its own
+	 * 
+	 * @param transactions
+	 * @return one result per transaction, in the same order
+	 * @throws MoneyTransferException
+	 */
+	List<TransactionResult> transferAccountBalanceBatch(List<Transaction> transactions)
+			throws MoneyTransferException;
+
+	/**
+	 * Transfer history of an account, newest first
+	 * 
+	 * @param accountId
+	 * @param beforeTxnId only rows with a lower id, {@link Long#MAX_VALUE} for
+	 *                    the newest
+	 * @param limit       maximum number of rows
+	 * @return history rows
+	 * @throws MoneyTransferException
+	 */
+	List<AccountTransaction> getTransactions(long accountId, long beforeTxnId, int limit)
+			throws MoneyTransferException;
 }
@@ -1,12 +1,20 @@
 package com.moneytransfer.dao;
 
 import com.moneytransfer.dao.impl.H2DAOFactoryImpl;
+import com.moneytransfer.dao.impl.IdempotencyStore;
+import com.moneytransfer.dao.impl.LedgerDAOFactoryImpl;
+import com.moneytransfer.dao.impl.ShardedDAOFactoryImpl;
+import com.moneytransfer.utils.PropsUitl;
 
 /**
  * DAO factory
  */
 public interface DAOFactory {
 
+	String H2 = "h2";
+	String LEDGER = "ledger";
+	String SHARDED = "sharded";
+
 	/**
 	 * User DAO object
 	 * 
@@ -21,17 +29,59 @@ public interface DAOFactory {
 	 */
 	AccountDAO getAccountDAO();
 
+	/**
+	 * Outcomes of requests by idempotency key
+	 * 
+	 * @return idempotency store
+	 */
+	IdempotencyStore getIdempotencyStore();
+
 	/**
 	 * Populate data
 	 */
 	void populateTestData();
 
 	/**
-	 * In memory DAO object
+	 * Keep only the accounts with ids in the range and create new accounts
+	 * in it, e.g. on a cluster node owning the range
+	 * 
+	 * @param firstId first account id of the range
+	 * @param lastId  last account id of the range
+	 */
+	void restrictAccountIds(long firstId, long lastId);
+
+	/**
+	 * Bring the populated data up to date from durable storage, e.g. by
+	 * replaying a journal, no-op when there is none
+	 */
+	void recover();
+
+	/**
+	 * DAO object selected by the dao_factory property: h2 (default), ledger or
+	 * sharded
 	 * 
 	 * @return In memory DAO object
 	 */
 	static DAOFactory getDAOFactory() {
-		return new H2DAOFactoryImpl();
+		return getDAOFactory(PropsUitl.getStringProperty("dao_factory", H2));
+	}
+
+	/**
+	 * DAO object by type
+	 * 
+	 * @param type h2, ledger or sharded
+	 * @return In memory DAO object
+	 */
+	static DAOFactory getDAOFactory(String type) {
+		switch (type) {
+		case LEDGER:
+			return new LedgerDAOFactoryImpl();
+		case SHARDED:
+			return new ShardedDAOFactoryImpl();
+		case H2:
+			return new H2DAOFactoryImpl();
+		default:
+			throw new IllegalArgumentException("Unknown dao_factory: " + type);
+		}
 	}
 }
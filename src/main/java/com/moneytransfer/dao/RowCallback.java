@@ -0,0 +1,17 @@
+package com.moneytransfer.dao;
+
+import java.io.IOException;
+
+/**
+ * Receives the rows a DAO streams, one at a time and in id order, while the
+ * underlying cursor is open.
+ */
+public interface RowCallback<T> {
+
+	/**
+	 * @param row next row
+	 * @throws IOException if the row cannot be written on, which ends the
+	 *                     stream
+	 */
+	void row(T row) throws IOException;
+}
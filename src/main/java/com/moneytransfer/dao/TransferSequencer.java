@@ -0,0 +1,217 @@
+package com.moneytransfer.dao;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.log4j.Logger;
+
+import com.moneytransfer.exception.MoneyTransferException;
+import com.moneytransfer.exception.TransferOutcomeUnknownException;
+import com.moneytransfer.model.Transaction;
+import com.moneytransfer.model.TransactionResult;
+import com.moneytransfer.utils.PropsUitl;
+
+/**
+ * Single writer in front of {@link AccountDAO#transferAccountBalanceBatch}.
+ * <p>
+ * Callers put transfers on a bounded queue and wait on a future. One writer
+ * thread takes them off in arrival order and applies them as a batch once
+ * {@code batchSize} transfers are waiting or the first one has waited
+ * {@code maxDelayMicros}, so a burst of transfers on hot accounts shares one
+ * lock acquisition and one commit instead of queueing on the account locks.
+ * A transfer whose caller stopped waiting before the writer took it is
+ * skipped.
+ */
+public class TransferSequencer {
+
+	private static Logger LOGGER = Logger.getLogger(TransferSequencer.class);
+
+	private final AccountDAO accountDAO;
+	private final ArrayBlockingQueue<Pending> queue;
+	private final int batchSize;
+	private final long maxDelayNanos;
+	private final long offerTimeoutMillis;
+	private final long resultTimeoutMillis;
+	private final Thread writer;
+	private volatile boolean running = true;
+
+	public TransferSequencer(AccountDAO accountDAO, int capacity, int batchSize, long maxDelayMicros,
+			long offerTimeoutMillis, long resultTimeoutMillis) {
+		this.accountDAO = accountDAO;
+		this.queue = new ArrayBlockingQueue<Pending>(capacity);
+		this.batchSize = batchSize;
+		this.maxDelayNanos = TimeUnit.MICROSECONDS.toNanos(maxDelayMicros);
+		this.offerTimeoutMillis = offerTimeoutMillis;
+		this.resultTimeoutMillis = resultTimeoutMillis;
+		this.writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				writeLoop();
+			}
+		}, "transfer-sequencer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Build a sequencer from the {@code transfer_sequencer_*} properties.
+	 */
+	public static TransferSequencer fromProperties(AccountDAO accountDAO) {
+		return new TransferSequencer(accountDAO, PropsUitl.getIntegerProperty("transfer_sequencer_capacity", 4096),
+				PropsUitl.getIntegerProperty("transfer_sequencer_batch_size", 100),
+				PropsUitl.getIntegerProperty("transfer_sequencer_max_delay_micros", 200),
+				PropsUitl.getIntegerProperty("transfer_sequencer_offer_timeout_ms", 1000),
+				PropsUitl.getIntegerProperty("transfer_sequencer_result_timeout_ms", 10000));
+	}
+
+	/**
+	 * Queue a transfer.
+	 *
+	 * @return future completed once the batch holding the transfer is committed
+	 * @throws MoneyTransferException if the queue stays full or the sequencer is
+	 *                                shut down
+	 */
+	public CompletableFuture<TransactionResult> submit(Transaction transaction) throws MoneyTransferException {
+		return enqueue(transaction).result;
+	}
+
+	/**
+	 * Queue a transfer and wait for its result.
+	 *
+	 * @throws TransferOutcomeUnknownException if the wait timed out after the
+	 *                                         writer took the transfer, it may
+	 *                                         still commit
+	 * @throws MoneyTransferException          if the transfer was not applied
+	 */
+	public TransactionResult transfer(Transaction transaction) throws MoneyTransferException {
+		Pending pending = enqueue(transaction);
+		try {
+			return pending.result.get(resultTimeoutMillis, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw giveUp(pending, "Interrupted while waiting for transaction");
+		} catch (ExecutionException e) {
+			throw new MoneyTransferException("Transaction failed", e.getCause());
+		} catch (TimeoutException e) {
+			throw giveUp(pending, "Timed out waiting for transaction");
+		}
+	}
+
+	/**
+	 * Stop waiting for a transfer, skipped by the writer unless it took it
+	 * already.
+	 */
+	private static MoneyTransferException giveUp(Pending pending, String reason) {
+		if (pending.taken.compareAndSet(false, true)) {
+			pending.result.cancel(false);
+			return new MoneyTransferException(reason + ", not applied");
+		}
+		return new TransferOutcomeUnknownException(reason + ", outcome unknown", pending.result);
+	}
+
+	private Pending enqueue(Transaction transaction) throws MoneyTransferException {
+		if (!running) {
+			throw new MoneyTransferException("Transfer sequencer is shut down");
+		}
+		Pending pending = new Pending(transaction);
+		try {
+			if (!queue.offer(pending, offerTimeoutMillis, TimeUnit.MILLISECONDS)) {
+				throw new MoneyTransferException("Transfer queue full, transaction rejected");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new MoneyTransferException("Interrupted while queueing transaction", e);
+		}
+		return pending;
+	}
+
+	/**
+	 * Stop accepting transfers, apply what is already queued and stop the writer.
+	 */
+	public void shutdown() throws InterruptedException {
+		running = false;
+		writer.join();
+	}
+
+	public int getQueueSize() {
+		return queue.size();
+	}
+
+	private void writeLoop() {
+		List<Pending> batch = new ArrayList<Pending>(batchSize);
+		try {
+			while (running || !queue.isEmpty()) {
+				Pending first = queue.poll(100, TimeUnit.MILLISECONDS);
+				if (first == null) {
+					continue;
+				}
+				batch.add(first);
+				long deadline = System.nanoTime() + maxDelayNanos;
+				while (batch.size() < batchSize) {
+					queue.drainTo(batch, batchSize - batch.size());
+					long remaining = deadline - System.nanoTime();
+					if (batch.size() >= batchSize || remaining <= 0) {
+						break;
+					}
+					Pending next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+					if (next == null) {
+						break;
+					}
+					batch.add(next);
+				}
+				apply(batch);
+				batch.clear();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			// anything the writer did not get to is failed, not lost
+			queue.drainTo(batch);
+			for (Pending pending : batch) {
+				pending.result.completeExceptionally(new MoneyTransferException("Transfer sequencer is shut down"));
+			}
+		}
+	}
+
+	private void apply(List<Pending> queued) {
+		// leave out the transfers whose callers gave up on them
+		List<Pending> batch = new ArrayList<Pending>(queued.size());
+		List<Transaction> transactions = new ArrayList<Transaction>(queued.size());
+		for (Pending pending : queued) {
+			if (pending.taken.compareAndSet(false, true)) {
+				batch.add(pending);
+				transactions.add(pending.transaction);
+			}
+		}
+		if (batch.isEmpty()) {
+			return;
+		}
+		try {
+			for (TransactionResult result : accountDAO.transferAccountBalanceBatch(transactions)) {
+				batch.get(result.getIndex()).result.complete(result);
+			}
+		} catch (MoneyTransferException | RuntimeException e) {
+			LOGGER.error("apply(): Error applying batch of " + batch.size() + " transfers", e);
+			for (Pending pending : batch) {
+				pending.result.completeExceptionally(e);
+			}
+		}
+	}
+
+	private static final class Pending {
+		final Transaction transaction;
+		final CompletableFuture<TransactionResult> result = new CompletableFuture<TransactionResult>();
+		// set by the writer taking the transfer into a batch or by the caller giving up on it
+		final AtomicBoolean taken = new AtomicBoolean();
+
+		Pending(Transaction transaction) {
+			this.transaction = transaction;
+		}
+	}
+}
@@ -3,6 +3,7 @@ package com.moneytransfer.dao;
 import com.moneytransfer.exception.MoneyTransferException;
 import com.moneytransfer.model.User;
 
+import java.io.IOException;
 import java.util.List;
 
 /**
@@ -18,6 +19,19 @@ public interface UserDAO {
 	 */
 	List<User> getAllUsers() throws MoneyTransferException;
 
+	/**
+	 * Stream users in user id order, without holding them all in memory
+	 * 
+	 * @param afterUserId only users with a higher id, 0 for all
+	 * @param limit       maximum number of users
+	 * @param callback    receives the users
+	 * @return number of users streamed
+	 * @throws MoneyTransferException
+	 * @throws IOException            thrown by the callback
+	 */
+	int streamUsers(long afterUserId, int limit, RowCallback<User> callback)
+			throws MoneyTransferException, IOException;
+
 	/**
 	 * Get user by user id
 	 * 
@@ -0,0 +1,220 @@
+package com.moneytransfer.dao.impl;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.moneytransfer.model.Account;
+import com.moneytransfer.utils.PropsUitl;
+
+/**
+ * Bounded cache of accounts by id with approximate LRU eviction and an
+ * optional time to live.
+ * <p>
+ * Lookups are a {@link ConcurrentHashMap} read and take no lock. Eviction
+ * follows the CLOCK scheme: entries queue up in insertion order, a lookup only
+ * marks its entry as referenced, and when the cache is full the entry at the
+ * head is dropped unless it was referenced since it was last passed, in which
+ * case it goes to the tail again.
+ * <p>
+ * A reader that misses takes a {@link #generation(long)} ticket before it goes
+ * to the database and may only store what it read with that ticket. Every
+ * invalidation bumps the generation of the account's stripe, so a value read
+ * before a concurrent write commits can never be stored after the write has
+ * invalidated the entry. Stores and invalidations of the same stripe are
+ * serialised by the stripe's lock.
+ */
+public class AccountCache {
+
+	private static final int GENERATION_STRIPES = 64;
+
+	private final int maxSize;
+	private final long ttlNanos;
+	private final ConcurrentHashMap<Long, Entry> entries = new ConcurrentHashMap<Long, Entry>();
+	// entries in CLOCK order, may hold entries already replaced or removed
+	private final ConcurrentLinkedQueue<Entry> clock = new ConcurrentLinkedQueue<Entry>();
+	private final AtomicInteger queued = new AtomicInteger();
+	private final ReentrantLock evictLock = new ReentrantLock();
+	private final AtomicLongArray generations = new AtomicLongArray(GENERATION_STRIPES);
+	private final Object[] stripeLocks = new Object[GENERATION_STRIPES];
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong expirations = new AtomicLong();
+
+	/**
+	 * @param maxSize maximum number of cached accounts
+	 * @param ttlMs   time an entry stays valid, 0 to keep entries until evicted
+	 */
+	public AccountCache(int maxSize, long ttlMs) {
+		this.maxSize = maxSize;
+		this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMs);
+		for (int i = 0; i < stripeLocks.length; i++) {
+			stripeLocks[i] = new Object();
+		}
+	}
+
+	/**
+	 * Build a cache from the {@code account_cache_*} properties.
+	 */
+	public static AccountCache fromProperties() {
+		return new AccountCache(PropsUitl.getIntegerProperty("account_cache_max_size", 10000),
+				PropsUitl.getIntegerProperty("account_cache_ttl_ms", 30000));
+	}
+
+	/**
+	 * @return cached account, or null on a miss
+	 */
+	public Account get(long accountId) {
+		Entry entry = entries.get(accountId);
+		if (entry != null && ttlNanos > 0 && System.nanoTime() - entry.loadedAt > ttlNanos) {
+			if (entries.remove(accountId, entry)) {
+				expirations.incrementAndGet();
+			}
+			entry = null;
+		}
+		if (entry == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		if (!entry.referenced) {
+			entry.referenced = true;
+		}
+		hits.incrementAndGet();
+		return entry.account;
+	}
+
+	/**
+	 * @return ticket to pass to {@link #put(Account, long)} after loading the
+	 *         account
+	 */
+	public long generation(long accountId) {
+		return generations.get(stripeOf(accountId));
+	}
+
+	/**
+	 * Store a loaded account unless it was invalidated since the ticket was
+	 * taken.
+	 */
+	public void put(Account account, long generation) {
+		int stripe = stripeOf(account.getAccountId());
+		Entry entry = new Entry(account, System.nanoTime());
+		synchronized (stripeLocks[stripe]) {
+			if (generations.get(stripe) != generation) {
+				return;
+			}
+			entries.put(account.getAccountId(), entry);
+		}
+		clock.offer(entry);
+		queued.incrementAndGet();
+		evict();
+	}
+
+	public void invalidate(long accountId) {
+		int stripe = stripeOf(accountId);
+		synchronized (stripeLocks[stripe]) {
+			generations.incrementAndGet(stripe);
+			entries.remove(accountId);
+		}
+	}
+
+	public void clear() {
+		for (int i = 0; i < GENERATION_STRIPES; i++) {
+			synchronized (stripeLocks[i]) {
+				generations.incrementAndGet(i);
+			}
+		}
+		entries.clear();
+	}
+
+	/**
+	 * @return number of entries, expired entries count until they are looked up
+	 *         or evicted
+	 */
+	public int size() {
+		return entries.size();
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	/**
+	 * @return entries dropped because the cache was full
+	 */
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+	/**
+	 * @return entries dropped because their time to live passed
+	 */
+	public long getExpirationCount() {
+		return expirations.get();
+	}
+
+	@Override
+	public String toString() {
+		return "AccountCache{" + "size=" + size() + ", hits=" + hits + ", misses=" + misses + ", evictions="
+				+ evictions + ", expirations=" + expirations + '}';
+	}
+
+	private static int stripeOf(long accountId) {
+		int h = (int) (accountId ^ (accountId >>> 32));
+		return (h ^ (h >>> 16)) & (GENERATION_STRIPES - 1);
+	}
+
+	/**
+	 * Drop entries until the cache fits, and drop replaced or removed entries
+	 * from the queue once it holds more than twice the maximum size. Only one
+	 * writer evicts at a time, the others leave it to that one.
+	 */
+	private void evict() {
+		if ((entries.size() <= maxSize && queued.get() <= 2 * maxSize) || !evictLock.tryLock()) {
+			return;
+		}
+		try {
+			while (entries.size() > maxSize || queued.get() > 2 * maxSize) {
+				Entry entry = clock.poll();
+				if (entry == null) {
+					return;
+				}
+				queued.decrementAndGet();
+				Long accountId = entry.account.getAccountId();
+				if (entries.get(accountId) != entry) {
+					// replaced or removed since it was queued
+					continue;
+				}
+				if (entry.referenced || entries.size() <= maxSize) {
+					entry.referenced = false;
+					clock.offer(entry);
+					queued.incrementAndGet();
+				} else if (entries.remove(accountId, entry)) {
+					evictions.incrementAndGet();
+				}
+			}
+		} finally {
+			evictLock.unlock();
+		}
+	}
+
+	private static final class Entry {
+		final Account account;
+		final long loadedAt;
+		volatile boolean referenced;
+
+		Entry(Account account, long loadedAt) {
+			this.account = account;
+			this.loadedAt = loadedAt;
+		}
+	}
+}
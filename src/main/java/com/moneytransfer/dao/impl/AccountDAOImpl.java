@@ -1,51 +1,197 @@
 package com.moneytransfer.dao.impl;
 
+import java.io.IOException;
 import java.math.BigDecimal;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.LockSupport;
 
 import org.apache.commons.dbutils.DbUtils;
 import org.apache.log4j.Logger;
 
 import com.moneytransfer.dao.AccountDAO;
+import com.moneytransfer.dao.RowCallback;
+import com.moneytransfer.dao.journal.TransferJournal;
+import com.moneytransfer.dao.pool.ConnectionPool;
 import com.moneytransfer.exception.MoneyTransferException;
+import com.moneytransfer.exception.TransferRejectedException;
+import com.moneytransfer.metrics.Counter;
+import com.moneytransfer.metrics.Histogram;
+import com.moneytransfer.metrics.MetricsRegistry;
 import com.moneytransfer.model.Account;
+import com.moneytransfer.model.AccountTransaction;
+import com.moneytransfer.model.Money;
 import com.moneytransfer.model.Transaction;
-import com.moneytransfer.utils.MoneyTransferUtil;
+import com.moneytransfer.model.TransactionResult;
+import com.moneytransfer.utils.PropsUitl;
 
 public class AccountDAOImpl implements AccountDAO {
 
 	private static Logger LOGGER = Logger.getLogger(AccountDAOImpl.class);
-	
+	private static final AccountLocks ACCOUNT_LOCKS = AccountLocks.getInstance();
+	private static final Histogram TRANSFER_LOCK_WAIT = lockWaitHistogram("transfer");
+	private static final Histogram UPDATE_LOCK_WAIT = lockWaitHistogram("update");
+	private static final Histogram BATCH_LOCK_WAIT = lockWaitHistogram("batch");
+	private static final int BATCH_COMMIT_SIZE = Math.max(1, PropsUitl.getIntegerProperty("h2_batch_commit_size", 100));
+	private static final int FETCH_SIZE = Math.max(1, PropsUitl.getIntegerProperty("h2_fetch_size", 1000));
+	private static final int OPTIMISTIC_ATTEMPTS = Math.max(1,
+			PropsUitl.getIntegerProperty("account_optimistic_attempts", 3));
+	private static final int OPTIMISTIC_BACKOFF_US = Math.max(1,
+			PropsUitl.getIntegerProperty("account_optimistic_backoff_us", 50));
+	private static final Counter OPTIMISTIC_CONFLICTS = optimisticCounter("conflict");
+	private static final Counter OPTIMISTIC_FALLBACKS = optimisticCounter("fallback");
+
 	private final static String SQL_GET_ACC_BY_ID = "SELECT * FROM Account WHERE AccountId = ? ";
 	private final static String SQL_LOCK_ACC_BY_ID = "SELECT * FROM Account WHERE AccountId = ? FOR UPDATE";
 	private final static String SQL_CREATE_ACC = "INSERT INTO Account (UserName, Balance, CurrencyCode) VALUES (?, ?, ?)";
-	private final static String SQL_UPDATE_ACC_BALANCE = "UPDATE Account SET Balance = ? WHERE AccountId = ? ";
-	private final static String SQL_GET_ALL_ACC = "SELECT * FROM Account";
+	private final static String SQL_UPDATE_ACC_BALANCE = "UPDATE Account SET Balance = ?, Version = Version + 1 "
+			+ "WHERE AccountId = ? ";
+	// written only if no other transaction updated the row since it was read
+	private final static String SQL_UPDATE_ACC_BALANCE_IF_VERSION = "UPDATE Account SET Balance = ?, "
+			+ "Version = Version + 1 WHERE AccountId = ? AND Version = ?";
+	// the balance is checked and changed by the database in one statement, the
+	// upper bound keeps it within the long range of Money
+	private final static String SQL_ADD_ACC_BALANCE_IF_FUNDED = "UPDATE Account SET Balance = Balance + ?, "
+			+ "Version = Version + 1 WHERE AccountId = ? AND Balance + ? BETWEEN 0 AND ?";
+	private final static String SQL_ADD_ACC_BALANCE_IF_CCY = "UPDATE Account SET Balance = Balance + ?, "
+			+ "Version = Version + 1 WHERE AccountId = ? AND CurrencyCode = ? AND Balance + ? BETWEEN 0 AND ?";
+	private static final BigDecimal MAX_BALANCE = Money.toBigDecimal(Long.MAX_VALUE);
+	// sub-ledger slots of the hot accounts
+	private final static String SQL_GET_SLOT_SUM = "SELECT SUM(Balance) FROM AccountSlot WHERE AccountId = ?";
+	private final static String SQL_LOCK_SLOTS = "SELECT Slot, Balance FROM AccountSlot WHERE AccountId = ? FOR UPDATE";
+	private final static String SQL_CREDIT_SLOT = "UPDATE AccountSlot SET Balance = Balance + ? "
+			+ "WHERE AccountId = ? AND Slot = ?";
+	private final static String SQL_DRAW_SLOT = "UPDATE AccountSlot SET Balance = Balance - ? "
+			+ "WHERE AccountId = ? AND Slot = ?";
+	private final static String SQL_CREATE_SLOT = "INSERT INTO AccountSlot (AccountId, Slot, Balance) "
+			+ "SELECT ?, ?, 0 FROM DUAL WHERE NOT EXISTS (SELECT 1 FROM AccountSlot WHERE AccountId = ? AND Slot = ?)";
+	private final static String SQL_DELETE_SLOTS = "DELETE FROM AccountSlot WHERE AccountId = ?";
+	private final static String SQL_GET_ALL_ACC = "SELECT * FROM Account ORDER BY AccountId";
+	// primary key order, so the stream resumes after the last id read
+	private final static String SQL_STREAM_ACC = "SELECT * FROM Account WHERE AccountId > ? ORDER BY AccountId LIMIT ?";
+	private final static String SQL_STREAM_ACC_BY_CCY = "SELECT * FROM Account WHERE AccountId > ? AND CurrencyCode = ? "
+			+ "ORDER BY AccountId LIMIT ?";
 	private final static String SQL_DELETE_ACC_BY_ID = "DELETE FROM Account WHERE AccountId = ?";
+	private final static String SQL_INSERT_TXN = "INSERT INTO AccountTransaction "
+			+ "(AccountId, CounterpartyAccountId, Amount, Balance, CurrencyCode, CreatedAt) VALUES (?, ?, ?, ?, ?, ?)";
+	// keyset page in the order of idx_acctxn(AccountId, TxnId DESC), so H2 stops after limit rows
+	private final static String SQL_GET_TXN_PAGE = "SELECT * FROM AccountTransaction WHERE AccountId = ? AND TxnId < ? "
+			+ "ORDER BY AccountId, TxnId DESC LIMIT ?";
+
+	/**
+	 * How single transfers and balance updates keep concurrent writers of an
+	 * account apart, set with {@code account_update_mode}. Batches always lock.
+	 */
+	public enum UpdateMode {
+		/**
+		 * Lock the rows with {@code SELECT ... FOR UPDATE} under the account
+		 * lock stripes.
+		 */
+		PESSIMISTIC,
+		/**
+		 * Read the rows without locks and write them only if their version is
+		 * unchanged, retried {@code account_optimistic_attempts} times with a
+		 * random backoff before falling back to {@link #PESSIMISTIC}.
+		 */
+		OPTIMISTIC,
+		/**
+		 * Check and change each balance with one conditional
+		 * {@code UPDATE ... SET Balance = Balance + ? WHERE ... AND Balance + ? >= 0},
+		 * both legs of a transfer in one short transaction.
+		 */
+		CONDITIONAL;
+
+		public static UpdateMode fromProperties() {
+			return valueOf(PropsUitl.getStringProperty("account_update_mode", "pessimistic").toUpperCase());
+		}
+	}
+
+	private final ConnectionPool pool;
+	// committed changes are appended while the account locks are held, null when disabled
+	private final TransferJournal journal;
+	private final UpdateMode updateMode;
+	private final HotAccounts hotAccounts;
+	// one monitor per hot account, taken while its slots are created
+	private final ConcurrentMap<Long, Object> slotCreationLocks = new ConcurrentHashMap<Long, Object>();
+
+	public AccountDAOImpl() {
+		this(null);
+	}
+
+	public AccountDAOImpl(TransferJournal journal) {
+		this(H2DAOFactoryImpl.getConnectionPool(), journal, UpdateMode.fromProperties(), HotAccounts.fromProperties());
+	}
+
+	/**
+	 * @param pool    connections to the database holding the Account table
+	 * @param journal journal of the committed changes, null for none
+	 */
+	public AccountDAOImpl(ConnectionPool pool, TransferJournal journal) {
+		this(pool, journal, UpdateMode.fromProperties());
+	}
+
+	/**
+	 * @param updateMode how transfers and balance updates are guarded,
+	 *                   {@link UpdateMode#PESSIMISTIC} whenever a journal is
+	 *                   given: its records must be appended in commit order
+	 */
+	public AccountDAOImpl(ConnectionPool pool, TransferJournal journal, UpdateMode updateMode) {
+		this(pool, journal, updateMode, HotAccounts.NONE);
+	}
+
+	/**
+	 * @param hotAccounts accounts spread over sub-ledger slots, which the
+	 *                    database of the pool must have an AccountSlot table
+	 *                    for; none whenever a journal is given
+	 */
+	public AccountDAOImpl(ConnectionPool pool, TransferJournal journal, UpdateMode updateMode,
+			HotAccounts hotAccounts) {
+		this.pool = pool;
+		this.journal = journal;
+		if (journal != null && updateMode != UpdateMode.PESSIMISTIC) {
+			LOGGER.warn("account_update_mode " + updateMode + " is not supported with the journal, using PESSIMISTIC");
+			updateMode = UpdateMode.PESSIMISTIC;
+		}
+		if (journal != null && !hotAccounts.isEmpty()) {
+			LOGGER.warn("hot_account_ids are not supported with the journal, ignored");
+			hotAccounts = HotAccounts.NONE;
+		}
+		this.updateMode = updateMode;
+		this.hotAccounts = hotAccounts;
+	}
 
 	/**
 	 * Get all accounts.
 	 */
 	public List<Account> getAllAccounts() throws MoneyTransferException {
-		LOGGER.info("Before: get all accounts");
+		if (LOGGER.isDebugEnabled())
+			LOGGER.debug("Before: get all accounts");
 		Connection conn = null;
 		PreparedStatement stmt = null;
 		ResultSet rs = null;
 		List<Account> allAccounts = new ArrayList<Account>();
 		try {
-			conn = H2DAOFactoryImpl.getConnection();
+			conn = pool.getConnection();
 			stmt = conn.prepareStatement(SQL_GET_ALL_ACC);
 			rs = stmt.executeQuery();
 			while (rs.next()) {
-				Account acc = this.getAccount(rs);
+				Account acc = withSlots(conn, this.getAccount(rs));
 				allAccounts.add(acc);
 			}
-			LOGGER.info("After: get all accounts");
+			if (LOGGER.isDebugEnabled())
+				LOGGER.debug("After: get all accounts");
 			return allAccounts;
 		} catch (SQLException e) {
 			throw new MoneyTransferException("getAccountById(): Error reading account data", e);
@@ -54,24 +200,60 @@ public class AccountDAOImpl implements AccountDAO {
 		}
 	}
 
+	/**
+	 * Stream accounts from a forward only cursor, reading
+	 * {@code h2_fetch_size} rows at a time.
+	 */
+	public int streamAccounts(long afterAccountId, String currencyCode, int limit, RowCallback<Account> callback)
+			throws MoneyTransferException, IOException {
+		Connection conn = null;
+		PreparedStatement stmt = null;
+		ResultSet rs = null;
+		int rows = 0;
+		try {
+			conn = pool.getConnection();
+			stmt = conn.prepareStatement(currencyCode == null ? SQL_STREAM_ACC : SQL_STREAM_ACC_BY_CCY,
+					ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			stmt.setFetchSize(FETCH_SIZE);
+			int index = 1;
+			stmt.setLong(index++, afterAccountId);
+			if (currencyCode != null) {
+				stmt.setString(index++, currencyCode);
+			}
+			stmt.setInt(index, limit);
+			rs = stmt.executeQuery();
+			while (rs.next()) {
+				callback.row(withSlots(conn, this.getAccount(rs)));
+				rows++;
+			}
+			return rows;
+		} catch (SQLException e) {
+			throw new MoneyTransferException("streamAccounts(): Error reading account data after " + rows + " rows", e);
+		} finally {
+			DbUtils.closeQuietly(conn, stmt, rs);
+		}
+	}
+
 	/**
 	 * Get account by id
 	 */
 	public Account getAccountById(long accountId) throws MoneyTransferException {
-		LOGGER.info("Before: get account by id");
+		if (LOGGER.isDebugEnabled())
+			LOGGER.debug("Before: get account by id");
 		Connection conn = null;
 		PreparedStatement stmt = null;
 		ResultSet rs = null;
 		Account acc = null;
 		try {
-			conn = H2DAOFactoryImpl.getConnection();
+			conn = pool.getConnection();
 			stmt = conn.prepareStatement(SQL_GET_ACC_BY_ID);
 			stmt.setLong(1, accountId);
 			rs = stmt.executeQuery();
 			if (rs.next()) {
-				acc = this.getAccount(rs);
+				acc = withSlots(conn, this.getAccount(rs));
 			}
-			LOGGER.info("After: get account by id");
+			if (LOGGER.isDebugEnabled())
+				LOGGER.debug("After: get account by id");
 			return acc;
 		} catch (SQLException e) {
 			throw new MoneyTransferException("getAccountById(): Error reading account data", e);
@@ -85,12 +267,23 @@ public class AccountDAOImpl implements AccountDAO {
 	 * Create account
 	 */
 	public long createAccount(Account account) throws MoneyTransferException {
-		LOGGER.info("Before: create account");
+		return createAccountAndGet(account).getAccountId();
+	}
+
+	/**
+	 * Create account, the returned account is built from the inserted values
+	 */
+	public Account createAccountAndGet(Account account) throws MoneyTransferException {
+		if (LOGGER.isDebugEnabled())
+			LOGGER.debug("Before: create account");
 		Connection conn = null;
 		PreparedStatement stmt = null;
 		ResultSet generatedKeys = null;
+		if (journal != null) {
+			TransferJournal.checkRecordable(account.getUserName(), account.getCurrencyCode());
+		}
 		try {
-			conn = H2DAOFactoryImpl.getConnection();
+			conn = pool.getConnection();
 			stmt = conn.prepareStatement(SQL_CREATE_ACC);
 			stmt.setString(1, account.getUserName());
 			stmt.setBigDecimal(2, account.getBalance());
@@ -102,8 +295,15 @@ public class AccountDAOImpl implements AccountDAO {
 			}
 			generatedKeys = stmt.getGeneratedKeys();
 			if (generatedKeys.next()) {
-				LOGGER.info("After: create account");
-				return generatedKeys.getLong(1);
+				long accountId = generatedKeys.getLong(1);
+				if (journal != null) {
+					journal.awaitDurable(journal.appendAccount(accountId, account.getUserName(),
+							account.getBalanceUnits(), account.getCurrencyCode()));
+				}
+				if (LOGGER.isDebugEnabled())
+					LOGGER.debug("After: create account");
+				return new Account(accountId, account.getUserName(), account.getBalanceUnits(),
+						account.getCurrencyCode());
 			} else {
 				LOGGER.error("Creating account failed, no ID obtained.");
 				throw new MoneyTransferException("Account Cannot be created");
@@ -120,15 +320,27 @@ public class AccountDAOImpl implements AccountDAO {
 	 * Delete account by id
 	 */
 	public int deleteAccountById(long accountId) throws MoneyTransferException {
-		LOGGER.info("Before: delete account");
+		if (LOGGER.isDebugEnabled())
+			LOGGER.debug("Before: delete account");
 		Connection conn = null;
 		PreparedStatement stmt = null;
 		try {
-			conn = H2DAOFactoryImpl.getConnection();
+			conn = pool.getConnection();
 			stmt = conn.prepareStatement(SQL_DELETE_ACC_BY_ID);
 			stmt.setLong(1, accountId);
-			LOGGER.info("After: delete account");
-			return stmt.executeUpdate();
+			int deleted = stmt.executeUpdate();
+			if (deleted > 0 && hotAccounts.contains(accountId)) {
+				stmt.close();
+				stmt = conn.prepareStatement(SQL_DELETE_SLOTS);
+				stmt.setLong(1, accountId);
+				stmt.executeUpdate();
+			}
+			if (deleted > 0 && journal != null) {
+				journal.awaitDurable(journal.appendDelete(accountId));
+			}
+			if (LOGGER.isDebugEnabled())
+				LOGGER.debug("After: delete account");
+			return deleted;
 		} catch (SQLException e) {
 			throw new MoneyTransferException("deleteAccountById(): Error deleting user account Id " + accountId, e);
 		} finally {
@@ -140,45 +352,87 @@ public class AccountDAOImpl implements AccountDAO {
 	/**
 	 * Update account balance
 	 */
-	public int updateAccountBalance(long accountId, BigDecimal deltaAmount) throws MoneyTransferException {
-		LOGGER.info("Before: update balance");
+	public int updateAccountBalance(long accountId, long deltaUnits) throws MoneyTransferException {
+		return updateAccountBalanceAndGet(accountId, deltaUnits) != null ? 1 : -1;
+	}
+
+	/**
+	 * Update account balance, the returned account holds the balance written
+	 * under lock, or is null if the update was rolled back
+	 */
+	public Account updateAccountBalanceAndGet(long accountId, long deltaUnits) throws MoneyTransferException {
+		if (hotAccounts.contains(accountId)) {
+			return updateHot(accountId, deltaUnits);
+		}
+		if (updateMode == UpdateMode.OPTIMISTIC) {
+			for (int attempt = 0; attempt < OPTIMISTIC_ATTEMPTS; attempt++) {
+				backoff(attempt);
+				Account updatedAccount = tryUpdateOptimistic(accountId, deltaUnits);
+				if (updatedAccount != null) {
+					return updatedAccount;
+				}
+				OPTIMISTIC_CONFLICTS.increment();
+			}
+			OPTIMISTIC_FALLBACKS.increment();
+		} else if (updateMode == UpdateMode.CONDITIONAL) {
+			return updateConditional(accountId, deltaUnits);
+		}
+		return updateLocked(accountId, deltaUnits);
+	}
+
+	/**
+	 * Update account balance with the account row locked
+	 */
+	private Account updateLocked(long accountId, long deltaUnits) throws MoneyTransferException {
+		if (LOGGER.isDebugEnabled())
+			LOGGER.debug("Before: update balance");
 		Connection conn = null;
 		PreparedStatement lockStmt = null;
 		PreparedStatement updateStmt = null;
 		ResultSet rs = null;
 		Account targetAccount = null;
-		int updateCount = -1;
+		Account updatedAccount = null;
+		long journalSequence = 0;
+		AccountLocks.Held locks = null;
 		try {
-			conn = H2DAOFactoryImpl.getConnection();
+			conn = pool.getConnection();
 			conn.setAutoCommit(false);
-			
-			synchronized (this) {
-				// lock account for writing:
-				lockStmt = conn.prepareStatement(SQL_LOCK_ACC_BY_ID);
-				lockStmt.setLong(1, accountId);
-				rs = lockStmt.executeQuery();
-				if (rs.next()) {
-					targetAccount = this.getAccount(rs);
-				}
+			long lockStart = System.nanoTime();
+			locks = ACCOUNT_LOCKS.acquire(accountId);
+			UPDATE_LOCK_WAIT.recordSince(lockStart);
 
-				if (targetAccount == null) {
-					throw new MoneyTransferException("updateAccountBalance(): fail to lock account : " + accountId);
-				}
-				
-				// update account upon success locking
-				BigDecimal balance = targetAccount.getBalance().add(deltaAmount);
-				if (balance.compareTo(MoneyTransferUtil.zeroAmount) < 0) {
-					throw new MoneyTransferException("Not sufficient Fund for account: " + accountId);
-				}
+			// lock account for writing:
+			lockStmt = conn.prepareStatement(SQL_LOCK_ACC_BY_ID);
+			lockStmt.setLong(1, accountId);
+			rs = lockStmt.executeQuery();
+			if (rs.next()) {
+				targetAccount = this.getAccount(rs);
+			}
 
-				updateStmt = conn.prepareStatement(SQL_UPDATE_ACC_BALANCE);
-				updateStmt.setBigDecimal(1, balance);
-				updateStmt.setLong(2, accountId);
-				updateCount = updateStmt.executeUpdate();
-				conn.commit();
-				LOGGER.info("After: update balance");
+			if (targetAccount == null) {
+				throw new MoneyTransferException("updateAccountBalance(): fail to lock account : " + accountId);
+			}
+
+			// update account upon success locking
+			long balance = Money.add(targetAccount.getBalanceUnits(), deltaUnits);
+			if (balance < Money.ZERO) {
+				throw new MoneyTransferException("Not sufficient Fund for account: " + accountId);
 			}
-			return updateCount;
+
+			updateStmt = conn.prepareStatement(SQL_UPDATE_ACC_BALANCE);
+			updateStmt.setBigDecimal(1, Money.toBigDecimal(balance));
+			updateStmt.setLong(2, accountId);
+			int updateCount = updateStmt.executeUpdate();
+			conn.commit();
+			if (updateCount == 1) {
+				updatedAccount = new Account(accountId, targetAccount.getUserName(), balance,
+						targetAccount.getCurrencyCode());
+				if (journal != null) {
+					journalSequence = journal.appendBalance(accountId, balance, deltaUnits);
+				}
+			}
+			if (LOGGER.isDebugEnabled())
+				LOGGER.debug("After: update balance");
 		} catch (SQLException se) {
 			// rollback transaction if exception occurs
 			LOGGER.error("updateAccountBalance(): User Transaction Failed, rollback initiated for: " + accountId, se);
@@ -189,107 +443,1018 @@ public class AccountDAOImpl implements AccountDAO {
 				throw new MoneyTransferException("Fail to rollback transaction", re);
 			}
 		} finally {
-			DbUtils.closeQuietly(conn);
 			DbUtils.closeQuietly(rs);
 			DbUtils.closeQuietly(lockStmt);
 			DbUtils.closeQuietly(updateStmt);
+			DbUtils.closeQuietly(conn);
+			// release only once the row locks held by the connection are gone
+			if (locks != null)
+				locks.release();
+		}
+		if (journalSequence > 0) {
+			// wait for the flush without holding the locks
+			journal.awaitDurable(journalSequence);
 		}
-		return updateCount;
+		return updatedAccount;
 	}
 
 	/**
 	 * Transfer balance between two accounts.
 	 */
-	@SuppressWarnings("resource")
 	public int transferAccountBalance(Transaction transaction) throws MoneyTransferException {
-		LOGGER.info("Before: transfer balance");
+		if (hotAccounts.contains(transaction.getFromAccountId()) || hotAccounts.contains(transaction.getToAccountId())) {
+			return transferHot(transaction);
+		}
+		if (updateMode == UpdateMode.OPTIMISTIC) {
+			for (int attempt = 0; attempt < OPTIMISTIC_ATTEMPTS; attempt++) {
+				backoff(attempt);
+				if (tryTransferOptimistic(transaction)) {
+					return 2;
+				}
+				OPTIMISTIC_CONFLICTS.increment();
+			}
+			// contended, queue on the row locks rather than retry again
+			OPTIMISTIC_FALLBACKS.increment();
+		} else if (updateMode == UpdateMode.CONDITIONAL) {
+			return transferConditional(transaction);
+		}
+		return transferLocked(transaction);
+	}
+
+	/**
+	 * Transfer balance with both account rows locked.
+	 */
+	private int transferLocked(Transaction transaction) throws MoneyTransferException {
+		if (LOGGER.isDebugEnabled())
+			LOGGER.debug("Before: transfer balance");
 		int result = -1;
+		long journalSequence = 0;
 		Connection conn = null;
-		PreparedStatement lockStmt = null;
+		AccountLocks.Held locks = null;
+
+		try {
+			conn = pool.getConnection();
+			conn.setAutoCommit(false);
+			long lockStart = System.nanoTime();
+			locks = ACCOUNT_LOCKS.acquire(transaction.getFromAccountId(), transaction.getToAccountId());
+			TRANSFER_LOCK_WAIT.recordSince(lockStart);
+			long[] balances = new long[2];
+			result = applyTransfer(conn, transaction, balances);
+			// If there is no error, commit the transaction
+			conn.commit();
+			if (journal != null) {
+				journalSequence = journal.appendTransfer(transaction.getFromAccountId(), balances[0],
+						transaction.getToAccountId(), balances[1], transaction.getAmountUnits());
+			}
+		} catch (SQLException se) {
+			// rollback transaction if exception occurs
+			LOGGER.error(
+					"transferAccountBalance(): User Transaction Failed, rollback initiated for: " + transaction,
+					se);
+			try {
+				if (conn != null)
+					conn.rollback();
+			} catch (SQLException re) {
+				throw new MoneyTransferException("Fail to rollback transaction", re);
+			}
+		} finally {
+			DbUtils.closeQuietly(conn);
+			// release only once the row locks held by the connection are gone
+			if (locks != null)
+				locks.release();
+		}
+		if (journalSequence > 0) {
+			journal.awaitDurable(journalSequence);
+		}
+		// logged once the account locks are released
+		if (LOGGER.isDebugEnabled())
+			LOGGER.debug("After: transfer balance, rows updated: " + result);
+		return result;
+	}
+
+	/**
+	 * Apply a balance update if the account row is not written between its
+	 * read and the update.
+	 *
+	 * @return the updated account, null on a write conflict
+	 */
+	private Account tryUpdateOptimistic(long accountId, long deltaUnits) throws MoneyTransferException {
+		Connection conn = null;
+		PreparedStatement readStmt = null;
 		PreparedStatement updateStmt = null;
 		ResultSet rs = null;
-		Account fromAccount = null;
-		Account toAccount = null;
+		try {
+			conn = pool.getConnection();
+			conn.setAutoCommit(false);
+			readStmt = conn.prepareStatement(SQL_GET_ACC_BY_ID);
+			readStmt.setLong(1, accountId);
+			rs = readStmt.executeQuery();
+			if (!rs.next()) {
+				throw new MoneyTransferException("updateAccountBalance(): fail to lock account : " + accountId);
+			}
+			Account account = this.getAccount(rs);
+			long version = rs.getLong("Version");
+			long balance = Money.add(account.getBalanceUnits(), deltaUnits);
+			if (balance < Money.ZERO) {
+				throw new MoneyTransferException("Not sufficient Fund for account: " + accountId);
+			}
+			updateStmt = conn.prepareStatement(SQL_UPDATE_ACC_BALANCE_IF_VERSION);
+			updateStmt.setBigDecimal(1, Money.toBigDecimal(balance));
+			updateStmt.setLong(2, accountId);
+			updateStmt.setLong(3, version);
+			if (updateStmt.executeUpdate() != 1) {
+				conn.rollback();
+				return null;
+			}
+			conn.commit();
+			return new Account(accountId, account.getUserName(), balance, account.getCurrencyCode());
+		} catch (SQLException se) {
+			// e.g. the row is locked by a concurrent writer, retried as a conflict
+			if (LOGGER.isDebugEnabled())
+				LOGGER.debug("updateAccountBalance(): optimistic update failed for: " + accountId, se);
+			return null;
+		} finally {
+			DbUtils.closeQuietly(rs);
+			DbUtils.closeQuietly(readStmt);
+			DbUtils.closeQuietly(updateStmt);
+			DbUtils.closeQuietly(conn);
+		}
+	}
 
+	/**
+	 * Apply a transfer if neither account row is written between its read and
+	 * the update.
+	 *
+	 * @return false on a write conflict
+	 */
+	private boolean tryTransferOptimistic(Transaction transaction) throws MoneyTransferException {
+		Connection conn = null;
+		PreparedStatement readStmt = null;
+		PreparedStatement updateStmt = null;
+		PreparedStatement historyStmt = null;
+		ResultSet rs = null;
+		final long fromAccountId = transaction.getFromAccountId();
+		final long toAccountId = transaction.getToAccountId();
 		try {
-			conn = H2DAOFactoryImpl.getConnection();
+			conn = pool.getConnection();
 			conn.setAutoCommit(false);
-			synchronized (this) {
-				// lock the credit and debit account for writing:
-				lockStmt = conn.prepareStatement(SQL_LOCK_ACC_BY_ID);
-				lockStmt.setLong(1, transaction.getFromAccountId());
-				rs = lockStmt.executeQuery();
+			Map<Long, Account> accounts = new HashMap<Long, Account>();
+			Map<Long, Long> versions = new HashMap<Long, Long>();
+			readStmt = conn.prepareStatement(SQL_GET_ACC_BY_ID);
+			for (long accountId : new long[] { fromAccountId, toAccountId }) {
+				readStmt.setLong(1, accountId);
+				rs = readStmt.executeQuery();
 				if (rs.next()) {
-					fromAccount = this.getAccount(rs);
-					if (LOGGER.isDebugEnabled())
-						LOGGER.debug("transferAccountBalance from Account: " + fromAccount);
+					accounts.put(accountId, this.getAccount(rs));
+					versions.put(accountId, rs.getLong("Version"));
 				}
-				lockStmt = conn.prepareStatement(SQL_LOCK_ACC_BY_ID);
-				lockStmt.setLong(1, transaction.getToAccountId());
-				rs = lockStmt.executeQuery();
+				rs.close();
+			}
+			// rows written lowest id first, like the locks of the pessimistic mode
+			Map<Long, Long> balances = new TreeMap<Long, Long>();
+			checkTransfer(transaction, accounts.get(fromAccountId), accounts.get(toAccountId), balances);
+
+			updateStmt = conn.prepareStatement(SQL_UPDATE_ACC_BALANCE_IF_VERSION);
+			for (Map.Entry<Long, Long> balance : balances.entrySet()) {
+				updateStmt.setBigDecimal(1, Money.toBigDecimal(balance.getValue()));
+				updateStmt.setLong(2, balance.getKey());
+				updateStmt.setLong(3, versions.get(balance.getKey()));
+				updateStmt.addBatch();
+			}
+			int updated = 0;
+			for (int rows : updateStmt.executeBatch()) {
+				updated += rows;
+			}
+			if (updated != balances.size()) {
+				conn.rollback();
+				return false;
+			}
+			historyStmt = conn.prepareStatement(SQL_INSERT_TXN);
+			addHistory(historyStmt, transaction, balances.get(fromAccountId), balances.get(toAccountId),
+					System.currentTimeMillis());
+			historyStmt.executeBatch();
+			conn.commit();
+			return true;
+		} catch (SQLException se) {
+			// e.g. a row is locked by a concurrent writer, retried as a conflict
+			if (LOGGER.isDebugEnabled())
+				LOGGER.debug("transferAccountBalance(): optimistic transfer failed for: " + transaction, se);
+			return false;
+		} finally {
+			DbUtils.closeQuietly(rs);
+			DbUtils.closeQuietly(readStmt);
+			DbUtils.closeQuietly(updateStmt);
+			DbUtils.closeQuietly(historyStmt);
+			DbUtils.closeQuietly(conn);
+		}
+	}
+
+	/**
+	 * Update account balance with one conditional update, the row is read
+	 * back in the same transaction for the returned balance.
+	 */
+	private Account updateConditional(long accountId, long deltaUnits) throws MoneyTransferException {
+		Connection conn = null;
+		PreparedStatement updateStmt = null;
+		PreparedStatement readStmt = null;
+		ResultSet rs = null;
+		try {
+			conn = pool.getConnection();
+			conn.setAutoCommit(false);
+			updateStmt = conn.prepareStatement(SQL_ADD_ACC_BALANCE_IF_FUNDED);
+			BigDecimal delta = Money.toBigDecimal(deltaUnits);
+			updateStmt.setBigDecimal(1, delta);
+			updateStmt.setLong(2, accountId);
+			updateStmt.setBigDecimal(3, delta);
+			updateStmt.setBigDecimal(4, MAX_BALANCE);
+			int updateCount = updateStmt.executeUpdate();
+			readStmt = conn.prepareStatement(SQL_GET_ACC_BY_ID);
+			readStmt.setLong(1, accountId);
+			rs = readStmt.executeQuery();
+			if (!rs.next()) {
+				throw new MoneyTransferException("updateAccountBalance(): fail to lock account : " + accountId);
+			}
+			Account account = this.getAccount(rs);
+			if (updateCount != 1) {
+				// throws if the balance would overflow
+				Money.add(account.getBalanceUnits(), deltaUnits);
+				throw new MoneyTransferException("Not sufficient Fund for account: " + accountId);
+			}
+			conn.commit();
+			return account;
+		} catch (SQLException se) {
+			// the connection is rolled back when it goes back to the pool
+			LOGGER.error("updateAccountBalance(): User Transaction Failed, rollback initiated for: " + accountId, se);
+			return null;
+		} finally {
+			DbUtils.closeQuietly(rs);
+			DbUtils.closeQuietly(updateStmt);
+			DbUtils.closeQuietly(readStmt);
+			DbUtils.closeQuietly(conn);
+		}
+	}
+
+	/**
+	 * Transfer with one conditional update per account, lowest id first. The
+	 * debit only applies if the source has the funds, the credit only if the
+	 * destination is in the transaction ccy; when either does not apply the
+	 * transaction is rolled back and the accounts are read to report why.
+	 */
+	private int transferConditional(Transaction transaction) throws MoneyTransferException {
+		Connection conn = null;
+		PreparedStatement updateStmt = null;
+		PreparedStatement readStmt = null;
+		PreparedStatement historyStmt = null;
+		ResultSet rs = null;
+		final long fromAccountId = transaction.getFromAccountId();
+		final long toAccountId = transaction.getToAccountId();
+		final BigDecimal amount = Money.toBigDecimal(transaction.getAmountUnits());
+		try {
+			conn = pool.getConnection();
+			conn.setAutoCommit(false);
+			updateStmt = conn.prepareStatement(SQL_ADD_ACC_BALANCE_IF_CCY);
+			// debit first unless the destination has the lower id, a credit
+			// never fails the balance condition
+			boolean debitFirst = fromAccountId <= toAccountId;
+			int updated = 0;
+			for (boolean debit : new boolean[] { debitFirst, !debitFirst }) {
+				BigDecimal delta = debit ? amount.negate() : amount;
+				updateStmt.setBigDecimal(1, delta);
+				updateStmt.setLong(2, debit ? fromAccountId : toAccountId);
+				updateStmt.setString(3, transaction.getCurrencyCode());
+				updateStmt.setBigDecimal(4, delta);
+				updateStmt.setBigDecimal(5, MAX_BALANCE);
+				updated += updateStmt.executeUpdate();
+			}
+			if (updated != 2) {
+				conn.rollback();
+			}
+
+			// balances for the history rows, or the reason of the failure
+			Map<Long, Account> accounts = new HashMap<Long, Account>();
+			readStmt = conn.prepareStatement(SQL_GET_ACC_BY_ID);
+			for (long accountId : new long[] { fromAccountId, toAccountId }) {
+				readStmt.setLong(1, accountId);
+				rs = readStmt.executeQuery();
 				if (rs.next()) {
-					toAccount = this.getAccount(rs);
-					if (LOGGER.isDebugEnabled())
-						LOGGER.debug("transferAccountBalance to Account: " + toAccount);
+					accounts.put(accountId, this.getAccount(rs));
+				}
+				rs.close();
+			}
+			if (updated != 2) {
+				// same checks and messages as the locking mode
+				checkTransfer(transaction, accounts.get(fromAccountId), accounts.get(toAccountId),
+						new HashMap<Long, Long>());
+				throw new TransferRejectedException("Not enough Fund from source Account ");
+			}
+			historyStmt = conn.prepareStatement(SQL_INSERT_TXN);
+			addHistory(historyStmt, transaction, accounts.get(fromAccountId).getBalanceUnits(),
+					accounts.get(toAccountId).getBalanceUnits(), System.currentTimeMillis());
+			historyStmt.executeBatch();
+			conn.commit();
+			return updated;
+		} catch (SQLException se) {
+			// the connection is rolled back when it goes back to the pool
+			LOGGER.error("transferAccountBalance(): User Transaction Failed, rollback initiated for: " + transaction,
+					se);
+			return -1;
+		} finally {
+			DbUtils.closeQuietly(rs);
+			DbUtils.closeQuietly(updateStmt);
+			DbUtils.closeQuietly(readStmt);
+			DbUtils.closeQuietly(historyStmt);
+			DbUtils.closeQuietly(conn);
+		}
+	}
+
+	/**
+	 * Update the balance of a hot account: a deposit is added to one of its
+	 * slots, a withdrawal locks the account and draws its slots into the
+	 * Account row.
+	 */
+	private Account updateHot(long accountId, long deltaUnits) throws MoneyTransferException {
+		Connection conn = null;
+		AccountLocks.Held locks = null;
+		boolean credit = deltaUnits >= 0;
+		try {
+			conn = pool.getConnection();
+			conn.setAutoCommit(false);
+			if (!credit) {
+				long lockStart = System.nanoTime();
+				locks = ACCOUNT_LOCKS.acquire(accountId);
+				UPDATE_LOCK_WAIT.recordSince(lockStart);
+			}
+			Map<Integer, Long> slots = new HashMap<Integer, Long>();
+			Account account = readAccount(conn, accountId, !credit, slots);
+			if (account == null) {
+				throw new MoneyTransferException("updateAccountBalance(): fail to lock account : " + accountId);
+			}
+			long balance = Money.add(account.getBalanceUnits(), deltaUnits);
+			if (balance < Money.ZERO) {
+				throw new MoneyTransferException("Not sufficient Fund for account: " + accountId);
+			}
+			if (credit) {
+				creditSlot(conn, accountId, deltaUnits);
+			} else {
+				drawSlots(conn, accountId, balance, slots);
+			}
+			conn.commit();
+			return new Account(accountId, account.getUserName(), balance, account.getCurrencyCode());
+		} catch (SQLException se) {
+			// the connection is rolled back when it goes back to the pool
+			LOGGER.error("updateAccountBalance(): User Transaction Failed, rollback initiated for: " + accountId, se);
+			return null;
+		} finally {
+			DbUtils.closeQuietly(conn);
+			if (locks != null)
+				locks.release();
+		}
+	}
+
+	/**
+	 * Transfer touching a hot account. A hot destination is credited on one of
+	 * its slots without its lock stripe or row lock, a hot source is locked
+	 * with all its slots, which are drawn into its Account row. The rows of
+	 * plain accounts are locked before those of hot accounts.
+	 */
+	private int transferHot(Transaction transaction) throws MoneyTransferException {
+		final long fromAccountId = transaction.getFromAccountId();
+		final long toAccountId = transaction.getToAccountId();
+		final boolean hotTo = hotAccounts.contains(toAccountId);
+		Connection conn = null;
+		PreparedStatement historyStmt = null;
+		AccountLocks.Held locks = null;
+		try {
+			conn = pool.getConnection();
+			conn.setAutoCommit(false);
+			long lockStart = System.nanoTime();
+			locks = hotTo ? ACCOUNT_LOCKS.acquire(fromAccountId) : ACCOUNT_LOCKS.acquire(fromAccountId, toAccountId);
+			TRANSFER_LOCK_WAIT.recordSince(lockStart);
+			Map<Integer, Long> fromSlots = new HashMap<Integer, Long>();
+			Account toAccount = hotTo ? null : readAccount(conn, toAccountId, true, null);
+			Account fromAccount = readAccount(conn, fromAccountId, true, fromSlots);
+			if (hotTo) {
+				toAccount = readAccount(conn, toAccountId, false, null);
+			}
+
+			Map<Long, Long> balances = new HashMap<Long, Long>();
+			checkTransfer(transaction, fromAccount, toAccount, balances);
+			long fromBalance = balances.get(fromAccountId);
+			long toBalance = balances.get(toAccountId);
+			if (hotAccounts.contains(fromAccountId)) {
+				drawSlots(conn, fromAccountId, fromBalance, fromSlots);
+			} else {
+				setBalance(conn, fromAccountId, fromBalance);
+			}
+			if (hotTo) {
+				creditSlot(conn, toAccountId, transaction.getAmountUnits());
+			} else {
+				setBalance(conn, toAccountId, toBalance);
+			}
+			historyStmt = conn.prepareStatement(SQL_INSERT_TXN);
+			addHistory(historyStmt, transaction, fromBalance, toBalance, System.currentTimeMillis());
+			historyStmt.executeBatch();
+			conn.commit();
+			return 2;
+		} catch (SQLException se) {
+			// the connection is rolled back when it goes back to the pool
+			LOGGER.error("transferAccountBalance(): User Transaction Failed, rollback initiated for: " + transaction,
+					se);
+			return -1;
+		} finally {
+			DbUtils.closeQuietly(historyStmt);
+			DbUtils.closeQuietly(conn);
+			if (locks != null)
+				locks.release();
+		}
+	}
+
+	/**
+	 * Read an account with the balance of its slots, if it is hot.
+	 *
+	 * @param lock lock the Account row and the slots for writing
+	 * @param slots receives the balance of each slot locked
+	 * @return the account, null if it does not exist
+	 */
+	private Account readAccount(Connection conn, long accountId, boolean lock, Map<Integer, Long> slots)
+			throws SQLException {
+		PreparedStatement stmt = null;
+		ResultSet rs = null;
+		try {
+			stmt = conn.prepareStatement(lock ? SQL_LOCK_ACC_BY_ID : SQL_GET_ACC_BY_ID);
+			stmt.setLong(1, accountId);
+			rs = stmt.executeQuery();
+			if (!rs.next()) {
+				return null;
+			}
+			Account account = this.getAccount(rs);
+			if (!lock || !hotAccounts.contains(accountId)) {
+				return withSlots(conn, account);
+			}
+			rs.close();
+			stmt.close();
+			stmt = conn.prepareStatement(SQL_LOCK_SLOTS);
+			stmt.setLong(1, accountId);
+			rs = stmt.executeQuery();
+			long balance = account.getBalanceUnits();
+			while (rs.next()) {
+				long slotBalance = Money.toUnits(rs.getBigDecimal(2));
+				slots.put(rs.getInt(1), slotBalance);
+				balance += slotBalance;
+			}
+			return new Account(accountId, account.getUserName(), balance, account.getCurrencyCode());
+		} finally {
+			DbUtils.closeQuietly(rs);
+			DbUtils.closeQuietly(stmt);
+		}
+	}
+
+	/**
+	 * @return the account with the balance of its slots added, if it is hot
+	 */
+	private Account withSlots(Connection conn, Account account) throws SQLException {
+		if (account == null || !hotAccounts.contains(account.getAccountId())) {
+			return account;
+		}
+		PreparedStatement stmt = null;
+		ResultSet rs = null;
+		try {
+			stmt = conn.prepareStatement(SQL_GET_SLOT_SUM);
+			stmt.setLong(1, account.getAccountId());
+			rs = stmt.executeQuery();
+			BigDecimal slots = rs.next() ? rs.getBigDecimal(1) : null;
+			if (slots == null) {
+				return account;
+			}
+			return new Account(account.getAccountId(), account.getUserName(),
+					account.getBalanceUnits() + Money.toUnits(slots), account.getCurrencyCode());
+		} finally {
+			DbUtils.closeQuietly(rs);
+			DbUtils.closeQuietly(stmt);
+		}
+	}
+
+	/**
+	 * Add a credit to a random slot of a hot account, creating its slots on
+	 * first use.
+	 */
+	private void creditSlot(Connection conn, long accountId, long amountUnits) throws SQLException {
+		PreparedStatement stmt = null;
+		try {
+			stmt = conn.prepareStatement(SQL_CREDIT_SLOT);
+			stmt.setBigDecimal(1, Money.toBigDecimal(amountUnits));
+			stmt.setLong(2, accountId);
+			stmt.setInt(3, hotAccounts.randomSlot());
+			if (stmt.executeUpdate() == 0) {
+				createSlots(accountId);
+				if (stmt.executeUpdate() == 0) {
+					throw new SQLException("No slot for hot account " + accountId);
 				}
+			}
+		} finally {
+			DbUtils.closeQuietly(stmt);
+		}
+	}
+
+	/**
+	 * Create the missing slots of a hot account, committed on a connection of
+	 * their own so that concurrent credits can use them right away. Creators
+	 * of the same account take turns, so the second one finds the slots and
+	 * inserts nothing; other accounts are not held up.
+	 */
+	private void createSlots(long accountId) throws SQLException {
+		Object lock = slotCreationLocks.get(accountId);
+		if (lock == null) {
+			Object created = new Object();
+			lock = slotCreationLocks.putIfAbsent(accountId, created);
+			if (lock == null) {
+				lock = created;
+			}
+		}
+		synchronized (lock) {
+			insertSlots(accountId);
+		}
+	}
 
-				// check locking status
-				if (fromAccount == null || toAccount == null) {
-					throw new MoneyTransferException("Fail to lock both accounts for write");
+	private void insertSlots(long accountId) throws SQLException {
+		Connection conn = null;
+		PreparedStatement stmt = null;
+		try {
+			conn = pool.getConnection();
+			stmt = conn.prepareStatement(SQL_CREATE_SLOT);
+			for (int slot = 0; slot < hotAccounts.getSlots(); slot++) {
+				stmt.setLong(1, accountId);
+				stmt.setInt(2, slot);
+				stmt.setLong(3, accountId);
+				stmt.setInt(4, slot);
+				stmt.addBatch();
+			}
+			stmt.executeBatch();
+		} finally {
+			DbUtils.closeQuietly(stmt);
+			DbUtils.closeQuietly(conn);
+		}
+	}
+
+	/**
+	 * Move the locked slots of a hot account into its Account row, which gets
+	 * the given balance. Only the amounts read under the lock are taken out, a
+	 * slot created since then keeps its credits.
+	 */
+	private void drawSlots(Connection conn, long accountId, long balance, Map<Integer, Long> slots)
+			throws SQLException {
+		PreparedStatement stmt = null;
+		try {
+			stmt = conn.prepareStatement(SQL_DRAW_SLOT);
+			for (Map.Entry<Integer, Long> slot : slots.entrySet()) {
+				if (slot.getValue().longValue() == Money.ZERO) {
+					continue;
 				}
+				stmt.setBigDecimal(1, Money.toBigDecimal(slot.getValue()));
+				stmt.setLong(2, accountId);
+				stmt.setInt(3, slot.getKey());
+				stmt.addBatch();
+			}
+			stmt.executeBatch();
+		} finally {
+			DbUtils.closeQuietly(stmt);
+		}
+		setBalance(conn, accountId, balance);
+	}
+
+	private void setBalance(Connection conn, long accountId, long balance) throws SQLException {
+		PreparedStatement stmt = null;
+		try {
+			stmt = conn.prepareStatement(SQL_UPDATE_ACC_BALANCE);
+			stmt.setBigDecimal(1, Money.toBigDecimal(balance));
+			stmt.setLong(2, accountId);
+			stmt.executeUpdate();
+		} finally {
+			DbUtils.closeQuietly(stmt);
+		}
+	}
+
+	private boolean touchesHotAccount(List<Transaction> transactions) {
+		if (hotAccounts.isEmpty()) {
+			return false;
+		}
+		for (Transaction transaction : transactions) {
+			if (hotAccounts.contains(transaction.getFromAccountId())
+					|| hotAccounts.contains(transaction.getToAccountId())) {
+				return true;
+			}
+		}
+		return false;
+	}
 
-				// check transaction currency
-				if (!fromAccount.getCurrencyCode().equals(transaction.getCurrencyCode())) {
-					throw new MoneyTransferException(
-							"Fail to transfer Fund, transaction ccy are different from source/destination");
+	/**
+	 * Wait before an optimistic retry, a random time up to
+	 * {@code account_optimistic_backoff_us} doubled at every attempt.
+	 */
+	private static void backoff(int attempt) {
+		if (attempt > 0) {
+			long maxNanos = (OPTIMISTIC_BACKOFF_US * 1000L) << Math.min(attempt - 1, 16);
+			LockSupport.parkNanos(1 + ThreadLocalRandom.current().nextLong(maxNanos));
+		}
+	}
+
+	/**
+	 * Transfer a batch on one connection, committing every
+	 * {@code h2_batch_commit_size} transfers. The accounts of a commit group are
+	 * locked and read once, the transfers are checked in order against the
+	 * running balances, and every touched account is written once before the
+	 * group commits. A failed transfer leaves the balances of its group as they
+	 * were before it.
+	 */
+	public List<TransactionResult> transferAccountBalanceBatch(List<Transaction> transactions)
+			throws MoneyTransferException {
+		if (LOGGER.isDebugEnabled())
+			LOGGER.debug("Before: transfer balance batch of " + transactions.size());
+		List<TransactionResult> results = new ArrayList<TransactionResult>(transactions.size());
+		if (touchesHotAccount(transactions)) {
+			// the commit groups read Account rows only, so one transfer at a time
+			for (int i = 0; i < transactions.size(); i++) {
+				try {
+					if (transferAccountBalance(transactions.get(i)) == 2) {
+						results.add(TransactionResult.success(i));
+					} else {
+						results.add(TransactionResult.failure(i, "Transaction failed"));
+					}
+				} catch (MoneyTransferException e) {
+					results.add(TransactionResult.failure(i, e.getMessage()));
 				}
+			}
+			return results;
+		}
+		Connection conn = null;
+		long journalSequence = 0;
+		try {
+			conn = pool.getConnection();
+			conn.setAutoCommit(false);
+			for (int groupStart = 0; groupStart < transactions.size(); groupStart += BATCH_COMMIT_SIZE) {
+				int groupEnd = Math.min(groupStart + BATCH_COMMIT_SIZE, transactions.size());
+				journalSequence = Math.max(journalSequence,
+						applyGroup(conn, transactions, groupStart, groupEnd, results));
+			}
+			if (journalSequence > 0) {
+				// one wait for every group of the batch
+				journal.awaitDurable(journalSequence);
+			}
+			if (LOGGER.isDebugEnabled())
+				LOGGER.debug("After: transfer balance batch");
+			return results;
+		} catch (SQLException se) {
+			throw new MoneyTransferException("transferAccountBalanceBatch(): Error starting batch transaction", se);
+		} finally {
+			DbUtils.closeQuietly(conn);
+		}
+	}
 
-				// check ccy is the same for both accounts
-				if (!fromAccount.getCurrencyCode().equals(toAccount.getCurrencyCode())) {
-					throw new MoneyTransferException(
-							"Fail to transfer Fund, the source and destination account are in different currency");
+	/**
+	 * @return journal sequence of the group, 0 if nothing was journaled
+	 */
+	private long applyGroup(Connection conn, List<Transaction> transactions, int groupStart, int groupEnd,
+			List<TransactionResult> results) {
+		TreeSet<Long> accountIds = new TreeSet<Long>();
+		for (int i = groupStart; i < groupEnd; i++) {
+			accountIds.add(transactions.get(i).getFromAccountId());
+			accountIds.add(transactions.get(i).getToAccountId());
+		}
+		long[] lockIds = new long[accountIds.size()];
+		int n = 0;
+		for (Long accountId : accountIds) {
+			lockIds[n++] = accountId;
+		}
+		final AccountLocks.Held locks;
+		try {
+			long lockStart = System.nanoTime();
+			locks = ACCOUNT_LOCKS.acquire(lockIds);
+			BATCH_LOCK_WAIT.recordSince(lockStart);
+		} catch (MoneyTransferException e) {
+			for (int i = groupStart; i < groupEnd; i++) {
+				results.add(TransactionResult.failure(i, e.getMessage()));
+			}
+			return 0;
+		}
+		int firstResult = results.size();
+		PreparedStatement lockStmt = null;
+		PreparedStatement updateStmt = null;
+		PreparedStatement historyStmt = null;
+		ResultSet rs = null;
+		try {
+			// lock and read every account of the group once, in ascending id order
+			Map<Long, Account> accounts = new HashMap<Long, Account>();
+			lockStmt = conn.prepareStatement(SQL_LOCK_ACC_BY_ID);
+			for (long accountId : lockIds) {
+				lockStmt.setLong(1, accountId);
+				rs = lockStmt.executeQuery();
+				if (rs.next()) {
+					accounts.put(accountId, this.getAccount(rs));
 				}
+				rs.close();
+			}
 
-				// check enough fund in source account
-				BigDecimal fromAccountLeftOver = fromAccount.getBalance().subtract(transaction.getAmount());
-				if (fromAccountLeftOver.compareTo(MoneyTransferUtil.zeroAmount) < 0) {
-					throw new MoneyTransferException("Not enough Fund from source Account ");
+			Map<Long, Long> balances = new LinkedHashMap<Long, Long>();
+			historyStmt = conn.prepareStatement(SQL_INSERT_TXN);
+			long now = System.currentTimeMillis();
+			for (int i = groupStart; i < groupEnd; i++) {
+				Transaction transaction = transactions.get(i);
+				try {
+					checkTransfer(transaction, accounts.get(transaction.getFromAccountId()),
+							accounts.get(transaction.getToAccountId()), balances);
+					// running balances once this transfer is applied
+					addHistory(historyStmt, transaction, balances.get(transaction.getFromAccountId()),
+							balances.get(transaction.getToAccountId()), now);
+					results.add(TransactionResult.success(i));
+				} catch (MoneyTransferException e) {
+					if (LOGGER.isDebugEnabled())
+						LOGGER.debug("transferAccountBalanceBatch(): transfer " + i + " failed: " + e.getMessage());
+					results.add(TransactionResult.failure(i, e.getMessage()));
 				}
-				// proceed with update
+			}
+
+			if (!balances.isEmpty()) {
 				updateStmt = conn.prepareStatement(SQL_UPDATE_ACC_BALANCE);
-				updateStmt.setBigDecimal(1, fromAccountLeftOver);
-				updateStmt.setLong(2, transaction.getFromAccountId());
-				updateStmt.addBatch();
-				updateStmt.setBigDecimal(1, toAccount.getBalance().add(transaction.getAmount()));
-				updateStmt.setLong(2, transaction.getToAccountId());
-				updateStmt.addBatch();
-				int[] rowsUpdated = updateStmt.executeBatch();
-				result = rowsUpdated[0] + rowsUpdated[1];
-				if (LOGGER.isDebugEnabled()) {
-					LOGGER.debug("Number of rows updated for the transfer : " + result);
+				for (Map.Entry<Long, Long> balance : balances.entrySet()) {
+					updateStmt.setBigDecimal(1, Money.toBigDecimal(balance.getValue()));
+					updateStmt.setLong(2, balance.getKey());
+					updateStmt.addBatch();
 				}
-				// If there is no error, commit the transaction
-				conn.commit();
-				LOGGER.info("After: transfer balance");
+				updateStmt.executeBatch();
+				historyStmt.executeBatch();
 			}
-		} catch (SQLException se) {
-			// rollback transaction if exception occurs
-			LOGGER.error(
-					"transferAccountBalance(): User Transaction Failed, rollback initiated for: " + transaction,
-					se);
+			conn.commit();
+			if (journal != null && !balances.isEmpty()) {
+				try {
+					return journal.appendBalances(balances);
+				} catch (MoneyTransferException e) {
+					// the group is committed, only its journal records are missing
+					LOGGER.error("transferAccountBalanceBatch(): Error journaling committed group", e);
+				}
+			}
+		} catch (SQLException e) {
+			LOGGER.error("transferAccountBalanceBatch(): commit group failed, rollback initiated", e);
 			try {
-				if (conn != null)
-					conn.rollback();
+				conn.rollback();
 			} catch (SQLException re) {
-				throw new MoneyTransferException("Fail to rollback transaction", re);
+				LOGGER.error("transferAccountBalanceBatch(): Fail to rollback transaction", re);
+			}
+			// nothing of this group was committed
+			for (int i = firstResult; i < results.size(); i++) {
+				results.set(i, TransactionResult.failure(results.get(i).getIndex(), "Transaction failed"));
+			}
+			for (int i = groupStart + results.size() - firstResult; i < groupEnd; i++) {
+				results.add(TransactionResult.failure(i, "Transaction failed"));
 			}
 		} finally {
-			DbUtils.closeQuietly(conn);
 			DbUtils.closeQuietly(rs);
 			DbUtils.closeQuietly(lockStmt);
 			DbUtils.closeQuietly(updateStmt);
+			DbUtils.closeQuietly(historyStmt);
+			locks.release();
 		}
-		return result;
+		return 0;
+	}
+
+	/**
+	 * Check one transfer of a batch against the running balances of its group
+	 * and, if it can be applied, record the new balances of both accounts.
+	 */
+	private void checkTransfer(Transaction transaction, Account fromAccount, Account toAccount,
+			Map<Long, Long> balances) throws MoneyTransferException {
+		if (fromAccount == null || toAccount == null) {
+			throw new TransferRejectedException("Fail to lock both accounts for write");
+		}
+		if (!fromAccount.getCurrencyCode().equals(transaction.getCurrencyCode())) {
+			throw new TransferRejectedException(
+					"Fail to transfer Fund, transaction ccy are different from source/destination");
+		}
+		if (!fromAccount.getCurrencyCode().equals(toAccount.getCurrencyCode())) {
+			throw new TransferRejectedException(
+					"Fail to transfer Fund, the source and destination account are in different currency");
+		}
+		Long fromBalance = balances.get(fromAccount.getAccountId());
+		long fromAccountLeftOver = Money.subtract(fromBalance != null ? fromBalance : fromAccount.getBalanceUnits(),
+				transaction.getAmountUnits());
+		if (fromAccountLeftOver < Money.ZERO) {
+			throw new TransferRejectedException("Not enough Fund from source Account ");
+		}
+		Long toBalance = balances.get(toAccount.getAccountId());
+		long toAccountBalance = Money.add(toBalance != null ? toBalance : toAccount.getBalanceUnits(),
+				transaction.getAmountUnits());
+		balances.put(fromAccount.getAccountId(), fromAccountLeftOver);
+		balances.put(toAccount.getAccountId(), toAccountBalance);
+	}
+
+	/**
+	 * Apply one transfer on a connection whose transaction is left open, the
+	 * caller holds the account locks and commits.
+	 *
+	 * @param balances receives the new balances of the source and destination
+	 *                 accounts
+	 * @return number of rows updated
+	 */
+	private int applyTransfer(Connection conn, Transaction transaction, long[] balances)
+			throws SQLException, MoneyTransferException {
+		PreparedStatement lockStmt = null;
+		PreparedStatement updateStmt = null;
+		PreparedStatement historyStmt = null;
+		ResultSet rs = null;
+		Account fromAccount = null;
+		Account toAccount = null;
+		final long fromAccountId = transaction.getFromAccountId();
+		final long toAccountId = transaction.getToAccountId();
+
+		try {
+			// lock the credit and debit account for writing, lowest id first so
+			// that row locks are always requested in the same order:
+			lockStmt = conn.prepareStatement(SQL_LOCK_ACC_BY_ID);
+			for (long accountId : new long[] { Math.min(fromAccountId, toAccountId),
+					Math.max(fromAccountId, toAccountId) }) {
+				lockStmt.setLong(1, accountId);
+				rs = lockStmt.executeQuery();
+				if (rs.next()) {
+					Account account = this.getAccount(rs);
+					if (accountId == fromAccountId)
+						fromAccount = account;
+					if (accountId == toAccountId)
+						toAccount = account;
+				}
+				rs.close();
+			}
+
+			// check locking status
+			if (fromAccount == null || toAccount == null) {
+				throw new TransferRejectedException("Fail to lock both accounts for write");
+			}
+
+			// check transaction currency
+			if (!fromAccount.getCurrencyCode().equals(transaction.getCurrencyCode())) {
+				throw new TransferRejectedException(
+						"Fail to transfer Fund, transaction ccy are different from source/destination");
+			}
+
+			// check ccy is the same for both accounts
+			if (!fromAccount.getCurrencyCode().equals(toAccount.getCurrencyCode())) {
+				throw new TransferRejectedException(
+						"Fail to transfer Fund, the source and destination account are in different currency");
+			}
+
+			// check enough fund in source account
+			long fromAccountLeftOver = Money.subtract(fromAccount.getBalanceUnits(), transaction.getAmountUnits());
+			if (fromAccountLeftOver < Money.ZERO) {
+				throw new TransferRejectedException("Not enough Fund from source Account ");
+			}
+			long toAccountBalance = Money.add(toAccount.getBalanceUnits(), transaction.getAmountUnits());
+			// proceed with update
+			updateStmt = conn.prepareStatement(SQL_UPDATE_ACC_BALANCE);
+			updateStmt.setBigDecimal(1, Money.toBigDecimal(fromAccountLeftOver));
+			updateStmt.setLong(2, fromAccountId);
+			updateStmt.addBatch();
+			updateStmt.setBigDecimal(1, Money.toBigDecimal(toAccountBalance));
+			updateStmt.setLong(2, toAccountId);
+			updateStmt.addBatch();
+			int[] rowsUpdated = updateStmt.executeBatch();
+			int result = rowsUpdated[0] + rowsUpdated[1];
+			// history rows commit or roll back with the balances
+			historyStmt = conn.prepareStatement(SQL_INSERT_TXN);
+			addHistory(historyStmt, transaction, fromAccountLeftOver, toAccountBalance, System.currentTimeMillis());
+			historyStmt.executeBatch();
+			balances[0] = fromAccountLeftOver;
+			balances[1] = toAccountBalance;
+			return result;
+		} finally {
+			DbUtils.closeQuietly(rs);
+			DbUtils.closeQuietly(lockStmt);
+			DbUtils.closeQuietly(updateStmt);
+			DbUtils.closeQuietly(historyStmt);
+		}
+	}
+
+	/**
+	 * Apply one side of a transfer whose accounts live in different databases,
+	 * on a connection whose transaction is left open: lock the account row,
+	 * check it and write its balance and history row. The caller holds the
+	 * account locks of both sides and decides the outcome.
+	 *
+	 * @param debit true for the source account, false for the destination
+	 * @return balance of the account once the leg is applied
+	 */
+	long applyLeg(Connection conn, Transaction transaction, boolean debit, long now)
+			throws SQLException, MoneyTransferException {
+		PreparedStatement lockStmt = null;
+		PreparedStatement updateStmt = null;
+		PreparedStatement historyStmt = null;
+		ResultSet rs = null;
+		final long accountId = debit ? transaction.getFromAccountId() : transaction.getToAccountId();
+		final long counterpartyId = debit ? transaction.getToAccountId() : transaction.getFromAccountId();
+		try {
+			Account account = null;
+			lockStmt = conn.prepareStatement(SQL_LOCK_ACC_BY_ID);
+			lockStmt.setLong(1, accountId);
+			rs = lockStmt.executeQuery();
+			if (rs.next()) {
+				account = this.getAccount(rs);
+			}
+			if (account == null) {
+				throw new TransferRejectedException("Fail to lock both accounts for write");
+			}
+			// both sides checked against the transaction ccy, so they match each other
+			if (!account.getCurrencyCode().equals(transaction.getCurrencyCode())) {
+				throw new TransferRejectedException(
+						"Fail to transfer Fund, transaction ccy are different from source/destination");
+			}
+			long balance;
+			if (debit) {
+				balance = Money.subtract(account.getBalanceUnits(), transaction.getAmountUnits());
+				if (balance < Money.ZERO) {
+					throw new TransferRejectedException("Not enough Fund from source Account ");
+				}
+			} else {
+				balance = Money.add(account.getBalanceUnits(), transaction.getAmountUnits());
+			}
+			updateStmt = conn.prepareStatement(SQL_UPDATE_ACC_BALANCE);
+			updateStmt.setBigDecimal(1, Money.toBigDecimal(balance));
+			updateStmt.setLong(2, accountId);
+			updateStmt.executeUpdate();
+			historyStmt = conn.prepareStatement(SQL_INSERT_TXN);
+			addHistoryRow(historyStmt, accountId, counterpartyId,
+					debit ? -transaction.getAmountUnits() : transaction.getAmountUnits(), balance,
+					transaction.getCurrencyCode(), now);
+			historyStmt.executeBatch();
+			return balance;
+		} finally {
+			DbUtils.closeQuietly(rs);
+			DbUtils.closeQuietly(lockStmt);
+			DbUtils.closeQuietly(updateStmt);
+			DbUtils.closeQuietly(historyStmt);
+		}
+	}
+
+	/**
+	 * Add the debit and credit history rows of a transfer to a batch of
+	 * history inserts.
+	 */
+	private static void addHistory(PreparedStatement historyStmt, Transaction transaction, long fromBalance,
+			long toBalance, long now) throws SQLException {
+		addHistoryRow(historyStmt, transaction.getFromAccountId(), transaction.getToAccountId(),
+				-transaction.getAmountUnits(), fromBalance, transaction.getCurrencyCode(), now);
+		addHistoryRow(historyStmt, transaction.getToAccountId(), transaction.getFromAccountId(),
+				transaction.getAmountUnits(), toBalance, transaction.getCurrencyCode(), now);
+	}
+
+	private static void addHistoryRow(PreparedStatement historyStmt, long accountId, long counterpartyId,
+			long amountUnits, long balance, String currencyCode, long now) throws SQLException {
+		historyStmt.setLong(1, accountId);
+		historyStmt.setLong(2, counterpartyId);
+		historyStmt.setBigDecimal(3, Money.toBigDecimal(amountUnits));
+		historyStmt.setBigDecimal(4, Money.toBigDecimal(balance));
+		historyStmt.setString(5, currencyCode);
+		historyStmt.setLong(6, now);
+		historyStmt.addBatch();
+	}
+
+	/**
+	 * Transfer history of an account, newest first, read with a keyset
+	 * condition on TxnId so that a page costs the same at any depth.
+	 */
+	public List<AccountTransaction> getTransactions(long accountId, long beforeTxnId, int limit)
+			throws MoneyTransferException {
+		Connection conn = null;
+		PreparedStatement stmt = null;
+		ResultSet rs = null;
+		List<AccountTransaction> transactions = new ArrayList<AccountTransaction>(limit);
+		try {
+			conn = pool.getConnection();
+			stmt = conn.prepareStatement(SQL_GET_TXN_PAGE);
+			stmt.setLong(1, accountId);
+			stmt.setLong(2, beforeTxnId);
+			stmt.setInt(3, limit);
+			rs = stmt.executeQuery();
+			while (rs.next()) {
+				transactions.add(new AccountTransaction(rs.getLong("TxnId"), rs.getLong("AccountId"),
+						rs.getLong("CounterpartyAccountId"), Money.toUnits(rs.getBigDecimal("Amount")),
+						Money.toUnits(rs.getBigDecimal("Balance")), rs.getString("CurrencyCode"),
+						rs.getLong("CreatedAt")));
+			}
+			return transactions;
+		} catch (SQLException e) {
+			throw new MoneyTransferException("getTransactions(): Error reading transfer history of account "
+					+ accountId, e);
+		} finally {
+			DbUtils.closeQuietly(conn, stmt, rs);
+		}
+	}
+
+	private static Histogram lockWaitHistogram(String operation) {
+		return MetricsRegistry.INSTANCE.histogram("moneytransfer_account_lock_wait_seconds",
+				"Time spent waiting for the account lock stripes", "operation", operation);
+	}
+
+	private static Counter optimisticCounter(String outcome) {
+		return MetricsRegistry.INSTANCE.counter("moneytransfer_account_optimistic_retries_total",
+				"Optimistic account updates retried after a conflict or given up for the row locks", "outcome",
+				outcome);
 	}
 
 	private Account getAccount(ResultSet rs) throws SQLException {
@@ -0,0 +1,133 @@
+package com.moneytransfer.dao.impl;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.moneytransfer.exception.MoneyTransferException;
+import com.moneytransfer.utils.PropsUitl;
+
+/**
+ * Striped locks keyed by account id.
+ * <p>
+ * Every account id maps to one of a fixed number of lock stripes, so writers
+ * on unrelated accounts proceed in parallel while writers on the same account
+ * are serialised. When several accounts are locked together the stripes are
+ * always taken in ascending stripe order, which keeps multi-account locking
+ * (e.g. both sides of a transfer) deadlock free.
+ */
+public final class AccountLocks {
+
+	private static final AccountLocks INSTANCE = new AccountLocks(
+			PropsUitl.getIntegerProperty("account_lock_stripes", 256),
+			PropsUitl.getIntegerProperty("account_lock_timeout_ms", 10000));
+
+	private final ReentrantLock[] stripes;
+	private final int mask;
+	private final long timeoutMillis;
+
+	AccountLocks(int stripeCount, long timeoutMillis) {
+		int size = 1;
+		while (size < stripeCount) {
+			size <<= 1;
+		}
+		this.stripes = new ReentrantLock[size];
+		for (int i = 0; i < size; i++) {
+			stripes[i] = new ReentrantLock();
+		}
+		this.mask = size - 1;
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	/**
+	 * @return shared lock table used by all account DAOs
+	 */
+	public static AccountLocks getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * @return number of lock stripes
+	 */
+	public int getStripeCount() {
+		return stripes.length;
+	}
+
+	/**
+	 * Lock all stripes guarding the given accounts, in ascending stripe order.
+	 *
+	 * @param accountIds accounts to lock
+	 * @return held locks, to be released by the caller in a finally block
+	 * @throws MoneyTransferException if the locks cannot be acquired in time
+	 */
+	public Held acquire(long... accountIds) throws MoneyTransferException {
+		int[] order = stripesOf(accountIds);
+		int locked = 0;
+		try {
+			for (; locked < order.length; locked++) {
+				if (!stripes[order[locked]].tryLock(timeoutMillis, TimeUnit.MILLISECONDS)) {
+					throw new MoneyTransferException(
+							"Fail to lock accounts for write: " + Arrays.toString(accountIds));
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new MoneyTransferException("Interrupted while locking accounts: " + Arrays.toString(accountIds), e);
+		} finally {
+			if (locked < order.length) {
+				unlock(order, locked);
+			}
+		}
+		return new Held(order);
+	}
+
+	int stripeOf(long accountId) {
+		int h = (int) (accountId ^ (accountId >>> 32));
+		h ^= (h >>> 16);
+		return h & mask;
+	}
+
+	private int[] stripesOf(long[] accountIds) {
+		int[] order = new int[accountIds.length];
+		for (int i = 0; i < accountIds.length; i++) {
+			order[i] = stripeOf(accountIds[i]);
+		}
+		Arrays.sort(order);
+		// drop duplicates, a ReentrantLock must only be taken once per stripe
+		int unique = 0;
+		for (int i = 0; i < order.length; i++) {
+			if (i == 0 || order[i] != order[i - 1]) {
+				order[unique++] = order[i];
+			}
+		}
+		return unique == order.length ? order : Arrays.copyOf(order, unique);
+	}
+
+	private void unlock(int[] order, int count) {
+		for (int i = count - 1; i >= 0; i--) {
+			stripes[order[i]].unlock();
+		}
+	}
+
+	/**
+	 * Set of stripes held by the current thread.
+	 */
+	public final class Held {
+		private final int[] order;
+		private boolean released;
+
+		private Held(int[] order) {
+			this.order = order;
+		}
+
+		/**
+		 * Release all held stripes, safe to call more than once.
+		 */
+		public void release() {
+			if (!released) {
+				released = true;
+				unlock(order, order.length);
+			}
+		}
+	}
+}
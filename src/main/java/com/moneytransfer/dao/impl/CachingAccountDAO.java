@@ -0,0 +1,114 @@
+package com.moneytransfer.dao.impl;
+
+import java.io.IOException;
+import java.util.List;
+
+import com.moneytransfer.dao.AccountDAO;
+import com.moneytransfer.dao.RowCallback;
+import com.moneytransfer.exception.MoneyTransferException;
+import com.moneytransfer.model.Account;
+import com.moneytransfer.model.AccountTransaction;
+import com.moneytransfer.model.Transaction;
+import com.moneytransfer.model.TransactionResult;
+
+/**
+ * Read-through {@link AccountCache} in front of another account DAO.
+ * <p>
+ * Only {@link #getAccountById(long)} is served from the cache. Every write
+ * invalidates the accounts it touches once the delegate returns, whether it
+ * succeeded or not.
+ */
+public class CachingAccountDAO implements AccountDAO {
+
+	private final AccountDAO delegate;
+	private final AccountCache cache;
+
+	public CachingAccountDAO(AccountDAO delegate, AccountCache cache) {
+		this.delegate = delegate;
+		this.cache = cache;
+	}
+
+	public AccountCache getCache() {
+		return cache;
+	}
+
+	public List<Account> getAllAccounts() throws MoneyTransferException {
+		return delegate.getAllAccounts();
+	}
+
+	public int streamAccounts(long afterAccountId, String currencyCode, int limit, RowCallback<Account> callback)
+			throws MoneyTransferException, IOException {
+		return delegate.streamAccounts(afterAccountId, currencyCode, limit, callback);
+	}
+
+	public Account getAccountById(long accountId) throws MoneyTransferException {
+		Account account = cache.get(accountId);
+		if (account == null) {
+			long generation = cache.generation(accountId);
+			account = delegate.getAccountById(accountId);
+			if (account != null) {
+				cache.put(account, generation);
+			}
+		}
+		return account;
+	}
+
+	public long createAccount(Account account) throws MoneyTransferException {
+		return delegate.createAccount(account);
+	}
+
+	public Account createAccountAndGet(Account account) throws MoneyTransferException {
+		return delegate.createAccountAndGet(account);
+	}
+
+	public int deleteAccountById(long accountId) throws MoneyTransferException {
+		try {
+			return delegate.deleteAccountById(accountId);
+		} finally {
+			cache.invalidate(accountId);
+		}
+	}
+
+	public int updateAccountBalance(long accountId, long deltaUnits) throws MoneyTransferException {
+		try {
+			return delegate.updateAccountBalance(accountId, deltaUnits);
+		} finally {
+			cache.invalidate(accountId);
+		}
+	}
+
+	public Account updateAccountBalanceAndGet(long accountId, long deltaUnits)
+			throws MoneyTransferException {
+		try {
+			return delegate.updateAccountBalanceAndGet(accountId, deltaUnits);
+		} finally {
+			cache.invalidate(accountId);
+		}
+	}
+
+	public int transferAccountBalance(Transaction transaction) throws MoneyTransferException {
+		try {
+			return delegate.transferAccountBalance(transaction);
+		} finally {
+			cache.invalidate(transaction.getFromAccountId());
+			cache.invalidate(transaction.getToAccountId());
+		}
+	}
+
+	public List<TransactionResult> transferAccountBalanceBatch(List<Transaction> transactions)
+			throws MoneyTransferException {
+		try {
+			return delegate.transferAccountBalanceBatch(transactions);
+		} finally {
+			for (Transaction transaction : transactions) {
+				cache.invalidate(transaction.getFromAccountId());
+				cache.invalidate(transaction.getToAccountId());
+			}
+		}
+	}
+
+	public List<AccountTransaction> getTransactions(long accountId, long beforeTxnId, int limit)
+			throws MoneyTransferException {
+		return delegate.getTransactions(accountId, beforeTxnId, limit);
+	}
+}
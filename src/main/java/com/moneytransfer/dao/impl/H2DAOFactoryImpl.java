@@ -3,6 +3,12 @@ package com.moneytransfer.dao.impl;
 import com.moneytransfer.dao.AccountDAO;
 import com.moneytransfer.dao.DAOFactory;
 import com.moneytransfer.dao.UserDAO;
+import com.moneytransfer.dao.journal.SnapshotStore;
+import com.moneytransfer.dao.journal.TransferJournal;
+import com.moneytransfer.dao.pool.ConnectionPool;
+import com.moneytransfer.exception.MoneyTransferException;
+import com.moneytransfer.metrics.MetricsRegistry;
+import com.moneytransfer.metrics.TimedProxy;
 import com.moneytransfer.utils.PropsUitl;
 
 import org.apache.commons.dbutils.DbUtils;
@@ -12,8 +18,13 @@ import org.h2.tools.RunScript;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.sql.Connection;
-import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * H2 DAO
@@ -25,17 +36,67 @@ public class H2DAOFactoryImpl implements DAOFactory {
 	private static final String h2_password = PropsUitl.getStringProperty("h2_password");
 	private static Logger LOGGER = Logger.getLogger(H2DAOFactoryImpl.class);
 
-	private final UserDAOImpl userDAO = new UserDAOImpl();
-	private final AccountDAOImpl accountDAO = new AccountDAOImpl();
+	private static final ConnectionPool connectionPool;
 
-	public H2DAOFactoryImpl() {
-		// init: load driver
+	static {
+		// init: load driver before the pool opens its first connections
 		DbUtils.loadDriver(h2_driver);
+		connectionPool = ConnectionPool.fromProperties("h2_pool_", h2_connection_url, h2_user, h2_password);
+	}
+
+	private static final boolean ACCOUNT_CACHE_ENABLED = Boolean
+			.parseBoolean(PropsUitl.getStringProperty("account_cache_enabled", "true"));
+	private static final AccountCache accountCache = ACCOUNT_CACHE_ENABLED ? AccountCache.fromProperties() : null;
+
+	private static final TransferJournal journal = openJournal();
+	private static final H2Recovery recovery = journal != null
+			? new H2Recovery(journal, SnapshotStore.fromProperties())
+			: null;
+
+	private static final UserDAO userDAO = TimedProxy.wrap(UserDAO.class, new UserDAOImpl(journal), "user");
+	private static final AccountDAO accountDAO = TimedProxy.wrap(AccountDAO.class,
+			ACCOUNT_CACHE_ENABLED ? new CachingAccountDAO(new AccountDAOImpl(journal), accountCache)
+					: new AccountDAOImpl(journal),
+			"account");
+
+	// keys live in the IdempotencyKey table of the same database
+	private static final IdempotencyStore idempotencyStore = IdempotencyStore.fromProperties(connectionPool);
+
+	private static ScheduledExecutorService snapshotWriter;
+
+	static {
+		registerMetrics();
+	}
+
+	public H2DAOFactoryImpl() {
 	}
 
+	/**
+	 * Borrow a connection from the pool, closing it returns it to the pool.
+	 */
 	public static Connection getConnection() throws SQLException {
-		return DriverManager.getConnection(h2_connection_url, h2_user, h2_password);
+		return connectionPool.getConnection();
+	}
 
+	/**
+	 * @return pool backing {@link #getConnection()}, e.g. to read its metrics
+	 */
+	public static ConnectionPool getConnectionPool() {
+		return connectionPool;
+	}
+
+	/**
+	 * @return cache in front of the account DAO, null when disabled
+	 */
+	public static AccountCache getAccountCache() {
+		return accountCache;
+	}
+
+	/**
+	 * @return journal of the account changes, null when disabled
+	 */
+	public static TransferJournal getJournal() {
+		return journal;
 	}
 
 	public UserDAO getUserDAO() {
@@ -46,6 +107,51 @@ public class H2DAOFactoryImpl implements DAOFactory {
 		return accountDAO;
 	}
 
+	public IdempotencyStore getIdempotencyStore() {
+		return idempotencyStore;
+	}
+
+	private static TransferJournal openJournal() {
+		if (!Boolean.parseBoolean(PropsUitl.getStringProperty("journal_enabled", "false"))) {
+			return null;
+		}
+		try {
+			return TransferJournal.fromProperties();
+		} catch (MoneyTransferException e) {
+			LOGGER.error("openJournal(): Error opening the transfer journal", e);
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static void registerMetrics() {
+		MetricsRegistry metrics = MetricsRegistry.INSTANCE;
+		final ConnectionPool pool = connectionPool;
+		metrics.register("moneytransfer_pool_acquire_seconds", "Time taken to borrow a JDBC connection",
+				pool.getAcquireTime(), "pool", "h2");
+		metrics.gauge("moneytransfer_pool_connections", "JDBC connections by state", () -> pool.getActiveCount(),
+				"pool", "h2", "state", "active");
+		metrics.gauge("moneytransfer_pool_connections", "JDBC connections by state", () -> pool.getIdleCount(),
+				"pool", "h2", "state", "idle");
+		metrics.gauge("moneytransfer_pool_waiting_threads", "Threads waiting for a JDBC connection",
+				() -> pool.getWaitingCount(), "pool", "h2");
+		metrics.functionCounter("moneytransfer_pool_timeouts_total", "JDBC connection borrow timeouts",
+				() -> pool.getTimeoutCount(), "pool", "h2");
+		metrics.gauge("moneytransfer_idempotency_keys", "Idempotency keys remembered",
+				() -> idempotencyStore.size());
+		if (accountCache != null) {
+			final AccountCache cache = accountCache;
+			metrics.gauge("moneytransfer_account_cache_size", "Accounts held in the cache", () -> cache.size());
+			metrics.functionCounter("moneytransfer_account_cache_requests_total", "Account cache lookups by result",
+					() -> cache.getHitCount(), "result", "hit");
+			metrics.functionCounter("moneytransfer_account_cache_requests_total", "Account cache lookups by result",
+					() -> cache.getMissCount(), "result", "miss");
+			metrics.functionCounter("moneytransfer_account_cache_evictions_total",
+					"Accounts dropped from the cache by cause", () -> cache.getEvictionCount(), "cause", "size");
+			metrics.functionCounter("moneytransfer_account_cache_evictions_total",
+					"Accounts dropped from the cache by cause", () -> cache.getExpirationCount(), "cause", "ttl");
+		}
+	}
+
 	@Override
 	public void populateTestData() {
 		LOGGER.info("Populating User Table and data");
@@ -53,6 +159,14 @@ public class H2DAOFactoryImpl implements DAOFactory {
 		try {
 			conn = H2DAOFactoryImpl.getConnection();
 			RunScript.execute(conn, new FileReader("src/main/resources/demo.sql"));
+			RunScript.execute(conn, new FileReader("src/main/resources/version.sql"));
+			RunScript.execute(conn, new FileReader("src/main/resources/history.sql"));
+			RunScript.execute(conn, new FileReader("src/main/resources/account_slots.sql"));
+			if (accountCache != null) {
+				accountCache.clear();
+			}
+			// outcomes of earlier transfers no longer match the reset balances
+			idempotencyStore.clear();
 		} catch (SQLException e) {
 			LOGGER.error("populateTestData(): Error populating user data: ", e);
 			throw new RuntimeException(e);
@@ -64,4 +178,79 @@ public class H2DAOFactoryImpl implements DAOFactory {
 		}
 	}
 
+	@Override
+	public void restrictAccountIds(long firstId, long lastId) {
+		Connection conn = null;
+		PreparedStatement stmt = null;
+		ResultSet rs = null;
+		try {
+			conn = H2DAOFactoryImpl.getConnection();
+			stmt = conn.prepareStatement("DELETE FROM Account WHERE AccountId < ? OR AccountId > ?");
+			stmt.setLong(1, firstId);
+			stmt.setLong(2, lastId);
+			stmt.executeUpdate();
+			stmt.close();
+			stmt = conn.prepareStatement("SELECT MAX(AccountId) FROM Account");
+			rs = stmt.executeQuery();
+			long next = rs.next() ? Math.max(firstId, rs.getLong(1) + 1) : firstId;
+			stmt.close();
+			stmt = conn.prepareStatement("ALTER TABLE Account ALTER COLUMN AccountId RESTART WITH " + next);
+			stmt.execute();
+			if (accountCache != null) {
+				accountCache.clear();
+			}
+		} catch (SQLException e) {
+			LOGGER.error("restrictAccountIds(): Error restricting account ids: ", e);
+			throw new RuntimeException(e);
+		} finally {
+			DbUtils.closeQuietly(conn, stmt, rs);
+		}
+	}
+
+	/**
+	 * Load the newest snapshot and replay the journal after it, if the journal
+	 * is enabled, then take snapshots every {@code snapshot_interval_ms}.
+	 * Without a snapshot the whole journal is replayed over the data loaded by
+	 * {@link #populateTestData()}.
+	 */
+	@Override
+	public void recover() {
+		if (recovery == null) {
+			return;
+		}
+		try {
+			recovery.recover();
+		} catch (MoneyTransferException e) {
+			LOGGER.error("recover(): Error recovering from the snapshot and journal", e);
+			throw new RuntimeException(e);
+		}
+		scheduleSnapshots();
+	}
+
+	private static synchronized void scheduleSnapshots() {
+		long interval = PropsUitl.getIntegerProperty("snapshot_interval_ms", 300000);
+		if (snapshotWriter != null || interval <= 0) {
+			return;
+		}
+		// only once recovered, a snapshot of the tables before that would be wrong
+		snapshotWriter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "snapshot-writer");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		snapshotWriter.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					recovery.takeSnapshot();
+				} catch (MoneyTransferException e) {
+					LOGGER.error("Error taking a snapshot, the journal is kept", e);
+				}
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
 }
@@ -0,0 +1,503 @@
+package com.moneytransfer.dao.impl;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.dbutils.DbUtils;
+import org.apache.log4j.Logger;
+
+import com.moneytransfer.dao.journal.JournalRecord;
+import com.moneytransfer.dao.journal.SnapshotStore;
+import com.moneytransfer.dao.journal.TransferJournal;
+import com.moneytransfer.exception.MoneyTransferException;
+import com.moneytransfer.model.Money;
+
+/**
+ * Rebuilds the User and Account tables of the H2 database at startup from the
+ * newest snapshot plus the journal records after it, and takes the snapshots.
+ * <p>
+ * The records after the snapshot are not run as SQL statements: as they hold
+ * the values written, they are first folded in memory into the last change of
+ * every account and user, which is applied to the snapshot rows as they are
+ * inserted. Replay then costs a map update per record, and startup is the
+ * snapshot load plus time in proportion to the recent changes.
+ * <p>
+ * A snapshot is taken while transfers go on: the journal sequence is read
+ * first, then the tables. A change made while the tables are read may or may
+ * not be in the snapshot, but its record comes after the sequence and is
+ * replayed on top of it, and records hold the values written, so replaying
+ * them again gives the same result.
+ */
+public class H2Recovery {
+
+	private static Logger LOGGER = Logger.getLogger(H2Recovery.class);
+
+	private final static String SQL_TRUNCATE_USER = "TRUNCATE TABLE User";
+	private final static String SQL_TRUNCATE_ACC = "TRUNCATE TABLE Account";
+	private final static String SQL_INSERT_USER = "INSERT INTO User (UserId, UserName, EmailAddress) VALUES (?, ?, ?)";
+	private final static String SQL_INSERT_ACC = "INSERT INTO Account (AccountId, UserName, Balance, CurrencyCode) "
+			+ "VALUES (?, ?, ?, ?)";
+	private final static String SQL_MERGE_USER = "MERGE INTO User (UserId, UserName, EmailAddress) KEY (UserId) "
+			+ "VALUES (?, ?, ?)";
+	private final static String SQL_MERGE_ACC = "MERGE INTO Account (AccountId, UserName, Balance, CurrencyCode) "
+			+ "KEY (AccountId) VALUES (?, ?, ?, ?)";
+	private final static String SQL_UPDATE_ACC_BALANCE = "UPDATE Account SET Balance = ? WHERE AccountId = ? ";
+	private final static String SQL_DELETE_ACC_BY_ID = "DELETE FROM Account WHERE AccountId = ?";
+	private final static String SQL_DELETE_USER_BY_ID = "DELETE FROM User WHERE UserId = ?";
+	private final static String SQL_GET_ALL_USERS = "SELECT * FROM User";
+	private final static String SQL_GET_ALL_ACC = "SELECT * FROM Account ORDER BY AccountId";
+	private static final int BATCH_SIZE = 1000;
+	private static final int COMMIT_SIZE = 10000;
+
+	private final TransferJournal journal;
+	private final SnapshotStore snapshots;
+
+	/**
+	 * @param journal   journal of the account and user changes
+	 * @param snapshots snapshots of the tables, null to always replay the
+	 *                  whole journal
+	 */
+	public H2Recovery(TransferJournal journal, SnapshotStore snapshots) {
+		this.journal = journal;
+		this.snapshots = snapshots;
+	}
+
+	/**
+	 * Load the newest readable snapshot, if there is one, in place of the
+	 * current rows, then replay the journal records after it. Without a
+	 * snapshot the whole journal is replayed over the current rows.
+	 *
+	 * @return sequence of the last record applied
+	 */
+	public long recover() throws MoneyTransferException {
+		long start = System.currentTimeMillis();
+		long snapshotSequence = -1;
+		long last = -1;
+		if (snapshots != null) {
+			SnapshotLoader loader = new SnapshotLoader();
+			try {
+				snapshotSequence = snapshots.load(loader);
+			} finally {
+				loader.close();
+			}
+			if (snapshotSequence < 0 && loader.started) {
+				throw new MoneyTransferException("recover(): no snapshot could be read back complete");
+			}
+			last = loader.lastSequence;
+		}
+		if (snapshotSequence > journal.getLastSequence()) {
+			throw new MoneyTransferException("recover(): the journal ends at sequence " + journal.getLastSequence()
+					+ ", before the snapshot at " + snapshotSequence);
+		}
+		if (snapshotSequence >= 0) {
+			restartIdentities();
+		} else {
+			last = replayJournal(0);
+		}
+		LOGGER.info("Recovered up to journal sequence " + last + (snapshotSequence >= 0
+				? " from the snapshot at " + snapshotSequence : " without a snapshot") + " in "
+				+ (System.currentTimeMillis() - start) + " ms");
+		return last;
+	}
+
+	/**
+	 * Write a snapshot of the tables, unless nothing was journaled since the
+	 * last one, then delete the journal segments older than the oldest
+	 * snapshot kept.
+	 *
+	 * @return journal sequence covered by the newest snapshot
+	 */
+	public synchronized long takeSnapshot() throws MoneyTransferException {
+		long sequence = journal.getLastSequence();
+		if (sequence == snapshots.getLatestSequence()) {
+			return sequence;
+		}
+		long start = System.currentTimeMillis();
+		SnapshotStore.Writer writer = snapshots.create(sequence);
+		Connection conn = null;
+		Statement stmt = null;
+		ResultSet rs = null;
+		try {
+			conn = H2DAOFactoryImpl.getConnection();
+			stmt = conn.createStatement();
+			stmt.setFetchSize(COMMIT_SIZE);
+			rs = stmt.executeQuery(SQL_GET_ALL_USERS);
+			while (rs.next()) {
+				writer.user(rs.getLong("UserId"), rs.getString("UserName"), rs.getString("EmailAddress"));
+			}
+			rs.close();
+			rs = stmt.executeQuery(SQL_GET_ALL_ACC);
+			while (rs.next()) {
+				BigDecimal balance = rs.getBigDecimal("Balance");
+				writer.account(rs.getLong("AccountId"), rs.getString("UserName"),
+						balance != null ? Money.toUnits(balance) : Money.ZERO, rs.getString("CurrencyCode"));
+			}
+			writer.commit();
+		} catch (SQLException e) {
+			writer.abort();
+			throw new MoneyTransferException("takeSnapshot(): Error reading the tables", e);
+		} catch (MoneyTransferException e) {
+			writer.abort();
+			throw e;
+		} finally {
+			DbUtils.closeQuietly(conn, stmt, rs);
+		}
+		LOGGER.info("Snapshot at journal sequence " + sequence + " taken in " + (System.currentTimeMillis() - start)
+				+ " ms");
+		journal.deleteSegmentsUpTo(snapshots.getOldestSequence());
+		return sequence;
+	}
+
+	/**
+	 * Apply the journal records after a sequence to the User and Account
+	 * tables, one statement per record and a commit every {@value #COMMIT_SIZE}
+	 * records, then move the id sequences past the highest ids.
+	 *
+	 * @return sequence of the last record applied
+	 */
+	public long replayJournal(long afterSequence) throws MoneyTransferException {
+		long start = System.currentTimeMillis();
+		Connection conn = null;
+		PreparedStatement mergeUserStmt = null;
+		PreparedStatement mergeStmt = null;
+		PreparedStatement updateStmt = null;
+		PreparedStatement deleteStmt = null;
+		PreparedStatement deleteUserStmt = null;
+		long last;
+		try {
+			conn = H2DAOFactoryImpl.getConnection();
+			conn.setAutoCommit(false);
+			final Connection replayConn = conn;
+			final PreparedStatement mergeUser = mergeUserStmt = conn.prepareStatement(SQL_MERGE_USER);
+			final PreparedStatement merge = mergeStmt = conn.prepareStatement(SQL_MERGE_ACC);
+			final PreparedStatement update = updateStmt = conn.prepareStatement(SQL_UPDATE_ACC_BALANCE);
+			final PreparedStatement delete = deleteStmt = conn.prepareStatement(SQL_DELETE_ACC_BY_ID);
+			final PreparedStatement deleteUser = deleteUserStmt = conn.prepareStatement(SQL_DELETE_USER_BY_ID);
+			final long[] applied = new long[1];
+			last = journal.replay(afterSequence, new TransferJournal.Visitor() {
+				@Override
+				public void visit(JournalRecord record) throws SQLException {
+					switch (record.getType()) {
+					case JournalRecord.ACCOUNT:
+						merge.setLong(1, record.getAccountId());
+						merge.setString(2, record.getUserName());
+						merge.setBigDecimal(3, Money.toBigDecimal(record.getBalanceUnits()));
+						merge.setString(4, record.getCurrencyCode());
+						merge.executeUpdate();
+						break;
+					case JournalRecord.BALANCE:
+						update.setBigDecimal(1, Money.toBigDecimal(record.getBalanceUnits()));
+						update.setLong(2, record.getAccountId());
+						update.executeUpdate();
+						if (record.getAccountId2() != 0) {
+							update.setBigDecimal(1, Money.toBigDecimal(record.getBalanceUnits2()));
+							update.setLong(2, record.getAccountId2());
+							update.executeUpdate();
+						}
+						break;
+					case JournalRecord.DELETE:
+						delete.setLong(1, record.getAccountId());
+						delete.executeUpdate();
+						break;
+					case JournalRecord.USER:
+						mergeUser.setLong(1, record.getAccountId());
+						mergeUser.setString(2, record.getUserName());
+						mergeUser.setString(3, record.getEmailAddress());
+						mergeUser.executeUpdate();
+						break;
+					case JournalRecord.USER_DELETE:
+						deleteUser.setLong(1, record.getAccountId());
+						deleteUser.executeUpdate();
+						break;
+					default:
+						throw new SQLException("Unknown journal record type " + record.getType());
+					}
+					// never commit in the middle of a change of several records
+					if (++applied[0] % COMMIT_SIZE == 0 && !record.isContinued()) {
+						replayConn.commit();
+					}
+				}
+			});
+			conn.commit();
+			LOGGER.info("Replayed " + applied[0] + " journal records after sequence " + afterSequence + " in "
+					+ (System.currentTimeMillis() - start) + " ms");
+		} catch (SQLException e) {
+			rollbackQuietly(conn);
+			throw new MoneyTransferException("replayJournal(): Error applying the transfer journal", e);
+		} catch (MoneyTransferException e) {
+			rollbackQuietly(conn);
+			throw e;
+		} finally {
+			DbUtils.closeQuietly(mergeUserStmt);
+			DbUtils.closeQuietly(mergeStmt);
+			DbUtils.closeQuietly(updateStmt);
+			DbUtils.closeQuietly(deleteStmt);
+			DbUtils.closeQuietly(deleteUserStmt);
+			DbUtils.closeQuietly(conn);
+		}
+		restartIdentities();
+		return last;
+	}
+
+	/**
+	 * Move the id sequences past the ids inserted by replay or snapshot load
+	 * and drop the cached accounts.
+	 */
+	private static void restartIdentities() throws MoneyTransferException {
+		Connection conn = null;
+		try {
+			conn = H2DAOFactoryImpl.getConnection();
+			restartIdentity(conn, "User", "UserId");
+			restartIdentity(conn, "Account", "AccountId");
+		} catch (SQLException e) {
+			throw new MoneyTransferException("restartIdentities(): Error restarting the id sequences", e);
+		} finally {
+			DbUtils.closeQuietly(conn);
+		}
+		AccountCache accountCache = H2DAOFactoryImpl.getAccountCache();
+		if (accountCache != null) {
+			accountCache.clear();
+		}
+	}
+
+	/**
+	 * Generated ids must follow the ids inserted by replay and snapshot load.
+	 */
+	private static void restartIdentity(Connection conn, String table, String column) throws SQLException {
+		Statement stmt = null;
+		ResultSet rs = null;
+		try {
+			stmt = conn.createStatement();
+			rs = stmt.executeQuery("SELECT MAX(" + column + ") FROM " + table);
+			if (rs.next()) {
+				stmt.execute("ALTER TABLE " + table + " ALTER COLUMN " + column + " RESTART WITH " + (rs.getLong(1) + 1));
+			}
+		} finally {
+			DbUtils.closeQuietly(rs);
+			DbUtils.closeQuietly(stmt);
+		}
+	}
+
+	private static void rollbackQuietly(Connection conn) {
+		try {
+			if (conn != null)
+				conn.rollback();
+		} catch (SQLException re) {
+			LOGGER.error("Fail to rollback", re);
+		}
+	}
+
+	/**
+	 * Replaces the rows of both tables with those of a snapshot, inserting in
+	 * JDBC batches of {@value #BATCH_SIZE} and committing every
+	 * {@value #COMMIT_SIZE} rows. The journal records after the snapshot are
+	 * folded into the last change of every id before the first row is read,
+	 * and applied to the rows as they are inserted.
+	 */
+	private final class SnapshotLoader implements SnapshotStore.Loader {
+		boolean started;
+		long lastSequence;
+		private final Map<Long, Change> accountChanges = new HashMap<Long, Change>();
+		private final Map<Long, Change> userChanges = new HashMap<Long, Change>();
+		private Connection conn;
+		private PreparedStatement userStmt;
+		private PreparedStatement accountStmt;
+		private int pending;
+		private long rows;
+
+		@Override
+		public void begin(long sequence) throws SQLException, MoneyTransferException {
+			close();
+			started = true;
+			accountChanges.clear();
+			userChanges.clear();
+			long start = System.currentTimeMillis();
+			lastSequence = journal.replay(sequence, new TransferJournal.Visitor() {
+				@Override
+				public void visit(JournalRecord record) throws SQLException {
+					switch (record.getType()) {
+					case JournalRecord.ACCOUNT:
+						accountChanges.put(record.getAccountId(), Change.row(record.getUserName(),
+								record.getBalanceUnits(), record.getCurrencyCode()));
+						break;
+					case JournalRecord.BALANCE:
+						balance(record.getAccountId(), record.getBalanceUnits());
+						if (record.getAccountId2() != 0) {
+							balance(record.getAccountId2(), record.getBalanceUnits2());
+						}
+						break;
+					case JournalRecord.DELETE:
+						accountChanges.put(record.getAccountId(), Change.DELETED);
+						break;
+					case JournalRecord.USER:
+						userChanges.put(record.getAccountId(),
+								Change.row(record.getUserName(), 0, record.getEmailAddress()));
+						break;
+					case JournalRecord.USER_DELETE:
+						userChanges.put(record.getAccountId(), Change.DELETED);
+						break;
+					default:
+						throw new SQLException("Unknown journal record type " + record.getType());
+					}
+				}
+			});
+			LOGGER.info("Folded the journal records after sequence " + sequence + " up to " + lastSequence + " into "
+					+ accountChanges.size() + " account and " + userChanges.size() + " user changes in "
+					+ (System.currentTimeMillis() - start) + " ms");
+			conn = H2DAOFactoryImpl.getConnection();
+			Statement stmt = conn.createStatement();
+			try {
+				stmt.execute(SQL_TRUNCATE_USER);
+				stmt.execute(SQL_TRUNCATE_ACC);
+			} finally {
+				DbUtils.closeQuietly(stmt);
+			}
+			conn.setAutoCommit(false);
+			userStmt = conn.prepareStatement(SQL_INSERT_USER);
+			accountStmt = conn.prepareStatement(SQL_INSERT_ACC);
+			pending = 0;
+			rows = 0;
+		}
+
+		// a balance written after a delete belongs to no account
+		private void balance(long accountId, long balanceUnits) {
+			Change change = accountChanges.get(accountId);
+			if (change == null) {
+				accountChanges.put(accountId, Change.balance(balanceUnits));
+			} else if (change != Change.DELETED) {
+				change.balanceUnits = balanceUnits;
+			}
+		}
+
+		@Override
+		public void user(long userId, String userName, String emailAddress) throws SQLException {
+			Change change = userChanges.remove(userId);
+			if (change == Change.DELETED) {
+				return;
+			}
+			if (change != null) {
+				userName = change.name;
+				emailAddress = change.text;
+			}
+			insertUser(userId, userName, emailAddress);
+		}
+
+		@Override
+		public void account(long accountId, String userName, long balanceUnits, String currencyCode)
+				throws SQLException {
+			Change change = accountChanges.remove(accountId);
+			if (change == Change.DELETED) {
+				return;
+			}
+			if (change != null) {
+				balanceUnits = change.balanceUnits;
+				if (!change.balanceOnly) {
+					userName = change.name;
+					currencyCode = change.text;
+				}
+			}
+			insertAccount(accountId, userName, balanceUnits, currencyCode);
+		}
+
+		@Override
+		public void end() throws SQLException {
+			// users and accounts created after the snapshot
+			for (Map.Entry<Long, Change> entry : userChanges.entrySet()) {
+				Change change = entry.getValue();
+				if (change != Change.DELETED) {
+					insertUser(entry.getKey(), change.name, change.text);
+				}
+			}
+			for (Map.Entry<Long, Change> entry : accountChanges.entrySet()) {
+				Change change = entry.getValue();
+				if (change != Change.DELETED && !change.balanceOnly) {
+					insertAccount(entry.getKey(), change.name, change.balanceUnits, change.text);
+				}
+			}
+			userChanges.clear();
+			accountChanges.clear();
+			flush();
+			conn.commit();
+		}
+
+		private void insertUser(long userId, String userName, String emailAddress) throws SQLException {
+			userStmt.setLong(1, userId);
+			userStmt.setString(2, userName);
+			userStmt.setString(3, emailAddress);
+			userStmt.addBatch();
+			added();
+		}
+
+		private void insertAccount(long accountId, String userName, long balanceUnits, String currencyCode)
+				throws SQLException {
+			accountStmt.setLong(1, accountId);
+			accountStmt.setString(2, userName);
+			accountStmt.setBigDecimal(3, Money.toBigDecimal(balanceUnits));
+			accountStmt.setString(4, currencyCode);
+			accountStmt.addBatch();
+			added();
+		}
+
+		private void added() throws SQLException {
+			if (++pending == BATCH_SIZE) {
+				flush();
+			}
+			if (++rows % COMMIT_SIZE == 0) {
+				conn.commit();
+			}
+		}
+
+		private void flush() throws SQLException {
+			userStmt.executeBatch();
+			accountStmt.executeBatch();
+			pending = 0;
+		}
+
+		void close() {
+			DbUtils.closeQuietly(userStmt);
+			DbUtils.closeQuietly(accountStmt);
+			if (conn != null) {
+				rollbackQuietly(conn);
+				DbUtils.closeQuietly(conn);
+			}
+			userStmt = null;
+			accountStmt = null;
+			conn = null;
+		}
+	}
+
+	/**
+	 * Last journaled state of an account or user: the whole row, only the
+	 * balance of an account, or deleted. For users, text is the email address,
+	 * for accounts the currency code.
+	 */
+	private static final class Change {
+		static final Change DELETED = new Change(null, 0, null, false);
+
+		final String name;
+		final String text;
+		final boolean balanceOnly;
+		long balanceUnits;
+
+		private Change(String name, long balanceUnits, String text, boolean balanceOnly) {
+			this.name = name;
+			this.balanceUnits = balanceUnits;
+			this.text = text;
+			this.balanceOnly = balanceOnly;
+		}
+
+		static Change row(String name, long balanceUnits, String text) {
+			return new Change(name, balanceUnits, text, false);
+		}
+
+		static Change balance(long balanceUnits) {
+			return new Change(null, balanceUnits, null, true);
+		}
+	}
+}
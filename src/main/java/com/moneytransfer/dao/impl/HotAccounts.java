@@ -0,0 +1,67 @@
+package com.moneytransfer.dao.impl;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.moneytransfer.utils.PropsUitl;
+
+/**
+ * Accounts whose balance is spread over sub-ledger slots, set with
+ * {@code hot_account_ids}.
+ * <p>
+ * The balance of a hot account is its Account row plus its rows in the
+ * AccountSlot table. A credit adds to one slot picked at random and locks
+ * neither the Account row nor the account lock stripe, so concurrent credits
+ * to the account only meet when they pick the same slot. A debit locks the row
+ * and every slot and draws the slots into the row.
+ */
+public final class HotAccounts {
+
+	static final HotAccounts NONE = new HotAccounts(Collections.<Long> emptySet(), 1);
+
+	private final Set<Long> accountIds;
+	private final int slots;
+
+	public HotAccounts(Set<Long> accountIds, int slots) {
+		this.accountIds = accountIds;
+		this.slots = Math.max(1, slots);
+	}
+
+	/**
+	 * @return hot accounts from {@code hot_account_ids}, a comma separated list
+	 *         of account ids, with {@code hot_account_slots} slots each
+	 */
+	public static HotAccounts fromProperties() {
+		Set<Long> accountIds = new HashSet<Long>();
+		for (String accountId : PropsUitl.getStringProperty("hot_account_ids", "").split(",")) {
+			if (!accountId.trim().isEmpty()) {
+				accountIds.add(Long.parseLong(accountId.trim()));
+			}
+		}
+		if (accountIds.isEmpty()) {
+			return NONE;
+		}
+		return new HotAccounts(accountIds, PropsUitl.getIntegerProperty("hot_account_slots", 8));
+	}
+
+	public boolean isEmpty() {
+		return accountIds.isEmpty();
+	}
+
+	public boolean contains(long accountId) {
+		return !accountIds.isEmpty() && accountIds.contains(accountId);
+	}
+
+	public int getSlots() {
+		return slots;
+	}
+
+	/**
+	 * @return slot for the next credit
+	 */
+	int randomSlot() {
+		return ThreadLocalRandom.current().nextInt(slots);
+	}
+}
@@ -0,0 +1,372 @@
+package com.moneytransfer.dao.impl;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.dbutils.DbUtils;
+import org.apache.log4j.Logger;
+
+import com.moneytransfer.dao.pool.ConnectionPool;
+import com.moneytransfer.exception.MoneyTransferException;
+import com.moneytransfer.utils.PropsUitl;
+
+/**
+ * Outcomes of requests by client supplied idempotency key, kept for a time
+ * window and up to a maximum number of keys.
+ * <p>
+ * Lookups only use the in-memory index. When a connection pool is given,
+ * every claim is written to the IdempotencyKey table before the caller
+ * applies its request, the outcome replaces it once known, and both are loaded
+ * back when the store is created. A key whose outcome was never written, e.g.
+ * because the process stopped while the request ran, stays in progress until
+ * it expires, so a retry is refused rather than applied twice. Keys sit in a
+ * FIFO queue in claim order, which is also expiry order, so eviction only ever
+ * looks at the head of the queue: a claim evicts the oldest keys while the
+ * store is over its size or the oldest key has expired. Rows of evicted keys
+ * are deleted in batches by a background sweep.
+ */
+public class IdempotencyStore {
+
+	private static Logger LOGGER = Logger.getLogger(IdempotencyStore.class);
+
+	// status of a claimed key whose request has not completed yet
+	private static final int IN_PROGRESS = 0;
+
+	private final static String SQL_CREATE_TABLE = "CREATE TABLE IF NOT EXISTS IdempotencyKey ("
+			+ "IdempotencyKey VARCHAR(255) PRIMARY KEY NOT NULL, RequestHash INT NOT NULL, Status INT NOT NULL, "
+			+ "Message VARCHAR(1024), CreatedAt LONG NOT NULL)";
+	private final static String SQL_CREATE_INDEX = "CREATE INDEX IF NOT EXISTS idx_idem_created "
+			+ "ON IdempotencyKey(CreatedAt)";
+	private final static String SQL_LOAD = "SELECT * FROM IdempotencyKey WHERE CreatedAt > ? ORDER BY CreatedAt";
+	private final static String SQL_SAVE = "MERGE INTO IdempotencyKey "
+			+ "(IdempotencyKey, RequestHash, Status, Message, CreatedAt) KEY (IdempotencyKey) VALUES (?, ?, ?, ?, ?)";
+	private final static String SQL_DELETE = "DELETE FROM IdempotencyKey WHERE IdempotencyKey = ? AND CreatedAt = ?";
+	private final static String SQL_DELETE_EXPIRED = "DELETE FROM IdempotencyKey WHERE CreatedAt <= ?";
+	private final static String SQL_DELETE_ALL = "DELETE FROM IdempotencyKey";
+
+	private final int maxSize;
+	private final long windowMillis;
+	private final ConnectionPool pool;
+
+	private final ConcurrentHashMap<String, Entry> index = new ConcurrentHashMap<String, Entry>();
+	private final ConcurrentLinkedQueue<Entry> order = new ConcurrentLinkedQueue<Entry>();
+	// persisted entries evicted by size, deleted by the next sweep
+	private final ConcurrentLinkedQueue<Entry> evicted = new ConcurrentLinkedQueue<Entry>();
+	private final ScheduledExecutorService sweeper;
+
+	/**
+	 * @param maxSize        maximum number of keys
+	 * @param windowMillis   time a key is remembered for
+	 * @param sweepMillis    interval of the background sweep
+	 * @param pool           connections to the table backing the store, null
+	 *                       to keep keys in memory only
+	 */
+	public IdempotencyStore(int maxSize, long windowMillis, long sweepMillis, ConnectionPool pool) {
+		this.maxSize = maxSize;
+		this.windowMillis = windowMillis;
+		this.pool = pool;
+		if (pool != null) {
+			createTable();
+			load();
+		}
+		this.sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "idempotency-sweeper");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		sweeper.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				sweep();
+			}
+		}, sweepMillis, sweepMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Build a store from the {@code idempotency_*} properties.
+	 */
+	public static IdempotencyStore fromProperties(ConnectionPool pool) {
+		return new IdempotencyStore(PropsUitl.getIntegerProperty("idempotency_max_keys", 100000),
+				PropsUitl.getIntegerProperty("idempotency_window_ms", 86400000),
+				PropsUitl.getIntegerProperty("idempotency_sweep_interval_ms", 60000), pool);
+	}
+
+	/**
+	 * Claim a key for a request.
+	 *
+	 * @param key         idempotency key
+	 * @param requestHash hash of the request, to detect a key reused for a
+	 *                    different request
+	 * @return null if the caller now holds the key and must
+	 *         {@link #complete(String, int, String)} or
+	 *         {@link #release(String)} it, otherwise the entry of the earlier
+	 *         request
+	 * @throws MoneyTransferException if the claim cannot be written to the
+	 *         table, the caller does not hold the key then
+	 */
+	public Entry claim(String key, int requestHash) throws MoneyTransferException {
+		long now = System.currentTimeMillis();
+		Entry claimed = new Entry(key, requestHash, now);
+		for (;;) {
+			Entry existing = index.putIfAbsent(key, claimed);
+			if (existing == null || (isExpired(existing, now) && index.replace(key, existing, claimed))) {
+				if (pool != null && !save(claimed)) {
+					index.remove(key, claimed);
+					throw new MoneyTransferException("Fail to record idempotency key " + key);
+				}
+				order.add(claimed);
+				evict(now);
+				return null;
+			}
+			if (!isExpired(existing, now)) {
+				return existing;
+			}
+			// the expired entry was replaced concurrently, look again
+		}
+	}
+
+	/**
+	 * Record the outcome of a claimed key. If the outcome cannot be written,
+	 * the table keeps the key in progress.
+	 */
+	public void complete(String key, int status, String message) {
+		Entry entry = index.get(key);
+		if (entry == null || entry.status != IN_PROGRESS) {
+			// evicted while the request ran
+			return;
+		}
+		entry.message = message;
+		entry.status = status;
+		if (pool != null) {
+			save(entry);
+		}
+	}
+
+	/**
+	 * Give up a claimed key without an outcome, so that the request can be
+	 * retried.
+	 */
+	public void release(String key) {
+		Entry entry = index.get(key);
+		if (entry != null && entry.status == IN_PROGRESS && index.remove(key, entry) && pool != null) {
+			delete(entry);
+		}
+	}
+
+	/**
+	 * Forget all keys, used when test data is populated.
+	 */
+	public void clear() {
+		index.clear();
+		order.clear();
+		evicted.clear();
+		if (pool != null) {
+			execute(SQL_DELETE_ALL);
+		}
+	}
+
+	public int size() {
+		return index.size();
+	}
+
+	/**
+	 * Stop the background sweep.
+	 */
+	public void shutdown() {
+		sweeper.shutdownNow();
+	}
+
+	private boolean isExpired(Entry entry, long now) {
+		return entry.createdAt <= now - windowMillis;
+	}
+
+	private void evict(long now) {
+		Entry head;
+		while ((head = order.peek()) != null && (index.size() > maxSize || isExpired(head, now))) {
+			if (order.remove(head) && index.remove(head.key, head) && pool != null && !isExpired(head, now)) {
+				evicted.add(head);
+			}
+		}
+	}
+
+	void sweep() {
+		long now = System.currentTimeMillis();
+		evict(now);
+		if (pool == null) {
+			return;
+		}
+		List<Entry> batch = new ArrayList<Entry>();
+		Entry entry;
+		while ((entry = evicted.poll()) != null) {
+			batch.add(entry);
+		}
+		Connection conn = null;
+		PreparedStatement stmt = null;
+		try {
+			conn = pool.getConnection();
+			if (!batch.isEmpty()) {
+				stmt = conn.prepareStatement(SQL_DELETE);
+				for (Entry deleted : batch) {
+					stmt.setString(1, deleted.key);
+					stmt.setLong(2, deleted.createdAt);
+					stmt.addBatch();
+				}
+				stmt.executeBatch();
+				stmt.close();
+			}
+			stmt = conn.prepareStatement(SQL_DELETE_EXPIRED);
+			stmt.setLong(1, now - windowMillis);
+			int expired = stmt.executeUpdate();
+			if (LOGGER.isDebugEnabled())
+				LOGGER.debug("sweep(): deleted " + batch.size() + " evicted and " + expired + " expired keys");
+		} catch (SQLException e) {
+			LOGGER.error("sweep(): Error deleting idempotency keys", e);
+		} finally {
+			DbUtils.closeQuietly(stmt);
+			DbUtils.closeQuietly(conn);
+		}
+	}
+
+	/**
+	 * @return false if the entry could not be written
+	 */
+	private boolean save(Entry entry) {
+		Connection conn = null;
+		PreparedStatement stmt = null;
+		try {
+			conn = pool.getConnection();
+			stmt = conn.prepareStatement(SQL_SAVE);
+			stmt.setString(1, entry.key);
+			stmt.setInt(2, entry.requestHash);
+			stmt.setInt(3, entry.status);
+			stmt.setString(4, entry.message);
+			stmt.setLong(5, entry.createdAt);
+			stmt.executeUpdate();
+			return true;
+		} catch (SQLException e) {
+			// the key is still honoured by this process
+			LOGGER.error("save(): Error saving idempotency key " + entry.key, e);
+			return false;
+		} finally {
+			DbUtils.closeQuietly(stmt);
+			DbUtils.closeQuietly(conn);
+		}
+	}
+
+	private void delete(Entry entry) {
+		Connection conn = null;
+		PreparedStatement stmt = null;
+		try {
+			conn = pool.getConnection();
+			stmt = conn.prepareStatement(SQL_DELETE);
+			stmt.setString(1, entry.key);
+			stmt.setLong(2, entry.createdAt);
+			stmt.executeUpdate();
+		} catch (SQLException e) {
+			// a retry after a restart is refused until the key expires
+			LOGGER.error("delete(): Error deleting idempotency key " + entry.key, e);
+		} finally {
+			DbUtils.closeQuietly(stmt);
+			DbUtils.closeQuietly(conn);
+		}
+	}
+
+	private void load() {
+		Connection conn = null;
+		PreparedStatement stmt = null;
+		ResultSet rs = null;
+		try {
+			conn = pool.getConnection();
+			stmt = conn.prepareStatement(SQL_LOAD);
+			stmt.setLong(1, System.currentTimeMillis() - windowMillis);
+			rs = stmt.executeQuery();
+			while (rs.next()) {
+				Entry entry = new Entry(rs.getString("IdempotencyKey"), rs.getInt("RequestHash"),
+						rs.getLong("CreatedAt"));
+				entry.message = rs.getString("Message");
+				entry.status = rs.getInt("Status");
+				index.put(entry.key, entry);
+				order.add(entry);
+			}
+			evict(System.currentTimeMillis());
+		} catch (SQLException e) {
+			LOGGER.error("load(): Error reading idempotency keys", e);
+		} finally {
+			DbUtils.closeQuietly(conn, stmt, rs);
+		}
+	}
+
+	private void createTable() {
+		execute(SQL_CREATE_TABLE, SQL_CREATE_INDEX);
+	}
+
+	private void execute(String... sqls) {
+		Connection conn = null;
+		Statement stmt = null;
+		try {
+			conn = pool.getConnection();
+			stmt = conn.createStatement();
+			for (String sql : sqls) {
+				stmt.execute(sql);
+			}
+		} catch (SQLException e) {
+			LOGGER.error("execute(): Error updating idempotency key table", e);
+		} finally {
+			DbUtils.closeQuietly(stmt);
+			DbUtils.closeQuietly(conn);
+		}
+	}
+
+	/**
+	 * Outcome of the request which claimed a key.
+	 */
+	public static final class Entry {
+		final String key;
+		final int requestHash;
+		final long createdAt;
+		volatile String message;
+		volatile int status = IN_PROGRESS;
+
+		Entry(String key, int requestHash, long createdAt) {
+			this.key = key;
+			this.requestHash = requestHash;
+			this.createdAt = createdAt;
+		}
+
+		public int getRequestHash() {
+			return requestHash;
+		}
+
+		/**
+		 * @return false while the request holding the key is running
+		 */
+		public boolean isCompleted() {
+			return status != IN_PROGRESS;
+		}
+
+		/**
+		 * @return HTTP status of the outcome
+		 */
+		public int getStatus() {
+			return status;
+		}
+
+		public String getMessage() {
+			return message;
+		}
+	}
+}
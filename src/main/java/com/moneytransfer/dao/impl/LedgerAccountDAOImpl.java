@@ -0,0 +1,334 @@
+package com.moneytransfer.dao.impl;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.moneytransfer.dao.AccountDAO;
+import com.moneytransfer.dao.RowCallback;
+import com.moneytransfer.exception.MoneyTransferException;
+import com.moneytransfer.exception.TransferRejectedException;
+import com.moneytransfer.model.Account;
+import com.moneytransfer.model.AccountTransaction;
+import com.moneytransfer.model.Money;
+import com.moneytransfer.model.Transaction;
+import com.moneytransfer.model.TransactionResult;
+
+/**
+ * Account DAO backed by the in-process ledger.
+ * <p>
+ * Balances are kept as {@link Money} minor units in a volatile long per
+ * account, so reads take no lock and no JDBC calls sit on the balance update
+ * path. Writers hold the {@link AccountLocks} stripes of the accounts they
+ * change: a transfer checks both accounts and only then writes both balances
+ * and their history rows, so a failed transfer never shows a debit that is
+ * undone later. Each account keeps its transfer history in memory, in id
+ * order.
+ */
+public class LedgerAccountDAOImpl implements AccountDAO {
+
+	private static Logger LOGGER = Logger.getLogger(LedgerAccountDAOImpl.class);
+
+	private static final AccountLocks ACCOUNT_LOCKS = AccountLocks.getInstance();
+
+	private final LongKeyTable<LedgerAccount> accounts = new LongKeyTable<LedgerAccount>();
+	// mirrors the unique index on Account(UserName, CurrencyCode)
+	private final ConcurrentHashMap<String, Long> accountKeys = new ConcurrentHashMap<String, Long>();
+	private final AtomicLong sequence = new AtomicLong();
+	private final AtomicLong txnIds = new AtomicLong();
+
+	/**
+	 * Get all accounts.
+	 */
+	public List<Account> getAllAccounts() throws MoneyTransferException {
+		List<LedgerAccount> entries = accounts.values();
+		List<Account> allAccounts = new ArrayList<Account>(entries.size());
+		for (LedgerAccount entry : entries) {
+			allAccounts.add(entry.toAccount());
+		}
+		return allAccounts;
+	}
+
+	/**
+	 * Stream accounts straight from the ledger table
+	 */
+	public int streamAccounts(long afterAccountId, String currencyCode, int limit, RowCallback<Account> callback)
+			throws MoneyTransferException, IOException {
+		int rows = 0;
+		Iterator<LedgerAccount> it = accounts.iteratorAfter(afterAccountId);
+		while (rows < limit && it.hasNext()) {
+			LedgerAccount entry = it.next();
+			if (currencyCode == null || currencyCode.equals(entry.currencyCode)) {
+				callback.row(entry.toAccount());
+				rows++;
+			}
+		}
+		return rows;
+	}
+
+	/**
+	 * Get account by id
+	 */
+	public Account getAccountById(long accountId) throws MoneyTransferException {
+		LedgerAccount entry = accounts.get(accountId);
+		return entry == null ? null : entry.toAccount();
+	}
+
+	/**
+	 * Create account
+	 */
+	public long createAccount(Account account) throws MoneyTransferException {
+		return createAccountAndGet(account).getAccountId();
+	}
+
+	/**
+	 * Create account and return it as stored
+	 */
+	public Account createAccountAndGet(Account account) throws MoneyTransferException {
+		long balance = account.getBalanceUnits();
+		String key = accountKey(account.getUserName(), account.getCurrencyCode());
+		long accountId = sequence.incrementAndGet();
+		if (accountKeys.putIfAbsent(key, accountId) != null) {
+			LOGGER.error("Error Inserting Account  " + account);
+			throw new MoneyTransferException("createAccount(): Error creating user account " + account);
+		}
+		LedgerAccount entry = new LedgerAccount(accountId, account.getUserName(), account.getCurrencyCode(), balance);
+		accounts.putIfAbsent(accountId, entry);
+		return entry.toAccount(balance);
+	}
+
+	/**
+	 * Delete account by id
+	 */
+	public int deleteAccountById(long accountId) throws MoneyTransferException {
+		LedgerAccount entry = accounts.get(accountId);
+		if (entry == null) {
+			return 0;
+		}
+		AccountLocks.Held locks = ACCOUNT_LOCKS.acquire(accountId);
+		try {
+			if (!accounts.remove(accountId, entry)) {
+				return 0;
+			}
+			entry.deleted = true;
+		} finally {
+			locks.release();
+		}
+		accountKeys.remove(accountKey(entry.userName, entry.currencyCode), accountId);
+		return 1;
+	}
+
+	/**
+	 * Update account balance
+	 */
+	public int updateAccountBalance(long accountId, long deltaUnits) throws MoneyTransferException {
+		updateAccountBalanceAndGet(accountId, deltaUnits);
+		return 1;
+	}
+
+	/**
+	 * Update account balance and return the account with the balance it was
+	 * changed to
+	 */
+	public Account updateAccountBalanceAndGet(long accountId, long deltaUnits) throws MoneyTransferException {
+		LedgerAccount entry = accounts.get(accountId);
+		if (entry == null) {
+			throw new MoneyTransferException("updateAccountBalance(): fail to lock account : " + accountId);
+		}
+		AccountLocks.Held locks = ACCOUNT_LOCKS.acquire(accountId);
+		try {
+			if (entry.deleted) {
+				throw new MoneyTransferException("updateAccountBalance(): fail to lock account : " + accountId);
+			}
+			long balance = Money.add(entry.balance, deltaUnits);
+			if (balance < 0) {
+				throw new MoneyTransferException("Not sufficient Fund for account: " + accountId);
+			}
+			entry.balance = balance;
+			return entry.toAccount(balance);
+		} finally {
+			locks.release();
+		}
+	}
+
+	/**
+	 * Transfer balance between two accounts.
+	 */
+	public int transferAccountBalance(Transaction transaction) throws MoneyTransferException {
+		LedgerAccount fromAccount = accounts.get(transaction.getFromAccountId());
+		LedgerAccount toAccount = accounts.get(transaction.getToAccountId());
+		if (fromAccount == null || toAccount == null) {
+			throw new TransferRejectedException("Fail to lock both accounts for write");
+		}
+
+		// check transaction currency
+		if (!fromAccount.currencyCode.equals(transaction.getCurrencyCode())) {
+			throw new TransferRejectedException(
+					"Fail to transfer Fund, transaction ccy are different from source/destination");
+		}
+
+		// check ccy is the same for both accounts
+		if (!fromAccount.currencyCode.equals(toAccount.currencyCode)) {
+			throw new TransferRejectedException(
+					"Fail to transfer Fund, the source and destination account are in different currency");
+		}
+
+		long amount = transaction.getAmountUnits();
+		AccountLocks.Held locks = ACCOUNT_LOCKS.acquire(fromAccount.accountId, toAccount.accountId);
+		try {
+			if (fromAccount.deleted || toAccount.deleted) {
+				throw new TransferRejectedException("Fail to lock both accounts for write");
+			}
+			long fromBalance = Money.subtract(fromAccount.balance, amount);
+			if (fromBalance < 0) {
+				throw new TransferRejectedException("Not enough Fund from source Account ");
+			}
+			// throws if the balance would overflow
+			long toBalance = Money.add(toAccount.balance, amount);
+			fromAccount.balance = fromBalance;
+			toAccount.balance = toBalance;
+			long now = System.currentTimeMillis();
+			fromAccount.record(txnIds, toAccount.accountId, -amount, fromBalance, now);
+			toAccount.record(txnIds, fromAccount.accountId, amount, toBalance, now);
+		} finally {
+			locks.release();
+		}
+		if (LOGGER.isDebugEnabled())
+			LOGGER.debug("transferAccountBalance(): applied " + transaction);
+		return 2;
+	}
+
+	/**
+	 * Transfer a batch, every transfer is applied on its own.
+	 */
+	public List<TransactionResult> transferAccountBalanceBatch(List<Transaction> transactions)
+			throws MoneyTransferException {
+		List<TransactionResult> results = new ArrayList<TransactionResult>(transactions.size());
+		for (int i = 0; i < transactions.size(); i++) {
+			try {
+				if (transferAccountBalance(transactions.get(i)) == 2) {
+					results.add(TransactionResult.success(i));
+				} else {
+					results.add(TransactionResult.failure(i, "Transaction failed"));
+				}
+			} catch (MoneyTransferException e) {
+				results.add(TransactionResult.failure(i, e.getMessage()));
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Transfer history of an account, newest first.
+	 */
+	public List<AccountTransaction> getTransactions(long accountId, long beforeTxnId, int limit)
+			throws MoneyTransferException {
+		LedgerAccount entry = accounts.get(accountId);
+		return entry == null ? new ArrayList<AccountTransaction>() : entry.transactions(beforeTxnId, limit);
+	}
+
+	/**
+	 * Replace the ledger content, used when test data is populated.
+	 */
+	void load(List<Account> seed) {
+		accounts.clear();
+		accountKeys.clear();
+		long maxId = 0;
+		for (Account account : seed) {
+			accounts.putIfAbsent(account.getAccountId(), new LedgerAccount(account.getAccountId(),
+					account.getUserName(), account.getCurrencyCode(), account.getBalanceUnits()));
+			accountKeys.put(accountKey(account.getUserName(), account.getCurrencyCode()), account.getAccountId());
+			maxId = Math.max(maxId, account.getAccountId());
+		}
+		sequence.set(maxId);
+		txnIds.set(0);
+	}
+
+	/**
+	 * Drop the accounts outside the range and hand out new ids from it.
+	 */
+	void restrictIds(long firstId, long lastId) throws MoneyTransferException {
+		long maxId = firstId - 1;
+		for (LedgerAccount entry : accounts.values()) {
+			if (entry.accountId < firstId || entry.accountId > lastId) {
+				deleteAccountById(entry.accountId);
+			} else {
+				maxId = Math.max(maxId, entry.accountId);
+			}
+		}
+		sequence.set(maxId);
+	}
+
+	private static String accountKey(String userName, String currencyCode) {
+		return userName + '\u0000' + currencyCode;
+	}
+
+	/**
+	 * Ledger entry of one account.
+	 */
+	static final class LedgerAccount {
+		final long accountId;
+		final String userName;
+		final String currencyCode;
+		// written under the account lock stripe
+		volatile long balance;
+		volatile boolean deleted;
+		// ascending txnId, guarded by itself
+		private final List<AccountTransaction> history = new ArrayList<AccountTransaction>();
+
+		LedgerAccount(long accountId, String userName, String currencyCode, long balance) {
+			this.accountId = accountId;
+			this.userName = userName;
+			this.currencyCode = currencyCode;
+			this.balance = balance;
+		}
+
+		/**
+		 * Append a history row, its id is taken under the history lock so the
+		 * rows stay in id order.
+		 */
+		void record(AtomicLong txnIds, long counterpartyAccountId, long amount, long balance, long now) {
+			synchronized (history) {
+				history.add(new AccountTransaction(txnIds.incrementAndGet(), accountId, counterpartyAccountId, amount,
+						balance, currencyCode, now));
+			}
+		}
+
+		/**
+		 * Up to limit history rows with an id below beforeTxnId, newest first.
+		 */
+		List<AccountTransaction> transactions(long beforeTxnId, int limit) {
+			synchronized (history) {
+				// first row at or after beforeTxnId
+				int low = 0;
+				int high = history.size();
+				while (low < high) {
+					int mid = (low + high) >>> 1;
+					if (history.get(mid).getTxnId() < beforeTxnId) {
+						low = mid + 1;
+					} else {
+						high = mid;
+					}
+				}
+				List<AccountTransaction> page = new ArrayList<AccountTransaction>(Math.min(limit, low));
+				for (int i = low - 1; i >= 0 && page.size() < limit; i--) {
+					page.add(history.get(i));
+				}
+				return page;
+			}
+		}
+
+		Account toAccount() {
+			return toAccount(balance);
+		}
+
+		Account toAccount(long balance) {
+			return new Account(accountId, userName, balance, currencyCode);
+		}
+	}
+}
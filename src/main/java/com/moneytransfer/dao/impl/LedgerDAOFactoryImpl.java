@@ -0,0 +1,114 @@
+package com.moneytransfer.dao.impl;
+
+import com.moneytransfer.dao.AccountDAO;
+import com.moneytransfer.dao.DAOFactory;
+import com.moneytransfer.dao.UserDAO;
+import com.moneytransfer.exception.MoneyTransferException;
+import com.moneytransfer.metrics.TimedProxy;
+import com.moneytransfer.model.Account;
+import com.moneytransfer.model.User;
+import com.moneytransfer.utils.PropsUitl;
+
+import org.apache.commons.dbutils.DbUtils;
+import org.apache.log4j.Logger;
+import org.h2.tools.RunScript;
+
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * In-process ledger DAO, selected with {@code dao_factory=ledger}.
+ * <p>
+ * Accounts and users live in memory only; JDBC is used once, to read the demo
+ * data when it is populated.
+ */
+public class LedgerDAOFactoryImpl implements DAOFactory {
+	private static Logger LOGGER = Logger.getLogger(LedgerDAOFactoryImpl.class);
+
+	// private, unnamed in memory database used to evaluate the demo script
+	private static final String SEED_URL = "jdbc:h2:mem:";
+
+	private static final LedgerUserDAOImpl userDAO = new LedgerUserDAOImpl();
+	private static final LedgerAccountDAOImpl accountDAO = new LedgerAccountDAOImpl();
+	private static final UserDAO timedUserDAO = TimedProxy.wrap(UserDAO.class, userDAO, "user");
+	private static final AccountDAO timedAccountDAO = TimedProxy.wrap(AccountDAO.class, accountDAO, "account");
+	// in memory only, as the ledger itself
+	private static final IdempotencyStore idempotencyStore = IdempotencyStore.fromProperties(null);
+
+	public UserDAO getUserDAO() {
+		return timedUserDAO;
+	}
+
+	public AccountDAO getAccountDAO() {
+		return timedAccountDAO;
+	}
+
+	public IdempotencyStore getIdempotencyStore() {
+		return idempotencyStore;
+	}
+
+	@Override
+	public void populateTestData() {
+		LOGGER.info("Populating ledger from demo data");
+		Connection conn = null;
+		Statement stmt = null;
+		ResultSet rs = null;
+		try {
+			DbUtils.loadDriver(PropsUitl.getStringProperty("h2_driver", "org.h2.Driver"));
+			conn = DriverManager.getConnection(SEED_URL);
+			RunScript.execute(conn, new FileReader("src/main/resources/demo.sql"));
+			stmt = conn.createStatement();
+
+			List<User> users = new ArrayList<User>();
+			rs = stmt.executeQuery("SELECT * FROM User");
+			while (rs.next()) {
+				users.add(new User(rs.getLong("UserId"), rs.getString("UserName"), rs.getString("EmailAddress")));
+			}
+			rs.close();
+
+			List<Account> accounts = new ArrayList<Account>();
+			rs = stmt.executeQuery("SELECT * FROM Account");
+			while (rs.next()) {
+				accounts.add(new Account(rs.getLong("AccountId"), rs.getString("UserName"), rs.getBigDecimal("Balance"),
+						rs.getString("CurrencyCode")));
+			}
+
+			userDAO.load(users);
+			accountDAO.load(accounts);
+			idempotencyStore.clear();
+		} catch (SQLException e) {
+			LOGGER.error("populateTestData(): Error populating ledger data: ", e);
+			throw new RuntimeException(e);
+		} catch (FileNotFoundException e) {
+			LOGGER.error("populateTestData(): Error finding test script file ", e);
+			throw new RuntimeException(e);
+		} finally {
+			DbUtils.closeQuietly(conn, stmt, rs);
+		}
+	}
+
+	@Override
+	public void restrictAccountIds(long firstId, long lastId) {
+		try {
+			accountDAO.restrictIds(firstId, lastId);
+		} catch (MoneyTransferException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * The ledger keeps its balances in memory only, there is nothing to
+	 * recover.
+	 */
+	@Override
+	public void recover() {
+	}
+
+}
@@ -0,0 +1,124 @@
+package com.moneytransfer.dao.impl;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.moneytransfer.dao.RowCallback;
+import com.moneytransfer.dao.UserDAO;
+import com.moneytransfer.exception.MoneyTransferException;
+import com.moneytransfer.model.User;
+
+/**
+ * User DAO backed by the in-process ledger. Users are off the transfer path,
+ * lookups by name scan the table.
+ */
+public class LedgerUserDAOImpl implements UserDAO {
+
+	private static Logger LOGGER = Logger.getLogger(LedgerUserDAOImpl.class);
+
+	private final LongKeyTable<User> users = new LongKeyTable<User>();
+	private final AtomicLong sequence = new AtomicLong();
+
+	/**
+	 * Find all users
+	 */
+	public List<User> getAllUsers() throws MoneyTransferException {
+		return users.values();
+	}
+
+	/**
+	 * Stream users straight from the table
+	 */
+	public int streamUsers(long afterUserId, int limit, RowCallback<User> callback)
+			throws MoneyTransferException, IOException {
+		int rows = 0;
+		Iterator<User> it = users.iteratorAfter(afterUserId);
+		while (rows < limit && it.hasNext()) {
+			callback.row(it.next());
+			rows++;
+		}
+		return rows;
+	}
+
+	/**
+	 * Find user by userId
+	 */
+	public User getUserById(long userId) throws MoneyTransferException {
+		return users.get(userId);
+	}
+
+	/**
+	 * Find user by userName
+	 */
+	public User getUserByName(String userName) throws MoneyTransferException {
+		for (User user : users.values()) {
+			if (user.getUserName().equals(userName)) {
+				return user;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Save User
+	 */
+	public synchronized long createUser(User user) throws MoneyTransferException {
+		if (user.getUserName() == null || user.getEmailAddress() == null || exists(user, -1)) {
+			LOGGER.error("Error Inserting User :" + user);
+			throw new MoneyTransferException("Error creating user data");
+		}
+		long userId = sequence.incrementAndGet();
+		users.putIfAbsent(userId, new User(userId, user.getUserName(), user.getEmailAddress()));
+		return userId;
+	}
+
+	/**
+	 * Update User
+	 */
+	public synchronized int updateUser(Long userId, User user) throws MoneyTransferException {
+		User existing = users.get(userId);
+		if (existing == null) {
+			return 0;
+		}
+		if (user.getUserName() == null || user.getEmailAddress() == null || exists(user, userId)) {
+			LOGGER.error("Error Updating User :" + user);
+			throw new MoneyTransferException("Error update user data");
+		}
+		return users.replace(userId, existing, new User(userId, user.getUserName(), user.getEmailAddress())) ? 1 : 0;
+	}
+
+	/**
+	 * Delete User
+	 */
+	public synchronized int deleteUser(long userId) throws MoneyTransferException {
+		return users.remove(userId, users.get(userId)) ? 1 : 0;
+	}
+
+	/**
+	 * Replace the user table, used when test data is populated.
+	 */
+	synchronized void load(List<User> seed) {
+		users.clear();
+		long maxId = 0;
+		for (User user : seed) {
+			users.putIfAbsent(user.getUserId(), user);
+			maxId = Math.max(maxId, user.getUserId());
+		}
+		sequence.set(maxId);
+	}
+
+	// mirrors the unique index on User(UserName, EmailAddress)
+	private boolean exists(User user, long ignoreUserId) {
+		for (User other : users.values()) {
+			if (other.getUserId() != ignoreUserId && other.getUserName().equals(user.getUserName())
+					&& other.getEmailAddress().equals(user.getEmailAddress())) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
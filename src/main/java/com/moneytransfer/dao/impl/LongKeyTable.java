@@ -0,0 +1,179 @@
+package com.moneytransfer.dao.impl;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Concurrent table keyed by non-negative primitive {@code long} ids.
+ * <p>
+ * Ids are handed out sequentially by the ledger, so instead of hashing boxed
+ * keys the table indexes a directory of fixed-size chunks directly by id. Reads
+ * are lock free; only installing a new chunk takes a lock.
+ */
+final class LongKeyTable<V> {
+
+	private static final int CHUNK_BITS = 10;
+	private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+	private volatile AtomicReferenceArray<AtomicReferenceArray<V>> chunks = new AtomicReferenceArray<AtomicReferenceArray<V>>(
+			16);
+	private final AtomicInteger size = new AtomicInteger();
+
+	V get(long key) {
+		AtomicReferenceArray<V> chunk = chunk(key, false);
+		return chunk == null ? null : chunk.get((int) (key & CHUNK_MASK));
+	}
+
+	/**
+	 * @return the value already stored under key, or null if value was stored
+	 */
+	V putIfAbsent(long key, V value) {
+		AtomicReferenceArray<V> chunk = chunk(key, true);
+		int slot = (int) (key & CHUNK_MASK);
+		while (!chunk.compareAndSet(slot, null, value)) {
+			V existing = chunk.get(slot);
+			if (existing != null) {
+				return existing;
+			}
+		}
+		size.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Replace the value under key if it is still expected.
+	 */
+	boolean replace(long key, V expected, V value) {
+		AtomicReferenceArray<V> chunk = chunk(key, false);
+		return chunk != null && expected != null && value != null
+				&& chunk.compareAndSet((int) (key & CHUNK_MASK), expected, value);
+	}
+
+	/**
+	 * Remove the value under key if it is still expected.
+	 */
+	boolean remove(long key, V expected) {
+		AtomicReferenceArray<V> chunk = chunk(key, false);
+		if (chunk != null && expected != null && chunk.compareAndSet((int) (key & CHUNK_MASK), expected, null)) {
+			size.decrementAndGet();
+			return true;
+		}
+		return false;
+	}
+
+	int size() {
+		return size.get();
+	}
+
+	/**
+	 * @return snapshot of all values in ascending key order
+	 */
+	List<V> values() {
+		List<V> values = new ArrayList<V>(size.get());
+		AtomicReferenceArray<AtomicReferenceArray<V>> directory = chunks;
+		for (int c = 0; c < directory.length(); c++) {
+			AtomicReferenceArray<V> chunk = directory.get(c);
+			if (chunk != null) {
+				for (int i = 0; i < CHUNK_SIZE; i++) {
+					V value = chunk.get(i);
+					if (value != null) {
+						values.add(value);
+					}
+				}
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * Walk the values with a key above afterKey in ascending key order
+	 * without copying them. Values stored or removed during the walk may or
+	 * may not be seen.
+	 */
+	Iterator<V> iteratorAfter(final long afterKey) {
+		final AtomicReferenceArray<AtomicReferenceArray<V>> directory = chunks;
+		return new Iterator<V>() {
+			// Long.MAX_VALUE is past every chunk
+			private long key = afterKey < 0 ? 0 : afterKey == Long.MAX_VALUE ? afterKey : afterKey + 1;
+			private V next;
+
+			@Override
+			public boolean hasNext() {
+				while (next == null && (key >>> CHUNK_BITS) < directory.length()) {
+					AtomicReferenceArray<V> chunk = directory.get((int) (key >>> CHUNK_BITS));
+					if (chunk == null) {
+						// skip the whole missing chunk
+						key = ((key >>> CHUNK_BITS) + 1) << CHUNK_BITS;
+					} else {
+						next = chunk.get((int) (key & CHUNK_MASK));
+						key++;
+					}
+				}
+				return next != null;
+			}
+
+			@Override
+			public V next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				V value = next;
+				next = null;
+				return value;
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	synchronized void clear() {
+		chunks = new AtomicReferenceArray<AtomicReferenceArray<V>>(16);
+		size.set(0);
+	}
+
+	private AtomicReferenceArray<V> chunk(long key, boolean create) {
+		if (key < 0 || (key >>> CHUNK_BITS) >= Integer.MAX_VALUE) {
+			if (create) {
+				throw new IllegalArgumentException("Key out of range: " + key);
+			}
+			return null;
+		}
+		int index = (int) (key >>> CHUNK_BITS);
+		AtomicReferenceArray<AtomicReferenceArray<V>> directory = chunks;
+		AtomicReferenceArray<V> chunk = index < directory.length() ? directory.get(index) : null;
+		if (chunk != null || !create) {
+			return chunk;
+		}
+		return installChunk(index);
+	}
+
+	private synchronized AtomicReferenceArray<V> installChunk(int index) {
+		AtomicReferenceArray<AtomicReferenceArray<V>> directory = chunks;
+		if (index >= directory.length()) {
+			int length = directory.length();
+			while (length <= index) {
+				length = length > Integer.MAX_VALUE / 2 ? Integer.MAX_VALUE : length * 2;
+			}
+			AtomicReferenceArray<AtomicReferenceArray<V>> grown = new AtomicReferenceArray<AtomicReferenceArray<V>>(
+					length);
+			for (int i = 0; i < directory.length(); i++) {
+				grown.set(i, directory.get(i));
+			}
+			chunks = directory = grown;
+		}
+		AtomicReferenceArray<V> chunk = directory.get(index);
+		if (chunk == null) {
+			chunk = new AtomicReferenceArray<V>(CHUNK_SIZE);
+			directory.set(index, chunk);
+		}
+		return chunk;
+	}
+}
@@ -0,0 +1,386 @@
+package com.moneytransfer.dao.impl;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+
+import org.apache.commons.dbutils.DbUtils;
+import org.apache.log4j.Logger;
+
+import com.moneytransfer.dao.AccountDAO;
+import com.moneytransfer.dao.RowCallback;
+import com.moneytransfer.dao.journal.DecisionLog;
+import com.moneytransfer.dao.pool.ConnectionPool;
+import com.moneytransfer.exception.MoneyTransferException;
+import com.moneytransfer.metrics.Histogram;
+import com.moneytransfer.metrics.MetricsRegistry;
+import com.moneytransfer.model.Account;
+import com.moneytransfer.model.AccountTransaction;
+import com.moneytransfer.model.Transaction;
+import com.moneytransfer.model.TransactionResult;
+
+/**
+ * Accounts spread over several H2 databases, account {@code id} living on
+ * shard {@code (id - 1) % n}: every shard hands out the ids of its own
+ * residue class.
+ * <p>
+ * Anything touching one account, and transfers between two accounts of the
+ * same shard, run on that shard's {@link AccountDAOImpl}. A transfer across
+ * shards is a two-phase commit: both legs are applied and prepared with
+ * {@code PREPARE COMMIT}, the decision is forced to the {@link DecisionLog},
+ * then both shards commit. Transfers left prepared by a crash are resolved
+ * by {@link #recover()}: committed if the log holds the decision, rolled back
+ * otherwise.
+ */
+public class ShardedAccountDAOImpl implements AccountDAO {
+
+	private static Logger LOGGER = Logger.getLogger(ShardedAccountDAOImpl.class);
+	private static final AccountLocks ACCOUNT_LOCKS = AccountLocks.getInstance();
+	private static final Histogram CROSS_SHARD_LOCK_WAIT = MetricsRegistry.INSTANCE.histogram(
+			"moneytransfer_account_lock_wait_seconds", "Time spent waiting for the account lock stripes",
+			"operation", "cross_shard");
+	// rows read from every shard per round of a merged stream
+	private static final int STREAM_PAGE_SIZE = 1000;
+	// H2 transaction names of the prepared transfers, followed by the decision log id
+	private static final String TXN_PREFIX = "XFER_";
+
+	private final static String SQL_GET_IN_DOUBT = "SELECT TRANSACTION FROM INFORMATION_SCHEMA.IN_DOUBT";
+
+	private static final Comparator<Account> BY_ID = new Comparator<Account>() {
+		@Override
+		public int compare(Account a, Account b) {
+			return Long.compare(a.getAccountId(), b.getAccountId());
+		}
+	};
+
+	private final ConnectionPool[] pools;
+	private final AccountDAOImpl[] shards;
+	private final DecisionLog log;
+
+	/**
+	 * @param pools connections to every shard, in shard order
+	 * @param log   commit decisions of the cross shard transfers
+	 */
+	public ShardedAccountDAOImpl(ConnectionPool[] pools, DecisionLog log) {
+		this.pools = pools;
+		this.log = log;
+		this.shards = new AccountDAOImpl[pools.length];
+		for (int i = 0; i < pools.length; i++) {
+			shards[i] = new AccountDAOImpl(pools[i], null);
+		}
+	}
+
+	/**
+	 * @return shard holding the account
+	 */
+	public int shardOf(long accountId) {
+		return (int) Math.floorMod(accountId - 1, (long) shards.length);
+	}
+
+	/**
+	 * Get all accounts, in account id order.
+	 */
+	public List<Account> getAllAccounts() throws MoneyTransferException {
+		List<Account> allAccounts = new ArrayList<Account>();
+		for (AccountDAOImpl shard : shards) {
+			allAccounts.addAll(shard.getAllAccounts());
+		}
+		Collections.sort(allAccounts, BY_ID);
+		return allAccounts;
+	}
+
+	/**
+	 * Stream accounts in account id order, merging pages read from every shard.
+	 * A round reads one page per shard and hands out the rows up to the
+	 * smallest last id of a full page: beyond it a shard may hold rows not read
+	 * yet.
+	 */
+	public int streamAccounts(long afterAccountId, String currencyCode, int limit, RowCallback<Account> callback)
+			throws MoneyTransferException, IOException {
+		int rows = 0;
+		long after = afterAccountId;
+		while (rows < limit) {
+			int pageSize = Math.min(STREAM_PAGE_SIZE, limit - rows);
+			final List<Account> round = new ArrayList<Account>();
+			long boundary = Long.MAX_VALUE;
+			for (AccountDAOImpl shard : shards) {
+				int read = shard.streamAccounts(after, currencyCode, pageSize, new RowCallback<Account>() {
+					@Override
+					public void row(Account row) {
+						round.add(row);
+					}
+				});
+				if (read == pageSize) {
+					boundary = Math.min(boundary, round.get(round.size() - 1).getAccountId());
+				}
+			}
+			Collections.sort(round, BY_ID);
+			for (Account account : round) {
+				if (account.getAccountId() > boundary || rows == limit) {
+					break;
+				}
+				callback.row(account);
+				rows++;
+			}
+			if (boundary == Long.MAX_VALUE) {
+				// every shard is exhausted
+				break;
+			}
+			after = boundary;
+		}
+		return rows;
+	}
+
+	public Account getAccountById(long accountId) throws MoneyTransferException {
+		return shards[shardOf(accountId)].getAccountById(accountId);
+	}
+
+	public long createAccount(Account account) throws MoneyTransferException {
+		return createAccountAndGet(account).getAccountId();
+	}
+
+	/**
+	 * Create account on the shard picked by user name and currency, so that
+	 * the unique index of that shard still rejects duplicates.
+	 */
+	public Account createAccountAndGet(Account account) throws MoneyTransferException {
+		int shard = Math.floorMod(Objects.hash(account.getUserName(), account.getCurrencyCode()), shards.length);
+		return shards[shard].createAccountAndGet(account);
+	}
+
+	public int deleteAccountById(long accountId) throws MoneyTransferException {
+		return shards[shardOf(accountId)].deleteAccountById(accountId);
+	}
+
+	public int updateAccountBalance(long accountId, long deltaUnits) throws MoneyTransferException {
+		return shards[shardOf(accountId)].updateAccountBalance(accountId, deltaUnits);
+	}
+
+	public Account updateAccountBalanceAndGet(long accountId, long deltaUnits) throws MoneyTransferException {
+		return shards[shardOf(accountId)].updateAccountBalanceAndGet(accountId, deltaUnits);
+	}
+
+	/**
+	 * Transfer balance between two accounts, on one shard if both live there,
+	 * with a two-phase commit otherwise.
+	 */
+	public int transferAccountBalance(Transaction transaction) throws MoneyTransferException {
+		int fromShard = shardOf(transaction.getFromAccountId());
+		int toShard = shardOf(transaction.getToAccountId());
+		if (fromShard == toShard) {
+			return shards[fromShard].transferAccountBalance(transaction);
+		}
+		return transferAcrossShards(transaction, fromShard, toShard);
+	}
+
+	/**
+	 * Transfer a batch: in one call to the shard if every transfer stays on
+	 * it, one transfer at a time otherwise.
+	 */
+	public List<TransactionResult> transferAccountBalanceBatch(List<Transaction> transactions)
+			throws MoneyTransferException {
+		int shard = -1;
+		for (Transaction transaction : transactions) {
+			int fromShard = shardOf(transaction.getFromAccountId());
+			if (fromShard != shardOf(transaction.getToAccountId()) || (shard >= 0 && fromShard != shard)) {
+				shard = -1;
+				break;
+			}
+			shard = fromShard;
+		}
+		if (shard >= 0) {
+			return shards[shard].transferAccountBalanceBatch(transactions);
+		}
+		List<TransactionResult> results = new ArrayList<TransactionResult>(transactions.size());
+		for (int i = 0; i < transactions.size(); i++) {
+			try {
+				if (transferAccountBalance(transactions.get(i)) == 2) {
+					results.add(TransactionResult.success(i));
+				} else {
+					results.add(TransactionResult.failure(i, "Transaction failed"));
+				}
+			} catch (MoneyTransferException e) {
+				results.add(TransactionResult.failure(i, e.getMessage()));
+			}
+		}
+		return results;
+	}
+
+	public List<AccountTransaction> getTransactions(long accountId, long beforeTxnId, int limit)
+			throws MoneyTransferException {
+		return shards[shardOf(accountId)].getTransactions(accountId, beforeTxnId, limit);
+	}
+
+	/**
+	 * @return 2 once both legs are committed, -1 if the transfer was rolled
+	 *         back on a database error
+	 */
+	private int transferAcrossShards(Transaction transaction, int fromShard, int toShard)
+			throws MoneyTransferException {
+		long id = log.nextId();
+		String name = TXN_PREFIX + id;
+		Connection fromConn = null;
+		Connection toConn = null;
+		AccountLocks.Held locks = null;
+		boolean decided = false;
+		try {
+			long lockStart = System.nanoTime();
+			locks = ACCOUNT_LOCKS.acquire(transaction.getFromAccountId(), transaction.getToAccountId());
+			CROSS_SHARD_LOCK_WAIT.recordSince(lockStart);
+			fromConn = pools[fromShard].getConnection();
+			fromConn.setAutoCommit(false);
+			toConn = pools[toShard].getConnection();
+			toConn.setAutoCommit(false);
+
+			// phase one: both legs written and prepared, a failure rolls back both
+			long now = System.currentTimeMillis();
+			shards[fromShard].applyLeg(fromConn, transaction, true, now);
+			shards[toShard].applyLeg(toConn, transaction, false, now);
+			prepare(fromConn, name);
+			prepare(toConn, name);
+
+			// the transfer commits once the decision is durable
+			log.commit(id);
+			decided = true;
+
+			// phase two
+			boolean done = commit(fromConn, fromShard, name) & commit(toConn, toShard, name);
+			if (done) {
+				log.done(id);
+			}
+			if (LOGGER.isDebugEnabled())
+				LOGGER.debug("transferAccountBalance(): committed across shards " + fromShard + " and " + toShard
+						+ ": " + transaction);
+			return 2;
+		} catch (SQLException se) {
+			LOGGER.error("transferAccountBalance(): Cross shard transaction failed, rollback initiated for: "
+					+ transaction, se);
+			return -1;
+		} finally {
+			if (!decided) {
+				rollbackQuietly(fromConn);
+				rollbackQuietly(toConn);
+			}
+			DbUtils.closeQuietly(fromConn);
+			DbUtils.closeQuietly(toConn);
+			if (locks != null)
+				locks.release();
+		}
+	}
+
+	private static void prepare(Connection conn, String name) throws SQLException {
+		Statement stmt = conn.createStatement();
+		try {
+			stmt.execute("PREPARE COMMIT " + name);
+		} finally {
+			DbUtils.closeQuietly(stmt);
+		}
+	}
+
+	/**
+	 * Commit a prepared leg once the decision is logged, falling back to
+	 * committing it by name from another session.
+	 *
+	 * @return false if the leg is left in doubt for {@link #recover()}
+	 */
+	private boolean commit(Connection conn, int shard, String name) {
+		try {
+			conn.commit();
+			return true;
+		} catch (SQLException e) {
+			LOGGER.error("commit(): Error committing " + name + " on shard " + shard + ", retrying by name", e);
+		}
+		try {
+			resolve(shard, name, true);
+			return true;
+		} catch (SQLException e) {
+			LOGGER.error("commit(): " + name + " is left in doubt on shard " + shard, e);
+			return false;
+		}
+	}
+
+	private static void rollbackQuietly(Connection conn) {
+		if (conn == null)
+			return;
+		try {
+			conn.rollback();
+		} catch (SQLException e) {
+			LOGGER.error("Fail to rollback transaction", e);
+		}
+	}
+
+	/**
+	 * Commit or roll back a prepared transaction by name. H2 leaves the
+	 * session doing so with a stale view of the tables, so it is not pooled.
+	 */
+	private void resolve(int shard, String name, boolean commit) throws SQLException {
+		Connection conn = null;
+		Statement stmt = null;
+		try {
+			conn = pools[shard].openUnpooled();
+			stmt = conn.createStatement();
+			stmt.execute((commit ? "COMMIT TRANSACTION " : "ROLLBACK TRANSACTION ") + name);
+		} finally {
+			DbUtils.closeQuietly(conn, stmt, null);
+		}
+	}
+
+	/**
+	 * Resolve the cross shard transfers left prepared on any shard: commit
+	 * those whose decision is logged, roll back the others. Transfers whose
+	 * every leg is then committed are marked done in the log.
+	 *
+	 * @return number of prepared legs resolved
+	 */
+	public int recover() throws MoneyTransferException {
+		int resolved = 0;
+		boolean failed = false;
+		for (int shard = 0; shard < pools.length; shard++) {
+			List<String> names = new ArrayList<String>();
+			Connection conn = null;
+			PreparedStatement stmt = null;
+			ResultSet rs = null;
+			try {
+				conn = pools[shard].getConnection();
+				stmt = conn.prepareStatement(SQL_GET_IN_DOUBT);
+				rs = stmt.executeQuery();
+				while (rs.next()) {
+					String name = rs.getString(1);
+					if (name.startsWith(TXN_PREFIX)) {
+						names.add(name);
+					}
+				}
+			} catch (SQLException e) {
+				throw new MoneyTransferException("recover(): Error reading in doubt transactions of shard " + shard, e);
+			} finally {
+				DbUtils.closeQuietly(conn, stmt, rs);
+			}
+			for (String name : names) {
+				boolean commit = log.isCommitted(Long.parseLong(name.substring(TXN_PREFIX.length())));
+				try {
+					resolve(shard, name, commit);
+					resolved++;
+					LOGGER.info("recover(): " + (commit ? "committed " : "rolled back ") + name + " on shard " + shard);
+				} catch (SQLException e) {
+					failed = true;
+					LOGGER.error("recover(): Error resolving " + name + " on shard " + shard, e);
+				}
+			}
+		}
+		if (!failed) {
+			// no leg is in doubt any more
+			for (Long id : log.getPending()) {
+				log.done(id);
+			}
+		}
+		return resolved;
+	}
+}
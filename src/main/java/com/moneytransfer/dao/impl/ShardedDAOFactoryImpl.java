@@ -0,0 +1,231 @@
+package com.moneytransfer.dao.impl;
+
+import com.moneytransfer.dao.AccountDAO;
+import com.moneytransfer.dao.DAOFactory;
+import com.moneytransfer.dao.UserDAO;
+import com.moneytransfer.dao.journal.DecisionLog;
+import com.moneytransfer.dao.pool.ConnectionPool;
+import com.moneytransfer.exception.MoneyTransferException;
+import com.moneytransfer.metrics.MetricsRegistry;
+import com.moneytransfer.metrics.TimedProxy;
+import com.moneytransfer.utils.PropsUitl;
+
+import org.apache.commons.dbutils.DbUtils;
+import org.apache.log4j.Logger;
+import org.h2.tools.RunScript;
+
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Accounts sharded over {@code shard_count} H2 databases, selected with
+ * {@code dao_factory=sharded}.
+ * <p>
+ * Shard {@code i} is opened at {@code shard_connection_url} formatted with
+ * {@code i} and holds the accounts {@code id} with {@code (id - 1) % n == i},
+ * see {@link ShardedAccountDAOImpl}. Users and idempotency keys live on shard
+ * 0. The transfer journal is not supported in this mode.
+ */
+public class ShardedDAOFactoryImpl implements DAOFactory {
+	private static final String h2_driver = PropsUitl.getStringProperty("h2_driver");
+	private static final String h2_user = PropsUitl.getStringProperty("h2_user");
+	private static final String h2_password = PropsUitl.getStringProperty("h2_password");
+	private static final String shard_connection_url = PropsUitl.getStringProperty("shard_connection_url",
+			"jdbc:h2:mem:moneytransfer_shard%d;DB_CLOSE_DELAY=-1");
+	private static Logger LOGGER = Logger.getLogger(ShardedDAOFactoryImpl.class);
+
+	private final static String SQL_GET_ACC_SEQUENCE = "SELECT SEQUENCE_NAME FROM INFORMATION_SCHEMA.COLUMNS "
+			+ "WHERE TABLE_NAME = 'ACCOUNT' AND COLUMN_NAME = 'ACCOUNTID'";
+
+	private static final ConnectionPool[] pools;
+
+	static {
+		DbUtils.loadDriver(h2_driver);
+		pools = new ConnectionPool[Math.max(1, PropsUitl.getIntegerProperty("shard_count", 2))];
+		for (int i = 0; i < pools.length; i++) {
+			pools[i] = ConnectionPool.fromProperties("h2_pool_", String.format(shard_connection_url, i), h2_user,
+					h2_password);
+		}
+	}
+
+	private static final ShardedAccountDAOImpl shardedAccountDAO = new ShardedAccountDAOImpl(pools, openLog());
+
+	private static final boolean ACCOUNT_CACHE_ENABLED = Boolean
+			.parseBoolean(PropsUitl.getStringProperty("account_cache_enabled", "true"));
+	private static final AccountCache accountCache = ACCOUNT_CACHE_ENABLED ? AccountCache.fromProperties() : null;
+
+	private static final UserDAO userDAO = TimedProxy.wrap(UserDAO.class, new UserDAOImpl(pools[0], null), "user");
+	private static final AccountDAO accountDAO = TimedProxy.wrap(AccountDAO.class,
+			ACCOUNT_CACHE_ENABLED ? new CachingAccountDAO(shardedAccountDAO, accountCache) : shardedAccountDAO,
+			"account");
+
+	private static final IdempotencyStore idempotencyStore = IdempotencyStore.fromProperties(pools[0]);
+
+	static {
+		registerMetrics();
+	}
+
+	public ShardedDAOFactoryImpl() {
+	}
+
+	/**
+	 * @return pools of every shard, in shard order
+	 */
+	public static ConnectionPool[] getConnectionPools() {
+		return pools.clone();
+	}
+
+	/**
+	 * @return sharded account DAO, without the cache and timing in front
+	 */
+	public static ShardedAccountDAOImpl getShardedAccountDAO() {
+		return shardedAccountDAO;
+	}
+
+	public UserDAO getUserDAO() {
+		return userDAO;
+	}
+
+	public AccountDAO getAccountDAO() {
+		return accountDAO;
+	}
+
+	public IdempotencyStore getIdempotencyStore() {
+		return idempotencyStore;
+	}
+
+	private static DecisionLog openLog() {
+		try {
+			return DecisionLog.fromProperties();
+		} catch (MoneyTransferException e) {
+			LOGGER.error("openLog(): Error opening the shard decision log", e);
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static void registerMetrics() {
+		MetricsRegistry metrics = MetricsRegistry.INSTANCE;
+		for (int i = 0; i < pools.length; i++) {
+			final ConnectionPool pool = pools[i];
+			String name = "shard" + i;
+			metrics.register("moneytransfer_pool_acquire_seconds", "Time taken to borrow a JDBC connection",
+					pool.getAcquireTime(), "pool", name);
+			metrics.gauge("moneytransfer_pool_connections", "JDBC connections by state", () -> pool.getActiveCount(),
+					"pool", name, "state", "active");
+			metrics.gauge("moneytransfer_pool_connections", "JDBC connections by state", () -> pool.getIdleCount(),
+					"pool", name, "state", "idle");
+			metrics.gauge("moneytransfer_pool_waiting_threads", "Threads waiting for a JDBC connection",
+					() -> pool.getWaitingCount(), "pool", name);
+			metrics.functionCounter("moneytransfer_pool_timeouts_total", "JDBC connection borrow timeouts",
+					() -> pool.getTimeoutCount(), "pool", name);
+		}
+		metrics.gauge("moneytransfer_idempotency_keys", "Idempotency keys remembered",
+				() -> idempotencyStore.size());
+	}
+
+	/**
+	 * Run the demo scripts on every shard, then keep on each shard only the
+	 * accounts it owns and make its Account identity hand out the ids of its
+	 * residue class. Users stay on shard 0 only.
+	 */
+	@Override
+	public void populateTestData() {
+		LOGGER.info("Populating " + pools.length + " shards");
+		for (int i = 0; i < pools.length; i++) {
+			Connection conn = null;
+			Statement stmt = null;
+			ResultSet rs = null;
+			try {
+				conn = pools[i].getConnection();
+				RunScript.execute(conn, new FileReader("src/main/resources/demo.sql"));
+				RunScript.execute(conn, new FileReader("src/main/resources/version.sql"));
+				RunScript.execute(conn, new FileReader("src/main/resources/history.sql"));
+				stmt = conn.createStatement();
+				rs = stmt.executeQuery("SELECT MAX(AccountId) FROM Account");
+				long maxId = rs.next() ? rs.getLong(1) : 0;
+				rs.close();
+				stmt.executeUpdate("DELETE FROM Account WHERE MOD(AccountId - 1, " + pools.length + ") <> " + i);
+				if (i > 0) {
+					stmt.executeUpdate("DELETE FROM User");
+				}
+				restartAccountIds(stmt, i, maxId + 1);
+			} catch (SQLException e) {
+				LOGGER.error("populateTestData(): Error populating shard " + i + ": ", e);
+				throw new RuntimeException(e);
+			} catch (FileNotFoundException e) {
+				LOGGER.error("populateTestData(): Error finding test script file ", e);
+				throw new RuntimeException(e);
+			} finally {
+				DbUtils.closeQuietly(conn, stmt, rs);
+			}
+		}
+		if (accountCache != null) {
+			accountCache.clear();
+		}
+		idempotencyStore.clear();
+	}
+
+	@Override
+	public void restrictAccountIds(long firstId, long lastId) {
+		for (int i = 0; i < pools.length; i++) {
+			Connection conn = null;
+			Statement stmt = null;
+			ResultSet rs = null;
+			try {
+				conn = pools[i].getConnection();
+				stmt = conn.createStatement();
+				stmt.executeUpdate("DELETE FROM Account WHERE AccountId < " + firstId + " OR AccountId > " + lastId);
+				rs = stmt.executeQuery("SELECT MAX(AccountId) FROM Account");
+				long maxId = rs.next() ? rs.getLong(1) : 0;
+				rs.close();
+				restartAccountIds(stmt, i, Math.max(firstId, maxId + 1));
+			} catch (SQLException e) {
+				LOGGER.error("restrictAccountIds(): Error restricting account ids of shard " + i + ": ", e);
+				throw new RuntimeException(e);
+			} finally {
+				DbUtils.closeQuietly(conn, stmt, rs);
+			}
+		}
+		if (accountCache != null) {
+			accountCache.clear();
+		}
+	}
+
+	/**
+	 * Make the Account identity of a shard hand out the ids of its residue
+	 * class, starting with the first one from {@code from}.
+	 */
+	private static void restartAccountIds(Statement stmt, int shard, long from) throws SQLException {
+		long next = from + Math.floorMod(shard + 1 - from, (long) pools.length);
+		ResultSet rs = stmt.executeQuery(SQL_GET_ACC_SEQUENCE);
+		try {
+			rs.next();
+			stmt.execute("ALTER SEQUENCE " + rs.getString(1) + " RESTART WITH " + next + " INCREMENT BY "
+					+ pools.length);
+		} finally {
+			rs.close();
+		}
+	}
+
+	/**
+	 * Resolve the cross shard transfers left prepared by a crash, see
+	 * {@link ShardedAccountDAOImpl#recover()}.
+	 */
+	@Override
+	public void recover() {
+		try {
+			int resolved = shardedAccountDAO.recover();
+			if (resolved > 0) {
+				LOGGER.info("recover(): resolved " + resolved + " prepared cross shard transfers");
+			}
+		} catch (MoneyTransferException e) {
+			LOGGER.error("recover(): Error resolving prepared cross shard transfers", e);
+			throw new RuntimeException(e);
+		}
+	}
+
+}
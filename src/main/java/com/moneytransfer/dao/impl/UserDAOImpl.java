@@ -1,12 +1,17 @@
 package com.moneytransfer.dao.impl;
 
+import com.moneytransfer.dao.RowCallback;
 import com.moneytransfer.dao.UserDAO;
+import com.moneytransfer.dao.journal.TransferJournal;
+import com.moneytransfer.dao.pool.ConnectionPool;
 import com.moneytransfer.exception.MoneyTransferException;
 import com.moneytransfer.model.User;
+import com.moneytransfer.utils.PropsUitl;
 
 import org.apache.commons.dbutils.DbUtils;
 import org.apache.log4j.Logger;
 
+import java.io.IOException;
 import java.sql.*;
 import java.util.ArrayList;
 import java.util.List;
@@ -17,28 +22,57 @@ public class UserDAOImpl implements UserDAO {
     private static Logger LOGGER = Logger.getLogger(UserDAOImpl.class);
     private final static String SQL_GET_USER_BY_ID = "SELECT * FROM User WHERE UserId = ? ";
     private final static String SQL_GET_ALL_USERS = "SELECT * FROM User";
+    // primary key order, so the stream resumes after the last id read
+    private final static String SQL_STREAM_USERS = "SELECT * FROM User WHERE UserId > ? ORDER BY UserId LIMIT ?";
     private final static String SQL_GET_USER_BY_NAME = "SELECT * FROM User WHERE UserName = ? ";
     private final static String SQL_INSERT_USER = "INSERT INTO User (UserName, EmailAddress) VALUES (?, ?)";
     private final static String SQL_UPDATE_USER = "UPDATE User SET UserName = ?, EmailAddress = ? WHERE UserId = ? ";
     private final static String SQL_DELETE_USER_BY_ID = "DELETE FROM User WHERE UserId = ? ";
+
+    // user writes are rare, they are serialised so that the journal gets them in commit order
+    private static final Object JOURNALED_WRITES = new Object();
+    private static final int FETCH_SIZE = Math.max(1, PropsUitl.getIntegerProperty("h2_fetch_size", 1000));
+
+    private final ConnectionPool pool;
+    // committed changes are journaled when not null
+    private final TransferJournal journal;
+
+    public UserDAOImpl() {
+        this(null);
+    }
+
+    public UserDAOImpl(TransferJournal journal) {
+        this(H2DAOFactoryImpl.getConnectionPool(), journal);
+    }
+
+    /**
+     * @param pool    connections to the database holding the User table
+     * @param journal journal of the committed changes, null for none
+     */
+    public UserDAOImpl(ConnectionPool pool, TransferJournal journal) {
+        this.pool = pool;
+        this.journal = journal;
+    }
     
     /**
      * Find all users
      */
     public List<User> getAllUsers() throws MoneyTransferException {
-    	LOGGER.info("Before: get all users");
+    	if (LOGGER.isDebugEnabled())
+    		LOGGER.debug("Before: get all users");
         Connection conn = null;
         PreparedStatement stmt = null;
         ResultSet rs = null;
         List<User> users = new ArrayList<User>();
         try {
-            conn = H2DAOFactoryImpl.getConnection();
+            conn = pool.getConnection();
             stmt = conn.prepareStatement(SQL_GET_ALL_USERS);
             rs = stmt.executeQuery();
             while (rs.next()) {
                 users.add(this.getUser(rs));
             }
-            LOGGER.info("After: get all users");
+            if (LOGGER.isDebugEnabled())
+            	LOGGER.debug("After: get all users");
             return users;
         } catch (SQLException e) {
             throw new MoneyTransferException("Error reading user data", e);
@@ -47,24 +81,55 @@ public class UserDAOImpl implements UserDAO {
         }
     }
     
+    /**
+     * Stream users from a forward only cursor, reading {@code h2_fetch_size}
+     * rows at a time.
+     */
+    public int streamUsers(long afterUserId, int limit, RowCallback<User> callback)
+            throws MoneyTransferException, IOException {
+        Connection conn = null;
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        int rows = 0;
+        try {
+            conn = pool.getConnection();
+            stmt = conn.prepareStatement(SQL_STREAM_USERS, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            stmt.setFetchSize(FETCH_SIZE);
+            stmt.setLong(1, afterUserId);
+            stmt.setInt(2, limit);
+            rs = stmt.executeQuery();
+            while (rs.next()) {
+                callback.row(this.getUser(rs));
+                rows++;
+            }
+            return rows;
+        } catch (SQLException e) {
+            throw new MoneyTransferException("Error reading user data after " + rows + " rows", e);
+        } finally {
+            DbUtils.closeQuietly(conn, stmt, rs);
+        }
+    }
+
     /**
      * Find user by userId
      */
     public User getUserById(long userId) throws MoneyTransferException {
-    	LOGGER.info("Before: get user by id");
+    	if (LOGGER.isDebugEnabled())
+    		LOGGER.debug("Before: get user by id");
         Connection conn = null;
         PreparedStatement stmt = null;
         ResultSet rs = null;
         User user = null;
         try {
-            conn = H2DAOFactoryImpl.getConnection();
+            conn = pool.getConnection();
             stmt = conn.prepareStatement(SQL_GET_USER_BY_ID);
             stmt.setLong(1, userId);
             rs = stmt.executeQuery();
             if (rs.next()) {
                 user = this.getUser(rs);
             }
-            LOGGER.info("After: get user by id");
+            if (LOGGER.isDebugEnabled())
+            	LOGGER.debug("After: get user by id");
             return user;
         } catch (SQLException e) {
             throw new MoneyTransferException("Error reading user data", e);
@@ -77,20 +142,22 @@ public class UserDAOImpl implements UserDAO {
      * Find user by userName
      */
     public User getUserByName(String userName) throws MoneyTransferException {
-    	LOGGER.info("Before: get user by name");
+    	if (LOGGER.isDebugEnabled())
+    		LOGGER.debug("Before: get user by name");
         Connection conn = null;
         PreparedStatement stmt = null;
         ResultSet rs = null;
         User user = null;
         try {
-            conn = H2DAOFactoryImpl.getConnection();
+            conn = pool.getConnection();
             stmt = conn.prepareStatement(SQL_GET_USER_BY_NAME);
             stmt.setString(1, userName);
             rs = stmt.executeQuery();
             if (rs.next()) {
                 user = this.getUser(rs);
             }
-            LOGGER.info("After: get user by name");
+            if (LOGGER.isDebugEnabled())
+            	LOGGER.debug("After: get user by name");
             return user;
         } catch (SQLException e) {
             throw new MoneyTransferException("Error reading user data", e);
@@ -103,12 +170,16 @@ public class UserDAOImpl implements UserDAO {
      * Save User
      */
     public long createUser(User user) throws MoneyTransferException {
-    	LOGGER.info("Before: create user");
+    	if (LOGGER.isDebugEnabled())
+    		LOGGER.debug("Before: create user");
         Connection conn = null;
         PreparedStatement stmt = null;
         ResultSet generatedKeys = null;
+        if (journal != null) {
+            TransferJournal.checkRecordable(user.getUserName(), user.getEmailAddress());
+        }
         try {
-            conn = H2DAOFactoryImpl.getConnection();
+            conn = pool.getConnection();
             stmt = conn.prepareStatement(SQL_INSERT_USER, Statement.RETURN_GENERATED_KEYS);
             stmt.setString(1, user.getUserName());
             stmt.setString(2, user.getEmailAddress());
@@ -119,8 +190,13 @@ public class UserDAOImpl implements UserDAO {
             }
             generatedKeys = stmt.getGeneratedKeys();
             if (generatedKeys.next()) {
-            	LOGGER.info("After: create user");
-                return generatedKeys.getLong(1);
+                long userId = generatedKeys.getLong(1);
+                if (journal != null) {
+                    journal.awaitDurable(journal.appendUser(userId, user.getUserName(), user.getEmailAddress()));
+                }
+            	if (LOGGER.isDebugEnabled())
+            		LOGGER.debug("After: create user");
+                return userId;
             } else {
                 LOGGER.error("insertUser():  Creating user failed, no ID obtained." + user);
                 throw new MoneyTransferException("Users Cannot be created");
@@ -138,18 +214,35 @@ public class UserDAOImpl implements UserDAO {
      * Update User
      */
     public int updateUser(Long userId, User user) throws MoneyTransferException {
-    	LOGGER.info("Before: udpate user");
+    	if (LOGGER.isDebugEnabled())
+    		LOGGER.debug("Before: udpate user");
         Connection conn = null;
         PreparedStatement stmt = null;
-
+        if (journal != null) {
+            TransferJournal.checkRecordable(user.getUserName(), user.getEmailAddress());
+        }
         try {
-            conn = H2DAOFactoryImpl.getConnection();
+            conn = pool.getConnection();
             stmt = conn.prepareStatement(SQL_UPDATE_USER);
             stmt.setString(1, user.getUserName());
             stmt.setString(2, user.getEmailAddress());
             stmt.setLong(3, userId);
-            LOGGER.info("After: udpate user");
-            return stmt.executeUpdate();
+            int updated;
+            long journalSequence = 0;
+            if (journal == null) {
+                updated = stmt.executeUpdate();
+            } else {
+                synchronized (JOURNALED_WRITES) {
+                    updated = stmt.executeUpdate();
+                    if (updated > 0) {
+                        journalSequence = journal.appendUser(userId, user.getUserName(), user.getEmailAddress());
+                    }
+                }
+                journal.awaitDurable(journalSequence);
+            }
+            if (LOGGER.isDebugEnabled())
+            	LOGGER.debug("After: udpate user");
+            return updated;
         } catch (SQLException e) {
             LOGGER.error("Error Updating User :" + user);
             throw new MoneyTransferException("Error update user data", e);
@@ -163,16 +256,31 @@ public class UserDAOImpl implements UserDAO {
      * Delete User
      */
     public int deleteUser(long userId) throws MoneyTransferException {
-    	LOGGER.info("Before: delete user");
+    	if (LOGGER.isDebugEnabled())
+    		LOGGER.debug("Before: delete user");
         Connection conn = null;
         PreparedStatement stmt = null;
 
         try {
-            conn = H2DAOFactoryImpl.getConnection();
+            conn = pool.getConnection();
             stmt = conn.prepareStatement(SQL_DELETE_USER_BY_ID);
             stmt.setLong(1, userId);
-            LOGGER.info("After: delete user");
-            return stmt.executeUpdate();
+            int deleted;
+            long journalSequence = 0;
+            if (journal == null) {
+                deleted = stmt.executeUpdate();
+            } else {
+                synchronized (JOURNALED_WRITES) {
+                    deleted = stmt.executeUpdate();
+                    if (deleted > 0) {
+                        journalSequence = journal.appendUserDelete(userId);
+                    }
+                }
+                journal.awaitDurable(journalSequence);
+            }
+            if (LOGGER.isDebugEnabled())
+            	LOGGER.debug("After: delete user");
+            return deleted;
         } catch (SQLException e) {
             LOGGER.error("Error Deleting User :" + userId);
             throw new MoneyTransferException("Error Deleting User ID:"+ userId, e);
@@ -0,0 +1,247 @@
+package com.moneytransfer.dao.journal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+import com.moneytransfer.exception.MoneyTransferException;
+import com.moneytransfer.utils.PropsUitl;
+
+/**
+ * Commit decisions of two-phase transfers across shards, the recovery log of
+ * the coordinator.
+ * <p>
+ * A transfer is committed once its COMMIT record is on disk; a prepared
+ * transfer without one is rolled back by recovery (presumed abort). A DONE
+ * record follows once every shard has committed, it is not forced. Records
+ * are 13 bytes: type, transfer id and a CRC of both. Concurrent commits share
+ * fsyncs: whoever forces the file covers every record written before it. The
+ * file is rewritten with the undone commits only once it outgrows
+ * {@code maxBytes}.
+ */
+public class DecisionLog {
+
+	private static Logger LOGGER = Logger.getLogger(DecisionLog.class);
+
+	private static final byte COMMIT = 1;
+	private static final byte DONE = 2;
+	private static final int RECORD_SIZE = 13;
+
+	private final File file;
+	private final long maxBytes;
+	private final Object syncLock = new Object();
+	private final AtomicLong ids;
+	// committed, not yet done on every shard, guarded by this
+	private final Set<Long> pending = new HashSet<Long>();
+	private final ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE);
+	private final CRC32 crc = new CRC32();
+	private RandomAccessFile raf;
+	private FileChannel channel;
+	private long position;
+	// guarded by syncLock
+	private long synced;
+
+	/**
+	 * Open the log, reading back the commits that are not done.
+	 *
+	 * @param file     log file, created if missing
+	 * @param maxBytes size after which the log is rewritten
+	 */
+	public DecisionLog(File file, long maxBytes) throws MoneyTransferException {
+		this.file = file;
+		this.maxBytes = maxBytes;
+		long maxId = 0;
+		try {
+			File dir = file.getAbsoluteFile().getParentFile();
+			if (!dir.isDirectory() && !dir.mkdirs()) {
+				throw new IOException("Cannot create directory " + dir);
+			}
+			raf = new RandomAccessFile(file, "rw");
+			channel = raf.getChannel();
+			ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+			while (channel.read(record, position) == RECORD_SIZE) {
+				record.flip();
+				byte type = record.get();
+				long id = record.getLong();
+				if (record.getInt() != checksum(type, id)) {
+					break;
+				}
+				if (type == COMMIT) {
+					pending.add(id);
+				} else {
+					pending.remove(id);
+				}
+				maxId = Math.max(maxId, id);
+				position += RECORD_SIZE;
+				record.clear();
+			}
+			// drop a torn tail
+			channel.truncate(position);
+			synced = position;
+		} catch (IOException e) {
+			throw new MoneyTransferException("Error opening decision log " + file, e);
+		}
+		// ids stay unique across restarts, also once the log is rewritten
+		ids = new AtomicLong(Math.max(maxId, System.currentTimeMillis() << 10));
+		LOGGER.info("Opened decision log " + file + ", " + pending.size() + " commits not done");
+	}
+
+	/**
+	 * Build a log from the {@code shard_decision_log*} properties.
+	 */
+	public static DecisionLog fromProperties() throws MoneyTransferException {
+		return new DecisionLog(new File(PropsUitl.getStringProperty("shard_decision_log", "journal/shard-decisions.log")),
+				PropsUitl.getIntegerProperty("shard_decision_log_max_kb", 1024) * 1024L);
+	}
+
+	/**
+	 * @return id for a new transfer
+	 */
+	public long nextId() {
+		return ids.incrementAndGet();
+	}
+
+	/**
+	 * Record the decision to commit a prepared transfer, returning once it is
+	 * on disk.
+	 */
+	public void commit(long id) throws MoneyTransferException {
+		long end;
+		synchronized (this) {
+			end = append(COMMIT, id);
+			pending.add(id);
+		}
+		sync(end);
+	}
+
+	/**
+	 * Record that every shard committed the transfer.
+	 */
+	public void done(long id) throws MoneyTransferException {
+		boolean rewrite;
+		synchronized (this) {
+			append(DONE, id);
+			pending.remove(id);
+			rewrite = position > maxBytes;
+		}
+		if (rewrite) {
+			rewrite();
+		}
+	}
+
+	/**
+	 * @return true if the transfer was committed and is not done yet
+	 */
+	public synchronized boolean isCommitted(long id) {
+		return pending.contains(id);
+	}
+
+	/**
+	 * @return transfers committed and not done yet
+	 */
+	public synchronized List<Long> getPending() {
+		return new ArrayList<Long>(pending);
+	}
+
+	public void close() {
+		synchronized (syncLock) {
+			synchronized (this) {
+				try {
+					channel.force(false);
+					raf.close();
+				} catch (IOException e) {
+					LOGGER.warn("close(): Error closing " + file, e);
+				}
+			}
+		}
+	}
+
+	// caller holds this
+	private long append(byte type, long id) throws MoneyTransferException {
+		buffer.clear();
+		buffer.put(type).putLong(id).putInt(checksum(type, id));
+		buffer.flip();
+		try {
+			while (buffer.hasRemaining()) {
+				channel.write(buffer, position + buffer.position());
+			}
+		} catch (IOException e) {
+			throw new MoneyTransferException("Error writing decision log " + file, e);
+		}
+		position += RECORD_SIZE;
+		return position;
+	}
+
+	private void sync(long end) throws MoneyTransferException {
+		synchronized (syncLock) {
+			if (synced >= end) {
+				// forced by another commit meanwhile
+				return;
+			}
+			long target;
+			synchronized (this) {
+				target = position;
+			}
+			try {
+				channel.force(false);
+			} catch (IOException e) {
+				throw new MoneyTransferException("Error forcing decision log " + file, e);
+			}
+			synced = target;
+		}
+	}
+
+	/**
+	 * Replace the file with one holding only the pending commits.
+	 */
+	private void rewrite() throws MoneyTransferException {
+		synchronized (syncLock) {
+			synchronized (this) {
+				if (position <= maxBytes) {
+					return;
+				}
+				File temp = new File(file.getPath() + ".tmp");
+				try {
+					RandomAccessFile tempRaf = new RandomAccessFile(temp, "rw");
+					FileChannel tempChannel = tempRaf.getChannel();
+					tempChannel.truncate(0);
+					RandomAccessFile oldRaf = raf;
+					channel = tempChannel;
+					position = 0;
+					for (Long id : pending) {
+						append(COMMIT, id);
+					}
+					tempChannel.force(false);
+					Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+							StandardCopyOption.REPLACE_EXISTING);
+					raf = tempRaf;
+					synced = position;
+					oldRaf.close();
+				} catch (IOException e) {
+					throw new MoneyTransferException("Error rewriting decision log " + file, e);
+				}
+			}
+		}
+	}
+
+	private int checksum(byte type, long id) {
+		crc.reset();
+		crc.update(type);
+		for (int shift = 56; shift >= 0; shift -= 8) {
+			crc.update((int) (id >>> shift));
+		}
+		return (int) crc.getValue();
+	}
+}
@@ -0,0 +1,121 @@
+package com.moneytransfer.dao.journal;
+
+/**
+ * One record of the {@link TransferJournal}. Balances are the values written
+ * by the change, not deltas, so replaying the records of an account in order
+ * leaves it with its last committed balance.
+ */
+public final class JournalRecord {
+
+	/** Account created, with its opening balance */
+	public static final byte ACCOUNT = 1;
+	/** New balance of one account, or of both accounts of a transfer */
+	public static final byte BALANCE = 2;
+	/** Account deleted */
+	public static final byte DELETE = 3;
+	/** User created or updated, the account id is the user id */
+	public static final byte USER = 4;
+	/** User deleted, the account id is the user id */
+	public static final byte USER_DELETE = 5;
+
+	private final long sequence;
+	private final byte type;
+	private final boolean continued;
+	private final long accountId;
+	private final long balanceUnits;
+	private final long accountId2;
+	private final long balanceUnits2;
+	private final long amountUnits;
+	private final long timestamp;
+	private final String currencyCode;
+	private final String userName;
+
+	JournalRecord(long sequence, byte type, boolean continued, long accountId, long balanceUnits, long accountId2,
+			long balanceUnits2, long amountUnits, long timestamp, String currencyCode, String userName) {
+		this.sequence = sequence;
+		this.type = type;
+		this.continued = continued;
+		this.accountId = accountId;
+		this.balanceUnits = balanceUnits;
+		this.accountId2 = accountId2;
+		this.balanceUnits2 = balanceUnits2;
+		this.amountUnits = amountUnits;
+		this.timestamp = timestamp;
+		this.currencyCode = currencyCode;
+		this.userName = userName;
+	}
+
+	public long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * @return {@link #ACCOUNT}, {@link #BALANCE}, {@link #DELETE},
+	 *         {@link #USER} or {@link #USER_DELETE}
+	 */
+	public byte getType() {
+		return type;
+	}
+
+	/**
+	 * @return true if the next record belongs to the same atomic change, e.g.
+	 *         a commit group of a batch
+	 */
+	public boolean isContinued() {
+		return continued;
+	}
+
+	public long getAccountId() {
+		return accountId;
+	}
+
+	public long getBalanceUnits() {
+		return balanceUnits;
+	}
+
+	/**
+	 * @return second account of a BALANCE record, 0 if there is none
+	 */
+	public long getAccountId2() {
+		return accountId2;
+	}
+
+	public long getBalanceUnits2() {
+		return balanceUnits2;
+	}
+
+	/**
+	 * @return amount transferred or deposited, kept for auditing only
+	 */
+	public long getAmountUnits() {
+		return amountUnits;
+	}
+
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public String getCurrencyCode() {
+		return currencyCode;
+	}
+
+	public String getUserName() {
+		return userName;
+	}
+
+	/**
+	 * @return email address of a USER record, which takes the place of the
+	 *         currency code
+	 */
+	public String getEmailAddress() {
+		return currencyCode;
+	}
+
+	@Override
+	public String toString() {
+		return "JournalRecord{" + "sequence=" + sequence + ", type=" + type + ", continued=" + continued
+				+ ", accountId=" + accountId + ", balanceUnits=" + balanceUnits + ", accountId2=" + accountId2
+				+ ", balanceUnits2=" + balanceUnits2 + ", amountUnits=" + amountUnits + ", currencyCode='"
+				+ currencyCode + '\'' + ", userName='" + userName + '\'' + '}';
+	}
+}
@@ -0,0 +1,324 @@
+package com.moneytransfer.dao.journal;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import org.apache.log4j.Logger;
+
+import com.moneytransfer.exception.MoneyTransferException;
+import com.moneytransfer.utils.PropsUitl;
+
+/**
+ * Compact binary snapshots of the User and Account tables, each taken at a
+ * journal sequence so that startup only replays the journal records after it.
+ * <p>
+ * A snapshot file is a header (magic, version, journal sequence, creation
+ * time), one tagged row per user and account, an end tag with the row counts
+ * and a CRC of everything before it. Files are written under a temporary name,
+ * forced to disk and renamed, and only the newest {@code snapshot_retain} are
+ * kept.
+ */
+public class SnapshotStore {
+
+	private static Logger LOGGER = Logger.getLogger(SnapshotStore.class);
+
+	private static final int MAGIC = 0x4d54534e;
+	private static final byte VERSION = 1;
+	private static final byte USER = 'U';
+	private static final byte ACCOUNT = 'A';
+	private static final byte END = 'E';
+
+	private static final String PREFIX = "snapshot-";
+	private static final String SUFFIX = ".bin";
+	private static final String TEMP_SUFFIX = ".tmp";
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	/**
+	 * Receives the rows of a snapshot being loaded
+	 */
+	public interface Loader {
+		/**
+		 * Called before the rows of a snapshot, again if an earlier snapshot is
+		 * loaded after a corrupt one
+		 *
+		 * @param sequence journal sequence covered by the snapshot
+		 */
+		void begin(long sequence) throws SQLException, MoneyTransferException;
+
+		void user(long userId, String userName, String emailAddress) throws SQLException;
+
+		void account(long accountId, String userName, long balanceUnits, String currencyCode) throws SQLException;
+
+		/**
+		 * Called once every row of the snapshot was read and checked
+		 */
+		void end() throws SQLException;
+	}
+
+	private final File dir;
+	private final int retain;
+
+	/**
+	 * @param dir    directory of the snapshot files
+	 * @param retain number of snapshots kept, at least 1
+	 */
+	public SnapshotStore(File dir, int retain) {
+		this.dir = dir;
+		this.retain = Math.max(1, retain);
+	}
+
+	/**
+	 * Build a store from the {@code snapshot_*} properties, snapshots sit next
+	 * to the journal by default.
+	 */
+	public static SnapshotStore fromProperties() {
+		return new SnapshotStore(
+				new File(PropsUitl.getStringProperty("snapshot_dir", PropsUitl.getStringProperty("journal_dir", "journal"))),
+				PropsUitl.getIntegerProperty("snapshot_retain", 2));
+	}
+
+	/**
+	 * Start a snapshot, nothing is visible before {@link Writer#commit()}.
+	 *
+	 * @param sequence journal sequence covered by the snapshot
+	 */
+	public Writer create(long sequence) throws MoneyTransferException {
+		try {
+			if (!dir.isDirectory() && !dir.mkdirs()) {
+				throw new IOException("Cannot create directory " + dir);
+			}
+			return new Writer(sequence);
+		} catch (IOException e) {
+			throw new MoneyTransferException("Error creating snapshot in " + dir, e);
+		}
+	}
+
+	/**
+	 * Load the newest snapshot which reads back complete, falling back to
+	 * older ones.
+	 *
+	 * @return journal sequence of the loaded snapshot, -1 if there is none
+	 */
+	public long load(Loader loader) throws MoneyTransferException {
+		File[] snapshots = listSnapshots();
+		for (int i = snapshots.length - 1; i >= 0; i--) {
+			long start = System.currentTimeMillis();
+			try {
+				long sequence = read(snapshots[i], loader);
+				LOGGER.info("Loaded snapshot " + snapshots[i] + " in " + (System.currentTimeMillis() - start) + " ms");
+				return sequence;
+			} catch (IOException e) {
+				LOGGER.error("load(): Snapshot " + snapshots[i] + " is unreadable, trying an older one", e);
+			} catch (SQLException e) {
+				throw new MoneyTransferException("load(): Error loading snapshot " + snapshots[i], e);
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return journal sequence of the newest snapshot, -1 if there is none
+	 */
+	public long getLatestSequence() {
+		File[] snapshots = listSnapshots();
+		return snapshots.length == 0 ? -1 : sequence(snapshots[snapshots.length - 1]);
+	}
+
+	/**
+	 * @return journal sequence of the oldest snapshot kept, -1 if there is
+	 *         none
+	 */
+	public long getOldestSequence() {
+		File[] snapshots = listSnapshots();
+		return snapshots.length == 0 ? -1 : sequence(snapshots[0]);
+	}
+
+	private long read(File file, Loader loader) throws IOException, SQLException, MoneyTransferException {
+		CheckedInputStream checked = new CheckedInputStream(
+				new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE), new CRC32());
+		DataInputStream in = new DataInputStream(checked);
+		try {
+			if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+				throw new IOException("Not a snapshot file");
+			}
+			long sequence = in.readLong();
+			in.readLong();
+			loader.begin(sequence);
+			long users = 0;
+			long accounts = 0;
+			for (;;) {
+				byte tag = in.readByte();
+				if (tag == USER) {
+					loader.user(in.readLong(), readText(in), readText(in));
+					users++;
+				} else if (tag == ACCOUNT) {
+					loader.account(in.readLong(), readText(in), in.readLong(), readText(in));
+					accounts++;
+				} else if (tag == END) {
+					break;
+				} else {
+					throw new IOException("Unknown row tag " + tag);
+				}
+			}
+			if (in.readLong() != users || in.readLong() != accounts) {
+				throw new IOException("Row counts do not match");
+			}
+			int crc = (int) checked.getChecksum().getValue();
+			if (in.readInt() != crc) {
+				throw new IOException("CRC mismatch");
+			}
+			loader.end();
+			return sequence;
+		} catch (EOFException e) {
+			throw new IOException("Snapshot is truncated", e);
+		} finally {
+			in.close();
+		}
+	}
+
+	// columns are nullable
+	private static String readText(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	private void deleteOld() {
+		File[] snapshots = listSnapshots();
+		for (int i = 0; i < snapshots.length - retain; i++) {
+			if (!snapshots[i].delete()) {
+				LOGGER.warn("deleteOld(): cannot delete " + snapshots[i]);
+			}
+		}
+	}
+
+	private File[] listSnapshots() {
+		File[] snapshots = dir.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File file) {
+				return file.getName().startsWith(PREFIX) && file.getName().endsWith(SUFFIX);
+			}
+		});
+		if (snapshots == null) {
+			return new File[0];
+		}
+		// names hold zero padded sequence numbers
+		Arrays.sort(snapshots);
+		return snapshots;
+	}
+
+	private static long sequence(File snapshot) {
+		String name = snapshot.getName();
+		return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+	}
+
+	/**
+	 * Writes the rows of one snapshot, users first
+	 */
+	public final class Writer {
+		private final File file;
+		private final File temp;
+		private final FileOutputStream fileOut;
+		private final CheckedOutputStream checked;
+		private final DataOutputStream out;
+		private long users;
+		private long accounts;
+
+		private Writer(long sequence) throws IOException {
+			file = new File(dir, String.format("%s%020d%s", PREFIX, sequence, SUFFIX));
+			temp = new File(dir, file.getName() + TEMP_SUFFIX);
+			fileOut = new FileOutputStream(temp);
+			checked = new CheckedOutputStream(new BufferedOutputStream(fileOut, BUFFER_SIZE), new CRC32());
+			out = new DataOutputStream(checked);
+			out.writeInt(MAGIC);
+			out.writeByte(VERSION);
+			out.writeLong(sequence);
+			out.writeLong(System.currentTimeMillis());
+		}
+
+		public void user(long userId, String userName, String emailAddress) throws MoneyTransferException {
+			try {
+				out.writeByte(USER);
+				out.writeLong(userId);
+				writeText(userName);
+				writeText(emailAddress);
+				users++;
+			} catch (IOException e) {
+				throw new MoneyTransferException("Error writing snapshot " + temp, e);
+			}
+		}
+
+		public void account(long accountId, String userName, long balanceUnits, String currencyCode)
+				throws MoneyTransferException {
+			try {
+				out.writeByte(ACCOUNT);
+				out.writeLong(accountId);
+				writeText(userName);
+				out.writeLong(balanceUnits);
+				writeText(currencyCode);
+				accounts++;
+			} catch (IOException e) {
+				throw new MoneyTransferException("Error writing snapshot " + temp, e);
+			}
+		}
+
+		private void writeText(String text) throws IOException {
+			out.writeBoolean(text != null);
+			if (text != null) {
+				out.writeUTF(text);
+			}
+		}
+
+		/**
+		 * Finish the file, force it to disk and make it the newest snapshot.
+		 *
+		 * @return the snapshot file
+		 */
+		public File commit() throws MoneyTransferException {
+			try {
+				out.writeByte(END);
+				out.writeLong(users);
+				out.writeLong(accounts);
+				out.writeInt((int) checked.getChecksum().getValue());
+				out.flush();
+				fileOut.getChannel().force(true);
+				out.close();
+				Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+						StandardCopyOption.REPLACE_EXISTING);
+			} catch (IOException e) {
+				abort();
+				throw new MoneyTransferException("Error writing snapshot " + file, e);
+			}
+			LOGGER.info("Snapshot " + file + " written, " + users + " users and " + accounts + " accounts");
+			deleteOld();
+			return file;
+		}
+
+		/**
+		 * Drop the snapshot being written.
+		 */
+		public void abort() {
+			try {
+				out.close();
+			} catch (IOException e) {
+				LOGGER.warn("abort(): Error closing " + temp, e);
+			}
+			if (temp.exists() && !temp.delete()) {
+				LOGGER.warn("abort(): cannot delete " + temp);
+			}
+		}
+	}
+}
@@ -0,0 +1,622 @@
+package com.moneytransfer.dao.journal;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+import com.moneytransfer.exception.MoneyTransferException;
+import com.moneytransfer.utils.PropsUitl;
+
+/**
+ * Append-only journal of committed account and user changes, written to memory-mapped
+ * segment files of fixed-size records.
+ * <p>
+ * Records are appended by the DAO after its database transaction commits and
+ * before it releases the account locks, so the records of one account are in
+ * commit order. Each record holds the balances written, which makes replay a
+ * matter of applying the records in sequence order. Records are flushed to
+ * disk by a single flusher thread: in {@code group} sync mode writers wait in
+ * {@link #awaitDurable(long)} and every flush makes all records appended so far
+ * durable at once, in {@code async} mode nobody waits and the flusher runs
+ * every {@code journal_flush_interval_ms}.
+ * <p>
+ * A segment is named after the sequence number of its first record and a new
+ * one is started when it is full. A record ends with a CRC of its content and
+ * reading stops at the first record that is torn or out of sequence.
+ */
+public class TransferJournal {
+
+	private static Logger LOGGER = Logger.getLogger(TransferJournal.class);
+
+	public static final int RECORD_SIZE = 128;
+
+	// record layout
+	private static final int SEQUENCE = 0;
+	private static final int TYPE = 8;
+	private static final int FLAGS = 9;
+	private static final int CCY_LENGTH = 10;
+	private static final int NAME_LENGTH = 11;
+	private static final int ACCOUNT_ID = 16;
+	private static final int BALANCE = 24;
+	private static final int ACCOUNT_ID_2 = 32;
+	private static final int BALANCE_2 = 40;
+	private static final int AMOUNT = 48;
+	private static final int TIMESTAMP = 56;
+	private static final int CCY = 64;
+	private static final int NAME = 94;
+	private static final int CRC = 124;
+	// both columns are VARCHAR(30)
+	private static final int CCY_BYTES = NAME - CCY;
+	private static final int NAME_BYTES = CRC - NAME;
+
+	private static final byte FLAG_CONTINUED = 1;
+
+	private static final String SEGMENT_PREFIX = "journal-";
+	private static final String SEGMENT_SUFFIX = ".log";
+
+	/**
+	 * When an appended record is acknowledged
+	 */
+	public enum SyncMode {
+		/** once a group flush has forced it to disk */
+		GROUP,
+		/** straight away, the flusher forces records in the background */
+		ASYNC
+	}
+
+	/**
+	 * Receives the records of {@link #replay(long, Visitor)}
+	 */
+	public interface Visitor {
+		void visit(JournalRecord record) throws SQLException;
+	}
+
+	private final File dir;
+	private final int recordsPerSegment;
+	private final SyncMode syncMode;
+	private final long flushIntervalNanos;
+
+	// guarded by this
+	private MappedByteBuffer segment;
+	private int segmentCapacity;
+	private int slot;
+	private long lastSequence;
+	private final List<MappedByteBuffer> rolled = new ArrayList<MappedByteBuffer>();
+	private final byte[] record = new byte[RECORD_SIZE];
+	private final ByteBuffer recordBuffer = ByteBuffer.wrap(record);
+	private final CRC32 crc = new CRC32();
+
+	private volatile long durableSequence;
+	private volatile boolean closed;
+	private final Object durable = new Object();
+	private final Thread flusher;
+
+	/**
+	 * Open the journal in a directory, creating it if needed. Appends continue
+	 * after the last valid record.
+	 *
+	 * @param dir                 directory of the segment files
+	 * @param segmentBytes        size of a new segment file
+	 * @param syncMode            when appends are acknowledged
+	 * @param flushIntervalMillis longest time between two flushes
+	 */
+	public TransferJournal(File dir, long segmentBytes, SyncMode syncMode, long flushIntervalMillis)
+			throws MoneyTransferException {
+		this.dir = dir;
+		this.recordsPerSegment = (int) Math.max(1, Math.min(segmentBytes / RECORD_SIZE, Integer.MAX_VALUE / RECORD_SIZE));
+		this.syncMode = syncMode;
+		this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, flushIntervalMillis));
+		try {
+			if (!dir.isDirectory() && !dir.mkdirs()) {
+				throw new IOException("Cannot create directory " + dir);
+			}
+			File[] segments = listSegments();
+			if (segments.length == 0) {
+				openSegment(1);
+			} else {
+				openTail(segments[segments.length - 1]);
+			}
+		} catch (IOException e) {
+			throw new MoneyTransferException("Error opening transfer journal in " + dir, e);
+		}
+		durableSequence = lastSequence;
+		flusher = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				flushLoop();
+			}
+		}, "journal-flusher");
+		flusher.setDaemon(true);
+		flusher.start();
+		LOGGER.info("Transfer journal opened in " + dir + " at sequence " + lastSequence);
+	}
+
+	/**
+	 * Open the journal from the {@code journal_*} properties.
+	 */
+	public static TransferJournal fromProperties() throws MoneyTransferException {
+		return new TransferJournal(new File(PropsUitl.getStringProperty("journal_dir", "journal")),
+				PropsUitl.getIntegerProperty("journal_segment_size_mb", 64) * 1024L * 1024L,
+				SyncMode.valueOf(PropsUitl.getStringProperty("journal_sync", "group").toUpperCase()),
+				PropsUitl.getIntegerProperty("journal_flush_interval_ms", 10));
+	}
+
+	/**
+	 * Fail before a change is made if its account or user cannot be
+	 * journaled.
+	 *
+	 * @param text currency code of an account, email address of a user
+	 */
+	public static void checkRecordable(String userName, String text) throws MoneyTransferException {
+		if (utf8(userName).length > NAME_BYTES || utf8(text).length > CCY_BYTES) {
+			throw new MoneyTransferException("Value too long for the transfer journal: " + userName + " " + text);
+		}
+	}
+
+	/**
+	 * @return sequence of the ACCOUNT record of a new account
+	 */
+	public synchronized long appendAccount(long accountId, String userName, long balanceUnits, String currencyCode)
+			throws MoneyTransferException {
+		long sequence = append(JournalRecord.ACCOUNT, false, accountId, balanceUnits, 0, 0, balanceUnits, currencyCode,
+				userName);
+		signal();
+		return sequence;
+	}
+
+	/**
+	 * @return sequence of the BALANCE record of a deposit or withdrawal
+	 */
+	public synchronized long appendBalance(long accountId, long balanceUnits, long deltaUnits)
+			throws MoneyTransferException {
+		long sequence = append(JournalRecord.BALANCE, false, accountId, balanceUnits, 0, 0, deltaUnits, null, null);
+		signal();
+		return sequence;
+	}
+
+	/**
+	 * @return sequence of the BALANCE record holding both accounts of a
+	 *         transfer
+	 */
+	public synchronized long appendTransfer(long fromAccountId, long fromBalanceUnits, long toAccountId,
+			long toBalanceUnits, long amountUnits) throws MoneyTransferException {
+		long sequence = append(JournalRecord.BALANCE, false, fromAccountId, fromBalanceUnits, toAccountId,
+				toBalanceUnits, amountUnits, null, null);
+		signal();
+		return sequence;
+	}
+
+	/**
+	 * Append the balances of one atomic change, two accounts per record. Replay
+	 * skips the change unless all of its records were written.
+	 *
+	 * @param balances balance units by account id
+	 * @return sequence of the last record
+	 */
+	public synchronized long appendBalances(Map<Long, Long> balances) throws MoneyTransferException {
+		int records = (balances.size() + 1) / 2;
+		if (records == 0) {
+			return lastSequence;
+		}
+		if (slot > 0 && slot + records > segmentCapacity && records <= recordsPerSegment) {
+			// keep a change in one segment, see openTail
+			roll();
+		}
+		long sequence = 0;
+		Iterator<Map.Entry<Long, Long>> entries = balances.entrySet().iterator();
+		for (int i = 0; i < records; i++) {
+			Map.Entry<Long, Long> first = entries.next();
+			Map.Entry<Long, Long> second = entries.hasNext() ? entries.next() : null;
+			sequence = append(JournalRecord.BALANCE, i < records - 1, first.getKey(), first.getValue(),
+					second != null ? second.getKey() : 0, second != null ? second.getValue() : 0, 0, null, null);
+		}
+		signal();
+		return sequence;
+	}
+
+	/**
+	 * @return sequence of the DELETE record of an account
+	 */
+	public synchronized long appendDelete(long accountId) throws MoneyTransferException {
+		long sequence = append(JournalRecord.DELETE, false, accountId, 0, 0, 0, 0, null, null);
+		signal();
+		return sequence;
+	}
+
+	/**
+	 * @return sequence of the USER record of a created or updated user
+	 */
+	public synchronized long appendUser(long userId, String userName, String emailAddress)
+			throws MoneyTransferException {
+		long sequence = append(JournalRecord.USER, false, userId, 0, 0, 0, 0, emailAddress, userName);
+		signal();
+		return sequence;
+	}
+
+	/**
+	 * @return sequence of the USER_DELETE record of a user
+	 */
+	public synchronized long appendUserDelete(long userId) throws MoneyTransferException {
+		long sequence = append(JournalRecord.USER_DELETE, false, userId, 0, 0, 0, 0, null, null);
+		signal();
+		return sequence;
+	}
+
+	/**
+	 * Wait until a record is on disk, returns at once in {@code async} mode.
+	 */
+	public void awaitDurable(long sequence) throws MoneyTransferException {
+		if (syncMode != SyncMode.GROUP || durableSequence >= sequence) {
+			return;
+		}
+		synchronized (durable) {
+			while (durableSequence < sequence) {
+				if (closed) {
+					throw new MoneyTransferException("Transfer journal closed before record " + sequence + " was flushed");
+				}
+				try {
+					durable.wait(TimeUnit.NANOSECONDS.toMillis(flushIntervalNanos) + 1);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new MoneyTransferException("Interrupted waiting for the transfer journal");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Read the records after a sequence in order. The records of a change
+	 * made of several records are only visited once all of them were read.
+	 *
+	 * @return sequence of the last record visited, afterSequence if none
+	 */
+	public long replay(long afterSequence, Visitor visitor) throws MoneyTransferException {
+		File[] segments = listSegments();
+		List<JournalRecord> change = new ArrayList<JournalRecord>();
+		long last = afterSequence;
+		long expected = -1;
+		try {
+			for (int i = 0; i < segments.length; i++) {
+				if (i + 1 < segments.length && firstSequence(segments[i + 1]) <= afterSequence + 1) {
+					// every record of this segment was replayed before
+					continue;
+				}
+				long firstSequence = firstSequence(segments[i]);
+				if (expected == -1 && firstSequence > afterSequence + 1) {
+					throw new MoneyTransferException("replay(): journal starts at sequence " + firstSequence
+							+ ", the records after " + afterSequence + " are gone");
+				}
+				if (expected != -1 && firstSequence != expected) {
+					LOGGER.warn("replay(): segment " + segments[i] + " does not follow sequence " + (expected - 1));
+					break;
+				}
+				expected = firstSequence;
+				ByteBuffer buffer = map(segments[i], FileChannel.MapMode.READ_ONLY);
+				int capacity = buffer.capacity() / RECORD_SIZE;
+				int position = 0;
+				for (; position < capacity; position++) {
+					JournalRecord read = read(buffer, position, expected);
+					if (read == null) {
+						break;
+					}
+					expected++;
+					if (read.getSequence() <= afterSequence) {
+						continue;
+					}
+					change.add(read);
+					if (!read.isContinued()) {
+						for (JournalRecord applied : change) {
+							visitor.visit(applied);
+						}
+						last = read.getSequence();
+						change.clear();
+					}
+				}
+				if (position < capacity) {
+					// end of the written records
+					break;
+				}
+			}
+		} catch (IOException e) {
+			throw new MoneyTransferException("replay(): Error reading transfer journal in " + dir, e);
+		} catch (SQLException e) {
+			throw new MoneyTransferException("replay(): Error applying transfer journal record", e);
+		}
+		if (!change.isEmpty()) {
+			LOGGER.warn("replay(): ignoring " + change.size() + " records of an incomplete change after sequence " + last);
+		}
+		return last;
+	}
+
+	/**
+	 * Delete the segments holding only records up to a sequence, e.g. the
+	 * sequence of the oldest snapshot kept. The segment being written is never
+	 * deleted.
+	 *
+	 * @return number of segments deleted
+	 */
+	public synchronized int deleteSegmentsUpTo(long sequence) {
+		File[] segments = listSegments();
+		int deleted = 0;
+		for (int i = 0; i + 1 < segments.length && firstSequence(segments[i + 1]) <= sequence + 1; i++) {
+			if (segments[i].delete()) {
+				deleted++;
+			} else {
+				LOGGER.warn("deleteSegmentsUpTo(): cannot delete " + segments[i]);
+			}
+		}
+		if (deleted > 0)
+			LOGGER.info("Deleted " + deleted + " journal segments up to sequence " + sequence);
+		return deleted;
+	}
+
+	/**
+	 * @return sequence of the last record appended
+	 */
+	public synchronized long getLastSequence() {
+		return lastSequence;
+	}
+
+	/**
+	 * @return sequence of the last record forced to disk
+	 */
+	public long getDurableSequence() {
+		return durableSequence;
+	}
+
+	/**
+	 * @return number of segment files
+	 */
+	public int getSegmentCount() {
+		return listSegments().length;
+	}
+
+	/**
+	 * Flush the appended records and stop the flusher, appends fail from now
+	 * on.
+	 */
+	public void close() {
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+		}
+		LockSupport.unpark(flusher);
+		try {
+			flusher.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		flush();
+		LOGGER.info("Transfer journal closed at sequence " + durableSequence);
+	}
+
+	private void signal() {
+		if (syncMode == SyncMode.GROUP) {
+			LockSupport.unpark(flusher);
+		}
+	}
+
+	private void flushLoop() {
+		while (!closed) {
+			flush();
+			LockSupport.parkNanos(this, flushIntervalNanos);
+		}
+	}
+
+	/**
+	 * Force every segment written since the last flush, then wake up the
+	 * writers waiting for the records appended before it started.
+	 */
+	private void flush() {
+		long target;
+		MappedByteBuffer current;
+		List<MappedByteBuffer> full;
+		synchronized (this) {
+			target = lastSequence;
+			current = segment;
+			full = new ArrayList<MappedByteBuffer>(rolled);
+			rolled.clear();
+		}
+		for (MappedByteBuffer buffer : full) {
+			buffer.force();
+		}
+		if (target > durableSequence) {
+			current.force();
+			durableSequence = target;
+			synchronized (durable) {
+				durable.notifyAll();
+			}
+		}
+	}
+
+	// caller holds the lock of this
+	private long append(byte type, boolean continued, long accountId, long balanceUnits, long accountId2,
+			long balanceUnits2, long amountUnits, String currencyCode, String userName) throws MoneyTransferException {
+		if (closed) {
+			throw new MoneyTransferException("Transfer journal is closed");
+		}
+		if (slot == segmentCapacity) {
+			roll();
+		}
+		long sequence = lastSequence + 1;
+		Arrays.fill(record, (byte) 0);
+		recordBuffer.putLong(SEQUENCE, sequence);
+		recordBuffer.put(TYPE, type);
+		recordBuffer.put(FLAGS, continued ? FLAG_CONTINUED : 0);
+		recordBuffer.putLong(ACCOUNT_ID, accountId);
+		recordBuffer.putLong(BALANCE, balanceUnits);
+		recordBuffer.putLong(ACCOUNT_ID_2, accountId2);
+		recordBuffer.putLong(BALANCE_2, balanceUnits2);
+		recordBuffer.putLong(AMOUNT, amountUnits);
+		recordBuffer.putLong(TIMESTAMP, System.currentTimeMillis());
+		putString(CCY, CCY_LENGTH, CCY_BYTES, currencyCode);
+		putString(NAME, NAME_LENGTH, NAME_BYTES, userName);
+		crc.reset();
+		crc.update(record, 0, CRC);
+		recordBuffer.putInt(CRC, (int) crc.getValue());
+
+		segment.position(slot * RECORD_SIZE);
+		segment.put(record);
+		slot++;
+		lastSequence = sequence;
+		return sequence;
+	}
+
+	private void putString(int offset, int lengthOffset, int maxBytes, String value) throws MoneyTransferException {
+		if (value == null) {
+			return;
+		}
+		byte[] bytes = utf8(value);
+		if (bytes.length > maxBytes) {
+			throw new MoneyTransferException("Value too long for the transfer journal: " + value);
+		}
+		recordBuffer.put(lengthOffset, (byte) bytes.length);
+		System.arraycopy(bytes, 0, record, offset, bytes.length);
+	}
+
+	private void roll() throws MoneyTransferException {
+		rolled.add(segment);
+		try {
+			openSegment(lastSequence + 1);
+		} catch (IOException e) {
+			// a journal which cannot grow cannot take more records
+			closed = true;
+			LOGGER.error("roll(): Error creating transfer journal segment, journal closed", e);
+			throw new MoneyTransferException("Error creating transfer journal segment", e);
+		}
+	}
+
+	private void openSegment(long firstSequence) throws IOException {
+		File file = new File(dir, segmentName(firstSequence));
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength((long) recordsPerSegment * RECORD_SIZE);
+			// the mapping stays valid once the file is closed
+			segment = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+		} finally {
+			raf.close();
+		}
+		segmentCapacity = recordsPerSegment;
+		slot = 0;
+		if (LOGGER.isDebugEnabled())
+			LOGGER.debug("openSegment(): " + file);
+	}
+
+	/**
+	 * Continue in the last segment after its last valid record. Records of a
+	 * change left incomplete are dropped, and every slot after the kept records
+	 * is cleared, so that stale records can never follow the new ones.
+	 */
+	private void openTail(File file) throws IOException {
+		long firstSequence = firstSequence(file);
+		segment = map(file, FileChannel.MapMode.READ_WRITE);
+		segmentCapacity = segment.capacity() / RECORD_SIZE;
+		int changeStart = 0;
+		slot = 0;
+		for (; slot < segmentCapacity; slot++) {
+			JournalRecord read = read(segment, slot, firstSequence + slot);
+			if (read == null) {
+				break;
+			}
+			if (!read.isContinued()) {
+				changeStart = slot + 1;
+			}
+		}
+		if (changeStart < slot) {
+			LOGGER.warn("openTail(): dropping " + (slot - changeStart) + " records of an incomplete change");
+		}
+		slot = changeStart;
+		for (int stale = slot; stale < segmentCapacity; stale++) {
+			if (segment.getLong(stale * RECORD_SIZE + SEQUENCE) != 0) {
+				segment.position(stale * RECORD_SIZE);
+				segment.put(new byte[RECORD_SIZE]);
+			}
+		}
+		segment.force();
+		lastSequence = firstSequence + slot - 1;
+	}
+
+	/**
+	 * @return the record in a slot, null if it is not the expected sequence or
+	 *         fails its CRC
+	 */
+	private static JournalRecord read(ByteBuffer buffer, int slot, long expectedSequence) {
+		int offset = slot * RECORD_SIZE;
+		if (buffer.getLong(offset + SEQUENCE) != expectedSequence) {
+			return null;
+		}
+		byte[] bytes = new byte[RECORD_SIZE];
+		ByteBuffer source = buffer.duplicate();
+		source.position(offset);
+		source.get(bytes);
+		CRC32 checksum = new CRC32();
+		checksum.update(bytes, 0, CRC);
+		ByteBuffer content = ByteBuffer.wrap(bytes);
+		if (content.getInt(CRC) != (int) checksum.getValue()) {
+			return null;
+		}
+		return new JournalRecord(expectedSequence, content.get(TYPE), (content.get(FLAGS) & FLAG_CONTINUED) != 0,
+				content.getLong(ACCOUNT_ID), content.getLong(BALANCE), content.getLong(ACCOUNT_ID_2),
+				content.getLong(BALANCE_2), content.getLong(AMOUNT), content.getLong(TIMESTAMP),
+				getString(bytes, CCY, content.get(CCY_LENGTH)), getString(bytes, NAME, content.get(NAME_LENGTH)));
+	}
+
+	private static String getString(byte[] bytes, int offset, int length) {
+		return length == 0 ? null : new String(bytes, offset, length, StandardCharsets.UTF_8);
+	}
+
+	private static byte[] utf8(String value) {
+		return value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static MappedByteBuffer map(File file, FileChannel.MapMode mode) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, mode == FileChannel.MapMode.READ_ONLY ? "r" : "rw");
+		try {
+			return raf.getChannel().map(mode, 0, raf.length() / RECORD_SIZE * RECORD_SIZE);
+		} finally {
+			raf.close();
+		}
+	}
+
+	private File[] listSegments() {
+		File[] segments = dir.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File file) {
+				return file.getName().startsWith(SEGMENT_PREFIX) && file.getName().endsWith(SEGMENT_SUFFIX);
+			}
+		});
+		if (segments == null) {
+			return new File[0];
+		}
+		// names hold zero padded sequence numbers
+		Arrays.sort(segments);
+		return segments;
+	}
+
+	private static String segmentName(long firstSequence) {
+		return String.format("%s%020d%s", SEGMENT_PREFIX, firstSequence, SEGMENT_SUFFIX);
+	}
+
+	private static long firstSequence(File segment) {
+		String name = segment.getName();
+		return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+	}
+}
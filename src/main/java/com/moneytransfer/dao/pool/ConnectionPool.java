@@ -0,0 +1,414 @@
+package com.moneytransfer.dao.pool;
+
+import com.moneytransfer.metrics.Histogram;
+import com.moneytransfer.utils.PropsUitl;
+
+import org.apache.commons.dbutils.DbUtils;
+import org.apache.log4j.Logger;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded JDBC connection pool.
+ * <p>
+ * Connections are handed out as proxies whose {@link Connection#close()}
+ * returns the physical connection to the pool, so callers keep using
+ * {@code DbUtils.closeQuietly(conn)} as with plain driver connections. Returned
+ * connections are rolled back and switched back to auto commit before they are
+ * reused. At most {@code maxSize} physical connections exist at any time, idle
+ * connections above {@code minSize} are closed after {@code idleTimeoutMs}, and
+ * connections idle for longer than {@code validationIntervalMs} are validated
+ * before being handed out again. Each physical connection keeps an LRU cache
+ * of up to {@code statementCacheSize} prepared statements (0 disables it).
+ */
+public class ConnectionPool {
+
+	private static Logger LOGGER = Logger.getLogger(ConnectionPool.class);
+
+	private final String url;
+	private final String user;
+	private final String password;
+	private final int minSize;
+	private final int maxSize;
+	private final long idleTimeoutMs;
+	private final long borrowTimeoutMs;
+	private final long validationIntervalMs;
+	private final int validationTimeoutSec;
+	private final int statementCacheSize;
+
+	// idle connections, most recently returned first
+	private final LinkedBlockingDeque<PooledEntry> idle = new LinkedBlockingDeque<PooledEntry>();
+	// one permit per connection that may still be borrowed
+	private final Semaphore permits;
+	private final ScheduledExecutorService evictor;
+	private volatile boolean closed;
+
+	private final AtomicInteger active = new AtomicInteger();
+	private final AtomicInteger total = new AtomicInteger();
+	private final AtomicLong borrowCount = new AtomicLong();
+	private final AtomicLong timeoutCount = new AtomicLong();
+	private final AtomicLong totalWaitNanos = new AtomicLong();
+	private final AtomicLong maxWaitNanos = new AtomicLong();
+	private final AtomicLong createdCount = new AtomicLong();
+	private final AtomicLong destroyedCount = new AtomicLong();
+	private final AtomicLong statementCacheHits = new AtomicLong();
+	private final AtomicLong statementCacheMisses = new AtomicLong();
+	private final Histogram acquireTime = new Histogram();
+
+	public ConnectionPool(String url, String user, String password, int minSize, int maxSize, long idleTimeoutMs,
+			long borrowTimeoutMs, long validationIntervalMs, int validationTimeoutSec, int statementCacheSize) {
+		if (maxSize < 1 || minSize < 0 || minSize > maxSize) {
+			throw new IllegalArgumentException(
+					"Invalid connection pool size, min: " + minSize + ", max: " + maxSize);
+		}
+		this.url = url;
+		this.user = user;
+		this.password = password;
+		this.minSize = minSize;
+		this.maxSize = maxSize;
+		this.idleTimeoutMs = idleTimeoutMs;
+		this.borrowTimeoutMs = borrowTimeoutMs;
+		this.validationIntervalMs = validationIntervalMs;
+		this.validationTimeoutSec = validationTimeoutSec;
+		this.statementCacheSize = statementCacheSize;
+		this.permits = new Semaphore(maxSize, true);
+
+		for (int i = 0; i < minSize; i++) {
+			try {
+				idle.offerLast(create());
+			} catch (SQLException e) {
+				LOGGER.warn("ConnectionPool(): fail to pre-fill pool for " + url, e);
+				break;
+			}
+		}
+
+		this.evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "connection-pool-evictor");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		if (idleTimeoutMs > 0) {
+			long interval = Math.max(10, Math.min(idleTimeoutMs / 2, 30000));
+			evictor.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					evictIdle();
+				}
+			}, interval, interval, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Create a pool sized from application properties, keys are prefixed by
+	 * {@code prefix}, e.g. {@code h2_pool_max_size}.
+	 *
+	 * @param prefix   property key prefix
+	 * @param url      JDBC url
+	 * @param user     database user
+	 * @param password database password
+	 * @return connection pool
+	 */
+	public static ConnectionPool fromProperties(String prefix, String url, String user, String password) {
+		return new ConnectionPool(url, user, password, PropsUitl.getIntegerProperty(prefix + "min_size", 2),
+				PropsUitl.getIntegerProperty(prefix + "max_size", 32),
+				PropsUitl.getIntegerProperty(prefix + "idle_timeout_ms", 60000),
+				PropsUitl.getIntegerProperty(prefix + "borrow_timeout_ms", 5000),
+				PropsUitl.getIntegerProperty(prefix + "validation_interval_ms", 5000),
+				PropsUitl.getIntegerProperty(prefix + "validation_timeout_sec", 1),
+				PropsUitl.getIntegerProperty(prefix + "statement_cache_size", 32));
+	}
+
+	/**
+	 * Borrow a connection, waiting at most the borrow timeout.
+	 *
+	 * @return pooled connection, close it to give it back
+	 * @throws SQLException if no connection becomes available in time or the
+	 *             pool is shut down
+	 */
+	public Connection getConnection() throws SQLException {
+		final long start = System.nanoTime();
+		if (closed) {
+			throw new SQLException("Connection pool is shut down");
+		}
+		try {
+			if (!permits.tryAcquire(borrowTimeoutMs, TimeUnit.MILLISECONDS)) {
+				timeoutCount.incrementAndGet();
+				throw new SQLException("Timed out after " + borrowTimeoutMs + "ms waiting for a pooled connection");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for a pooled connection", e);
+		}
+		recordWait(System.nanoTime() - start);
+
+		try {
+			if (closed) {
+				throw new SQLException("Connection pool is shut down");
+			}
+			PooledEntry entry = takeIdle();
+			if (entry == null) {
+				entry = create();
+			}
+			active.incrementAndGet();
+			borrowCount.incrementAndGet();
+			Connection conn = (Connection) Proxy.newProxyInstance(ConnectionPool.class.getClassLoader(),
+					new Class<?>[] { Connection.class }, new PooledConnectionHandler(this, entry));
+			acquireTime.recordSince(start);
+			return conn;
+		} catch (SQLException | RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Open a connection outside the pool, for a session that must not be
+	 * reused once closed.
+	 */
+	public Connection openUnpooled() throws SQLException {
+		return DriverManager.getConnection(url, user, password);
+	}
+
+	/**
+	 * Give a borrowed connection back, called by the connection proxy.
+	 */
+	void release(PooledEntry entry) {
+		active.decrementAndGet();
+		if (closed) {
+			destroy(entry);
+			permits.release();
+			return;
+		}
+		try {
+			if (entry.statements != null) {
+				entry.statements.giveBackAll();
+			}
+			Connection conn = entry.connection;
+			if (!conn.getAutoCommit()) {
+				conn.rollback();
+				conn.setAutoCommit(true);
+			}
+			entry.lastUsed = System.currentTimeMillis();
+			idle.offerFirst(entry);
+			if (closed && idle.remove(entry)) {
+				// shut down while the connection was being reset
+				destroy(entry);
+			}
+		} catch (SQLException e) {
+			LOGGER.warn("release(): discarding connection which failed to reset", e);
+			destroy(entry);
+		} finally {
+			permits.release();
+		}
+	}
+
+	/**
+	 * Close all idle connections and stop the evictor. Borrowed connections
+	 * are closed as they are returned.
+	 */
+	public void shutdown() {
+		closed = true;
+		evictor.shutdownNow();
+		PooledEntry entry;
+		while ((entry = idle.pollFirst()) != null) {
+			destroy(entry);
+		}
+	}
+
+	private PooledEntry takeIdle() {
+		PooledEntry entry;
+		while ((entry = idle.pollFirst()) != null) {
+			if (isUsable(entry)) {
+				return entry;
+			}
+			destroy(entry);
+		}
+		return null;
+	}
+
+	private boolean isUsable(PooledEntry entry) {
+		if (validationTimeoutSec <= 0 || System.currentTimeMillis() - entry.lastUsed < validationIntervalMs) {
+			return true;
+		}
+		try {
+			return entry.connection.isValid(validationTimeoutSec);
+		} catch (SQLException e) {
+			return false;
+		}
+	}
+
+	private PooledEntry create() throws SQLException {
+		Connection conn = DriverManager.getConnection(url, user, password);
+		total.incrementAndGet();
+		createdCount.incrementAndGet();
+		return new PooledEntry(conn, statementCacheSize > 0 ? new StatementCache(statementCacheSize) : null);
+	}
+
+	void destroy(PooledEntry entry) {
+		total.decrementAndGet();
+		destroyedCount.incrementAndGet();
+		entry.close();
+	}
+
+	private void evictIdle() {
+		final long now = System.currentTimeMillis();
+		// oldest idle connections sit at the tail
+		Iterator<PooledEntry> it = idle.descendingIterator();
+		while (it.hasNext() && total.get() > minSize) {
+			PooledEntry entry = it.next();
+			if (now - entry.lastUsed < idleTimeoutMs) {
+				break;
+			}
+			if (idle.removeLastOccurrence(entry)) {
+				if (LOGGER.isDebugEnabled())
+					LOGGER.debug("evictIdle(): closing connection idle for " + (now - entry.lastUsed) + "ms");
+				destroy(entry);
+			}
+		}
+	}
+
+	void statementCacheHit() {
+		statementCacheHits.incrementAndGet();
+	}
+
+	void statementCacheMiss() {
+		statementCacheMisses.incrementAndGet();
+	}
+
+	private void recordWait(long nanos) {
+		totalWaitNanos.addAndGet(nanos);
+		long max;
+		while (nanos > (max = maxWaitNanos.get()) && !maxWaitNanos.compareAndSet(max, nanos)) {
+			// retry until max wait is updated
+		}
+	}
+
+	public int getMinSize() {
+		return minSize;
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * @return number of connections currently borrowed
+	 */
+	public int getActiveCount() {
+		return active.get();
+	}
+
+	/**
+	 * @return number of connections sitting idle in the pool
+	 */
+	public int getIdleCount() {
+		return idle.size();
+	}
+
+	/**
+	 * @return number of open physical connections
+	 */
+	public int getTotalCount() {
+		return total.get();
+	}
+
+	/**
+	 * @return number of callers currently waiting for a connection
+	 */
+	public int getWaitingCount() {
+		return permits.getQueueLength();
+	}
+
+	public long getBorrowCount() {
+		return borrowCount.get();
+	}
+
+	public long getTimeoutCount() {
+		return timeoutCount.get();
+	}
+
+	public long getCreatedCount() {
+		return createdCount.get();
+	}
+
+	public long getDestroyedCount() {
+		return destroyedCount.get();
+	}
+
+	/**
+	 * @return accumulated time callers spent waiting for a connection
+	 */
+	public long getTotalWaitNanos() {
+		return totalWaitNanos.get();
+	}
+
+	public long getMaxWaitNanos() {
+		return maxWaitNanos.get();
+	}
+
+	/**
+	 * @return time taken by successful {@link #getConnection()} calls,
+	 *         including opening a new connection
+	 */
+	public Histogram getAcquireTime() {
+		return acquireTime;
+	}
+
+	/**
+	 * @return prepared statements served from a connection's statement cache
+	 */
+	public long getStatementCacheHits() {
+		return statementCacheHits.get();
+	}
+
+	/**
+	 * @return prepared statements which had to be parsed by the database
+	 */
+	public long getStatementCacheMisses() {
+		return statementCacheMisses.get();
+	}
+
+	@Override
+	public String toString() {
+		return "ConnectionPool{" + "active=" + getActiveCount() + ", idle=" + getIdleCount() + ", total="
+				+ getTotalCount() + ", waiting=" + getWaitingCount() + ", borrowed=" + getBorrowCount()
+				+ ", timeouts=" + getTimeoutCount() + ", maxWaitMs=" + TimeUnit.NANOSECONDS.toMillis(getMaxWaitNanos())
+				+ '}';
+	}
+
+	/**
+	 * Physical connection owned by the pool.
+	 */
+	static class PooledEntry {
+		final Connection connection;
+		final StatementCache statements;
+		volatile long lastUsed = System.currentTimeMillis();
+
+		PooledEntry(Connection connection, StatementCache statements) {
+			this.connection = connection;
+			this.statements = statements;
+		}
+
+		void close() {
+			if (statements != null) {
+				statements.closeAll();
+			}
+			DbUtils.closeQuietly(connection);
+		}
+	}
+}
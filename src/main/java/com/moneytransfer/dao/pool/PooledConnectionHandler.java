@@ -0,0 +1,95 @@
+package com.moneytransfer.dao.pool;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+/**
+ * Invocation handler behind the connection proxies handed out by
+ * {@link ConnectionPool}. Every borrow gets its own handler, so closing a
+ * connection twice, or using it after close, never touches a physical
+ * connection that has since been lent to someone else.
+ * <p>
+ * {@code prepareStatement(sql)} and {@code prepareStatement(sql, autoGeneratedKeys)}
+ * are served from the connection's {@link StatementCache} when it is enabled.
+ */
+class PooledConnectionHandler implements InvocationHandler {
+
+	private final ConnectionPool pool;
+	private final ConnectionPool.PooledEntry entry;
+	private volatile boolean closed;
+
+	PooledConnectionHandler(ConnectionPool pool, ConnectionPool.PooledEntry entry) {
+		this.pool = pool;
+		this.entry = entry;
+	}
+
+	@Override
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+		final String name = method.getName();
+		if ("close".equals(name)) {
+			if (!closed) {
+				closed = true;
+				pool.release(entry);
+			}
+			return null;
+		}
+		if ("isClosed".equals(name)) {
+			return closed || entry.connection.isClosed();
+		}
+		if ("equals".equals(name)) {
+			return proxy == args[0];
+		}
+		if ("hashCode".equals(name)) {
+			return System.identityHashCode(proxy);
+		}
+		if ("toString".equals(name)) {
+			return "PooledConnection[" + entry.connection + "]";
+		}
+		if (closed) {
+			throw new SQLException("Connection is closed");
+		}
+		if ("prepareStatement".equals(name) && entry.statements != null) {
+			PreparedStatement cached = prepareCached(proxy, method, args);
+			if (cached != null) {
+				return cached;
+			}
+		}
+		try {
+			return method.invoke(entry.connection, args);
+		} catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+
+	private PreparedStatement prepareCached(Object proxy, final Method method, final Object[] args)
+			throws SQLException {
+		final Class<?>[] types = method.getParameterTypes();
+		final String key;
+		if (types.length == 1) {
+			key = (String) args[0];
+		} else if (types.length == 2 && types[1] == int.class) {
+			key = args[0] + "#" + args[1];
+		} else {
+			return null;
+		}
+		return entry.statements.lend(key, (Connection) proxy, new StatementCache.StatementFactory() {
+			@Override
+			public PreparedStatement prepare() throws SQLException {
+				try {
+					return (PreparedStatement) method.invoke(entry.connection, args);
+				} catch (InvocationTargetException e) {
+					if (e.getCause() instanceof SQLException) {
+						throw (SQLException) e.getCause();
+					}
+					throw new SQLException(e.getCause());
+				} catch (IllegalAccessException e) {
+					throw new SQLException(e);
+				}
+			}
+		}, pool);
+	}
+}
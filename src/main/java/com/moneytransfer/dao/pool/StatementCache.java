@@ -0,0 +1,193 @@
+package com.moneytransfer.dao.pool;
+
+import org.apache.commons.dbutils.DbUtils;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * LRU cache of prepared statements for one physical connection, keyed by SQL
+ * text.
+ * <p>
+ * A cached statement is lent to one caller at a time through a proxy whose
+ * {@link PreparedStatement#close()} clears the parameters instead of closing
+ * the statement. If the statement for a SQL text is already lent out (e.g. the
+ * same query is open twice) an uncached statement is prepared instead. All
+ * statements are given back when the connection returns to the pool.
+ */
+class StatementCache {
+
+	private final int maxSize;
+	private final LinkedHashMap<String, CachedStatement> statements = new LinkedHashMap<String, CachedStatement>(16,
+			0.75f, true);
+	// evicted while lent out, closed once handed back
+	private final List<CachedStatement> retired = new ArrayList<CachedStatement>();
+
+	StatementCache(int maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * @return cached statement proxy, or null if the statement is already lent
+	 *         out and the caller should prepare an uncached one
+	 */
+	synchronized PreparedStatement lend(String key, Connection owner, StatementFactory factory,
+			ConnectionPool pool) throws SQLException {
+		CachedStatement cached = statements.get(key);
+		if (cached == null) {
+			pool.statementCacheMiss();
+			cached = new CachedStatement(factory.prepare());
+			statements.put(key, cached);
+			evictOverflow();
+		} else if (cached.holder != null) {
+			return null;
+		} else {
+			pool.statementCacheHit();
+		}
+		CachedStatementHandler handler = new CachedStatementHandler(this, cached, owner);
+		cached.holder = handler;
+		return (PreparedStatement) Proxy.newProxyInstance(StatementCache.class.getClassLoader(),
+				new Class<?>[] { PreparedStatement.class }, handler);
+	}
+
+	synchronized void giveBack(CachedStatement cached, CachedStatementHandler handler) {
+		// a stale handle from an earlier borrower must not release a statement
+		// that has been lent out again
+		if (cached.holder != handler) {
+			return;
+		}
+		cached.holder = null;
+		if (retired.remove(cached)) {
+			DbUtils.closeQuietly(cached.statement);
+			return;
+		}
+		try {
+			cached.statement.clearParameters();
+			cached.statement.clearBatch();
+		} catch (SQLException e) {
+			statements.values().remove(cached);
+			DbUtils.closeQuietly(cached.statement);
+		}
+	}
+
+	/**
+	 * Take back every statement, called when the connection returns to the pool.
+	 */
+	synchronized void giveBackAll() {
+		for (CachedStatement cached : new ArrayList<CachedStatement>(statements.values())) {
+			if (cached.holder != null) {
+				giveBack(cached, cached.holder);
+			}
+		}
+		for (CachedStatement cached : retired) {
+			cached.holder = null;
+			DbUtils.closeQuietly(cached.statement);
+		}
+		retired.clear();
+	}
+
+	synchronized void closeAll() {
+		for (CachedStatement cached : statements.values()) {
+			DbUtils.closeQuietly(cached.statement);
+		}
+		statements.clear();
+		for (CachedStatement cached : retired) {
+			DbUtils.closeQuietly(cached.statement);
+		}
+		retired.clear();
+	}
+
+	synchronized int size() {
+		return statements.size();
+	}
+
+	private void evictOverflow() {
+		Iterator<Map.Entry<String, CachedStatement>> it = statements.entrySet().iterator();
+		while (statements.size() > maxSize && it.hasNext()) {
+			CachedStatement eldest = it.next().getValue();
+			it.remove();
+			if (eldest.holder == null) {
+				DbUtils.closeQuietly(eldest.statement);
+			} else {
+				retired.add(eldest);
+			}
+		}
+	}
+
+	/**
+	 * Prepares the physical statement on a cache miss.
+	 */
+	interface StatementFactory {
+		PreparedStatement prepare() throws SQLException;
+	}
+
+	static class CachedStatement {
+		final PreparedStatement statement;
+		CachedStatementHandler holder;
+
+		CachedStatement(PreparedStatement statement) {
+			this.statement = statement;
+		}
+	}
+
+	/**
+	 * Handle given to one caller for one use of a cached statement.
+	 */
+	static class CachedStatementHandler implements InvocationHandler {
+		private final StatementCache cache;
+		private final CachedStatement cached;
+		private final Connection owner;
+		private volatile boolean closed;
+
+		CachedStatementHandler(StatementCache cache, CachedStatement cached, Connection owner) {
+			this.cache = cache;
+			this.cached = cached;
+			this.owner = owner;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			final String name = method.getName();
+			if ("close".equals(name)) {
+				if (!closed) {
+					closed = true;
+					cache.giveBack(cached, this);
+				}
+				return null;
+			}
+			if ("isClosed".equals(name)) {
+				return closed || cached.statement.isClosed();
+			}
+			if ("getConnection".equals(name)) {
+				return owner;
+			}
+			if ("equals".equals(name)) {
+				return proxy == args[0];
+			}
+			if ("hashCode".equals(name)) {
+				return System.identityHashCode(proxy);
+			}
+			if ("toString".equals(name)) {
+				return "CachedStatement[" + cached.statement + "]";
+			}
+			if (closed) {
+				throw new SQLException("Statement is closed");
+			}
+			try {
+				return method.invoke(cached.statement, args);
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+		}
+	}
+}
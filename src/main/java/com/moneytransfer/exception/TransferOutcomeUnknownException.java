@@ -0,0 +1,31 @@
+package com.moneytransfer.exception;
+
+import java.util.concurrent.CompletableFuture;
+
+import com.moneytransfer.model.TransactionResult;
+
+/**
+ * A transfer whose outcome is not known when its caller stops waiting: it is
+ * being applied and may still commit. It must not be reported as failed, its
+ * outcome completes later.
+ */
+public class TransferOutcomeUnknownException extends MoneyTransferException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final transient CompletableFuture<TransactionResult> outcome;
+
+	public TransferOutcomeUnknownException(String msg, CompletableFuture<TransactionResult> outcome) {
+		super(msg);
+		this.outcome = outcome;
+	}
+
+	/**
+	 * @return future completed with the result of the transfer once it is
+	 *         applied or rolled back, null if it is settled out of sight of
+	 *         the caller
+	 */
+	public CompletableFuture<TransactionResult> getOutcome() {
+		return outcome;
+	}
+}
@@ -0,0 +1,14 @@
+package com.moneytransfer.exception;
+
+/**
+ * A transfer refused by the checks made before anything is written, e.g. for
+ * lack of funds. Nothing was applied and a retry gets the same answer.
+ */
+public class TransferRejectedException extends MoneyTransferException {
+
+	private static final long serialVersionUID = 1L;
+
+	public TransferRejectedException(String msg) {
+		super(msg);
+	}
+}
@@ -0,0 +1,23 @@
+package com.moneytransfer.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Monotonic counter, striped so that concurrent increments do not contend.
+ */
+public final class Counter {
+
+	private final LongAdder count = new LongAdder();
+
+	public void increment() {
+		count.increment();
+	}
+
+	public void add(long value) {
+		count.add(value);
+	}
+
+	public long get() {
+		return count.sum();
+	}
+}
@@ -0,0 +1,114 @@
+package com.moneytransfer.metrics;
+
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histogram with fixed buckets from 50us to 10s.
+ * <p>
+ * Recording is lock free: the bucket is found by a scan over the bounds and
+ * its striped counter is incremented. Bucket counts are exported as cumulative
+ * Prometheus buckets, so percentiles are computed on the server with
+ * {@code histogram_quantile}.
+ */
+public final class Histogram {
+
+	// upper bounds of the buckets, the last bucket has no upper bound (+Inf)
+	static final long[] BOUNDS_NANOS = { micros(50), micros(100), micros(250), micros(500), micros(1000),
+			micros(2500), micros(5000), micros(10000), micros(25000), micros(50000), micros(100000), micros(250000),
+			micros(500000), micros(1000000), micros(2500000), micros(5000000), micros(10000000) };
+
+	// bucket bounds as Prometheus "le" label values, in seconds
+	static final String[] BOUNDS_LABELS = new String[BOUNDS_NANOS.length];
+
+	static {
+		for (int i = 0; i < BOUNDS_NANOS.length; i++) {
+			BOUNDS_LABELS[i] = BigDecimal.valueOf(BOUNDS_NANOS[i], 9).stripTrailingZeros().toPlainString();
+		}
+	}
+
+	private final LongAdder[] buckets = new LongAdder[BOUNDS_NANOS.length + 1];
+	private final LongAdder sumNanos = new LongAdder();
+
+	public Histogram() {
+		for (int i = 0; i < buckets.length; i++) {
+			buckets[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * @param nanos duration to record, e.g. the difference of two
+	 *            {@link System#nanoTime()} calls
+	 */
+	public void record(long nanos) {
+		int i = 0;
+		while (i < BOUNDS_NANOS.length && nanos > BOUNDS_NANOS[i]) {
+			i++;
+		}
+		buckets[i].increment();
+		sumNanos.add(nanos);
+	}
+
+	/**
+	 * Record the time elapsed since start.
+	 *
+	 * @param startNanos value of {@link System#nanoTime()} at the start
+	 */
+	public void recordSince(long startNanos) {
+		record(System.nanoTime() - startNanos);
+	}
+
+	/**
+	 * @return count per bucket, not cumulative; the last entry is the +Inf
+	 *         bucket
+	 */
+	public long[] getBucketCounts() {
+		long[] counts = new long[buckets.length];
+		for (int i = 0; i < buckets.length; i++) {
+			counts[i] = buckets[i].sum();
+		}
+		return counts;
+	}
+
+	public long getCount() {
+		long count = 0;
+		for (LongAdder bucket : buckets) {
+			count += bucket.sum();
+		}
+		return count;
+	}
+
+	public long getSumNanos() {
+		return sumNanos.sum();
+	}
+
+	/**
+	 * @return upper bound of the bucket holding the percentile in
+	 *         nanoseconds, {@link Long#MAX_VALUE} if it falls in the +Inf
+	 *         bucket and 0 if nothing was recorded
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long[] counts = getBucketCounts();
+		long total = 0;
+		for (long count : counts) {
+			total += count;
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(total * percentile / 100.0);
+		long seen = 0;
+		for (int i = 0; i < BOUNDS_NANOS.length; i++) {
+			seen += counts[i];
+			if (seen >= rank) {
+				return BOUNDS_NANOS[i];
+			}
+		}
+		return Long.MAX_VALUE;
+	}
+
+	private static long micros(long micros) {
+		return TimeUnit.MICROSECONDS.toNanos(micros);
+	}
+}
@@ -0,0 +1,202 @@
+package com.moneytransfer.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+
+import com.moneytransfer.utils.PropsUitl;
+
+/**
+ * Process wide metrics, exported in the Prometheus text format.
+ * <p>
+ * Metrics are grouped in families sharing a name, help text and type, one
+ * series per set of labels. Labels are given as name / value pairs. Lookups go
+ * through a map, so callers on a hot path keep the returned {@link Counter} or
+ * {@link Histogram} in a field instead of looking it up on every call.
+ */
+public enum MetricsRegistry {
+
+	INSTANCE;
+
+	/**
+	 * When false, DAO calls and resource methods are not timed. Gauges and
+	 * pool / lock timings are still collected.
+	 */
+	public static final boolean ENABLED = Boolean.parseBoolean(PropsUitl.getStringProperty("metrics_enabled", "true"));
+
+	private static final String COUNTER = "counter";
+	private static final String GAUGE = "gauge";
+	private static final String HISTOGRAM = "histogram";
+
+	private final ConcurrentMap<String, Family> families = new ConcurrentSkipListMap<String, Family>();
+
+	/**
+	 * @return counter for the labels, created on first use
+	 */
+	public Counter counter(String name, String help, String... labels) {
+		return (Counter) family(name, help, COUNTER).series(labels, Counter.class);
+	}
+
+	/**
+	 * @return histogram for the labels, created on first use
+	 */
+	public Histogram histogram(String name, String help, String... labels) {
+		return (Histogram) family(name, help, HISTOGRAM).series(labels, Histogram.class);
+	}
+
+	/**
+	 * Register a histogram owned by another component, e.g. the connection
+	 * pool, replacing any histogram registered with the same labels.
+	 */
+	public void register(String name, String help, Histogram histogram, String... labels) {
+		family(name, help, HISTOGRAM).put(labels, histogram);
+	}
+
+	/**
+	 * Register a gauge read when metrics are scraped, replacing any gauge
+	 * registered with the same labels.
+	 */
+	public void gauge(String name, String help, DoubleSupplier value, String... labels) {
+		family(name, help, GAUGE).put(labels, value);
+	}
+
+	/**
+	 * Register a counter maintained by another component and read when
+	 * metrics are scraped, e.g. the cache hit count.
+	 */
+	public void functionCounter(String name, String help, LongSupplier value, String... labels) {
+		family(name, help, COUNTER).put(labels, value);
+	}
+
+	/**
+	 * @return all metrics in the Prometheus text exposition format 0.0.4
+	 */
+	public String scrape() {
+		StringBuilder out = new StringBuilder(4096);
+		for (Family family : families.values()) {
+			family.write(out);
+		}
+		return out.toString();
+	}
+
+	private Family family(String name, String help, String type) {
+		Family family = families.get(name);
+		if (family == null) {
+			Family created = new Family(name, help, type);
+			family = families.putIfAbsent(name, created);
+			if (family == null) {
+				family = created;
+			}
+		}
+		if (!family.type.equals(type)) {
+			throw new IllegalArgumentException("Metric " + name + " is already registered as a " + family.type);
+		}
+		return family;
+	}
+
+	/**
+	 * @return labels formatted as {@code {name="value",...}}, empty if there
+	 *         are none
+	 */
+	static String labelText(String... labels) {
+		if (labels.length % 2 != 0) {
+			throw new IllegalArgumentException("Labels must be name / value pairs");
+		}
+		if (labels.length == 0) {
+			return "";
+		}
+		StringBuilder text = new StringBuilder("{");
+		for (int i = 0; i < labels.length; i += 2) {
+			if (i > 0) {
+				text.append(',');
+			}
+			text.append(labels[i]).append("=\"");
+			String value = labels[i + 1];
+			for (int c = 0; c < value.length(); c++) {
+				char ch = value.charAt(c);
+				if (ch == '\\' || ch == '"') {
+					text.append('\\').append(ch);
+				} else if (ch == '\n') {
+					text.append("\\n");
+				} else {
+					text.append(ch);
+				}
+			}
+			text.append('"');
+		}
+		return text.append('}').toString();
+	}
+
+	private static final class Family {
+		final String name;
+		final String help;
+		final String type;
+		// label text -> Counter, Histogram, DoubleSupplier or LongSupplier
+		final ConcurrentMap<String, Object> series = new ConcurrentSkipListMap<String, Object>();
+
+		Family(String name, String help, String type) {
+			this.name = name;
+			this.help = help;
+			this.type = type;
+		}
+
+		Object series(String[] labels, Class<?> metricClass) {
+			String key = labelText(labels);
+			Object metric = series.get(key);
+			if (metric == null) {
+				Object created = metricClass == Counter.class ? new Counter() : new Histogram();
+				metric = series.putIfAbsent(key, created);
+				if (metric == null) {
+					metric = created;
+				}
+			}
+			if (!metricClass.isInstance(metric)) {
+				throw new IllegalArgumentException("Metric " + name + key + " is not a " + metricClass.getSimpleName());
+			}
+			return metric;
+		}
+
+		void put(String[] labels, Object metric) {
+			series.put(labelText(labels), metric);
+		}
+
+		void write(StringBuilder out) {
+			out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+			out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+			for (Map.Entry<String, Object> entry : series.entrySet()) {
+				String labels = entry.getKey();
+				Object metric = entry.getValue();
+				if (metric instanceof Histogram) {
+					writeHistogram(out, labels, (Histogram) metric);
+				} else if (metric instanceof Counter) {
+					out.append(name).append(labels).append(' ').append(((Counter) metric).get()).append('\n');
+				} else if (metric instanceof LongSupplier) {
+					out.append(name).append(labels).append(' ').append(((LongSupplier) metric).getAsLong())
+							.append('\n');
+				} else {
+					out.append(name).append(labels).append(' ').append(((DoubleSupplier) metric).getAsDouble())
+							.append('\n');
+				}
+			}
+		}
+
+		private void writeHistogram(StringBuilder out, String labels, Histogram histogram) {
+			long[] counts = histogram.getBucketCounts();
+			// "le" goes last, inside the braces of the other labels
+			String prefix = labels.isEmpty() ? "{" : labels.substring(0, labels.length() - 1) + ",";
+			long cumulative = 0;
+			for (int i = 0; i < Histogram.BOUNDS_LABELS.length; i++) {
+				cumulative += counts[i];
+				out.append(name).append("_bucket").append(prefix).append("le=\"").append(Histogram.BOUNDS_LABELS[i])
+						.append("\"} ").append(cumulative).append('\n');
+			}
+			cumulative += counts[counts.length - 1];
+			out.append(name).append("_bucket").append(prefix).append("le=\"+Inf\"} ").append(cumulative).append('\n');
+			out.append(name).append("_sum").append(labels).append(' ').append(histogram.getSumNanos() / 1e9)
+					.append('\n');
+			out.append(name).append("_count").append(labels).append(' ').append(cumulative).append('\n');
+		}
+	}
+}
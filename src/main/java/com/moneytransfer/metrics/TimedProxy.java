@@ -0,0 +1,73 @@
+package com.moneytransfer.metrics;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Times every method of an interface, e.g. a DAO, with one histogram and one
+ * error counter per method. The metrics are looked up once, when the proxy is
+ * created.
+ */
+public final class TimedProxy implements InvocationHandler {
+
+	private static final String DURATION = "moneytransfer_dao_call_seconds";
+	private static final String ERRORS = "moneytransfer_dao_call_errors_total";
+
+	private final Object target;
+	private final Map<Method, Histogram> durations = new HashMap<Method, Histogram>();
+	private final Map<Method, Counter> errors = new HashMap<Method, Counter>();
+
+	private TimedProxy(Class<?> type, Object target, String dao) {
+		this.target = target;
+		for (Method method : type.getMethods()) {
+			durations.put(method, MetricsRegistry.INSTANCE.histogram(DURATION, "DAO method call duration", "dao", dao,
+					"method", method.getName()));
+			errors.put(method, MetricsRegistry.INSTANCE.counter(ERRORS, "DAO method calls ending with an exception",
+					"dao", dao, "method", method.getName()));
+		}
+	}
+
+	/**
+	 * @param type interface to time
+	 * @param target implementation the calls are forwarded to
+	 * @param dao value of the {@code dao} label
+	 * @return timed proxy, or target itself when metrics are disabled
+	 */
+	public static <T> T wrap(Class<T> type, T target, String dao) {
+		if (!MetricsRegistry.ENABLED) {
+			return target;
+		}
+		return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type },
+				new TimedProxy(type, target, dao)));
+	}
+
+	@Override
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+		Histogram duration = durations.get(method);
+		if (duration == null) {
+			// Object methods such as toString
+			return invokeTarget(method, args);
+		}
+		long start = System.nanoTime();
+		try {
+			return invokeTarget(method, args);
+		} catch (Throwable t) {
+			errors.get(method).increment();
+			throw t;
+		} finally {
+			duration.recordSince(start);
+		}
+	}
+
+	private Object invokeTarget(Method method, Object[] args) throws Throwable {
+		try {
+			return method.invoke(target, args);
+		} catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+}
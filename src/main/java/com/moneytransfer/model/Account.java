@@ -1,8 +1,8 @@
 package com.moneytransfer.model;
 
 import java.math.BigDecimal;
-import java.util.concurrent.atomic.AtomicReference;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
 public class Account {
@@ -13,8 +13,8 @@ public class Account {
     @JsonProperty(required = true)
     private String userName;
 
-    @JsonProperty(required = true)
-    private AtomicReference<BigDecimal> balance;
+    // balance in Money minor units, exposed as a BigDecimal in JSON
+    private long balance;
 
     @JsonProperty(required = true)
     private String currencyCode;
@@ -23,17 +23,20 @@ public class Account {
     }
 
     public Account(String userName, BigDecimal balance, String currencyCode) {
-    	this.balance = new AtomicReference<>();
-    	this.balance.set(balance);
         this.userName = userName;
+        this.balance = balance == null ? Money.ZERO : Money.toUnits(balance);
         this.currencyCode = currencyCode;
     }
 
     public Account(long accountId, String userName, BigDecimal balance, String currencyCode) {
-    	this.balance = new AtomicReference<>();
+        this(userName, balance, currencyCode);
+        this.accountId = accountId;
+    }
+
+    public Account(long accountId, String userName, long balanceUnits, String currencyCode) {
         this.accountId = accountId;
         this.userName = userName;
-        this.balance.set(balance);
+        this.balance = balanceUnits;
         this.currencyCode = currencyCode;
     }
 
@@ -45,8 +48,22 @@ public class Account {
         return userName;
     }
 
+    @JsonProperty("balance")
     public BigDecimal getBalance() {
-        return balance.get();
+        return Money.toBigDecimal(balance);
+    }
+
+    @JsonProperty(value = "balance", required = true)
+    void setBalance(BigDecimal balance) {
+        this.balance = balance == null ? Money.ZERO : Money.toUnits(balance);
+    }
+
+    /**
+     * @return balance in {@link Money} minor units
+     */
+    @JsonIgnore
+    public long getBalanceUnits() {
+        return balance;
     }
 
     public String getCurrencyCode() {
@@ -62,7 +79,7 @@ public class Account {
 
         if (accountId != account.accountId) return false;
         if (!userName.equals(account.userName)) return false;
-        if (!balance.equals(account.balance)) return false;
+        if (balance != account.balance) return false;
         return currencyCode.equals(account.currencyCode);
 
     }
@@ -71,7 +88,7 @@ public class Account {
     public int hashCode() {
         int result = (int) (accountId ^ (accountId >>> 32));
         result = 31 * result + userName.hashCode();
-        result = 31 * result + balance.hashCode();
+        result = 31 * result + (int) (balance ^ (balance >>> 32));
         result = 31 * result + currencyCode.hashCode();
         return result;
     }
@@ -81,7 +98,7 @@ public class Account {
         return "Account{" +
                 "accountId=" + accountId +
                 ", userName='" + userName + '\'' +
-                ", balance=" + balance +
+                ", balance=" + getBalance() +
                 ", currencyCode='" + currencyCode + '\'' +
                 '}';
     }
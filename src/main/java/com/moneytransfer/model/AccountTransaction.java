@@ -0,0 +1,133 @@
+package com.moneytransfer.model;
+
+import java.math.BigDecimal;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * One side of a completed transfer, as seen from one account: a debit of the
+ * source account or a credit of the destination.
+ */
+public class AccountTransaction {
+
+	@JsonProperty
+	private long txnId;
+
+	@JsonProperty
+	private long accountId;
+
+	@JsonProperty
+	private long counterpartyAccountId;
+
+	// signed amount in Money minor units, negative for a debit
+	private long amount;
+
+	// balance of the account once the transfer was applied
+	private long balance;
+
+	@JsonProperty
+	private String currencyCode;
+
+	@JsonProperty
+	private long createdAt;
+
+	public AccountTransaction() {
+	}
+
+	public AccountTransaction(long txnId, long accountId, long counterpartyAccountId, long amountUnits,
+			long balanceUnits, String currencyCode, long createdAt) {
+		this.txnId = txnId;
+		this.accountId = accountId;
+		this.counterpartyAccountId = counterpartyAccountId;
+		this.amount = amountUnits;
+		this.balance = balanceUnits;
+		this.currencyCode = currencyCode;
+		this.createdAt = createdAt;
+	}
+
+	/**
+	 * @return id of the history row, increasing in the order rows are written
+	 */
+	public long getTxnId() {
+		return txnId;
+	}
+
+	public long getAccountId() {
+		return accountId;
+	}
+
+	public long getCounterpartyAccountId() {
+		return counterpartyAccountId;
+	}
+
+	@JsonProperty("amount")
+	public BigDecimal getAmount() {
+		return Money.toBigDecimal(amount);
+	}
+
+	@JsonProperty("amount")
+	void setAmount(BigDecimal amount) {
+		this.amount = Money.toUnits(amount);
+	}
+
+	@JsonProperty("balance")
+	public BigDecimal getBalance() {
+		return Money.toBigDecimal(balance);
+	}
+
+	@JsonProperty("balance")
+	void setBalance(BigDecimal balance) {
+		this.balance = Money.toUnits(balance);
+	}
+
+	public String getCurrencyCode() {
+		return currencyCode;
+	}
+
+	/**
+	 * @return time the transfer was applied, in milliseconds since the epoch
+	 */
+	public long getCreatedAt() {
+		return createdAt;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o)
+			return true;
+		if (o == null || getClass() != o.getClass())
+			return false;
+
+		AccountTransaction that = (AccountTransaction) o;
+
+		if (txnId != that.txnId)
+			return false;
+		if (accountId != that.accountId)
+			return false;
+		if (counterpartyAccountId != that.counterpartyAccountId)
+			return false;
+		if (amount != that.amount)
+			return false;
+		if (balance != that.balance)
+			return false;
+		if (createdAt != that.createdAt)
+			return false;
+		return currencyCode != null ? currencyCode.equals(that.currencyCode) : that.currencyCode == null;
+	}
+
+	@Override
+	public int hashCode() {
+		int result = (int) (txnId ^ (txnId >>> 32));
+		result = 31 * result + (int) (accountId ^ (accountId >>> 32));
+		result = 31 * result + (int) (amount ^ (amount >>> 32));
+		return result;
+	}
+
+	@Override
+	public String toString() {
+		return "AccountTransaction{" + "txnId=" + txnId + ", accountId=" + accountId + ", counterpartyAccountId="
+				+ counterpartyAccountId + ", amount=" + getAmount() + ", balance=" + getBalance() + ", currencyCode='"
+				+ currencyCode + '\'' + ", createdAt=" + createdAt + '}';
+	}
+
+}
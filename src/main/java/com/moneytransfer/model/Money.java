@@ -0,0 +1,77 @@
+package com.moneytransfer.model;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+import com.moneytransfer.exception.MoneyTransferException;
+
+/**
+ * Fixed point money amounts.
+ * <p>
+ * Amounts are held as a {@code long} count of minor units at scale 4 (1.5 is
+ * 15000), so balance arithmetic does not allocate. Conversion to and from
+ * {@link BigDecimal} is only done where amounts enter or leave the service, in
+ * JSON bodies, path parameters and JDBC columns.
+ */
+public final class Money {
+
+	public static final int SCALE = 4;
+
+	public static final long ZERO = 0L;
+
+	private Money() {
+	}
+
+	/**
+	 * @return the amount in minor units, rounded half even to scale 4
+	 * @throws ArithmeticException
+	 *             if the amount does not fit in a long
+	 */
+	public static long toUnits(BigDecimal amount) {
+		return amount.setScale(SCALE, RoundingMode.HALF_EVEN).unscaledValue().longValueExact();
+	}
+
+	/**
+	 * Same as {@link #toUnits(BigDecimal)} for amounts coming from a request.
+	 *
+	 * @throws MoneyTransferException
+	 *             if the amount does not fit in a long
+	 */
+	public static long toUnitsChecked(BigDecimal amount) throws MoneyTransferException {
+		try {
+			return toUnits(amount);
+		} catch (ArithmeticException e) {
+			throw new MoneyTransferException("Amount out of range: " + amount, e);
+		}
+	}
+
+	public static BigDecimal toBigDecimal(long units) {
+		return BigDecimal.valueOf(units, SCALE);
+	}
+
+	/**
+	 * @throws MoneyTransferException
+	 *             if the sum overflows
+	 */
+	public static long add(long units, long otherUnits) throws MoneyTransferException {
+		try {
+			return Math.addExact(units, otherUnits);
+		} catch (ArithmeticException e) {
+			throw new MoneyTransferException("Amount out of range: " + toBigDecimal(units) + " + "
+					+ toBigDecimal(otherUnits), e);
+		}
+	}
+
+	/**
+	 * @throws MoneyTransferException
+	 *             if the difference overflows
+	 */
+	public static long subtract(long units, long otherUnits) throws MoneyTransferException {
+		try {
+			return Math.subtractExact(units, otherUnits);
+		} catch (ArithmeticException e) {
+			throw new MoneyTransferException("Amount out of range: " + toBigDecimal(units) + " - "
+					+ toBigDecimal(otherUnits), e);
+		}
+	}
+}
@@ -1,5 +1,6 @@
 package com.moneytransfer.model;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
 import java.math.BigDecimal;
@@ -9,8 +10,8 @@ public class Transaction {
 	@JsonProperty(required = true)
 	private String currencyCode;
 
-	@JsonProperty(required = true)
-	private BigDecimal amount;
+	// amount in Money minor units, exposed as a BigDecimal in JSON
+	private long amount;
 
 	@JsonProperty(required = true)
 	private Long fromAccountId;
@@ -22,8 +23,12 @@ public class Transaction {
 	}
 
 	public Transaction(String currencyCode, BigDecimal amount, Long fromAccountId, Long toAccountId) {
+		this(currencyCode, Money.toUnits(amount), fromAccountId, toAccountId);
+	}
+
+	public Transaction(String currencyCode, long amountUnits, Long fromAccountId, Long toAccountId) {
 		this.currencyCode = currencyCode;
-		this.amount = amount;
+		this.amount = amountUnits;
 		this.fromAccountId = fromAccountId;
 		this.toAccountId = toAccountId;
 	}
@@ -32,7 +37,21 @@ public class Transaction {
 		return currencyCode;
 	}
 
+	@JsonProperty("amount")
 	public BigDecimal getAmount() {
+		return Money.toBigDecimal(amount);
+	}
+
+	@JsonProperty(value = "amount", required = true)
+	void setAmount(BigDecimal amount) {
+		this.amount = Money.toUnits(amount);
+	}
+
+	/**
+	 * @return amount in {@link Money} minor units
+	 */
+	@JsonIgnore
+	public long getAmountUnits() {
 		return amount;
 	}
 
@@ -55,7 +74,7 @@ public class Transaction {
 
 		if (!currencyCode.equals(that.currencyCode))
 			return false;
-		if (!amount.equals(that.amount))
+		if (amount != that.amount)
 			return false;
 		if (!fromAccountId.equals(that.fromAccountId))
 			return false;
@@ -66,7 +85,7 @@ public class Transaction {
 	@Override
 	public int hashCode() {
 		int result = currencyCode.hashCode();
-		result = 31 * result + amount.hashCode();
+		result = 31 * result + (int) (amount ^ (amount >>> 32));
 		result = 31 * result + fromAccountId.hashCode();
 		result = 31 * result + toAccountId.hashCode();
 		return result;
@@ -74,8 +93,8 @@ public class Transaction {
 
 	@Override
 	public String toString() {
-		return "UserTransaction{" + "currencyCode='" + currencyCode + '\'' + ", amount=" + amount + ", fromAccountId="
-				+ fromAccountId + ", toAccountId=" + toAccountId + '}';
+		return "UserTransaction{" + "currencyCode='" + currencyCode + '\'' + ", amount=" + getAmount()
+				+ ", fromAccountId=" + fromAccountId + ", toAccountId=" + toAccountId + '}';
 	}
 
 }
@@ -0,0 +1,43 @@
+package com.moneytransfer.model;
+
+import java.util.List;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * One page of the transfer history of an account, newest first.
+ */
+public class TransactionPage {
+
+	@JsonProperty(required = true)
+	private List<AccountTransaction> transactions;
+
+	@JsonProperty
+	private Long nextBefore;
+
+	public TransactionPage() {
+	}
+
+	public TransactionPage(List<AccountTransaction> transactions, Long nextBefore) {
+		this.transactions = transactions;
+		this.nextBefore = nextBefore;
+	}
+
+	public List<AccountTransaction> getTransactions() {
+		return transactions;
+	}
+
+	/**
+	 * @return value of the {@code before} parameter that reads the next page,
+	 *         null on the last page
+	 */
+	public Long getNextBefore() {
+		return nextBefore;
+	}
+
+	@Override
+	public String toString() {
+		return "TransactionPage{" + "transactions=" + transactions + ", nextBefore=" + nextBefore + '}';
+	}
+
+}
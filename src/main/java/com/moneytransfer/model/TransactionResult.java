@@ -0,0 +1,81 @@
+package com.moneytransfer.model;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * Outcome of one transfer of a batch.
+ */
+public class TransactionResult {
+
+	@JsonProperty(required = true)
+	private int index;
+
+	@JsonProperty(required = true)
+	private boolean success;
+
+	@JsonProperty
+	private String errorMessage;
+
+	public TransactionResult() {
+	}
+
+	public TransactionResult(int index, boolean success, String errorMessage) {
+		this.index = index;
+		this.success = success;
+		this.errorMessage = errorMessage;
+	}
+
+	public static TransactionResult success(int index) {
+		return new TransactionResult(index, true, null);
+	}
+
+	public static TransactionResult failure(int index, String errorMessage) {
+		return new TransactionResult(index, false, errorMessage);
+	}
+
+	/**
+	 * @return position of the transfer in the submitted batch
+	 */
+	public int getIndex() {
+		return index;
+	}
+
+	public boolean isSuccess() {
+		return success;
+	}
+
+	public String getErrorMessage() {
+		return errorMessage;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o)
+			return true;
+		if (o == null || getClass() != o.getClass())
+			return false;
+
+		TransactionResult that = (TransactionResult) o;
+
+		if (index != that.index)
+			return false;
+		if (success != that.success)
+			return false;
+		return errorMessage != null ? errorMessage.equals(that.errorMessage) : that.errorMessage == null;
+	}
+
+	@Override
+	public int hashCode() {
+		int result = index;
+		result = 31 * result + (success ? 1 : 0);
+		result = 31 * result + (errorMessage != null ? errorMessage.hashCode() : 0);
+		return result;
+	}
+
+	@Override
+	public String toString() {
+		return "TransactionResult{" + "index=" + index + ", success=" + success + ", errorMessage='" + errorMessage
+				+ '\'' + '}';
+	}
+
+}
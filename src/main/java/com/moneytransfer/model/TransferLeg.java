@@ -0,0 +1,91 @@
+package com.moneytransfer.model;
+
+import java.math.BigDecimal;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * One side of a transfer between accounts owned by different cluster nodes:
+ * the debit of the source account or the credit of the destination, reserved
+ * and then committed or aborted on the node owning the account.
+ */
+public class TransferLeg {
+
+	@JsonProperty(required = true)
+	private String transferId;
+
+	@JsonProperty(required = true)
+	private long accountId;
+
+	@JsonProperty(required = true)
+	private long counterpartyAccountId;
+
+	// signed amount in Money minor units, negative for a debit
+	private long amount;
+
+	@JsonProperty(required = true)
+	private String currencyCode;
+
+	public TransferLeg() {
+	}
+
+	public TransferLeg(String transferId, long accountId, long counterpartyAccountId, long amountUnits,
+			String currencyCode) {
+		this.transferId = transferId;
+		this.accountId = accountId;
+		this.counterpartyAccountId = counterpartyAccountId;
+		this.amount = amountUnits;
+		this.currencyCode = currencyCode;
+	}
+
+	/**
+	 * @return id chosen by the coordinating node, shared by both legs
+	 */
+	public String getTransferId() {
+		return transferId;
+	}
+
+	public long getAccountId() {
+		return accountId;
+	}
+
+	public long getCounterpartyAccountId() {
+		return counterpartyAccountId;
+	}
+
+	@JsonProperty("amount")
+	public BigDecimal getAmount() {
+		return Money.toBigDecimal(amount);
+	}
+
+	@JsonProperty(value = "amount", required = true)
+	void setAmount(BigDecimal amount) {
+		this.amount = Money.toUnits(amount);
+	}
+
+	/**
+	 * @return signed amount in {@link Money} minor units
+	 */
+	@JsonIgnore
+	public long getAmountUnits() {
+		return amount;
+	}
+
+	@JsonIgnore
+	public boolean isDebit() {
+		return amount < 0;
+	}
+
+	public String getCurrencyCode() {
+		return currencyCode;
+	}
+
+	@Override
+	public String toString() {
+		return "TransferLeg{" + "transferId='" + transferId + '\'' + ", accountId=" + accountId
+				+ ", counterpartyAccountId=" + counterpartyAccountId + ", amount=" + getAmount() + ", currencyCode='"
+				+ currencyCode + '\'' + '}';
+	}
+
+}
@@ -1,17 +1,25 @@
 package com.moneytransfer.service;
 
+import com.moneytransfer.cluster.Cluster;
 import com.moneytransfer.dao.DAOFactory;
+import com.moneytransfer.dao.RowCallback;
 import com.moneytransfer.exception.MoneyTransferException;
 import com.moneytransfer.model.Account;
-import com.moneytransfer.utils.MoneyTransferUtil;
+import com.moneytransfer.model.AccountTransaction;
+import com.moneytransfer.model.Money;
+import com.moneytransfer.model.TransactionPage;
 
 import org.apache.log4j.Logger;
 
 import javax.ws.rs.*;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.core.UriInfo;
+import java.io.IOException;
 import java.math.BigDecimal;
-import java.math.RoundingMode;
 import java.util.List;
 
 /**
@@ -23,18 +31,55 @@ public class AccountService {
 
 	private final DAOFactory daoFactory = DAOFactory.getDAOFactory();
 
+	// requests for accounts owned by another node are forwarded to it
+	private final Cluster cluster = Cluster.getInstance();
+
+	@Context
+	private UriInfo uriInfo;
+
+	@Context
+	private HttpHeaders headers;
+
 	private static Logger LOGGER = Logger.getLogger(AccountService.class);
 
+	private static final int MAX_PAGE_SIZE = 1000;
+
+	public AccountService() {
+	}
+
 	/**
-	 * Find all accounts
+	 * Service called from another resource, which hands over the context of
+	 * its request.
+	 */
+	AccountService(UriInfo uriInfo, HttpHeaders headers) {
+		this.uriInfo = uriInfo;
+		this.headers = headers;
+	}
+
+	/**
+	 * Find all accounts, streamed in account id order. A large table is read
+	 * in pages by passing the last account id returned as afterId. In cluster
+	 * mode only the accounts owned by this node.
 	 * 
+	 * @param afterId  only accounts with a higher id
+	 * @param limit    maximum number of accounts, 0 for all
+	 * @param currency only accounts in this currency
 	 * @return accounts
-	 * @throws MoneyTransferException
 	 */
 	@GET
 	@Path("/all")
-	public List<Account> getAllAccounts() throws MoneyTransferException {
-		return daoFactory.getAccountDAO().getAllAccounts();
+	public StreamingOutput getAllAccounts(@QueryParam("afterId") @DefaultValue("0") final long afterId,
+			@QueryParam("limit") @DefaultValue("0") int limit, @QueryParam("currency") final String currency) {
+		if (afterId < 0 || limit < 0) {
+			throw new WebApplicationException("Invalid page", Response.Status.BAD_REQUEST);
+		}
+		final int maxRows = limit == 0 ? Integer.MAX_VALUE : limit;
+		return new JsonArrayStream<Account>() {
+			@Override
+			protected void rows(RowCallback<Account> callback) throws MoneyTransferException, IOException {
+				daoFactory.getAccountDAO().streamAccounts(afterId, currency, maxRows, callback);
+			}
+		};
 	}
 
 	/**
@@ -47,6 +92,7 @@ public class AccountService {
 	@GET
 	@Path("/{accountId}")
 	public Account getAccount(@PathParam("accountId") long accountId) throws MoneyTransferException {
+		cluster.forwardIfRemote(accountId, HttpMethod.GET, uriInfo, headers, null);
 		return daoFactory.getAccountDAO().getAccountById(accountId);
 	}
 
@@ -60,6 +106,7 @@ public class AccountService {
 	@GET
 	@Path("/{accountId}/balance")
 	public BigDecimal getBalance(@PathParam("accountId") long accountId) throws MoneyTransferException {
+		cluster.forwardIfRemote(accountId, HttpMethod.GET, uriInfo, headers, null);
 		final Account account = daoFactory.getAccountDAO().getAccountById(accountId);
 
 		if (account == null) {
@@ -68,6 +115,39 @@ public class AccountService {
 		return account.getBalance();
 	}
 
+	/**
+	 * Transfer history by account Id, newest first. The next page is read by
+	 * passing the returned nextBefore as before.
+	 * 
+	 * @param accountId
+	 * @param before    only transactions with a lower txnId, 0 for the newest
+	 * @param limit     page size, at most 1000
+	 * @return page of transactions
+	 * @throws MoneyTransferException
+	 */
+	@GET
+	@Path("/{accountId}/transactions")
+	public TransactionPage getTransactions(@PathParam("accountId") long accountId,
+			@QueryParam("before") @DefaultValue("0") long before, @QueryParam("limit") @DefaultValue("50") int limit)
+			throws MoneyTransferException {
+		cluster.forwardIfRemote(accountId, HttpMethod.GET, uriInfo, headers, null);
+		if (limit < 1 || limit > MAX_PAGE_SIZE || before < 0) {
+			throw new WebApplicationException("Invalid page", Response.Status.BAD_REQUEST);
+		}
+		// one row more than the page tells whether there is a next page
+		List<AccountTransaction> transactions = daoFactory.getAccountDAO().getTransactions(accountId,
+				before == 0 ? Long.MAX_VALUE : before, limit + 1);
+		if (transactions.isEmpty() && before == 0 && daoFactory.getAccountDAO().getAccountById(accountId) == null) {
+			throw new WebApplicationException("Account not found", Response.Status.NOT_FOUND);
+		}
+		Long nextBefore = null;
+		if (transactions.size() > limit) {
+			transactions = transactions.subList(0, limit);
+			nextBefore = transactions.get(limit - 1).getTxnId();
+		}
+		return new TransactionPage(transactions, nextBefore);
+	}
+
 	/**
 	 * Create Account
 	 * 
@@ -78,8 +158,7 @@ public class AccountService {
 	@PUT
 	@Path("/create")
 	public Account createAccount(Account account) throws MoneyTransferException {
-		final long accountId = daoFactory.getAccountDAO().createAccount(account);
-		return daoFactory.getAccountDAO().getAccountById(accountId);
+		return daoFactory.getAccountDAO().createAccountAndGet(account);
 	}
 
 	/**
@@ -94,13 +173,14 @@ public class AccountService {
 	@Path("/{accountId}/deposit/{amount}")
 	public Account deposit(@PathParam("accountId") long accountId, @PathParam("amount") BigDecimal amount)
 			throws MoneyTransferException {
+		cluster.forwardIfRemote(accountId, HttpMethod.PUT, uriInfo, headers, null);
 
-		if (amount.compareTo(MoneyTransferUtil.zeroAmount) <= 0) {
+		long units = Money.toUnitsChecked(amount);
+		if (units <= Money.ZERO) {
 			throw new WebApplicationException("Invalid Deposit amount", Response.Status.BAD_REQUEST);
 		}
 
-		daoFactory.getAccountDAO().updateAccountBalance(accountId, amount.setScale(4, RoundingMode.HALF_EVEN));
-		return daoFactory.getAccountDAO().getAccountById(accountId);
+		return updated(accountId, daoFactory.getAccountDAO().updateAccountBalanceAndGet(accountId, units));
 	}
 
 	/**
@@ -115,15 +195,17 @@ public class AccountService {
 	@Path("/{accountId}/withdraw/{amount}")
 	public Account withdraw(@PathParam("accountId") long accountId, @PathParam("amount") BigDecimal amount)
 			throws MoneyTransferException {
+		cluster.forwardIfRemote(accountId, HttpMethod.PUT, uriInfo, headers, null);
 
-		if (amount.compareTo(MoneyTransferUtil.zeroAmount) <= 0) {
+		long units = Money.toUnitsChecked(amount);
+		if (units <= Money.ZERO) {
 			throw new WebApplicationException("Invalid Deposit amount", Response.Status.BAD_REQUEST);
 		}
-		BigDecimal delta = amount.negate();
+		long delta = -units;
 		if (LOGGER.isDebugEnabled())
-			LOGGER.debug("Withdraw service: delta change to account  " + delta + " Account ID = " + accountId);
-		daoFactory.getAccountDAO().updateAccountBalance(accountId, delta.setScale(4, RoundingMode.HALF_EVEN));
-		return daoFactory.getAccountDAO().getAccountById(accountId);
+			LOGGER.debug("Withdraw service: delta change to account  " + Money.toBigDecimal(delta) + " Account ID = "
+					+ accountId);
+		return updated(accountId, daoFactory.getAccountDAO().updateAccountBalanceAndGet(accountId, delta));
 	}
 
 	/**
@@ -137,6 +219,7 @@ public class AccountService {
 	@DELETE
 	@Path("/{accountId}")
 	public Response deleteAccount(@PathParam("accountId") long accountId) throws MoneyTransferException {
+		cluster.forwardIfRemote(accountId, HttpMethod.DELETE, uriInfo, headers, null);
 		int deleteCount = daoFactory.getAccountDAO().deleteAccountById(accountId);
 		if (deleteCount == 1) {
 			return Response.status(Response.Status.OK).build();
@@ -145,4 +228,15 @@ public class AccountService {
 		}
 	}
 
+	/**
+	 * @return the account written by a balance update
+	 * @throws MoneyTransferException if the update was rolled back
+	 */
+	private static Account updated(long accountId, Account account) throws MoneyTransferException {
+		if (account == null) {
+			throw new MoneyTransferException("Fail to update balance of account: " + accountId);
+		}
+		return account;
+	}
+
 }
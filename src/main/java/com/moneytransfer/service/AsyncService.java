@@ -0,0 +1,205 @@
+package com.moneytransfer.service;
+
+import java.math.BigDecimal;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
+import javax.ws.rs.POST;
+import javax.ws.rs.PUT;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.container.TimeoutHandler;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.UriInfo;
+
+import org.apache.log4j.Logger;
+
+import com.moneytransfer.metrics.Counter;
+import com.moneytransfer.metrics.MetricsRegistry;
+import com.moneytransfer.model.Transaction;
+import com.moneytransfer.utils.PropsUitl;
+
+/**
+ * Asynchronous variants of the transfer, deposit, withdraw and balance
+ * endpoints.
+ * <p>
+ * The request thread only hands the work to a bounded executor and returns to
+ * Jetty; the DAO call runs on the executor and resumes the response. Once the
+ * executor queue is full, requests are answered right away with 503 and a
+ * Retry-After header instead of queueing up. A request still queued when its
+ * response times out is dropped and answered the same way; one already
+ * running gets 504 without Retry-After, as it may still be applied.
+ */
+@Path("/async")
+@Produces(MediaType.APPLICATION_JSON)
+public class AsyncService {
+
+	private static Logger LOGGER = Logger.getLogger(AsyncService.class);
+
+	private static final int RETRY_AFTER_SEC = PropsUitl.getIntegerProperty("async_retry_after_sec", 1);
+	private static final long RESPONSE_TIMEOUT_MS = PropsUitl.getIntegerProperty("async_response_timeout_ms", 30000);
+
+	private static final ThreadPoolExecutor EXECUTOR = newExecutor(
+			PropsUitl.getIntegerProperty("async_executor_threads", 32),
+			PropsUitl.getIntegerProperty("async_executor_queue_size", 1000));
+
+	static {
+		MetricsRegistry.INSTANCE.gauge("moneytransfer_async_executor_active_threads",
+				"Threads running asynchronous requests", () -> EXECUTOR.getActiveCount());
+		MetricsRegistry.INSTANCE.gauge("moneytransfer_async_executor_queue_size",
+				"Asynchronous requests waiting for a thread", () -> EXECUTOR.getQueue().size());
+	}
+
+	private static final Counter REJECTED = MetricsRegistry.INSTANCE.counter(
+			"moneytransfer_async_rejected_total", "Asynchronous requests answered with 503");
+	private static final Counter TIMED_OUT = MetricsRegistry.INSTANCE.counter(
+			"moneytransfer_async_timeouts_total", "Asynchronous requests still running when their response timed out");
+
+	// handed to the delegated services, which forward requests in cluster mode
+	@Context
+	private UriInfo uriInfo;
+
+	@Context
+	private HttpHeaders headers;
+
+	/**
+	 * Transfer fund between two accounts.
+	 */
+	@POST
+	@Path("/transaction")
+	public void transferFund(@Suspended AsyncResponse asyncResponse,
+			@HeaderParam(TransactionService.IDEMPOTENCY_KEY_HEADER) final String idempotencyKey,
+			final Transaction transaction) {
+		submit(asyncResponse, new Callable<Object>() {
+			@Override
+			public Object call() throws Exception {
+				return new TransactionService(headers).transferFund(idempotencyKey, transaction);
+			}
+		});
+	}
+
+	/**
+	 * Find balance by account Id
+	 */
+	@GET
+	@Path("/account/{accountId}/balance")
+	public void getBalance(@Suspended AsyncResponse asyncResponse, @PathParam("accountId") final long accountId) {
+		submit(asyncResponse, new Callable<Object>() {
+			@Override
+			public Object call() throws Exception {
+				return new AccountService(uriInfo, headers).getBalance(accountId);
+			}
+		});
+	}
+
+	/**
+	 * Deposit amount by account Id
+	 */
+	@PUT
+	@Path("/account/{accountId}/deposit/{amount}")
+	public void deposit(@Suspended AsyncResponse asyncResponse, @PathParam("accountId") final long accountId,
+			@PathParam("amount") final BigDecimal amount) {
+		submit(asyncResponse, new Callable<Object>() {
+			@Override
+			public Object call() throws Exception {
+				return new AccountService(uriInfo, headers).deposit(accountId, amount);
+			}
+		});
+	}
+
+	/**
+	 * Withdraw amount by account Id
+	 */
+	@PUT
+	@Path("/account/{accountId}/withdraw/{amount}")
+	public void withdraw(@Suspended AsyncResponse asyncResponse, @PathParam("accountId") final long accountId,
+			@PathParam("amount") final BigDecimal amount) {
+		submit(asyncResponse, new Callable<Object>() {
+			@Override
+			public Object call() throws Exception {
+				return new AccountService(uriInfo, headers).withdraw(accountId, amount);
+			}
+		});
+	}
+
+	/**
+	 * @return executor running the asynchronous requests, e.g. to read its
+	 *         queue size
+	 */
+	public static ThreadPoolExecutor getExecutor() {
+		return EXECUTOR;
+	}
+
+	private static void submit(final AsyncResponse asyncResponse, final Callable<Object> work) {
+		// set by the executor starting the work or by the timeout dropping it
+		final AtomicBoolean started = new AtomicBoolean();
+		final Runnable task = new Runnable() {
+			@Override
+			public void run() {
+				if (!started.compareAndSet(false, true)) {
+					return;
+				}
+				try {
+					asyncResponse.resume(work.call());
+				} catch (Throwable t) {
+					// mapped by the exception mappers as for the synchronous endpoints
+					asyncResponse.resume(t);
+				}
+			}
+		};
+		asyncResponse.setTimeout(RESPONSE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		asyncResponse.setTimeoutHandler(new TimeoutHandler() {
+			@Override
+			public void handleTimeout(AsyncResponse response) {
+				if (started.compareAndSet(false, true)) {
+					// never ran, safe to retry
+					EXECUTOR.remove(task);
+					REJECTED.increment();
+					response.resume(serviceUnavailable());
+				} else {
+					TIMED_OUT.increment();
+					response.resume(Response.status(Response.Status.GATEWAY_TIMEOUT).build());
+				}
+			}
+		});
+		try {
+			EXECUTOR.execute(task);
+		} catch (RejectedExecutionException e) {
+			if (LOGGER.isDebugEnabled())
+				LOGGER.debug("submit(): executor saturated, rejecting request");
+			REJECTED.increment();
+			asyncResponse.resume(serviceUnavailable());
+		}
+	}
+
+	private static Response serviceUnavailable() {
+		return Response.status(Response.Status.SERVICE_UNAVAILABLE).header("Retry-After", RETRY_AFTER_SEC).build();
+	}
+
+	private static ThreadPoolExecutor newExecutor(int threads, int queueSize) {
+		final AtomicInteger count = new AtomicInteger();
+		return new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "async-service-" + count.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				}, new ThreadPoolExecutor.AbortPolicy());
+	}
+}
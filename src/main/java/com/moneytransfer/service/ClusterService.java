@@ -0,0 +1,80 @@
+package com.moneytransfer.service;
+
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import com.moneytransfer.cluster.Cluster;
+import com.moneytransfer.cluster.TransferLegs;
+import com.moneytransfer.exception.MoneyTransferException;
+import com.moneytransfer.model.TransferLeg;
+
+/**
+ * Legs of cross node transfers, called by the coordinating node. Only served
+ * in cluster mode.
+ */
+@Path("/cluster/legs")
+@Produces(MediaType.APPLICATION_JSON)
+public class ClusterService {
+
+	private final Cluster cluster = Cluster.getInstance();
+
+	/**
+	 * Reserve a leg on an account owned by this node
+	 *
+	 * @param leg
+	 * @return response
+	 * @throws MoneyTransferException if the leg cannot be applied
+	 */
+	@POST
+	@Path("/reserve")
+	public Response reserve(TransferLeg leg) throws MoneyTransferException {
+		legs(leg).reserve(leg);
+		return Response.status(Response.Status.OK).build();
+	}
+
+	/**
+	 * Commit a reserved leg
+	 *
+	 * @param leg
+	 * @return response, 409 if the leg is no longer reserved
+	 * @throws MoneyTransferException if the credit cannot be applied
+	 */
+	@POST
+	@Path("/commit")
+	public Response commit(TransferLeg leg) throws MoneyTransferException {
+		try {
+			legs(leg).commit(leg);
+		} catch (IllegalStateException e) {
+			throw new WebApplicationException(e.getMessage(), Response.Status.CONFLICT);
+		}
+		return Response.status(Response.Status.OK).build();
+	}
+
+	/**
+	 * Abort a leg, nothing to do if it was never reserved
+	 *
+	 * @param leg
+	 * @return response
+	 * @throws MoneyTransferException if the abort cannot be logged
+	 */
+	@POST
+	@Path("/abort")
+	public Response abort(TransferLeg leg) throws MoneyTransferException {
+		legs(leg).abort(leg);
+		return Response.status(Response.Status.OK).build();
+	}
+
+	private TransferLegs legs(TransferLeg leg) {
+		if (!cluster.isEnabled()) {
+			throw new WebApplicationException(Response.Status.NOT_FOUND);
+		}
+		if (leg == null || leg.getTransferId() == null || !cluster.owns(leg.getAccountId())) {
+			throw new WebApplicationException("Invalid transfer leg", Response.Status.BAD_REQUEST);
+		}
+		return cluster.getLegs();
+	}
+}
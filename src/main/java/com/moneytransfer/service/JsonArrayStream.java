@@ -0,0 +1,56 @@
+package com.moneytransfer.service;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.apache.log4j.Logger;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.moneytransfer.dao.RowCallback;
+import com.moneytransfer.exception.MoneyTransferException;
+
+/**
+ * Response body written as a JSON array while a DAO streams the rows, so
+ * neither the rows nor the serialized body are held in memory. The generator
+ * buffers a few KB and hands them to the container, which sends them as
+ * chunks.
+ */
+abstract class JsonArrayStream<T> implements StreamingOutput {
+
+	private static Logger LOGGER = Logger.getLogger(JsonArrayStream.class);
+
+	// no flush per row, and the container closes its own stream
+	private static final ObjectMapper MAPPER = new ObjectMapper()
+			.disable(SerializationFeature.FLUSH_AFTER_WRITE_VALUE)
+			.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+
+	/**
+	 * Stream the rows into the callback.
+	 */
+	protected abstract void rows(RowCallback<T> callback) throws MoneyTransferException, IOException;
+
+	@Override
+	public void write(OutputStream output) throws IOException {
+		final JsonGenerator generator = MAPPER.getFactory().createGenerator(output);
+		generator.writeStartArray();
+		try {
+			rows(new RowCallback<T>() {
+				@Override
+				public void row(T row) throws IOException {
+					generator.writeObject(row);
+				}
+			});
+		} catch (MoneyTransferException e) {
+			// the status may already be sent, the client sees a cut array
+			LOGGER.error("write(): Error streaming rows", e);
+			throw new WebApplicationException(e);
+		}
+		generator.writeEndArray();
+		generator.close();
+	}
+}
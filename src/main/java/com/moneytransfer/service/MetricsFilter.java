@@ -0,0 +1,81 @@
+package com.moneytransfer.service;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.container.PreMatching;
+import javax.ws.rs.container.ResourceInfo;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.ext.Provider;
+
+import com.moneytransfer.metrics.Counter;
+import com.moneytransfer.metrics.Histogram;
+import com.moneytransfer.metrics.MetricsRegistry;
+
+/**
+ * Times every request by the resource method that served it and counts the
+ * responses per status class. For the asynchronous endpoints the time runs
+ * until the response is resumed.
+ */
+@Provider
+@PreMatching
+public class MetricsFilter implements ContainerRequestFilter, ContainerResponseFilter {
+
+	private static final String START_PROPERTY = MetricsFilter.class.getName() + ".start";
+
+	private static final ConcurrentHashMap<Method, ResourceMetrics> RESOURCE_METRICS = //
+			new ConcurrentHashMap<Method, ResourceMetrics>();
+	// requests which matched no resource method
+	private static final ResourceMetrics UNMATCHED = new ResourceMetrics("none", "none");
+
+	@Context
+	private ResourceInfo resourceInfo;
+
+	@Override
+	public void filter(ContainerRequestContext request) {
+		request.setProperty(START_PROPERTY, System.nanoTime());
+	}
+
+	@Override
+	public void filter(ContainerRequestContext request, ContainerResponseContext response) {
+		Object start = request.getProperty(START_PROPERTY);
+		if (start == null) {
+			return;
+		}
+		Method method = resourceInfo.getResourceMethod();
+		ResourceMetrics metrics = method == null ? UNMATCHED : RESOURCE_METRICS.get(method);
+		if (metrics == null) {
+			ResourceMetrics created = new ResourceMetrics(resourceInfo.getResourceClass().getSimpleName(),
+					method.getName());
+			metrics = RESOURCE_METRICS.putIfAbsent(method, created);
+			if (metrics == null) {
+				metrics = created;
+			}
+		}
+		metrics.duration.recordSince((Long) start);
+		int statusClass = response.getStatus() / 100;
+		if (statusClass >= 1 && statusClass <= 5) {
+			metrics.responses[statusClass - 1].increment();
+		}
+	}
+
+	private static final class ResourceMetrics {
+		final Histogram duration;
+		// 1xx to 5xx
+		final Counter[] responses = new Counter[5];
+
+		ResourceMetrics(String resource, String method) {
+			duration = MetricsRegistry.INSTANCE.histogram("moneytransfer_http_request_seconds",
+					"HTTP request duration by resource method", "resource", resource, "method", method);
+			for (int i = 0; i < responses.length; i++) {
+				responses[i] = MetricsRegistry.INSTANCE.counter("moneytransfer_http_responses_total",
+						"HTTP responses by resource method and status class", "resource", resource, "method", method,
+						"status", (i + 1) + "xx");
+			}
+		}
+	}
+}
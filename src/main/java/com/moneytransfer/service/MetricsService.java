@@ -0,0 +1,23 @@
+package com.moneytransfer.service;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+
+import com.moneytransfer.metrics.MetricsRegistry;
+
+/**
+ * Metrics scrape endpoint
+ */
+@Path("/metrics")
+public class MetricsService {
+
+	/**
+	 * @return all metrics in the Prometheus text format
+	 */
+	@GET
+	@Produces("text/plain; version=0.0.4; charset=utf-8")
+	public String scrape() {
+		return MetricsRegistry.INSTANCE.scrape();
+	}
+}
@@ -1,46 +1,293 @@
 package com.moneytransfer.service;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+import javax.ws.rs.HeaderParam;
+import javax.ws.rs.HttpMethod;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
 import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 
+import com.moneytransfer.cluster.Cluster;
 import com.moneytransfer.dao.DAOFactory;
+import com.moneytransfer.dao.TransferSequencer;
+import com.moneytransfer.dao.impl.IdempotencyStore;
 import com.moneytransfer.exception.MoneyTransferException;
+import com.moneytransfer.exception.TransferOutcomeUnknownException;
+import com.moneytransfer.exception.TransferRejectedException;
+import com.moneytransfer.metrics.MetricsRegistry;
 import com.moneytransfer.model.Transaction;
+import com.moneytransfer.model.TransactionResult;
 import com.moneytransfer.utils.MoneyTransferUtil;
+import com.moneytransfer.utils.PropsUitl;
 
 @Path("/transaction")
 @Produces(MediaType.APPLICATION_JSON)
 public class TransactionService {
 
+	public static final String IDEMPOTENCY_KEY_HEADER = "Idempotency-Key";
+	private static final int IDEMPOTENCY_KEY_MAX_LENGTH = 255;
+	// 422 Unprocessable Entity, missing from Response.Status
+	private static final int UNPROCESSABLE_ENTITY = 422;
+
+	private static final int BATCH_MAX_SIZE = PropsUitl.getIntegerProperty("transaction_batch_max_size", 10000);
+
+	private static final boolean SEQUENCER_ENABLED = Boolean
+			.parseBoolean(PropsUitl.getStringProperty("transfer_sequencer_enabled", "false"));
+
 	private final DAOFactory daoFactory = DAOFactory.getDAOFactory();
-	
+
+	// transfers touching accounts of other nodes are forwarded or coordinated
+	private final Cluster cluster = Cluster.getInstance();
+
+	@Context
+	private HttpHeaders headers;
+
+	public TransactionService() {
+	}
+
 	/**
-	 * Transfer fund between two accounts.
+	 * Service called from another resource, which hands over the headers of
+	 * its request.
+	 */
+	TransactionService(HttpHeaders headers) {
+		this.headers = headers;
+	}
+
+	// created on first use, only when the sequencer is enabled
+	private static class SequencerHolder {
+		static final TransferSequencer SEQUENCER = TransferSequencer
+				.fromProperties(DAOFactory.getDAOFactory().getAccountDAO());
+
+		static {
+			MetricsRegistry.INSTANCE.gauge("moneytransfer_transfer_sequencer_queue_size",
+					"Transfers waiting for the sequencer writer", () -> SEQUENCER.getQueueSize());
+		}
+	}
+
+	/**
+	 * Transfer fund between two accounts. A transfer sent again with the same
+	 * idempotency key gets the outcome of the first one, without being
+	 * applied again. Only final outcomes are kept for the key: a failure that
+	 * may pass on a retry gives the key up, and a transfer whose outcome is
+	 * not known yet keeps it in progress until it is.
+	 * @param idempotencyKey optional key chosen by the client
 	 * @param transaction
 	 * @return response
 	 * @throws MoneyTransferException
 	 */
 	@POST
-	public Response transferFund(Transaction transaction) throws MoneyTransferException {
+	public Response transferFund(@HeaderParam(IDEMPOTENCY_KEY_HEADER) String idempotencyKey, Transaction transaction)
+			throws MoneyTransferException {
+		if (idempotencyKey == null) {
+			return transfer(transaction);
+		}
+		if (idempotencyKey.isEmpty() || idempotencyKey.length() > IDEMPOTENCY_KEY_MAX_LENGTH) {
+			throw new WebApplicationException("Invalid " + IDEMPOTENCY_KEY_HEADER, Response.Status.BAD_REQUEST);
+		}
+		// invalid requests are refused before the key is claimed
+		validateCcy(transaction);
 
-		String currency = transaction.getCurrencyCode();
-		if (MoneyTransferUtil.INSTANCE.validateCcyCode(currency)) {
-			int updateCount = daoFactory.getAccountDAO().transferAccountBalance(transaction);
-			if (updateCount == 2) {
-				return Response.status(Response.Status.OK).build();
+		IdempotencyStore store = daoFactory.getIdempotencyStore();
+		int requestHash = requestHash(transaction);
+		IdempotencyStore.Entry earlier = store.claim(idempotencyKey, requestHash);
+		if (earlier != null) {
+			return replay(earlier, requestHash);
+		}
+		try {
+			Response response = transfer(transaction);
+			store.complete(idempotencyKey, response.getStatus(), null);
+			return response;
+		} catch (TransferRejectedException e) {
+			// mapped to 500 by ServiceExceptionMapper
+			store.complete(idempotencyKey, Response.Status.INTERNAL_SERVER_ERROR.getStatusCode(), e.getMessage());
+			throw e;
+		} catch (TransferOutcomeUnknownException e) {
+			completeWhenSettled(store, idempotencyKey, e);
+			throw e;
+		} catch (MoneyTransferException | RuntimeException e) {
+			// nothing applied, e.g. a lock or queue timeout: let the client retry with the same key
+			store.release(idempotencyKey);
+			throw e;
+		}
+	}
+
+	/**
+	 * Record the outcome of a transfer for its key once it is known. A key
+	 * whose outcome is settled elsewhere stays in progress until it expires.
+	 */
+	private static void completeWhenSettled(final IdempotencyStore store, final String idempotencyKey,
+			TransferOutcomeUnknownException e) {
+		if (e.getOutcome() == null) {
+			return;
+		}
+		e.getOutcome().whenComplete((result, failure) -> {
+			if (failure == null && result.isSuccess()) {
+				store.complete(idempotencyKey, Response.Status.OK.getStatusCode(), null);
 			} else {
-				// transaction failed
-				throw new WebApplicationException("Transaction failed", Response.Status.BAD_REQUEST);
+				// rolled back
+				store.release(idempotencyKey);
 			}
+		});
+	}
 
-		} else {
+	private static void validateCcy(Transaction transaction) {
+		if (transaction == null || !MoneyTransferUtil.INSTANCE.validateCcyCode(transaction.getCurrencyCode())) {
 			throw new WebApplicationException("Currency Code Invalid ", Response.Status.BAD_REQUEST);
 		}
+	}
+
+	private Response transfer(Transaction transaction) throws MoneyTransferException {
+		validateCcy(transaction);
+		if (!isLocal(transaction)) {
+			Response response = transferInCluster(transaction);
+			if (response.getStatus() != Response.Status.OK.getStatusCode()) {
+				throw new WebApplicationException(response);
+			}
+			return Response.status(Response.Status.OK).build();
+		}
+		if (SEQUENCER_ENABLED) {
+			TransactionResult result = SequencerHolder.SEQUENCER.transfer(transaction);
+			if (!result.isSuccess()) {
+				throw new MoneyTransferException(result.getErrorMessage());
+			}
+			return Response.status(Response.Status.OK).build();
+		}
+		int updateCount = daoFactory.getAccountDAO().transferAccountBalance(transaction);
+		if (updateCount == 2) {
+			return Response.status(Response.Status.OK).build();
+		} else {
+			// transaction failed
+			throw new WebApplicationException("Transaction failed", Response.Status.BAD_REQUEST);
+		}
+	}
 
+	private boolean isLocal(Transaction transaction) {
+		return cluster.owns(transaction.getFromAccountId()) && cluster.owns(transaction.getToAccountId());
+	}
+
+	/**
+	 * Transfer touching an account owned by another node: forwarded if one
+	 * node owns both accounts, coordinated from here otherwise.
+	 *
+	 * @return response of the owning node, 200 once a coordinated transfer is
+	 *         decided
+	 */
+	private Response transferInCluster(Transaction transaction) throws MoneyTransferException {
+		int fromNode = cluster.ownerOf(transaction.getFromAccountId());
+		if (fromNode == cluster.ownerOf(transaction.getToAccountId())) {
+			return cluster.forward(fromNode, HttpMethod.POST, "/transaction", headers, transaction);
+		}
+		cluster.transfer(transaction);
+		return Response.status(Response.Status.OK).build();
+	}
+
+	/**
+	 * Answer a repeated key with the outcome of the request which used it
+	 * first.
+	 */
+	private static Response replay(IdempotencyStore.Entry earlier, int requestHash) throws MoneyTransferException {
+		if (earlier.getRequestHash() != requestHash) {
+			throw new WebApplicationException(IDEMPOTENCY_KEY_HEADER + " already used for a different transfer",
+					UNPROCESSABLE_ENTITY);
+		}
+		if (!earlier.isCompleted()) {
+			throw new WebApplicationException("Transfer with this " + IDEMPOTENCY_KEY_HEADER + " is in progress",
+					Response.Status.CONFLICT);
+		}
+		if (earlier.getStatus() == Response.Status.INTERNAL_SERVER_ERROR.getStatusCode()) {
+			throw new MoneyTransferException(earlier.getMessage());
+		}
+		if (earlier.getStatus() >= 400) {
+			throw new WebApplicationException(earlier.getMessage(), earlier.getStatus());
+		}
+		return Response.status(earlier.getStatus()).header("Idempotent-Replayed", "true").build();
+	}
+
+	private static int requestHash(Transaction transaction) {
+		return transaction == null ? 0
+				: Objects.hash(transaction.getCurrencyCode(), transaction.getAmountUnits(),
+						transaction.getFromAccountId(), transaction.getToAccountId());
+	}
+
+	/**
+	 * Transfer fund for a batch of transactions in one request. Transfers are
+	 * applied in order and succeed or fail individually. In cluster mode the
+	 * transfers touching other nodes are applied first, one at a time.
+	 * @param transactions
+	 * @return one result per transaction
+	 * @throws MoneyTransferException
+	 */
+	@POST
+	@Path("/batch")
+	public List<TransactionResult> transferFundBatch(List<Transaction> transactions) throws MoneyTransferException {
+		if (transactions == null || transactions.isEmpty()) {
+			throw new WebApplicationException("Empty transaction batch", Response.Status.BAD_REQUEST);
+		}
+		if (transactions.size() > BATCH_MAX_SIZE) {
+			throw new WebApplicationException("Transaction batch exceeds " + BATCH_MAX_SIZE + " transfers",
+					Response.Status.BAD_REQUEST);
+		}
+
+		// only transfers with a valid currency reach the DAO
+		List<Transaction> valid = new ArrayList<Transaction>(transactions.size());
+		List<Integer> validIndexes = new ArrayList<Integer>(transactions.size());
+		TransactionResult[] results = new TransactionResult[transactions.size()];
+		for (int i = 0; i < transactions.size(); i++) {
+			Transaction transaction = transactions.get(i);
+			if (transaction != null && MoneyTransferUtil.INSTANCE.validateCcyCode(transaction.getCurrencyCode())) {
+				valid.add(transaction);
+				validIndexes.add(i);
+			} else {
+				results[i] = TransactionResult.failure(i, "Currency Code Invalid ");
+			}
+		}
+
+		List<Transaction> local = valid;
+		List<Integer> localIndexes = validIndexes;
+		if (cluster.isEnabled()) {
+			// transfers touching other nodes are sent one at a time, the others as one batch
+			local = new ArrayList<Transaction>(valid.size());
+			localIndexes = new ArrayList<Integer>(valid.size());
+			for (int i = 0; i < valid.size(); i++) {
+				if (isLocal(valid.get(i))) {
+					local.add(valid.get(i));
+					localIndexes.add(validIndexes.get(i));
+				} else {
+					int index = validIndexes.get(i);
+					results[index] = transferInClusterResult(index, valid.get(i));
+				}
+			}
+		}
+		if (!local.isEmpty()) {
+			for (TransactionResult result : daoFactory.getAccountDAO().transferAccountBalanceBatch(local)) {
+				int index = localIndexes.get(result.getIndex());
+				results[index] = new TransactionResult(index, result.isSuccess(), result.getErrorMessage());
+			}
+		}
+		return Arrays.asList(results);
+	}
+
+	private TransactionResult transferInClusterResult(int index, Transaction transaction) {
+		try {
+			Response response = transferInCluster(transaction);
+			if (response.getStatus() == Response.Status.OK.getStatusCode()) {
+				return TransactionResult.success(index);
+			}
+			return TransactionResult.failure(index, Cluster.errorCode(response));
+		} catch (MoneyTransferException e) {
+			return TransactionResult.failure(index, e.getMessage());
+		} catch (WebApplicationException e) {
+			return TransactionResult.failure(index, e.getMessage());
+		}
 	}
 
 }
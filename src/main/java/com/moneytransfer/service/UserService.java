@@ -1,6 +1,7 @@
 package com.moneytransfer.service;
 
 import com.moneytransfer.dao.DAOFactory;
+import com.moneytransfer.dao.RowCallback;
 import com.moneytransfer.exception.MoneyTransferException;
 import com.moneytransfer.model.User;
 
@@ -9,7 +10,8 @@ import org.apache.log4j.Logger;
 import javax.ws.rs.*;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
-import java.util.List;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.IOException;
 
 @Path("/user")
 @Produces(MediaType.APPLICATION_JSON)
@@ -39,16 +41,27 @@ public class UserService {
 	}
 
 	/**
-	 * Find by all
+	 * Find by all, streamed in user id order. A large table is read in pages by
+	 * passing the last user id returned as afterId.
 	 * 
-	 * @param userName
+	 * @param afterId only users with a higher id
+	 * @param limit   maximum number of users, 0 for all
 	 * @return users
-	 * @throws MoneyTransferException
 	 */
 	@GET
 	@Path("/all")
-	public List<User> getAllUsers() throws MoneyTransferException {
-		return daoFactory.getUserDAO().getAllUsers();
+	public StreamingOutput getAllUsers(@QueryParam("afterId") @DefaultValue("0") final long afterId,
+			@QueryParam("limit") @DefaultValue("0") int limit) {
+		if (afterId < 0 || limit < 0) {
+			throw new WebApplicationException("Invalid page", Response.Status.BAD_REQUEST);
+		}
+		final int maxRows = limit == 0 ? Integer.MAX_VALUE : limit;
+		return new JsonArrayStream<User>() {
+			@Override
+			protected void rows(RowCallback<User> callback) throws MoneyTransferException, IOException {
+				daoFactory.getUserDAO().streamUsers(afterId, maxRows, callback);
+			}
+		};
 	}
 
 	/**
@@ -0,0 +1,10 @@
+--Sub-ledger slots of the hot accounts (hot_account_ids), the balance of a hot account is its Account row
+--plus its slots. Slots are created on the first credit.
+
+DROP TABLE IF EXISTS AccountSlot;
+
+CREATE TABLE AccountSlot (AccountId LONG NOT NULL,
+Slot INT NOT NULL,
+Balance DECIMAL(19,4) NOT NULL,
+PRIMARY KEY (AccountId, Slot)
+);
@@ -0,0 +1,16 @@
+--Transfer history, one row per account touched by a transfer
+
+DROP TABLE IF EXISTS AccountTransaction;
+
+CREATE TABLE AccountTransaction (TxnId LONG AUTO_INCREMENT NOT NULL,
+AccountId LONG NOT NULL,
+CounterpartyAccountId LONG NOT NULL,
+Amount DECIMAL(19,4) NOT NULL,
+Balance DECIMAL(19,4) NOT NULL,
+CurrencyCode VARCHAR(30) NOT NULL,
+CreatedAt LONG NOT NULL
+);
+
+--pages are read newest first straight from this index, TxnId is deliberately not a primary key
+--so that H2 does not prefer scanning it
+CREATE INDEX idx_acctxn on AccountTransaction(AccountId,TxnId DESC);
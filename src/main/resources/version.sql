@@ -0,0 +1,3 @@
+--Row version of the accounts, bumped by every balance write and checked by account_update_mode=optimistic
+
+ALTER TABLE Account ADD COLUMN Version LONG DEFAULT 0 NOT NULL;
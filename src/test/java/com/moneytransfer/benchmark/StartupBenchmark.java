@@ -0,0 +1,116 @@
+package com.moneytransfer.benchmark;
+
+import com.moneytransfer.dao.DAOFactory;
+import com.moneytransfer.dao.impl.H2Recovery;
+import com.moneytransfer.dao.journal.SnapshotStore;
+import com.moneytransfer.dao.journal.TransferJournal;
+import com.moneytransfer.model.Money;
+
+import java.io.File;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Startup time of the H2 DAO with a snapshot of a large Account table and an
+ * increasing number of journal records written after it.
+ * <p>
+ * Writes a snapshot of bench.accounts accounts (default 10,000,000, one user
+ * per ten accounts), then for every count in bench.changes journals that many
+ * transfers between random accounts and times {@link H2Recovery#recover()}:
+ * loading the snapshot plus replaying the records. With bench.fullReplay=true
+ * it also times rebuilding the same data from a journal holding every account
+ * creation, which is what startup costs without snapshots. Run with a heap
+ * large enough for the in memory database, about 5GB for 10M accounts:
+ *
+ * <pre>
+ * MAVEN_OPTS=-Xmx6g mvn test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=com.moneytransfer.benchmark.StartupBenchmark
+ * </pre>
+ *
+ * Optional system properties: bench.accounts, bench.changes, a comma separated
+ * list of journal record counts (default 0,10000,100000,1000000),
+ * bench.fullReplay (default false) and bench.dir, the directory for the
+ * snapshot and journals (default a new temporary directory).
+ */
+public class StartupBenchmark {
+
+	private static final long INITIAL_BALANCE = Money.toUnits(new BigDecimal(1000));
+
+	public static void main(String[] args) throws Exception {
+		final int accountCount = Integer.getInteger("bench.accounts", 10000000);
+		final String[] changeCounts = System.getProperty("bench.changes", "0,10000,100000,1000000").split(",");
+		final boolean fullReplay = Boolean.getBoolean("bench.fullReplay");
+		String dirName = System.getProperty("bench.dir");
+		File dir = dirName != null ? new File(dirName) : Files.createTempDirectory("startup").toFile();
+
+		// creates the tables
+		DAOFactory.getDAOFactory(DAOFactory.H2).populateTestData();
+
+		File snapshotDir = new File(dir, "snapshot");
+		SnapshotStore snapshots = new SnapshotStore(snapshotDir, 1);
+		long start = System.currentTimeMillis();
+		SnapshotStore.Writer writer = snapshots.create(0);
+		for (int u = 0; u < (accountCount + 9) / 10; u++) {
+			writer.user(u + 1, "user" + u, "user" + u + "@bench");
+		}
+		for (int i = 0; i < accountCount; i++) {
+			writer.account(i + 1, "user" + i / 10, INITIAL_BALANCE, "C" + i % 10);
+		}
+		File snapshot = writer.commit();
+		System.out.println("accounts=" + accountCount + ", snapshot " + snapshot.length() / (1024 * 1024) + " MB written in "
+				+ (System.currentTimeMillis() - start) + " ms");
+		System.out.println("mode\tjournal records\tstartup ms");
+
+		for (String changeCount : changeCounts) {
+			int changes = Integer.parseInt(changeCount.trim());
+			TransferJournal journal = openJournal(new File(dir, "journal-" + changes));
+			appendTransfers(journal, accountCount, changes);
+			H2Recovery recovery = new H2Recovery(journal, snapshots);
+			start = System.currentTimeMillis();
+			recovery.recover();
+			System.out.println("snapshot\t" + changes + "\t" + (System.currentTimeMillis() - start));
+			journal.close();
+		}
+
+		if (fullReplay) {
+			int changes = Integer.parseInt(changeCounts[changeCounts.length - 1].trim());
+			TransferJournal journal = openJournal(new File(dir, "journal-full"));
+			for (int u = 0; u < (accountCount + 9) / 10; u++) {
+				journal.appendUser(u + 1, "user" + u, "user" + u + "@bench");
+			}
+			for (int i = 0; i < accountCount; i++) {
+				journal.appendAccount(i + 1, "user" + i / 10, INITIAL_BALANCE, "C" + i % 10);
+			}
+			appendTransfers(journal, accountCount, changes);
+			// back to the demo data, which the journal is replayed over
+			DAOFactory.getDAOFactory(DAOFactory.H2).populateTestData();
+			start = System.currentTimeMillis();
+			new H2Recovery(journal, null).recover();
+			System.out.println("journal only\t" + journal.getLastSequence() + "\t" + (System.currentTimeMillis() - start));
+			journal.close();
+		}
+	}
+
+	private static TransferJournal openJournal(File dir) throws Exception {
+		return new TransferJournal(dir, 64L * 1024 * 1024, TransferJournal.SyncMode.ASYNC, 1000);
+	}
+
+	// transfers of 1 unit between random accounts, balances as written by the DAO
+	private static void appendTransfers(TransferJournal journal, int accountCount, int changes) throws Exception {
+		long[] balances = new long[accountCount];
+		Arrays.fill(balances, INITIAL_BALANCE);
+		Random random = new Random(42);
+		for (int n = 0; n < changes; n++) {
+			int from = random.nextInt(accountCount);
+			int to = random.nextInt(accountCount - 1);
+			if (to >= from) {
+				to++;
+			}
+			balances[from]--;
+			balances[to]++;
+			journal.appendTransfer(from + 1, balances[from], to + 1, balances[to], 1);
+		}
+	}
+}
@@ -0,0 +1,157 @@
+package com.moneytransfer.benchmark;
+
+import com.moneytransfer.dao.AccountDAO;
+import com.moneytransfer.dao.DAOFactory;
+import com.moneytransfer.dao.TransferSequencer;
+import com.moneytransfer.exception.MoneyTransferException;
+import com.moneytransfer.model.Account;
+import com.moneytransfer.model.Transaction;
+import com.moneytransfer.model.TransactionResult;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Concurrency benchmark for {@link AccountDAO#transferAccountBalance} and the
+ * {@link TransferSequencer}.
+ * <p>
+ * Creates a pool of accounts and lets an increasing number of threads transfer
+ * small amounts between random account pairs for a fixed time, printing
+ * transfers/sec for every mode and thread count. Run with:
+ *
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=com.moneytransfer.benchmark.TransferThroughputBenchmark
+ * </pre>
+ *
+ * Optional system properties: bench.accounts (default 1000), bench.seconds per
+ * thread count (default 5) and bench.threads, a comma separated list of thread
+ * counts (default 1,2,4,8,16,32), bench.modes, a comma separated list of
+ * {@code locking} (one locked transaction per transfer) and {@code sequencer}
+ * (group commit through the sequencer), default both, and bench.hotAccounts to
+ * draw all transfers from only that many of the accounts. The {@code locking}
+ * mode runs with row locks, versioned optimistic updates or conditional updates
+ * as set by {@code -Daccount_update_mode}. With bench.sink=true every transfer
+ * credits the first account, e.g. a merchant account made hot with
+ * {@code -Dhot_account_ids}.
+ */
+public class TransferThroughputBenchmark {
+
+	private static final BigDecimal INITIAL_BALANCE = new BigDecimal(1000000).setScale(4, RoundingMode.HALF_EVEN);
+	private static final BigDecimal TRANSFER_AMOUNT = new BigDecimal(1).setScale(4, RoundingMode.HALF_EVEN);
+
+	public static void main(String[] args) throws Exception {
+		final int accountCount = Integer.getInteger("bench.accounts", 1000);
+		final int seconds = Integer.getInteger("bench.seconds", 5);
+		final String[] threadCounts = System.getProperty("bench.threads", "1,2,4,8,16,32").split(",");
+		final String[] modes = System.getProperty("bench.modes", "locking,sequencer").split(",");
+		final int hotAccounts = Integer.getInteger("bench.hotAccounts", accountCount);
+		final boolean sink = Boolean.getBoolean("bench.sink");
+
+		DAOFactory daoFactory = DAOFactory.getDAOFactory();
+		daoFactory.populateTestData();
+		final AccountDAO accountDAO = daoFactory.getAccountDAO();
+		final long[] accountIds = new long[accountCount];
+		for (int i = 0; i < accountCount; i++) {
+			accountIds[i] = accountDAO.createAccount(new Account("bench" + i, INITIAL_BALANCE, "USD"));
+		}
+
+		final long[] hotAccountIds = Arrays.copyOf(accountIds, Math.max(2, Math.min(hotAccounts, accountCount)));
+
+		System.out.println("accounts=" + accountCount + ", hot accounts=" + hotAccountIds.length + ", seconds per run="
+				+ seconds + (sink ? ", all transfers to account " + hotAccountIds[0] : ""));
+		System.out.println("mode\tthreads\ttransfers/sec\tfailed");
+		for (String mode : modes) {
+			Transfer transfer;
+			TransferSequencer sequencer = null;
+			if ("sequencer".equals(mode.trim())) {
+				final TransferSequencer s = sequencer = TransferSequencer.fromProperties(accountDAO);
+				transfer = new Transfer() {
+					@Override
+					public boolean apply(Transaction transaction) throws MoneyTransferException {
+						// success only when the DAO returned 2 for the transfer
+						TransactionResult result = s.transfer(transaction);
+						return result.isSuccess();
+					}
+				};
+			} else {
+				transfer = new Transfer() {
+					@Override
+					public boolean apply(Transaction transaction) throws MoneyTransferException {
+						return accountDAO.transferAccountBalance(transaction) == 2;
+					}
+				};
+			}
+			for (String threadCount : threadCounts) {
+				run(mode.trim(), transfer, hotAccountIds, sink, Integer.parseInt(threadCount.trim()), seconds);
+			}
+			if (sequencer != null) {
+				sequencer.shutdown();
+			}
+		}
+	}
+
+	private interface Transfer {
+		boolean apply(Transaction transaction) throws MoneyTransferException;
+	}
+
+	private static void run(String mode, final Transfer transfer, final long[] accountIds, final boolean sink,
+			int threads, int seconds) throws InterruptedException {
+		final AtomicLong completed = new AtomicLong();
+		final AtomicLong failed = new AtomicLong();
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(threads);
+		final long deadline = System.nanoTime() + seconds * 1000000000L;
+
+		for (int t = 0; t < threads; t++) {
+			new Thread(new Runnable() {
+				@Override
+				public void run() {
+					ThreadLocalRandom random = ThreadLocalRandom.current();
+					try {
+						start.await();
+						while (System.nanoTime() < deadline) {
+							int from;
+							int to;
+							if (sink) {
+								from = 1 + random.nextInt(accountIds.length - 1);
+								to = 0;
+							} else {
+								from = random.nextInt(accountIds.length);
+								to = random.nextInt(accountIds.length - 1);
+								if (to >= from) {
+									to++;
+								}
+							}
+							try {
+								if (transfer.apply(new Transaction("USD", TRANSFER_AMOUNT, accountIds[from],
+										accountIds[to]))) {
+									completed.incrementAndGet();
+								} else {
+									failed.incrementAndGet();
+								}
+							} catch (Exception e) {
+								failed.incrementAndGet();
+							}
+						}
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					} finally {
+						done.countDown();
+					}
+				}
+			}).start();
+		}
+
+		long startTime = System.nanoTime();
+		start.countDown();
+		done.await();
+		double elapsedSeconds = (System.nanoTime() - startTime) / 1e9;
+		System.out.println(mode + "\t" + threads + "\t" + String.format("%.0f", completed.get() / elapsedSeconds) + "\t"
+				+ failed.get());
+	}
+}
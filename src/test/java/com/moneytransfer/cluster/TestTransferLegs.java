@@ -0,0 +1,148 @@
+package com.moneytransfer.cluster;
+
+import com.moneytransfer.dao.AccountDAO;
+import com.moneytransfer.dao.DAOFactory;
+import com.moneytransfer.exception.MoneyTransferException;
+import com.moneytransfer.model.Money;
+import com.moneytransfer.model.TransferLeg;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.fail;
+
+/**
+ * Legs on account 1 (barry, USD 100) and account 2 (ronaldo, USD 200).
+ */
+public class TestTransferLegs {
+
+	private static final DAOFactory h2DaoFactory = DAOFactory.getDAOFactory(DAOFactory.H2);
+	private final AccountDAO accountDAO = h2DaoFactory.getAccountDAO();
+
+	private final File logFile = new File("target/test-cluster-legs.log");
+
+	@Before
+	public void setup() {
+		h2DaoFactory.populateTestData();
+		logFile.delete();
+	}
+
+	@Test
+	public void testExpiredCreditStillCommits() throws Exception {
+		TransferLegs legs = new TransferLegs(accountDAO, 10);
+		TransferLeg debit = leg("t1", 1, 2, -10);
+		TransferLeg credit = leg("t1", 2, 1, 10);
+		legs.reserve(debit);
+		legs.reserve(credit);
+		Thread.sleep(50);
+		legs.expire();
+		assertEquals(0, legs.getReservedCount());
+		// the debit was given back, the credit still applies once committed
+		assertEquals(amount(100), balance(1));
+		legs.commit(credit);
+		assertEquals(amount(210), balance(2));
+		try {
+			legs.commit(debit);
+			fail("an expired debit must not commit");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testConcurrentReserveDebitsOnce() throws Exception {
+		final TransferLegs legs = new TransferLegs(accountDAO, 60000);
+		final TransferLeg debit = leg("t2", 1, 2, -30);
+		final int threads = 8;
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(threads);
+		final AtomicInteger failures = new AtomicInteger();
+		for (int i = 0; i < threads; i++) {
+			new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						legs.reserve(debit);
+					} catch (Exception e) {
+						failures.incrementAndGet();
+					} finally {
+						done.countDown();
+					}
+				}
+			}).start();
+		}
+		start.countDown();
+		done.await();
+		assertEquals(0, failures.get());
+		assertEquals(1, legs.getReservedCount());
+		assertEquals(amount(70), balance(1));
+		legs.abort(debit);
+		assertEquals(amount(100), balance(1));
+	}
+
+	@Test
+	public void testRecoverFromLog() throws Exception {
+		LegLog log = new LegLog(logFile, 1024);
+		TransferLegs legs = new TransferLegs(accountDAO, 60000, 60000, log);
+		TransferLeg debit = leg("t3", 1, 2, -10);
+		TransferLeg credit = leg("t3", 2, 1, 10);
+		legs.reserve(debit);
+		legs.decide(credit);
+		log.close();
+
+		log = new LegLog(logFile, 1024);
+		legs = new TransferLegs(accountDAO, 60000, 60000, log);
+		assertEquals(1, legs.getReservedCount());
+		List<LegLog.Record> pending = legs.getPending();
+		assertEquals(1, pending.size());
+		assertEquals(LegLog.DECIDED, pending.get(0).state);
+		// the reservation survived, the debit is not taken again
+		legs.commit(debit);
+		assertEquals(amount(90), balance(1));
+		legs.done(credit);
+		assertEquals(0, legs.getPendingCount());
+		log.close();
+	}
+
+	@Test
+	public void testDebitInDoubtNotGivenBack() throws Exception {
+		LegLog log = new LegLog(logFile, 1024);
+		TransferLeg debit = leg("t4", 1, 2, -10);
+		// crashed after logging the intent, the balance may or may not be debited
+		log.append(LegLog.RESERVING, debit);
+		log.close();
+
+		log = new LegLog(logFile, 1024);
+		TransferLegs legs = new TransferLegs(accountDAO, 60000, 60000, log);
+		assertEquals(0, legs.getReservedCount());
+		legs.abort(debit);
+		assertEquals(amount(100), balance(1));
+		try {
+			legs.commit(debit);
+			fail("a debit in doubt must not commit");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		log.close();
+	}
+
+	private BigDecimal balance(long accountId) throws MoneyTransferException {
+		return accountDAO.getAccountById(accountId).getBalance();
+	}
+
+	private static TransferLeg leg(String transferId, long accountId, long counterpartyAccountId, int amount) {
+		return new TransferLeg(transferId, accountId, counterpartyAccountId, amount * 10000L, "USD");
+	}
+
+	private static BigDecimal amount(int amount) {
+		return new BigDecimal(amount).setScale(Money.SCALE);
+	}
+}
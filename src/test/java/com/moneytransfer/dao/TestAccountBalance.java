@@ -6,10 +6,12 @@ import com.moneytransfer.dao.impl.H2DAOFactoryImpl;
 import com.moneytransfer.exception.MoneyTransferException;
 import com.moneytransfer.model.Account;
 import com.moneytransfer.model.Transaction;
+import com.moneytransfer.model.TransactionResult;
 
 import org.apache.commons.dbutils.DbUtils;
 import org.apache.log4j.Logger;
 import org.junit.After;
+import org.junit.Assume;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
@@ -19,9 +21,12 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import static junit.framework.TestCase.assertFalse;
 import static junit.framework.TestCase.assertTrue;
 
 public class TestAccountBalance {
@@ -116,6 +121,8 @@ public class TestAccountBalance {
 
 	@Test
 	public void testTransferFailOnDBLock() throws MoneyTransferException, SQLException {
+		// relies on H2 row locks, not applicable to the in-process ledger
+		Assume.assumeTrue(h2DaoFactory instanceof H2DAOFactoryImpl);
 		BigDecimal originalBalance = new BigDecimal(500).setScale(4, RoundingMode.HALF_EVEN);
 		final String SQL_LOCK_ACC = "SELECT * FROM Account WHERE AccountId = 5 FOR UPDATE";
 		
@@ -165,4 +172,57 @@ public class TestAccountBalance {
 		assertTrue(h2DaoFactory.getAccountDAO().getAccountById(5).getBalance().equals(originalBalance));
 	}
 
+	@Test
+	public void testTransferBumpsVersion() throws MoneyTransferException, SQLException {
+		// optimistic updates check the version written by every balance update
+		Assume.assumeTrue(h2DaoFactory instanceof H2DAOFactoryImpl);
+		final AccountDAO accountDAO = h2DaoFactory.getAccountDAO();
+		long fromVersion = getVersion(3);
+		long toVersion = getVersion(4);
+		BigDecimal amount = new BigDecimal(1).setScale(4, RoundingMode.HALF_EVEN);
+
+		assertTrue(accountDAO.transferAccountBalance(new Transaction("EUR", amount, 3L, 4L)) == 2);
+		assertTrue(accountDAO.transferAccountBalance(new Transaction("EUR", amount, 4L, 3L)) == 2);
+		assertTrue(accountDAO.updateAccountBalance(3, 0) == 1);
+
+		assertTrue(getVersion(3) == fromVersion + 3);
+		assertTrue(getVersion(4) == toVersion + 2);
+	}
+
+	private static long getVersion(long accountId) throws SQLException {
+		Connection conn = null;
+		PreparedStatement stmt = null;
+		ResultSet rs = null;
+		try {
+			conn = H2DAOFactoryImpl.getConnection();
+			stmt = conn.prepareStatement("SELECT Version FROM Account WHERE AccountId = ?");
+			stmt.setLong(1, accountId);
+			rs = stmt.executeQuery();
+			assertTrue(rs.next());
+			return rs.getLong(1);
+		} finally {
+			DbUtils.closeQuietly(conn, stmt, rs);
+		}
+	}
+
+	@Test
+	public void testBatchTransfer() throws MoneyTransferException {
+		final AccountDAO accountDAO = h2DaoFactory.getAccountDAO();
+		BigDecimal originalBalance = new BigDecimal(500).setScale(4, RoundingMode.HALF_EVEN);
+		BigDecimal amount = new BigDecimal(50).setScale(4, RoundingMode.HALF_EVEN);
+
+		// net zero batch on account 5 and 6, the middle transfer lacks fund
+		List<TransactionResult> results = accountDAO.transferAccountBalanceBatch(Arrays.asList(
+				new Transaction("GBP", amount, 5L, 6L),
+				new Transaction("GBP", new BigDecimal(100000).setScale(4, RoundingMode.HALF_EVEN), 5L, 6L),
+				new Transaction("GBP", amount, 6L, 5L)));
+
+		assertTrue(results.size() == 3);
+		assertTrue(results.get(0).isSuccess());
+		assertFalse(results.get(1).isSuccess());
+		assertTrue(results.get(2).isSuccess());
+		assertTrue(accountDAO.getAccountById(5).getBalance().equals(originalBalance));
+		assertTrue(accountDAO.getAccountById(6).getBalance().equals(originalBalance));
+	}
+
 }
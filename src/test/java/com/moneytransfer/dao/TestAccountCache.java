@@ -0,0 +1,95 @@
+package com.moneytransfer.dao;
+
+import com.moneytransfer.dao.impl.AccountCache;
+import com.moneytransfer.dao.impl.CachingAccountDAO;
+import com.moneytransfer.exception.MoneyTransferException;
+import com.moneytransfer.model.Account;
+import com.moneytransfer.model.Money;
+import com.moneytransfer.model.Transaction;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertNull;
+import static junit.framework.TestCase.assertSame;
+
+public class TestAccountCache {
+
+	private static final DAOFactory h2DaoFactory = DAOFactory.getDAOFactory();
+
+	@BeforeClass
+	public static void setup() {
+		h2DaoFactory.populateTestData();
+	}
+
+	@Test
+	public void testLruEviction() {
+		AccountCache cache = new AccountCache(2, 0);
+		cache.put(account(1, 10), cache.generation(1));
+		cache.put(account(2, 20), cache.generation(2));
+		// touch 1 so that 2 is the least recently used
+		cache.get(1);
+		cache.put(account(3, 30), cache.generation(3));
+
+		assertNull(cache.get(2));
+		assertEquals(amount(10), cache.get(1).getBalance());
+		assertEquals(1, cache.getEvictionCount());
+		assertEquals(2, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+	}
+
+	@Test
+	public void testTtlExpiry() throws InterruptedException {
+		AccountCache cache = new AccountCache(10, 20);
+		cache.put(account(1, 10), cache.generation(1));
+		Thread.sleep(50);
+		assertNull(cache.get(1));
+		assertEquals(1, cache.getExpirationCount());
+	}
+
+	@Test
+	public void testStalePutIsDropped() {
+		AccountCache cache = new AccountCache(10, 0);
+		long generation = cache.generation(1);
+		// a write invalidates the account while the reader is loading it
+		cache.invalidate(1);
+		cache.put(account(1, 10), generation);
+		assertNull(cache.get(1));
+	}
+
+	@Test
+	public void testWritesInvalidate() throws MoneyTransferException {
+		AccountDAO accountDAO = h2DaoFactory.getAccountDAO();
+		if (!(accountDAO instanceof CachingAccountDAO)) {
+			accountDAO = new CachingAccountDAO(accountDAO, new AccountCache(100, 0));
+		}
+		long from = accountDAO.createAccount(new Account("cachefrom", amount(100), "USD"));
+		long to = accountDAO.createAccount(new Account("cacheto", amount(100), "USD"));
+
+		Account cached = accountDAO.getAccountById(from);
+		assertSame(cached, accountDAO.getAccountById(from));
+
+		accountDAO.updateAccountBalance(from, Money.toUnits(amount(10)));
+		assertEquals(amount(110), accountDAO.getAccountById(from).getBalance());
+
+		accountDAO.getAccountById(to);
+		accountDAO.transferAccountBalance(new Transaction("USD", amount(10), from, to));
+		assertEquals(amount(100), accountDAO.getAccountById(from).getBalance());
+		assertEquals(amount(110), accountDAO.getAccountById(to).getBalance());
+
+		accountDAO.deleteAccountById(to);
+		assertNull(accountDAO.getAccountById(to));
+	}
+
+	private static Account account(long accountId, int balance) {
+		return new Account(accountId, "cached", amount(balance), "USD");
+	}
+
+	private static BigDecimal amount(int value) {
+		return new BigDecimal(value).setScale(4, RoundingMode.HALF_EVEN);
+	}
+}
@@ -3,16 +3,24 @@ package com.moneytransfer.dao;
 import com.moneytransfer.dao.DAOFactory;
 import com.moneytransfer.exception.MoneyTransferException;
 import com.moneytransfer.model.Account;
+import com.moneytransfer.model.AccountTransaction;
+import com.moneytransfer.model.Money;
+import com.moneytransfer.model.Transaction;
 
 import org.junit.After;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import java.io.IOException;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
+import static junit.framework.TestCase.assertEquals;
 import static junit.framework.TestCase.assertTrue;
+import static junit.framework.TestCase.fail;
 
 public class TestAccountDAO {
 
@@ -93,14 +101,14 @@ public class TestAccountDAO {
 		BigDecimal deltaDeposit = new BigDecimal(50).setScale(4, RoundingMode.HALF_EVEN);
 		BigDecimal afterDeposit = new BigDecimal(150).setScale(4, RoundingMode.HALF_EVEN);
 		
-		int rowsUpdated = h2DaoFactory.getAccountDAO().updateAccountBalance(1L, deltaDeposit);
+		int rowsUpdated = h2DaoFactory.getAccountDAO().updateAccountBalance(1L, Money.toUnits(deltaDeposit));
 		assertTrue(rowsUpdated == 1);
 		assertTrue(h2DaoFactory.getAccountDAO().getAccountById(1L).getBalance().equals(afterDeposit));
 		
 		BigDecimal deltaWithDraw = new BigDecimal(-50).setScale(4, RoundingMode.HALF_EVEN);
 		BigDecimal afterWithDraw = new BigDecimal(100).setScale(4, RoundingMode.HALF_EVEN);
 		
-		int rowsUpdatedW = h2DaoFactory.getAccountDAO().updateAccountBalance(1L, deltaWithDraw);
+		int rowsUpdatedW = h2DaoFactory.getAccountDAO().updateAccountBalance(1L, Money.toUnits(deltaWithDraw));
 		assertTrue(rowsUpdatedW == 1);
 		assertTrue(h2DaoFactory.getAccountDAO().getAccountById(1L).getBalance().equals(afterWithDraw));
 	}
@@ -108,7 +116,107 @@ public class TestAccountDAO {
 	@Test(expected = MoneyTransferException.class)
 	public void testUpdateAccountBalanceNotEnoughFund() throws MoneyTransferException {
 		BigDecimal deltaWithDraw = new BigDecimal(-50000).setScale(4, RoundingMode.HALF_EVEN);
-		int rowsUpdatedW = h2DaoFactory.getAccountDAO().updateAccountBalance(1L, deltaWithDraw);
+		int rowsUpdatedW = h2DaoFactory.getAccountDAO().updateAccountBalance(1L, Money.toUnits(deltaWithDraw));
 		assertTrue(rowsUpdatedW == 0);
 	}
-}
\ No newline at end of file
+
+	@Test
+	public void testWriteAndGet() throws MoneyTransferException {
+		BigDecimal balance = new BigDecimal(10).setScale(4, RoundingMode.HALF_EVEN);
+		Account created = h2DaoFactory.getAccountDAO().createAccountAndGet(new Account("test3", balance, "CNY"));
+		assertTrue(created.getAccountId() > 0);
+		assertTrue(created.getBalance().equals(balance));
+		assertTrue(created.getUserName().equals("test3"));
+
+		BigDecimal deltaDeposit = new BigDecimal(5).setScale(4, RoundingMode.HALF_EVEN);
+		Account updated = h2DaoFactory.getAccountDAO().updateAccountBalanceAndGet(created.getAccountId(),
+				Money.toUnits(deltaDeposit));
+		assertTrue(updated.getBalance().equals(new BigDecimal(15).setScale(4, RoundingMode.HALF_EVEN)));
+		assertTrue(updated.getCurrencyCode().equals("CNY"));
+		Account stored = h2DaoFactory.getAccountDAO().getAccountById(created.getAccountId());
+		assertTrue(stored.getBalance().equals(updated.getBalance()));
+	}
+
+	@Test
+	public void testStreamAccounts() throws MoneyTransferException, IOException {
+		AccountDAO accountDAO = h2DaoFactory.getAccountDAO();
+		final List<Account> streamed = new ArrayList<Account>();
+		RowCallback<Account> collect = new RowCallback<Account>() {
+			@Override
+			public void row(Account row) {
+				streamed.add(row);
+			}
+		};
+		assertEquals(accountDAO.getAllAccounts().size(), accountDAO.streamAccounts(0, null, Integer.MAX_VALUE, collect));
+		for (int i = 1; i < streamed.size(); i++) {
+			assertTrue(streamed.get(i - 1).getAccountId() < streamed.get(i).getAccountId());
+		}
+
+		// pages of two USD accounts
+		streamed.clear();
+		long afterId = 0;
+		while (accountDAO.streamAccounts(afterId, "USD", 2, collect) > 0) {
+			afterId = streamed.get(streamed.size() - 1).getAccountId();
+		}
+		assertTrue(streamed.size() >= 2);
+		for (Account account : streamed) {
+			assertEquals("USD", account.getCurrencyCode());
+		}
+	}
+
+	@Test
+	public void testTransactionHistoryPages() throws MoneyTransferException {
+		AccountDAO accountDAO = h2DaoFactory.getAccountDAO();
+		long from = accountDAO.createAccount(new Account("history", new BigDecimal(100), "SEK"));
+		long to = accountDAO.createAccount(new Account("history2", new BigDecimal(0), "SEK"));
+		for (int i = 1; i <= 3; i++) {
+			accountDAO.transferAccountBalance(new Transaction("SEK", new BigDecimal(i), from, to));
+		}
+		// the failed transfer of the batch leaves no history
+		accountDAO.transferAccountBalanceBatch(Arrays.asList(new Transaction("SEK", new BigDecimal(4), from, to),
+				new Transaction("SEK", new BigDecimal(1000), from, to)));
+
+		List<AccountTransaction> first = accountDAO.getTransactions(from, Long.MAX_VALUE, 3);
+		assertEquals(3, first.size());
+		assertEquals(new BigDecimal(-4).setScale(Money.SCALE), first.get(0).getAmount());
+		assertEquals(new BigDecimal(90).setScale(Money.SCALE), first.get(0).getBalance());
+		assertEquals(to, first.get(0).getCounterpartyAccountId());
+		assertTrue(first.get(0).getTxnId() > first.get(1).getTxnId());
+		List<AccountTransaction> second = accountDAO.getTransactions(from, first.get(2).getTxnId(), 3);
+		assertEquals(1, second.size());
+		assertEquals(new BigDecimal(-1).setScale(Money.SCALE), second.get(0).getAmount());
+
+		List<AccountTransaction> credits = accountDAO.getTransactions(to, Long.MAX_VALUE, 10);
+		assertEquals(4, credits.size());
+		assertEquals(new BigDecimal(10).setScale(Money.SCALE), credits.get(0).getBalance());
+		assertTrue(accountDAO.getTransactions(100L, Long.MAX_VALUE, 10).isEmpty());
+	}
+
+	@Test
+	public void testUpdateAccountBalanceOverflow() throws MoneyTransferException {
+		BigDecimal before = h2DaoFactory.getAccountDAO().getAccountById(1L).getBalance();
+		try {
+			h2DaoFactory.getAccountDAO().updateAccountBalance(1L, Long.MAX_VALUE);
+			fail("balance overflow must be rejected");
+		} catch (MoneyTransferException e) {
+			// expected
+		}
+		assertTrue(h2DaoFactory.getAccountDAO().getAccountById(1L).getBalance().equals(before));
+	}
+
+	@Test
+	public void testTransferOverflow() throws MoneyTransferException {
+		AccountDAO accountDAO = h2DaoFactory.getAccountDAO();
+		long full = accountDAO.createAccount(new Account("full", Money.toBigDecimal(Long.MAX_VALUE), "USD"));
+		BigDecimal before = accountDAO.getAccountById(1L).getBalance();
+		try {
+			accountDAO.transferAccountBalance(new Transaction("USD", BigDecimal.ONE, 1L, full));
+			fail("balance overflow must be rejected");
+		} catch (MoneyTransferException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith("Amount out of range"));
+		}
+		assertEquals(before, accountDAO.getAccountById(1L).getBalance());
+		assertEquals(Money.toBigDecimal(Long.MAX_VALUE), accountDAO.getAccountById(full).getBalance());
+		accountDAO.deleteAccountById(full);
+	}
+}
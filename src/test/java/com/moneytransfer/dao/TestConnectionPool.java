@@ -0,0 +1,163 @@
+package com.moneytransfer.dao;
+
+import com.moneytransfer.dao.pool.ConnectionPool;
+
+import org.apache.commons.dbutils.DbUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestConnectionPool {
+
+	private static final String URL = "jdbc:h2:mem:poolTest;DB_CLOSE_DELAY=-1";
+
+	private ConnectionPool pool;
+
+	@Before
+	public void setup() {
+		DbUtils.loadDriver("org.h2.Driver");
+		pool = new ConnectionPool(URL, "sa", "sa", 1, 2, 100, 200, 0, 1, 2);
+	}
+
+	@After
+	public void tearDown() {
+		pool.shutdown();
+	}
+
+	@Test
+	public void testReuseReturnedConnection() throws SQLException {
+		Connection first = pool.getConnection();
+		Connection physical = first.unwrap(Connection.class);
+		first.close();
+		Connection second = pool.getConnection();
+		assertTrue(second.unwrap(Connection.class) == physical);
+		assertEquals(1, pool.getActiveCount());
+		second.close();
+		assertEquals(0, pool.getActiveCount());
+		assertEquals(1, pool.getIdleCount());
+	}
+
+	@Test
+	public void testBorrowTimeoutWhenExhausted() throws SQLException {
+		Connection c1 = pool.getConnection();
+		Connection c2 = pool.getConnection();
+		try {
+			pool.getConnection();
+			fail("pool should be exhausted");
+		} catch (SQLException e) {
+			assertEquals(1, pool.getTimeoutCount());
+		} finally {
+			DbUtils.closeQuietly(c1);
+			DbUtils.closeQuietly(c2);
+		}
+		assertTrue(pool.getTotalCount() <= 2);
+	}
+
+	@Test
+	public void testReturnedConnectionIsReset() throws SQLException {
+		Connection conn = pool.getConnection();
+		conn.setAutoCommit(false);
+		conn.close();
+		// closing twice must not return the connection twice
+		conn.close();
+		assertTrue(conn.isClosed());
+		assertEquals(1, pool.getIdleCount());
+
+		Connection reused = pool.getConnection();
+		assertTrue(reused.getAutoCommit());
+		reused.close();
+	}
+
+	@Test(expected = SQLException.class)
+	public void testUseAfterClose() throws SQLException {
+		Connection conn = pool.getConnection();
+		conn.close();
+		conn.createStatement();
+	}
+
+	@Test
+	public void testIdleEviction() throws Exception {
+		Connection c1 = pool.getConnection();
+		Connection c2 = pool.getConnection();
+		c1.close();
+		c2.close();
+		assertEquals(2, pool.getTotalCount());
+		// idle timeout is 100ms, evictor keeps the min size of 1
+		Thread.sleep(500);
+		assertEquals(1, pool.getTotalCount());
+		assertFalse(pool.getDestroyedCount() == 0);
+	}
+
+	@Test
+	public void testStatementCacheReusesStatements() throws SQLException {
+		Connection conn = pool.getConnection();
+		PreparedStatement first = conn.prepareStatement("SELECT 1");
+		first.executeQuery().close();
+		first.close();
+		PreparedStatement second = conn.prepareStatement("SELECT 1");
+		ResultSet rs = second.executeQuery();
+		assertTrue(rs.next());
+		rs.close();
+		second.close();
+		conn.close();
+		assertEquals(1, pool.getStatementCacheMisses());
+		assertEquals(1, pool.getStatementCacheHits());
+
+		// statements survive the connection going back to the pool
+		conn = pool.getConnection();
+		conn.prepareStatement("SELECT 1").close();
+		conn.close();
+		assertEquals(2, pool.getStatementCacheHits());
+	}
+
+	@Test
+	public void testStatementLentOutTwice() throws SQLException {
+		Connection conn = pool.getConnection();
+		PreparedStatement first = conn.prepareStatement("SELECT ?");
+		PreparedStatement second = conn.prepareStatement("SELECT ?");
+		assertFalse(first.unwrap(PreparedStatement.class) == second.unwrap(PreparedStatement.class));
+		first.setInt(1, 1);
+		second.setInt(1, 2);
+		ResultSet rs1 = first.executeQuery();
+		ResultSet rs2 = second.executeQuery();
+		assertTrue(rs1.next() && rs2.next());
+		assertEquals(1, rs1.getInt(1));
+		assertEquals(2, rs2.getInt(1));
+		DbUtils.closeQuietly(rs1);
+		DbUtils.closeQuietly(rs2);
+		DbUtils.closeQuietly(first);
+		DbUtils.closeQuietly(second);
+		// the connection is shown to the statement's caller, not the physical one
+		PreparedStatement third = conn.prepareStatement("SELECT ?");
+		assertTrue(third.getConnection() == conn);
+		third.close();
+		conn.close();
+	}
+
+	@Test
+	public void testReturnAfterShutdown() throws SQLException {
+		Connection conn = pool.getConnection();
+		Connection physical = conn.unwrap(Connection.class);
+		pool.shutdown();
+		conn.close();
+		assertTrue(physical.isClosed());
+		assertEquals(0, pool.getIdleCount());
+		assertEquals(0, pool.getTotalCount());
+		try {
+			pool.getConnection();
+			fail("pool is shut down");
+		} catch (SQLException e) {
+			// expected
+		}
+	}
+}
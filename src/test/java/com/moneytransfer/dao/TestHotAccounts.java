@@ -0,0 +1,188 @@
+package com.moneytransfer.dao;
+
+import com.moneytransfer.dao.impl.AccountDAOImpl;
+import com.moneytransfer.dao.impl.H2DAOFactoryImpl;
+import com.moneytransfer.dao.impl.HotAccounts;
+import com.moneytransfer.exception.MoneyTransferException;
+import com.moneytransfer.model.Transaction;
+import com.moneytransfer.model.TransactionResult;
+
+import org.apache.commons.dbutils.DbUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertFalse;
+import static junit.framework.TestCase.assertTrue;
+import static junit.framework.TestCase.fail;
+
+/**
+ * Account 2 (ronaldo, USD 200) spread over 4 sub-ledger slots.
+ */
+public class TestHotAccounts {
+
+	private static final DAOFactory h2DaoFactory = DAOFactory.getDAOFactory(DAOFactory.H2);
+	private final AccountDAO accountDAO = new AccountDAOImpl(H2DAOFactoryImpl.getConnectionPool(), null,
+			AccountDAOImpl.UpdateMode.PESSIMISTIC, new HotAccounts(Collections.singleton(2L), 4));
+
+	@Before
+	public void setup() {
+		h2DaoFactory.populateTestData();
+	}
+
+	@Test
+	public void testCreditsGoToSlots() throws MoneyTransferException, SQLException {
+		for (int i = 0; i < 10; i++) {
+			assertEquals(2, accountDAO.transferAccountBalance(new Transaction("USD", amount(1), 1L, 2L)));
+		}
+		assertEquals(amount(90), accountDAO.getAccountById(1).getBalance());
+		assertEquals(amount(210), accountDAO.getAccountById(2).getBalance());
+		// the Account row keeps its balance, the credits are in the slots
+		assertEquals(amount(200), query("SELECT Balance FROM Account WHERE AccountId = 2"));
+		assertEquals(amount(10), query("SELECT SUM(Balance) FROM AccountSlot WHERE AccountId = 2"));
+	}
+
+	@Test
+	public void testDebitDrawsSlots() throws MoneyTransferException, SQLException {
+		assertEquals(1, accountDAO.updateAccountBalance(2, 50 * 10000L));
+		// more than the Account row holds, covered by the slots
+		assertEquals(2, accountDAO.transferAccountBalance(new Transaction("USD", amount(240), 2L, 1L)));
+		assertEquals(amount(10), accountDAO.getAccountById(2).getBalance());
+		assertEquals(amount(340), accountDAO.getAccountById(1).getBalance());
+		assertEquals(amount(0), query("SELECT SUM(Balance) FROM AccountSlot WHERE AccountId = 2"));
+	}
+
+	@Test
+	public void testDebitNotEnoughFund() throws MoneyTransferException {
+		assertEquals(1, accountDAO.updateAccountBalance(2, 50 * 10000L));
+		try {
+			accountDAO.transferAccountBalance(new Transaction("USD", amount(251), 2L, 1L));
+			fail("transfer above the balance of the row and the slots must fail");
+		} catch (MoneyTransferException e) {
+			// expected
+		}
+		try {
+			accountDAO.updateAccountBalance(2, -251 * 10000L);
+			fail("withdrawal above the balance of the row and the slots must fail");
+		} catch (MoneyTransferException e) {
+			// expected
+		}
+		assertEquals(amount(250), accountDAO.getAccountById(2).getBalance());
+		assertEquals(amount(100), accountDAO.getAccountById(1).getBalance());
+	}
+
+	@Test
+	public void testConcurrentCredits() throws InterruptedException, MoneyTransferException {
+		final int threads = 50;
+		final CountDownLatch latch = new CountDownLatch(threads);
+		final AtomicInteger failures = new AtomicInteger();
+		for (int i = 0; i < threads; i++) {
+			new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						if (accountDAO.updateAccountBalance(2, 10000L) != 1) {
+							failures.incrementAndGet();
+						}
+					} catch (MoneyTransferException e) {
+						failures.incrementAndGet();
+					} finally {
+						latch.countDown();
+					}
+				}
+			}).start();
+		}
+		latch.await();
+		assertEquals(0, failures.get());
+		assertEquals(amount(250), accountDAO.getAccountById(2).getBalance());
+	}
+
+	@Test
+	public void testFirstCreditRacesDebit() throws Exception {
+		for (int round = 0; round < 20; round++) {
+			h2DaoFactory.populateTestData();
+			final CountDownLatch start = new CountDownLatch(1);
+			final AtomicInteger failures = new AtomicInteger();
+			// the credit creates the slots while the debit may already hold the account
+			Thread credit = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						if (accountDAO.transferAccountBalance(new Transaction("USD", amount(10), 1L, 2L)) != 2) {
+							failures.incrementAndGet();
+						}
+					} catch (Exception e) {
+						failures.incrementAndGet();
+					}
+				}
+			});
+			Thread debit = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						if (accountDAO.updateAccountBalance(2, -5 * 10000L) != 1) {
+							failures.incrementAndGet();
+						}
+					} catch (Exception e) {
+						failures.incrementAndGet();
+					}
+				}
+			});
+			credit.start();
+			debit.start();
+			start.countDown();
+			credit.join();
+			debit.join();
+			assertEquals(0, failures.get());
+			assertEquals(amount(90), accountDAO.getAccountById(1).getBalance());
+			assertEquals(amount(205), accountDAO.getAccountById(2).getBalance());
+		}
+	}
+
+	@Test
+	public void testBatchWithHotAccount() throws MoneyTransferException {
+		List<TransactionResult> results = accountDAO.transferAccountBalanceBatch(Arrays.asList(
+				new Transaction("USD", amount(100), 1L, 2L),
+				new Transaction("USD", amount(1), 1L, 2L),
+				new Transaction("USD", amount(300), 2L, 1L)));
+
+		assertTrue(results.get(0).isSuccess());
+		assertFalse(results.get(1).isSuccess());
+		assertTrue(results.get(2).isSuccess());
+		assertEquals(amount(300), accountDAO.getAccountById(1).getBalance());
+		assertEquals(amount(0), accountDAO.getAccountById(2).getBalance());
+	}
+
+	private static BigDecimal query(String sql) throws SQLException {
+		Connection conn = null;
+		Statement stmt = null;
+		ResultSet rs = null;
+		try {
+			conn = H2DAOFactoryImpl.getConnection();
+			stmt = conn.createStatement();
+			rs = stmt.executeQuery(sql);
+			assertTrue(rs.next());
+			return rs.getBigDecimal(1);
+		} finally {
+			DbUtils.closeQuietly(conn, stmt, rs);
+		}
+	}
+
+	private static BigDecimal amount(int amount) {
+		return new BigDecimal(amount).setScale(4, RoundingMode.HALF_EVEN);
+	}
+}
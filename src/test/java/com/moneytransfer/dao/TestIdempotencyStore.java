@@ -0,0 +1,112 @@
+package com.moneytransfer.dao;
+
+import com.moneytransfer.dao.impl.H2DAOFactoryImpl;
+import com.moneytransfer.dao.impl.IdempotencyStore;
+import com.moneytransfer.exception.MoneyTransferException;
+
+import org.junit.Test;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertFalse;
+import static junit.framework.TestCase.assertNotNull;
+import static junit.framework.TestCase.assertNull;
+import static junit.framework.TestCase.assertTrue;
+
+public class TestIdempotencyStore {
+
+	@Test
+	public void testClaimCompleteRelease() throws MoneyTransferException {
+		IdempotencyStore store = new IdempotencyStore(10, 60000, 60000, null);
+		try {
+			assertNull(store.claim("a", 1));
+			IdempotencyStore.Entry inProgress = store.claim("a", 1);
+			assertNotNull(inProgress);
+			assertFalse(inProgress.isCompleted());
+
+			store.complete("a", 500, "Not enough Fund from source Account ");
+			IdempotencyStore.Entry completed = store.claim("a", 1);
+			assertTrue(completed.isCompleted());
+			assertEquals(500, completed.getStatus());
+			assertEquals("Not enough Fund from source Account ", completed.getMessage());
+
+			// a released key can be claimed again
+			assertNull(store.claim("b", 2));
+			store.release("b");
+			assertNull(store.claim("b", 2));
+		} finally {
+			store.shutdown();
+		}
+	}
+
+	@Test
+	public void testEvictOldestBeyondMaxSize() throws MoneyTransferException {
+		IdempotencyStore store = new IdempotencyStore(3, 60000, 60000, null);
+		try {
+			for (int i = 0; i < 5; i++) {
+				assertNull(store.claim("key" + i, i));
+				store.complete("key" + i, 200, null);
+			}
+			assertEquals(3, store.size());
+			// key0 and key1 were evicted, so they can be claimed again
+			assertNull(store.claim("key0", 0));
+			assertNotNull(store.claim("key4", 4));
+		} finally {
+			store.shutdown();
+		}
+	}
+
+	@Test
+	public void testExpiredKeyCanBeClaimed() throws InterruptedException, MoneyTransferException {
+		IdempotencyStore store = new IdempotencyStore(10, 50, 60000, null);
+		try {
+			assertNull(store.claim("a", 1));
+			store.complete("a", 200, null);
+			Thread.sleep(100);
+			assertNull(store.claim("a", 2));
+		} finally {
+			store.shutdown();
+		}
+	}
+
+	@Test
+	public void testOutcomesReloadedFromTable() throws MoneyTransferException {
+		IdempotencyStore store = new IdempotencyStore(10, 60000, 60000, H2DAOFactoryImpl.getConnectionPool());
+		store.clear();
+		assertNull(store.claim("persisted", 7));
+		store.complete("persisted", 200, null);
+		store.shutdown();
+
+		IdempotencyStore reloaded = new IdempotencyStore(10, 60000, 60000, H2DAOFactoryImpl.getConnectionPool());
+		try {
+			IdempotencyStore.Entry entry = reloaded.claim("persisted", 7);
+			assertNotNull(entry);
+			assertEquals(200, entry.getStatus());
+			assertEquals(7, entry.getRequestHash());
+		} finally {
+			reloaded.clear();
+			reloaded.shutdown();
+		}
+	}
+
+	@Test
+	public void testClaimReloadedBeforeOutcome() throws MoneyTransferException {
+		IdempotencyStore store = new IdempotencyStore(10, 60000, 60000, H2DAOFactoryImpl.getConnectionPool());
+		store.clear();
+		assertNull(store.claim("interrupted", 7));
+		assertNull(store.claim("released", 8));
+		store.release("released");
+		// stopped before the outcome of "interrupted" was known
+		store.shutdown();
+
+		IdempotencyStore reloaded = new IdempotencyStore(10, 60000, 60000, H2DAOFactoryImpl.getConnectionPool());
+		try {
+			IdempotencyStore.Entry entry = reloaded.claim("interrupted", 7);
+			assertNotNull(entry);
+			assertFalse(entry.isCompleted());
+			assertNull(reloaded.claim("released", 8));
+		} finally {
+			reloaded.clear();
+			reloaded.shutdown();
+		}
+	}
+}
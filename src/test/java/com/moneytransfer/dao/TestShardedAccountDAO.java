@@ -0,0 +1,217 @@
+package com.moneytransfer.dao;
+
+import com.moneytransfer.dao.impl.ShardedAccountDAOImpl;
+import com.moneytransfer.dao.impl.ShardedDAOFactoryImpl;
+import com.moneytransfer.dao.journal.DecisionLog;
+import com.moneytransfer.dao.pool.ConnectionPool;
+import com.moneytransfer.exception.MoneyTransferException;
+import com.moneytransfer.model.Account;
+import com.moneytransfer.model.AccountTransaction;
+import com.moneytransfer.model.Money;
+import com.moneytransfer.model.Transaction;
+
+import org.apache.commons.dbutils.DbUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertFalse;
+import static junit.framework.TestCase.assertTrue;
+import static junit.framework.TestCase.fail;
+
+public class TestShardedAccountDAO {
+
+	private static final DAOFactory daoFactory;
+
+	static {
+		// keep the factory's decision log out of the working directory
+		try {
+			System.setProperty("shard_decision_log",
+					File.createTempFile("shard-decisions", ".log").getAbsolutePath());
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		daoFactory = DAOFactory.getDAOFactory(DAOFactory.SHARDED);
+	}
+
+	private File logFile;
+
+	@Before
+	public void setUp() throws IOException {
+		daoFactory.populateTestData();
+		logFile = File.createTempFile("decisions", ".log");
+	}
+
+	@After
+	public void tearDown() {
+		logFile.delete();
+	}
+
+	@Test
+	public void testAccountsSpreadOverShards() throws MoneyTransferException {
+		ShardedAccountDAOImpl dao = ShardedDAOFactoryImpl.getShardedAccountDAO();
+		assertEquals(0, dao.shardOf(1));
+		assertEquals(1, dao.shardOf(2));
+		assertEquals(6, daoFactory.getAccountDAO().getAllAccounts().size());
+
+		// new ids belong to the shard the account was created on
+		for (String user : new String[] { "david", "ronaldo", "barry" }) {
+			long accountId = daoFactory.getAccountDAO()
+					.createAccount(new Account(user, new BigDecimal("10.0000"), "JPY"));
+			assertTrue(accountId > 6);
+			assertEquals(user, daoFactory.getAccountDAO().getAccountById(accountId).getUserName());
+		}
+		try {
+			daoFactory.getAccountDAO().createAccount(new Account("david", new BigDecimal("10.0000"), "JPY"));
+			fail("duplicate account created");
+		} catch (MoneyTransferException e) {
+			// rejected by the unique index of the same shard
+		}
+	}
+
+	@Test
+	public void testCrossShardTransfersKeepTotal() throws Exception {
+		final AccountDAO accountDAO = daoFactory.getAccountDAO();
+		final int threads = 8;
+		final CountDownLatch latch = new CountDownLatch(threads);
+		for (int i = 0; i < threads; i++) {
+			final boolean forward = i % 2 == 0;
+			new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						for (int n = 0; n < 50; n++) {
+							try {
+								accountDAO.transferAccountBalance(
+										new Transaction("USD", new BigDecimal(3), forward ? 1L : 2L, forward ? 2L : 1L));
+							} catch (MoneyTransferException e) {
+								// not enough fund, nothing applied
+							}
+						}
+					} finally {
+						latch.countDown();
+					}
+				}
+			}).start();
+		}
+		latch.await();
+
+		ShardedAccountDAOImpl dao = ShardedDAOFactoryImpl.getShardedAccountDAO();
+		long total = dao.getAccountById(1).getBalanceUnits() + dao.getAccountById(2).getBalanceUnits();
+		assertEquals(Money.toUnits(new BigDecimal(300)), total);
+
+		// every applied transfer left one history row on each shard, the newest
+		// one holding the current balance
+		List<AccountTransaction> history1 = dao.getTransactions(1, Long.MAX_VALUE, 1000);
+		List<AccountTransaction> history2 = dao.getTransactions(2, Long.MAX_VALUE, 1000);
+		assertEquals(history1.size(), history2.size());
+		assertFalse(history1.isEmpty());
+		assertEquals(dao.getAccountById(1).getBalance(), history1.get(0).getBalance());
+		assertEquals(dao.getAccountById(2).getBalance(), history2.get(0).getBalance());
+	}
+
+	@Test
+	public void testCrossShardFailureRollsBackBothLegs() throws MoneyTransferException {
+		AccountDAO accountDAO = daoFactory.getAccountDAO();
+		try {
+			accountDAO.transferAccountBalance(new Transaction("USD", new BigDecimal(1000), 1L, 2L));
+			fail("transfer over the balance applied");
+		} catch (MoneyTransferException e) {
+			// debit leg refused
+		}
+		try {
+			// the debit is applied on shard 0 before the missing account fails the credit on shard 1
+			accountDAO.transferAccountBalance(new Transaction("USD", new BigDecimal(10), 1L, 1000L));
+			fail("transfer to a missing account applied");
+		} catch (MoneyTransferException e) {
+			// credit leg refused
+		}
+		ShardedAccountDAOImpl dao = ShardedDAOFactoryImpl.getShardedAccountDAO();
+		assertEquals(new BigDecimal("100.0000"), dao.getAccountById(1).getBalance());
+		assertEquals(new BigDecimal("200.0000"), dao.getAccountById(2).getBalance());
+		assertTrue(dao.getTransactions(1, Long.MAX_VALUE, 10).isEmpty());
+		assertTrue(dao.getTransactions(2, Long.MAX_VALUE, 10).isEmpty());
+	}
+
+	@Test
+	public void testRecoverResolvesPreparedTransfers() throws Exception {
+		ConnectionPool[] pools = ShardedDAOFactoryImpl.getConnectionPools();
+		DecisionLog log = new DecisionLog(logFile, 1024);
+		ShardedAccountDAOImpl dao = new ShardedAccountDAOImpl(pools, log);
+		long committed = log.nextId();
+		long aborted = log.nextId();
+		// both legs of two transfers prepared as by a coordinator that then stopped,
+		// only the first one got as far as logging its decision
+		Connection[] legs = new Connection[] { prepare(pools[0], 1, -10, committed),
+				prepare(pools[1], 2, 10, committed), prepare(pools[0], 5, -50, aborted),
+				prepare(pools[1], 6, 50, aborted) };
+		log.commit(committed);
+		try {
+			assertEquals(4, dao.recover());
+			assertEquals(new BigDecimal("90.0000"), dao.getAccountById(1).getBalance());
+			assertEquals(new BigDecimal("210.0000"), dao.getAccountById(2).getBalance());
+			assertEquals(new BigDecimal("500.0000"), dao.getAccountById(5).getBalance());
+			assertEquals(new BigDecimal("500.0000"), dao.getAccountById(6).getBalance());
+			assertTrue(log.getPending().isEmpty());
+			assertEquals(0, dao.recover());
+		} finally {
+			for (Connection leg : legs) {
+				DbUtils.closeQuietly(leg);
+			}
+			log.close();
+		}
+	}
+
+	@Test
+	public void testDecisionLogReopen() throws Exception {
+		DecisionLog log = new DecisionLog(logFile, 1024);
+		long first = log.nextId();
+		long second = log.nextId();
+		log.commit(first);
+		log.commit(second);
+		log.done(first);
+		log.close();
+		// a torn record at the tail is dropped
+		RandomAccessFile raf = new RandomAccessFile(logFile, "rw");
+		raf.setLength(raf.length() + 5);
+		raf.close();
+
+		log = new DecisionLog(logFile, 1024);
+		assertFalse(log.isCommitted(first));
+		assertTrue(log.isCommitted(second));
+		assertTrue(log.nextId() > second);
+		// the log is rewritten with the pending commits once it outgrows its limit
+		for (int i = 0; i < 100; i++) {
+			long id = log.nextId();
+			log.commit(id);
+			log.done(id);
+		}
+		assertTrue(logFile.length() <= 1024);
+		log.close();
+		log = new DecisionLog(logFile, 1024);
+		assertEquals(1, log.getPending().size());
+		assertTrue(log.isCommitted(second));
+		log.close();
+	}
+
+	private static Connection prepare(ConnectionPool pool, long accountId, int delta, long id) throws SQLException {
+		Connection conn = pool.openUnpooled();
+		conn.setAutoCommit(false);
+		Statement stmt = conn.createStatement();
+		stmt.executeUpdate("UPDATE Account SET Balance = Balance + " + delta + " WHERE AccountId = " + accountId);
+		stmt.execute("PREPARE COMMIT XFER_" + id);
+		stmt.close();
+		return conn;
+	}
+}
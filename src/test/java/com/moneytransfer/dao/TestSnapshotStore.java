@@ -0,0 +1,141 @@
+package com.moneytransfer.dao;
+
+import com.moneytransfer.dao.impl.AccountDAOImpl;
+import com.moneytransfer.dao.impl.H2Recovery;
+import com.moneytransfer.dao.impl.UserDAOImpl;
+import com.moneytransfer.dao.journal.SnapshotStore;
+import com.moneytransfer.dao.journal.TransferJournal;
+import com.moneytransfer.exception.MoneyTransferException;
+import com.moneytransfer.model.Account;
+import com.moneytransfer.model.Transaction;
+import com.moneytransfer.model.User;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertNull;
+
+public class TestSnapshotStore {
+
+	private File dir;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("snapshot").toFile();
+	}
+
+	@After
+	public void tearDown() {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		dir.delete();
+	}
+
+	@Test
+	public void testCorruptSnapshotFallsBackToOlder() throws MoneyTransferException, IOException {
+		SnapshotStore store = new SnapshotStore(dir, 2);
+		SnapshotStore.Writer writer = store.create(5);
+		writer.user(1, "barry", "barry@gmail.com");
+		writer.account(1, "barry", 1000000, "USD");
+		writer.account(2, null, 0, "EUR");
+		writer.commit();
+		writer = store.create(9);
+		writer.user(1, "barry", "barry@gmail.com");
+		writer.commit();
+		assertEquals(9, store.getLatestSequence());
+
+		// cut the newest snapshot short
+		File[] files = dir.listFiles();
+		File newest = files[0].getName().contains("9") ? files[0] : files[1];
+		RandomAccessFile raf = new RandomAccessFile(newest, "rw");
+		raf.setLength(raf.length() - 3);
+		raf.close();
+
+		RecordingLoader loader = new RecordingLoader();
+		assertEquals(5, store.load(loader));
+		assertEquals(2, loader.begins);
+		assertEquals("account 2 null 0 EUR", loader.rows.get(loader.rows.size() - 1));
+		assertEquals(3, loader.rows.size());
+
+		// only the newest two are kept
+		store.create(12).commit();
+		assertEquals(9, store.getOldestSequence());
+	}
+
+	@Test
+	public void testRecoverFromSnapshotAndJournal() throws MoneyTransferException {
+		DAOFactory h2DaoFactory = DAOFactory.getDAOFactory(DAOFactory.H2);
+		h2DaoFactory.populateTestData();
+		// two records per segment, so that segments before the snapshot can go
+		TransferJournal journal = new TransferJournal(dir, 2 * TransferJournal.RECORD_SIZE,
+				TransferJournal.SyncMode.GROUP, 5);
+		try {
+			AccountDAO accountDAO = new AccountDAOImpl(journal);
+			UserDAO userDAO = new UserDAOImpl(journal);
+			H2Recovery recovery = new H2Recovery(journal, new SnapshotStore(dir, 1));
+			for (int i = 0; i < 5; i++) {
+				accountDAO.transferAccountBalance(new Transaction("USD", new BigDecimal(1), 1L, 2L));
+			}
+			assertEquals(5, recovery.takeSnapshot());
+			assertEquals(1, journal.getSegmentCount());
+
+			accountDAO.transferAccountBalance(new Transaction("EUR", new BigDecimal(10), 3L, 4L));
+			long userId = userDAO.createUser(new User("snapshot", "snapshot@gmail.com"));
+			assertEquals(1, userDAO.deleteUser(2));
+			long accountId = accountDAO.createAccount(new Account("snapshot", new BigDecimal(3), "USD"));
+			List<Account> accounts = accountDAO.getAllAccounts();
+			List<User> users = userDAO.getAllUsers();
+
+			// the demo data is replaced by the snapshot, then the last four changes are replayed
+			h2DaoFactory.populateTestData();
+			assertEquals(9, recovery.recover());
+			assertEquals(accounts, accountDAO.getAllAccounts());
+			assertEquals(users, userDAO.getAllUsers());
+			assertEquals("snapshot", userDAO.getUserById(userId).getUserName());
+			assertNull(userDAO.getUserById(2));
+			assertEquals(accountId + 1, accountDAO.createAccount(new Account("next", new BigDecimal(1), "USD")));
+		} finally {
+			journal.close();
+			h2DaoFactory.populateTestData();
+		}
+	}
+
+	private static final class RecordingLoader implements SnapshotStore.Loader {
+		int begins;
+		List<String> rows = new ArrayList<String>();
+
+		@Override
+		public void begin(long sequence) {
+			begins++;
+			rows.clear();
+		}
+
+		@Override
+		public void user(long userId, String userName, String emailAddress) {
+			rows.add("user " + userId + " " + userName + " " + emailAddress);
+		}
+
+		@Override
+		public void account(long accountId, String userName, long balanceUnits, String currencyCode) {
+			rows.add("account " + accountId + " " + userName + " " + balanceUnits + " " + currencyCode);
+		}
+
+		@Override
+		public void end() {
+		}
+	}
+}
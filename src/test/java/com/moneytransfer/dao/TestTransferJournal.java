@@ -0,0 +1,240 @@
+package com.moneytransfer.dao;
+
+import com.moneytransfer.dao.impl.AccountDAOImpl;
+import com.moneytransfer.dao.impl.H2Recovery;
+import com.moneytransfer.dao.journal.JournalRecord;
+import com.moneytransfer.dao.journal.TransferJournal;
+import com.moneytransfer.exception.MoneyTransferException;
+import com.moneytransfer.model.Account;
+import com.moneytransfer.model.Money;
+import com.moneytransfer.model.Transaction;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertNotNull;
+import static junit.framework.TestCase.assertNull;
+import static junit.framework.TestCase.assertTrue;
+
+public class TestTransferJournal {
+
+	private File dir;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("journal").toFile();
+	}
+
+	@After
+	public void tearDown() {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		dir.delete();
+	}
+
+	@Test
+	public void testReplayAcrossSegments() throws MoneyTransferException {
+		// four records per segment
+		TransferJournal journal = open(4);
+		journal.appendAccount(1, "barry", 1000, "USD");
+		journal.appendAccount(2, "ronaldo", 0, "USD");
+		for (int i = 1; i <= 9; i++) {
+			journal.awaitDurable(journal.appendTransfer(1, 1000 - i * 10, 2, i * 10, 10));
+		}
+		journal.close();
+
+		journal = open(4);
+		try {
+			assertEquals(11, journal.getLastSequence());
+			assertEquals(3, journal.getSegmentCount());
+			Map<Long, Long> balances = replay(journal, 0);
+			assertEquals(Long.valueOf(910), balances.get(1L));
+			assertEquals(Long.valueOf(90), balances.get(2L));
+			// appends continue the sequence
+			assertEquals(12, journal.appendDelete(2));
+			assertNull(replay(journal, 0).get(2L));
+			assertEquals(1, countRecords(journal, 11));
+		} finally {
+			journal.close();
+		}
+	}
+
+	@Test
+	public void testTornRecordEndsReplay() throws MoneyTransferException, IOException {
+		TransferJournal journal = open(1024);
+		journal.appendAccount(1, "barry", 1000, "USD");
+		journal.appendBalance(1, 900, -100);
+		journal.appendBalance(1, 800, -100);
+		journal.close();
+		corrupt(2);
+
+		journal = open(1024);
+		try {
+			assertEquals(2, journal.getLastSequence());
+			assertEquals(Long.valueOf(900), replay(journal, 0).get(1L));
+			assertEquals(3, journal.appendBalance(1, 700, -200));
+			assertEquals(Long.valueOf(700), replay(journal, 0).get(1L));
+		} finally {
+			journal.close();
+		}
+	}
+
+	@Test
+	public void testIncompleteChangeSkipped() throws MoneyTransferException, IOException {
+		TransferJournal journal = open(1024);
+		journal.appendAccount(1, "barry", 1000, "USD");
+		Map<Long, Long> group = new LinkedHashMap<Long, Long>();
+		group.put(1L, 700L);
+		group.put(2L, 100L);
+		group.put(3L, 200L);
+		// three accounts take two records
+		assertEquals(3, journal.appendBalances(group));
+		journal.close();
+		corrupt(2);
+
+		journal = open(1024);
+		try {
+			assertEquals(1, journal.getLastSequence());
+			Map<Long, Long> balances = replay(journal, 0);
+			assertEquals(Long.valueOf(1000), balances.get(1L));
+			assertNull(balances.get(2L));
+		} finally {
+			journal.close();
+		}
+	}
+
+	@Test
+	public void testGroupSyncAcrossThreads() throws Exception {
+		final TransferJournal journal = open(1024);
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+			for (int t = 0; t < 8; t++) {
+				final long accountId = t + 1;
+				futures.add(executor.submit(new Callable<Boolean>() {
+					@Override
+					public Boolean call() throws MoneyTransferException {
+						for (int i = 0; i < 200; i++) {
+							long sequence = journal.appendBalance(accountId, i, 1);
+							journal.awaitDurable(sequence);
+							if (journal.getDurableSequence() < sequence) {
+								return false;
+							}
+						}
+						return true;
+					}
+				}));
+			}
+			for (Future<Boolean> future : futures) {
+				assertTrue(future.get());
+			}
+			assertEquals(1600, journal.getDurableSequence());
+			assertEquals(1600, countRecords(journal, 0));
+		} finally {
+			executor.shutdown();
+			journal.close();
+		}
+	}
+
+	@Test
+	public void testAccountDAOChangesReplayed() throws MoneyTransferException {
+		DAOFactory h2DaoFactory = DAOFactory.getDAOFactory(DAOFactory.H2);
+		h2DaoFactory.populateTestData();
+		TransferJournal journal = open(1024);
+		try {
+			AccountDAO accountDAO = new AccountDAOImpl(journal);
+			assertEquals(2, accountDAO.transferAccountBalance(new Transaction("USD", new BigDecimal(10), 1L, 2L)));
+			assertNotNull(accountDAO.updateAccountBalanceAndGet(3, Money.toUnits(new BigDecimal(5))));
+			long created = accountDAO.createAccount(new Account("journal", new BigDecimal(7), "CHF"));
+			assertEquals(1, accountDAO.deleteAccountById(6));
+			Account from = accountDAO.getAccountById(1);
+			Account to = accountDAO.getAccountById(2);
+			Account updated = accountDAO.getAccountById(3);
+
+			// back to the demo data, then redo the journaled changes
+			h2DaoFactory.populateTestData();
+			assertEquals(4, new H2Recovery(journal, null).replayJournal(0));
+			assertEquals(from, accountDAO.getAccountById(1));
+			assertEquals(to, accountDAO.getAccountById(2));
+			assertEquals(updated, accountDAO.getAccountById(3));
+			assertEquals(new BigDecimal(7).setScale(Money.SCALE), accountDAO.getAccountById(created).getBalance());
+			assertNull(accountDAO.getAccountById(6));
+			// new ids follow the replayed ones
+			assertTrue(accountDAO.createAccount(new Account("after", new BigDecimal(1), "CHF")) > created);
+		} finally {
+			journal.close();
+			h2DaoFactory.populateTestData();
+		}
+	}
+
+	private TransferJournal open(int recordsPerSegment) throws MoneyTransferException {
+		return new TransferJournal(dir, recordsPerSegment * TransferJournal.RECORD_SIZE,
+				TransferJournal.SyncMode.GROUP, 5);
+	}
+
+	private static Map<Long, Long> replay(TransferJournal journal, long afterSequence) throws MoneyTransferException {
+		final Map<Long, Long> balances = new HashMap<Long, Long>();
+		journal.replay(afterSequence, new TransferJournal.Visitor() {
+			@Override
+			public void visit(JournalRecord record) {
+				if (record.getType() == JournalRecord.DELETE) {
+					balances.remove(record.getAccountId());
+					return;
+				}
+				balances.put(record.getAccountId(), record.getBalanceUnits());
+				if (record.getAccountId2() != 0) {
+					balances.put(record.getAccountId2(), record.getBalanceUnits2());
+				}
+			}
+		});
+		return balances;
+	}
+
+	private static int countRecords(TransferJournal journal, long afterSequence) throws MoneyTransferException {
+		final int[] count = new int[1];
+		journal.replay(afterSequence, new TransferJournal.Visitor() {
+			@Override
+			public void visit(JournalRecord record) {
+				count[0]++;
+			}
+		});
+		return count[0];
+	}
+
+	// flips a byte in a record of the first segment, as a torn write would
+	private void corrupt(int slot) throws IOException {
+		File[] segments = dir.listFiles();
+		assertEquals(1, segments.length);
+		RandomAccessFile raf = new RandomAccessFile(segments[0], "rw");
+		try {
+			long offset = slot * TransferJournal.RECORD_SIZE + 50;
+			raf.seek(offset);
+			int b = raf.read();
+			raf.seek(offset);
+			raf.write(b ^ 0xff);
+		} finally {
+			raf.close();
+		}
+	}
+}
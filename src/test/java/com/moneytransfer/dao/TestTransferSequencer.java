@@ -0,0 +1,112 @@
+package com.moneytransfer.dao;
+
+import com.moneytransfer.dao.impl.AccountLocks;
+import com.moneytransfer.exception.MoneyTransferException;
+import com.moneytransfer.exception.TransferOutcomeUnknownException;
+import com.moneytransfer.model.Account;
+import com.moneytransfer.model.Transaction;
+import com.moneytransfer.model.TransactionResult;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertFalse;
+import static junit.framework.TestCase.assertTrue;
+import static junit.framework.TestCase.fail;
+
+public class TestTransferSequencer {
+
+	private static final DAOFactory daoFactory = DAOFactory.getDAOFactory();
+	private static TransferSequencer sequencer;
+
+	@BeforeClass
+	public static void setup() {
+		daoFactory.populateTestData();
+		sequencer = new TransferSequencer(daoFactory.getAccountDAO(), 1024, 16, 500, 1000, 10000);
+	}
+
+	@AfterClass
+	public static void tearDown() throws InterruptedException {
+		sequencer.shutdown();
+	}
+
+	@Test
+	public void testTransfersAreAppliedInOrder() throws Exception {
+		AccountDAO accountDAO = daoFactory.getAccountDAO();
+		long from = accountDAO.createAccount(new Account("seqfrom", amount(100), "USD"));
+		long to = accountDAO.createAccount(new Account("seqto", amount(0), "USD"));
+
+		// 150 transfers of 1 from a balance of 100: the first 100 succeed
+		List<CompletableFuture<TransactionResult>> results = new ArrayList<CompletableFuture<TransactionResult>>();
+		for (int i = 0; i < 150; i++) {
+			results.add(sequencer.submit(new Transaction("USD", amount(1), from, to)));
+		}
+		for (int i = 0; i < results.size(); i++) {
+			assertEquals(i < 100, results.get(i).get().isSuccess());
+		}
+		assertEquals(amount(0), accountDAO.getAccountById(from).getBalance());
+		assertEquals(amount(100), accountDAO.getAccountById(to).getBalance());
+	}
+
+	@Test
+	public void testFailedTransferReportsError() throws MoneyTransferException {
+		// account 1 is USD, account 3 is EUR
+		TransactionResult result = sequencer.transfer(new Transaction("USD", amount(1), 1L, 3L));
+		assertFalse(result.isSuccess());
+		assertTrue(result.getErrorMessage() != null);
+	}
+
+	@Test(expected = MoneyTransferException.class)
+	public void testSubmitAfterShutdown() throws Exception {
+		TransferSequencer stopped = new TransferSequencer(daoFactory.getAccountDAO(), 8, 4, 100, 10, 1000);
+		stopped.shutdown();
+		stopped.submit(new Transaction("USD", amount(1), 1L, 2L));
+	}
+
+	@Test
+	public void testTimedOutTransfers() throws Exception {
+		AccountDAO accountDAO = daoFactory.getAccountDAO();
+		long from = accountDAO.createAccount(new Account("seqslowfrom", amount(10), "USD"));
+		long to = accountDAO.createAccount(new Account("seqslowto", amount(0), "USD"));
+		TransferSequencer slow = new TransferSequencer(accountDAO, 8, 1, 100, 1000, 200);
+		// the writer takes the first transfer and waits for the account lock held here
+		AccountLocks.Held held = AccountLocks.getInstance().acquire(from);
+		CompletableFuture<TransactionResult> taken = null;
+		try {
+			try {
+				slow.transfer(new Transaction("USD", amount(1), from, to));
+				fail("the writer is blocked");
+			} catch (TransferOutcomeUnknownException e) {
+				taken = e.getOutcome();
+			}
+			try {
+				slow.transfer(new Transaction("USD", amount(2), from, to));
+				fail("the writer is blocked");
+			} catch (TransferOutcomeUnknownException e) {
+				fail("a transfer still queued is not applied once its caller gave up");
+			} catch (MoneyTransferException e) {
+				// expected
+			}
+		} finally {
+			held.release();
+		}
+		assertTrue(taken.get().isSuccess());
+		// the writer skips the second one and applies the third
+		assertTrue(slow.transfer(new Transaction("USD", amount(4), from, to)).isSuccess());
+		slow.shutdown();
+		assertEquals(amount(5), accountDAO.getAccountById(from).getBalance());
+		assertEquals(amount(5), accountDAO.getAccountById(to).getBalance());
+	}
+
+	private static BigDecimal amount(int value) {
+		return new BigDecimal(value).setScale(4, RoundingMode.HALF_EVEN);
+	}
+}
@@ -0,0 +1,106 @@
+package com.moneytransfer.dao.impl;
+
+import com.moneytransfer.exception.MoneyTransferException;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestAccountLocks {
+
+	@Test
+	public void testOppositeOrderPairs() throws InterruptedException {
+		final AccountLocks locks = new AccountLocks(16, 5000);
+		assertTrue(locks.stripeOf(1) != locks.stripeOf(2));
+		final int threads = 8;
+		final CountDownLatch done = new CountDownLatch(threads);
+		final AtomicInteger failures = new AtomicInteger();
+		for (int t = 0; t < threads; t++) {
+			final boolean reversed = t % 2 == 1;
+			new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						for (int i = 0; i < 10000; i++) {
+							AccountLocks.Held held = reversed ? locks.acquire(2, 1) : locks.acquire(1, 2);
+							held.release();
+						}
+					} catch (MoneyTransferException e) {
+						failures.incrementAndGet();
+					} finally {
+						done.countDown();
+					}
+				}
+			}).start();
+		}
+		done.await();
+		assertEquals(0, failures.get());
+	}
+
+	@Test
+	public void testSameAccountOnBothSides() throws Exception {
+		AccountLocks locks = new AccountLocks(16, 100);
+		AccountLocks.Held held = locks.acquire(1, 1);
+		held.release();
+		// released more than once must not unlock a stripe taken by someone else
+		held.release();
+		assertEquals(0, lockFromOtherThread(locks, 1));
+	}
+
+	@Test
+	public void testTimeout() throws Exception {
+		final AccountLocks locks = new AccountLocks(16, 50);
+		final CountDownLatch locked = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		Thread holder = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					AccountLocks.Held held = locks.acquire(1);
+					locked.countDown();
+					release.await();
+					held.release();
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			}
+		});
+		holder.start();
+		locked.await();
+		try {
+			locks.acquire(2, 1);
+			fail("account 1 is locked by another thread");
+		} catch (MoneyTransferException e) {
+			// expected
+		}
+		// the stripe of account 2 taken before the timeout is released again
+		assertEquals(0, lockFromOtherThread(locks, 2));
+		release.countDown();
+		holder.join();
+	}
+
+	/**
+	 * @return 0 if another thread could lock the account, 1 otherwise
+	 */
+	private static int lockFromOtherThread(final AccountLocks locks, final long accountId) throws InterruptedException {
+		final AtomicInteger failures = new AtomicInteger();
+		Thread other = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					locks.acquire(accountId).release();
+				} catch (MoneyTransferException e) {
+					failures.incrementAndGet();
+				}
+			}
+		});
+		other.start();
+		other.join();
+		return failures.get();
+	}
+}
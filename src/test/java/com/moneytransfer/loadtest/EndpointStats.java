@@ -0,0 +1,70 @@
+package com.moneytransfer.loadtest;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+/**
+ * Latency histogram and error counts of one endpoint of the request mix.
+ * Latencies are recorded in microseconds from the intended send time.
+ */
+class EndpointStats {
+
+	private final Histogram latencies = new ConcurrentHistogram(TimeUnit.MINUTES.toMicros(1), 3);
+	private final AtomicLong errors = new AtomicLong();
+	private final ConcurrentHashMap<String, AtomicLong> errorsByCause = new ConcurrentHashMap<String, AtomicLong>();
+
+	void recordSuccess(long latencyNanos) {
+		latencies.recordValue(toMicros(latencyNanos));
+	}
+
+	void recordError(long latencyNanos, String cause) {
+		latencies.recordValue(toMicros(latencyNanos));
+		errors.incrementAndGet();
+		AtomicLong count = errorsByCause.get(cause);
+		if (count == null) {
+			AtomicLong created = new AtomicLong();
+			count = errorsByCause.putIfAbsent(cause, created);
+			if (count == null) {
+				count = created;
+			}
+		}
+		count.incrementAndGet();
+	}
+
+	long getCount() {
+		return latencies.getTotalCount();
+	}
+
+	long getErrorCount() {
+		return errors.get();
+	}
+
+	/**
+	 * @return latency at the percentile in milliseconds
+	 */
+	double percentileMillis(double percentile) {
+		return latencies.getValueAtPercentile(percentile) / 1000.0;
+	}
+
+	double maxMillis() {
+		return latencies.getMaxValue() / 1000.0;
+	}
+
+	Map<String, Long> getErrorsByCause() {
+		Map<String, Long> result = new TreeMap<String, Long>();
+		for (Map.Entry<String, AtomicLong> entry : errorsByCause.entrySet()) {
+			result.put(entry.getKey(), entry.getValue().get());
+		}
+		return result;
+	}
+
+	private static long toMicros(long nanos) {
+		return Math.min(TimeUnit.NANOSECONDS.toMicros(nanos), TimeUnit.MINUTES.toMicros(1));
+	}
+}
@@ -0,0 +1,243 @@
+package com.moneytransfer.loadtest;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.moneytransfer.Application;
+import com.moneytransfer.dao.DAOFactory;
+import com.moneytransfer.model.Account;
+
+/**
+ * Open-loop HTTP load generator.
+ * <p>
+ * Starts the application in process (unless {@code loadtest.url} points to a
+ * running one), creates a set of funded accounts and sends requests picked from
+ * a {@link RequestMix} at a fixed rate. Send times are scheduled up front and
+ * latency is measured from the scheduled time, so a slow server shows up as
+ * latency instead of silently lowering the request rate. Prints throughput,
+ * p50/p99/p99.9 latency and errors per endpoint. Run with:
+ *
+ * <pre>
+ * mvn -Ploadtest test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=com.moneytransfer.loadtest.LoadGenerator -Dloadtest.rate=2000
+ * </pre>
+ *
+ * System properties: loadtest.mix (default
+ * src/test/resources/loadtest/requests.jsonl), loadtest.rate in requests/sec
+ * (default 500), loadtest.seconds (default 30), loadtest.warmupSeconds (default
+ * 5), loadtest.concurrency, the maximum requests in flight (default 256),
+ * loadtest.accounts (default 100) and loadtest.url.
+ */
+public class LoadGenerator {
+
+	private static final BigDecimal INITIAL_BALANCE = new BigDecimal(1000000000);
+
+	private final CloseableHttpClient client;
+	private final String baseUrl;
+	private final RequestMix mix;
+	private final long[] accountIds;
+	private final ExecutorService executor;
+	private final AtomicLong inFlight = new AtomicLong();
+
+	LoadGenerator(CloseableHttpClient client, String baseUrl, RequestMix mix, long[] accountIds, int concurrency) {
+		this.client = client;
+		this.baseUrl = baseUrl;
+		this.mix = mix;
+		this.accountIds = accountIds;
+		this.executor = Executors.newFixedThreadPool(concurrency);
+	}
+
+	public static void main(String[] args) throws Exception {
+		String mixFile = System.getProperty("loadtest.mix", "src/test/resources/loadtest/requests.jsonl");
+		int rate = Integer.getInteger("loadtest.rate", 500);
+		int seconds = Integer.getInteger("loadtest.seconds", 30);
+		int warmupSeconds = Integer.getInteger("loadtest.warmupSeconds", 5);
+		int concurrency = Integer.getInteger("loadtest.concurrency", 256);
+		int accounts = Integer.getInteger("loadtest.accounts", 100);
+		String url = System.getProperty("loadtest.url");
+
+		Server server = null;
+		if (url == null) {
+			DAOFactory.getDAOFactory().populateTestData();
+			server = Application.startService();
+			url = "http://localhost:" + ((ServerConnector) server.getConnectors()[0]).getLocalPort();
+		}
+
+		RequestConfig requestConfig = RequestConfig.custom().setConnectTimeout(10000).setSocketTimeout(60000)
+				.build();
+		CloseableHttpClient client = HttpClients.custom().setMaxConnTotal(concurrency)
+				.setMaxConnPerRoute(concurrency).setDefaultRequestConfig(requestConfig).build();
+		try {
+			long[] accountIds = createAccounts(client, url, accounts);
+			LoadGenerator generator = new LoadGenerator(client, url, RequestMix.load(mixFile), accountIds,
+					concurrency);
+			System.out.println("target=" + url + ", mix=" + mixFile + ", rate=" + rate + "/s, concurrency="
+					+ concurrency + ", accounts=" + accounts);
+			if (warmupSeconds > 0) {
+				generator.run(rate, warmupSeconds);
+			}
+			long start = System.nanoTime();
+			Map<String, EndpointStats> stats = generator.run(rate, seconds);
+			report(stats, (System.nanoTime() - start) / 1e9);
+			generator.executor.shutdown();
+		} finally {
+			client.close();
+			if (server != null) {
+				server.stop();
+			}
+		}
+	}
+
+	/**
+	 * Send requests at the given rate for the given time and wait for the
+	 * outstanding ones.
+	 */
+	Map<String, EndpointStats> run(int rate, int seconds) throws InterruptedException {
+		final Map<String, EndpointStats> stats = new LinkedHashMap<String, EndpointStats>();
+		for (RequestMix.Template template : mix.getTemplates()) {
+			stats.put(template.name, new EndpointStats());
+		}
+		Random random = new Random();
+		long periodNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+		long start = System.nanoTime();
+		long end = start + TimeUnit.SECONDS.toNanos(seconds);
+		for (long i = 0;; i++) {
+			final long intended = start + i * periodNanos;
+			if (intended >= end) {
+				break;
+			}
+			long wait = intended - System.nanoTime();
+			if (wait > 0) {
+				LockSupport.parkNanos(wait);
+			}
+			final RequestMix.Template template = mix.pick(random);
+			final EndpointStats endpoint = stats.get(template.name);
+			inFlight.incrementAndGet();
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						send(template, endpoint, intended);
+					} finally {
+						inFlight.decrementAndGet();
+					}
+				}
+			});
+		}
+		while (inFlight.get() > 0) {
+			Thread.sleep(10);
+		}
+		return stats;
+	}
+
+	private void send(RequestMix.Template template, EndpointStats endpoint, long intended) {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		int from = random.nextInt(accountIds.length);
+		int to = random.nextInt(accountIds.length - 1);
+		if (to >= from) {
+			to++;
+		}
+		long account = accountIds[random.nextInt(accountIds.length)];
+		String uri = baseUrl + template.path(account, accountIds[from], accountIds[to]);
+		String body = template.body(account, accountIds[from], accountIds[to]);
+		try {
+			HttpResponse response = client.execute(request(template.method, uri, body));
+			EntityUtils.consume(response.getEntity());
+			int status = response.getStatusLine().getStatusCode();
+			if (status >= 400) {
+				endpoint.recordError(System.nanoTime() - intended, "HTTP " + status);
+			} else {
+				endpoint.recordSuccess(System.nanoTime() - intended);
+			}
+		} catch (IOException e) {
+			endpoint.recordError(System.nanoTime() - intended, e.getClass().getSimpleName());
+		}
+	}
+
+	private static HttpRequestBase request(String method, String uri, String body) {
+		HttpRequestBase request;
+		if ("POST".equals(method)) {
+			HttpPost post = new HttpPost(uri);
+			if (body != null) {
+				post.setEntity(new StringEntity(body, ContentType.APPLICATION_JSON));
+			}
+			request = post;
+		} else if ("PUT".equals(method)) {
+			HttpPut put = new HttpPut(uri);
+			if (body != null) {
+				put.setEntity(new StringEntity(body, ContentType.APPLICATION_JSON));
+			}
+			request = put;
+		} else if ("GET".equals(method)) {
+			request = new HttpGet(uri);
+		} else {
+			throw new IllegalArgumentException("Unsupported method " + method);
+		}
+		return request;
+	}
+
+	private static long[] createAccounts(CloseableHttpClient client, String url, int count) throws IOException {
+		ObjectMapper mapper = new ObjectMapper();
+		String prefix = "load" + Long.toString(System.currentTimeMillis() % 100000, 36) + "_";
+		long[] accountIds = new long[count];
+		for (int i = 0; i < count; i++) {
+			HttpPut request = new HttpPut(url + "/account/create");
+			request.setEntity(new StringEntity(
+					mapper.writeValueAsString(new Account(prefix + i, INITIAL_BALANCE, "USD")),
+					ContentType.APPLICATION_JSON));
+			HttpResponse response = client.execute(request);
+			String json = EntityUtils.toString(response.getEntity());
+			if (response.getStatusLine().getStatusCode() != 200) {
+				throw new IOException("Cannot create load test account: " + response.getStatusLine() + " " + json);
+			}
+			accountIds[i] = mapper.readValue(json, Account.class).getAccountId();
+		}
+		return accountIds;
+	}
+
+	private static void report(Map<String, EndpointStats> stats, double elapsedSeconds) {
+		System.out.println(String.format("%-14s %9s %9s %8s %9s %9s %9s %9s", "endpoint", "requests", "req/s",
+				"errors", "p50 ms", "p99 ms", "p99.9 ms", "max ms"));
+		long total = 0;
+		long totalErrors = 0;
+		for (Map.Entry<String, EndpointStats> entry : stats.entrySet()) {
+			EndpointStats endpoint = entry.getValue();
+			total += endpoint.getCount();
+			totalErrors += endpoint.getErrorCount();
+			System.out.println(String.format("%-14s %9d %9.0f %8d %9.2f %9.2f %9.2f %9.2f", entry.getKey(),
+					endpoint.getCount(), endpoint.getCount() / elapsedSeconds, endpoint.getErrorCount(),
+					endpoint.percentileMillis(50), endpoint.percentileMillis(99), endpoint.percentileMillis(99.9),
+					endpoint.maxMillis()));
+		}
+		System.out.println(String.format("%-14s %9d %9.0f %8d", "total", total, total / elapsedSeconds, totalErrors));
+		for (Map.Entry<String, EndpointStats> entry : stats.entrySet()) {
+			for (Map.Entry<String, Long> error : entry.getValue().getErrorsByCause().entrySet()) {
+				System.out.println("  " + entry.getKey() + ": " + error.getKey() + " x " + error.getValue());
+			}
+		}
+	}
+}
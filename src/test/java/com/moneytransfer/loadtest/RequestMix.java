@@ -0,0 +1,110 @@
+package com.moneytransfer.loadtest;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Weighted mix of request templates, read from a JSON lines file with one
+ * object per line:
+ *
+ * <pre>
+ * {"name": "transfer", "weight": 50, "method": "POST", "path": "/transaction", "body": {...}}
+ * </pre>
+ *
+ * Path and body may use the placeholders {@code ${account}}, {@code ${from}}
+ * and {@code ${to}}, replaced by ids of the load test accounts ({@code from}
+ * and {@code to} always differ). A quoted placeholder in the body is replaced
+ * by a JSON number.
+ */
+class RequestMix {
+
+	private final List<Template> templates;
+	private final int[] cumulativeWeights;
+
+	private RequestMix(List<Template> templates) {
+		this.templates = templates;
+		this.cumulativeWeights = new int[templates.size()];
+		int sum = 0;
+		for (int i = 0; i < templates.size(); i++) {
+			sum += templates.get(i).weight;
+			cumulativeWeights[i] = sum;
+		}
+	}
+
+	static RequestMix load(String fileName) throws IOException {
+		ObjectMapper mapper = new ObjectMapper();
+		List<Template> templates = new ArrayList<Template>();
+		BufferedReader reader = new BufferedReader(new FileReader(fileName));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.trim().isEmpty()) {
+					continue;
+				}
+				JsonNode node = mapper.readTree(line);
+				JsonNode body = node.get("body");
+				templates.add(new Template(node.get("name").asText(), node.path("weight").asInt(1),
+						node.get("method").asText().toUpperCase(), node.get("path").asText(),
+						body == null ? null : mapper.writeValueAsString(body)));
+			}
+		} finally {
+			reader.close();
+		}
+		if (templates.isEmpty()) {
+			throw new IllegalArgumentException("No requests in " + fileName);
+		}
+		return new RequestMix(templates);
+	}
+
+	List<Template> getTemplates() {
+		return Collections.unmodifiableList(templates);
+	}
+
+	Template pick(Random random) {
+		int value = random.nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+		for (int i = 0; i < cumulativeWeights.length; i++) {
+			if (value < cumulativeWeights[i]) {
+				return templates.get(i);
+			}
+		}
+		return templates.get(templates.size() - 1);
+	}
+
+	static final class Template {
+		final String name;
+		final int weight;
+		final String method;
+		final String path;
+		final String body;
+
+		Template(String name, int weight, String method, String path, String body) {
+			this.name = name;
+			this.weight = weight;
+			this.method = method;
+			this.path = path;
+			this.body = body;
+		}
+
+		String path(long account, long from, long to) {
+			return substitute(path, account, from, to);
+		}
+
+		String body(long account, long from, long to) {
+			return body == null ? null : substitute(body, account, from, to);
+		}
+
+		private static String substitute(String text, long account, long from, long to) {
+			return text.replace("\"${account}\"", Long.toString(account)).replace("\"${from}\"", Long.toString(from))
+					.replace("\"${to}\"", Long.toString(to)).replace("${account}", Long.toString(account))
+					.replace("${from}", Long.toString(from)).replace("${to}", Long.toString(to));
+		}
+	}
+}
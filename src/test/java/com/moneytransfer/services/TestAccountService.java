@@ -9,6 +9,8 @@ import org.apache.http.util.EntityUtils;
 import org.junit.Test;
 
 import com.moneytransfer.model.Account;
+import com.moneytransfer.model.Transaction;
+import com.moneytransfer.model.TransactionPage;
 
 import java.io.IOException;
 import java.math.BigDecimal;
@@ -16,6 +18,8 @@ import java.math.RoundingMode;
 import java.net.URI;
 import java.net.URISyntaxException;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 /**
@@ -134,6 +138,57 @@ public class TestAccountService extends TestService {
 		assertTrue(statusCode == 200);
 	}
 
+	/*
+	 * TC A8 Positive Category = AccountService Scenario: read the transfer
+	 * history of an account page by page return 200 OK
+	 */
+	@Test
+	public void testGetTransactionPages() throws Exception {
+		long from = h2DaoFactory.getAccountDAO().createAccount(new Account("pages", new BigDecimal(10), "NOK"));
+		long to = h2DaoFactory.getAccountDAO().createAccount(new Account("pages2", new BigDecimal(0), "NOK"));
+		for (int i = 0; i < 5; i++) {
+			h2DaoFactory.getAccountDAO().transferAccountBalance(new Transaction("NOK", BigDecimal.ONE, from, to));
+		}
+		int read = 0;
+		Long before = null;
+		do {
+			builder.setPath("/account/" + from + "/transactions").clearParameters().setParameter("limit", "2");
+			if (before != null) {
+				builder.setParameter("before", before.toString());
+			}
+			HttpResponse response = client.execute(new HttpGet(builder.build()));
+			assertEquals(200, response.getStatusLine().getStatusCode());
+			TransactionPage page = mapper.readValue(EntityUtils.toString(response.getEntity()), TransactionPage.class);
+			assertTrue(page.getTransactions().size() <= 2);
+			read += page.getTransactions().size();
+			before = page.getNextBefore();
+		} while (before != null);
+		assertEquals(5, read);
+
+		HttpResponse response = client.execute(new HttpGet(builder.setPath("/account/" + to + "/transactions")
+				.clearParameters().setParameter("limit", "10").build()));
+		TransactionPage page = mapper.readValue(EntityUtils.toString(response.getEntity()), TransactionPage.class);
+		assertEquals(5, page.getTransactions().size());
+		assertNull(page.getNextBefore());
+	}
+
+	/*
+	 * TC A9 Negative Category = AccountService Scenario: history of a
+	 * non-existent account, or a page size over the maximum. return 404 NOT
+	 * FOUND, 400 BAD REQUEST
+	 */
+	@Test
+	public void testGetTransactionsInvalid() throws IOException, URISyntaxException {
+		HttpResponse response = client.execute(new HttpGet(builder.setPath("/account/300/transactions").build()));
+		assertEquals(404, response.getStatusLine().getStatusCode());
+		EntityUtils.consume(response.getEntity());
+		response = client.execute(new HttpGet(
+				builder.setPath("/account/1/transactions").setParameter("limit", "100000").build()));
+		assertEquals(400, response.getStatusLine().getStatusCode());
+		EntityUtils.consume(response.getEntity());
+		builder.clearParameters();
+	}
+
 	/*
 	 * TC A7 Negative Category = AccountService Scenario: test delete non-existent
 	 * account. return 404 NOT FOUND return 404 NOT FOUND
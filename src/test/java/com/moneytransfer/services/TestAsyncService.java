@@ -0,0 +1,81 @@
+package com.moneytransfer.services;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.util.EntityUtils;
+import org.junit.Test;
+
+import com.moneytransfer.model.Account;
+import com.moneytransfer.model.Transaction;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.net.URI;
+import java.net.URISyntaxException;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Integration testing for the async RestAPI Test data are initialised from
+ * src/main/resources/demo.sql
+ */
+public class TestAsyncService extends TestService {
+
+	/*
+	 * TC D1 Positive Category = AsyncService Scenario: deposit, withdraw and read
+	 * the balance of account 5 return 200 OK
+	 */
+	@Test
+	public void testDepositWithdrawBalance() throws IOException, URISyntaxException {
+		URI uri = builder.setPath("/async/account/5/deposit/100").build();
+		HttpResponse response = client.execute(new HttpPut(uri));
+		assertTrue(response.getStatusLine().getStatusCode() == 200);
+		Account account = mapper.readValue(EntityUtils.toString(response.getEntity()), Account.class);
+		assertTrue(account.getBalance().equals(new BigDecimal(600).setScale(4, RoundingMode.HALF_EVEN)));
+
+		uri = builder.setPath("/async/account/5/withdraw/100").build();
+		response = client.execute(new HttpPut(uri));
+		assertTrue(response.getStatusLine().getStatusCode() == 200);
+		EntityUtils.consume(response.getEntity());
+
+		uri = builder.setPath("/async/account/5/balance").build();
+		response = client.execute(new HttpGet(uri));
+		assertTrue(response.getStatusLine().getStatusCode() == 200);
+		BigDecimal balance = new BigDecimal(EntityUtils.toString(response.getEntity())).setScale(4,
+				RoundingMode.HALF_EVEN);
+		assertTrue(balance.equals(new BigDecimal(500).setScale(4, RoundingMode.HALF_EVEN)));
+	}
+
+	/*
+	 * TC D2 Negative Category = AsyncService Scenario: withdraw more than the
+	 * balance return 500 as for the synchronous endpoint
+	 */
+	@Test
+	public void testWithdrawNotEnoughFund() throws IOException, URISyntaxException {
+		URI uri = builder.setPath("/async/account/6/withdraw/100000").build();
+		HttpResponse response = client.execute(new HttpPut(uri));
+		assertTrue(response.getStatusLine().getStatusCode() == 500);
+		EntityUtils.consume(response.getEntity());
+	}
+
+	/*
+	 * TC D3 Positive Category = AsyncService Scenario: transfer between two EUR
+	 * accounts return 200 OK
+	 */
+	@Test
+	public void testTransfer() throws IOException, URISyntaxException {
+		URI uri = builder.setPath("/async/transaction").build();
+		BigDecimal amount = new BigDecimal(10).setScale(4, RoundingMode.HALF_EVEN);
+		Transaction transaction = new Transaction("EUR", amount, 3L, 4L);
+		HttpPost request = new HttpPost(uri);
+		request.setHeader("Content-type", "application/json");
+		request.setEntity(new StringEntity(mapper.writeValueAsString(transaction)));
+		HttpResponse response = client.execute(request);
+		assertTrue(response.getStatusLine().getStatusCode() == 200);
+		EntityUtils.consume(response.getEntity());
+	}
+}
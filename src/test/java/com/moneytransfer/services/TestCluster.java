@@ -0,0 +1,206 @@
+package com.moneytransfer.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.moneytransfer.Application;
+import com.moneytransfer.model.Account;
+import com.moneytransfer.model.Transaction;
+
+/**
+ * Two cluster nodes started as separate JVMs: node 0 owns the demo accounts,
+ * node 1 the accounts created on it.
+ */
+public class TestCluster {
+
+	private static final String[] NODES = { "http://localhost:8091", "http://localhost:8092" };
+
+	private static final List<Process> processes = new ArrayList<Process>();
+	private static CloseableHttpClient client;
+	private final ObjectMapper mapper = new ObjectMapper();
+
+	@BeforeClass
+	public static void startNodes() throws Exception {
+		client = HttpClients.createDefault();
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		String classPath = System.getProperty("surefire.test.class.path", System.getProperty("java.class.path"));
+		for (int i = 0; i < NODES.length; i++) {
+			// fresh leg log, the demo accounts of a new run do not know the old legs
+			File legLog = new File("target/cluster-legs-" + i + ".log");
+			legLog.delete();
+			ProcessBuilder builder = new ProcessBuilder(java, "-cp", classPath,
+					"-Dcluster_nodes=" + NODES[0] + "," + NODES[1], "-Dcluster_node=" + i,
+					"-Dcluster_leg_log=" + legLog.getPath(), Application.class.getCanonicalName());
+			builder.redirectErrorStream(true);
+			builder.redirectOutput(new File("target/cluster-node-" + i + ".log"));
+			processes.add(builder.start());
+		}
+		for (String node : NODES) {
+			awaitStarted(node);
+		}
+	}
+
+	@AfterClass
+	public static void stopNodes() throws Exception {
+		client.close();
+		for (Process process : processes) {
+			process.destroy();
+			process.waitFor();
+		}
+	}
+
+	private static void awaitStarted(String node) throws Exception {
+		long deadline = System.currentTimeMillis() + 60000;
+		while (true) {
+			try {
+				HttpResponse response = client.execute(new HttpGet(node + "/user/all"));
+				EntityUtils.consume(response.getEntity());
+				if (response.getStatusLine().getStatusCode() == 200) {
+					return;
+				}
+			} catch (IOException e) {
+				if (System.currentTimeMillis() > deadline) {
+					throw e;
+				}
+			}
+			Thread.sleep(200);
+		}
+	}
+
+	/*
+	 * Scenario: an account owned by node 0 is read through node 1
+	 */
+	@Test
+	public void testGetAccountForwarded() throws IOException {
+		Account account = getAccount(1, 1);
+		assertEquals(1, account.getAccountId());
+		assertEquals("barry", account.getUserName());
+	}
+
+	/*
+	 * Scenario: an account created on node 1 gets an id of its range and is
+	 * read through node 0
+	 */
+	@Test
+	public void testCreateAccountOnNode() throws IOException {
+		Account created = createAccount(1, "barry", "JPY", 10);
+		assertTrue(created.getAccountId() > 1000000);
+		assertEquals("JPY", getAccount(0, created.getAccountId()).getCurrencyCode());
+	}
+
+	/*
+	 * Scenario: transfer from an account of node 0 to an account of node 1,
+	 * coordinated by node 0
+	 */
+	@Test
+	public void testTransferAcrossNodes() throws IOException {
+		Account to = createAccount(1, "ronaldo", "CHF", 0);
+		Account from = createAccount(0, "ronaldo", "CHF", 50);
+		assertEquals(200, transfer(0, new Transaction("CHF", new BigDecimal(20), from.getAccountId(),
+				to.getAccountId())));
+		assertEquals(scaled(30), getAccount(1, from.getAccountId()).getBalance());
+		assertEquals(scaled(20), getAccount(0, to.getAccountId()).getBalance());
+	}
+
+	/*
+	 * Scenario: transfer across nodes for more than the source balance leaves
+	 * both balances unchanged
+	 */
+	@Test
+	public void testTransferAcrossNodesInsufficientFund() throws IOException {
+		Account from = createAccount(1, "barry", "SEK", 10);
+		Account to = createAccount(0, "barry", "SEK", 0);
+		assertEquals(500, transfer(0, new Transaction("SEK", new BigDecimal(20), from.getAccountId(),
+				to.getAccountId())));
+		assertEquals(scaled(10), getAccount(1, from.getAccountId()).getBalance());
+		assertEquals(scaled(0), getAccount(0, to.getAccountId()).getBalance());
+	}
+
+	/*
+	 * Scenario: transfer between two accounts of node 0 sent to node 1 is
+	 * forwarded to node 0
+	 */
+	@Test
+	public void testTransferForwarded() throws IOException {
+		Account from = createAccount(0, "barry", "NOK", 40);
+		Account to = createAccount(0, "ronaldo", "NOK", 0);
+		assertEquals(200, transfer(1, new Transaction("NOK", new BigDecimal(15), from.getAccountId(),
+				to.getAccountId())));
+		assertEquals(scaled(25), getAccount(0, from.getAccountId()).getBalance());
+		assertEquals(scaled(15), getAccount(0, to.getAccountId()).getBalance());
+	}
+
+	/*
+	 * Scenario: asynchronous requests for accounts of node 0 sent to node 1
+	 * are forwarded to node 0
+	 */
+	@Test
+	public void testAsyncForwarded() throws IOException {
+		Account from = createAccount(0, "barry", "DKK", 40);
+		Account to = createAccount(0, "ronaldo", "DKK", 0);
+		execute(new HttpPut(NODES[1] + "/async/account/" + from.getAccountId() + "/deposit/10"), 200);
+		assertEquals("50.0000",
+				execute(new HttpGet(NODES[1] + "/async/account/" + from.getAccountId() + "/balance"), 200));
+
+		HttpPost request = new HttpPost(NODES[1] + "/async/transaction");
+		request.setHeader("Content-type", "application/json");
+		request.setEntity(new StringEntity(mapper.writeValueAsString(
+				new Transaction("DKK", new BigDecimal(15), from.getAccountId(), to.getAccountId()))));
+		execute(request, 200);
+		assertEquals(scaled(35), getAccount(0, from.getAccountId()).getBalance());
+		assertEquals(scaled(15), getAccount(0, to.getAccountId()).getBalance());
+	}
+
+	private Account getAccount(int node, long accountId) throws IOException {
+		return mapper.readValue(execute(new HttpGet(NODES[node] + "/account/" + accountId), 200), Account.class);
+	}
+
+	private Account createAccount(int node, String userName, String currencyCode, int balance) throws IOException {
+		HttpPut request = new HttpPut(NODES[node] + "/account/create");
+		request.setHeader("Content-type", "application/json");
+		request.setEntity(new StringEntity(
+				mapper.writeValueAsString(new Account(userName, new BigDecimal(balance), currencyCode))));
+		return mapper.readValue(execute(request, 200), Account.class);
+	}
+
+	private int transfer(int node, Transaction transaction) throws IOException {
+		HttpPost request = new HttpPost(NODES[node] + "/transaction");
+		request.setHeader("Content-type", "application/json");
+		request.setEntity(new StringEntity(mapper.writeValueAsString(transaction)));
+		HttpResponse response = client.execute(request);
+		EntityUtils.consume(response.getEntity());
+		return response.getStatusLine().getStatusCode();
+	}
+
+	private String execute(HttpUriRequest request, int expectedStatus) throws IOException {
+		HttpResponse response = client.execute(request);
+		String body = EntityUtils.toString(response.getEntity());
+		assertEquals(body, expectedStatus, response.getStatusLine().getStatusCode());
+		return body;
+	}
+
+	private static BigDecimal scaled(int amount) {
+		return new BigDecimal(amount).setScale(4, RoundingMode.HALF_EVEN);
+	}
+}
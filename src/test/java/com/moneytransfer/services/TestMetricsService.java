@@ -0,0 +1,75 @@
+package com.moneytransfer.services;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.junit.Test;
+
+import com.moneytransfer.metrics.Histogram;
+import com.moneytransfer.metrics.MetricsRegistry;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Integration testing for the metrics endpoint
+ */
+public class TestMetricsService extends TestService {
+
+	/*
+	 * TC M1 Positive Category = MetricsService Scenario: after reading an
+	 * account, the scrape holds its resource and DAO timings in Prometheus
+	 * text format
+	 */
+	@Test
+	public void testScrape() throws IOException, URISyntaxException {
+		URI uri = builder.setPath("/account/1").build();
+		HttpResponse response = client.execute(new HttpGet(uri));
+		assertTrue(response.getStatusLine().getStatusCode() == 200);
+		EntityUtils.consume(response.getEntity());
+
+		uri = builder.setPath("/metrics").build();
+		response = client.execute(new HttpGet(uri));
+		assertTrue(response.getStatusLine().getStatusCode() == 200);
+		assertTrue(response.getEntity().getContentType().getValue().startsWith("text/plain"));
+		String metrics = EntityUtils.toString(response.getEntity());
+
+		assertTrue(metrics.contains("# TYPE moneytransfer_http_request_seconds histogram"));
+		assertTrue(metrics.contains(
+				"moneytransfer_http_request_seconds_bucket{resource=\"AccountService\",method=\"getAccount\",le=\"+Inf\"}"));
+		assertTrue(metrics.contains(
+				"moneytransfer_http_responses_total{resource=\"AccountService\",method=\"getAccount\",status=\"2xx\"}"));
+		assertTrue(metrics.contains("moneytransfer_dao_call_seconds_count{dao=\"account\",method=\"getAccountById\"}"));
+		assertTrue(metrics.contains("moneytransfer_pool_acquire_seconds_count{pool=\"h2\"}"));
+	}
+
+	/*
+	 * TC M2 Positive Category = MetricsRegistry Scenario: histogram buckets are
+	 * cumulative and the percentile falls in the right bucket
+	 */
+	@Test
+	public void testHistogram() {
+		Histogram histogram = MetricsRegistry.INSTANCE.histogram("test_histogram_seconds", "test", "case", "m2");
+		for (int i = 0; i < 98; i++) {
+			histogram.record(TimeUnit.MICROSECONDS.toNanos(80));
+		}
+		histogram.record(TimeUnit.MILLISECONDS.toNanos(3));
+		histogram.record(TimeUnit.SECONDS.toNanos(20));
+
+		assertEquals(100, histogram.getCount());
+		assertEquals(TimeUnit.MICROSECONDS.toNanos(100), histogram.getValueAtPercentile(50));
+		assertEquals(TimeUnit.MILLISECONDS.toNanos(5), histogram.getValueAtPercentile(99));
+		assertEquals(Long.MAX_VALUE, histogram.getValueAtPercentile(100));
+
+		String metrics = MetricsRegistry.INSTANCE.scrape();
+		assertTrue(metrics.contains("test_histogram_seconds_bucket{case=\"m2\",le=\"0.0001\"} 98\n"));
+		assertTrue(metrics.contains("test_histogram_seconds_bucket{case=\"m2\",le=\"0.005\"} 99\n"));
+		assertTrue(metrics.contains("test_histogram_seconds_bucket{case=\"m2\",le=\"+Inf\"} 100\n"));
+		assertTrue(metrics.contains("test_histogram_seconds_count{case=\"m2\"} 100\n"));
+	}
+}
@@ -3,6 +3,9 @@ package com.moneytransfer.services;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.moneytransfer.dao.DAOFactory;
 import com.moneytransfer.service.AccountService;
+import com.moneytransfer.service.AsyncService;
+import com.moneytransfer.service.MetricsFilter;
+import com.moneytransfer.service.MetricsService;
 import com.moneytransfer.service.ServiceExceptionMapper;
 import com.moneytransfer.service.TransactionService;
 import com.moneytransfer.service.UserService;
@@ -58,11 +61,15 @@ public abstract class TestService {
             context.setContextPath("/");
             server.setHandler(context);
             ServletHolder servletHolder = context.addServlet(ServletContainer.class, "/*");
+            servletHolder.setAsyncSupported(true);
             servletHolder.setInitParameter("jersey.config.server.provider.classnames",
                     UserService.class.getCanonicalName() + "," +
                             AccountService.class.getCanonicalName() + "," +
                             ServiceExceptionMapper.class.getCanonicalName() + "," +
-                            TransactionService.class.getCanonicalName());
+                            TransactionService.class.getCanonicalName() + "," +
+                            AsyncService.class.getCanonicalName() + "," +
+                            MetricsService.class.getCanonicalName() + "," +
+                            MetricsFilter.class.getCanonicalName());
             server.start();
         }
     }
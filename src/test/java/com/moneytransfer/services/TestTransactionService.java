@@ -8,14 +8,17 @@ import org.apache.http.entity.StringEntity;
 import org.apache.http.util.EntityUtils;
 import org.junit.Test;
 
+import com.moneytransfer.dao.impl.AccountLocks;
 import com.moneytransfer.model.Account;
 import com.moneytransfer.model.Transaction;
+import com.moneytransfer.model.TransactionResult;
 
 import java.io.IOException;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.Arrays;
 
 import static org.junit.Assert.assertTrue;
 
@@ -149,5 +152,104 @@ public class TestTransactionService extends TestService {
 
     }
 
+    /*
+       TC C2 Positive Category = TransactionService
+       Scenario: test batch of transactions, each transaction reports its own outcome
+                 return 200 OK
+    */
+    @Test
+    public void testTransactionBatch() throws IOException, URISyntaxException {
+        URI uri = builder.setPath("/transaction/batch").build();
+        BigDecimal amount = new BigDecimal(1).setScale(4, RoundingMode.HALF_EVEN);
+        Transaction[] transactions = {
+                new Transaction("GBP", amount, 5L, 6L),
+                new Transaction("XYZ", amount, 5L, 6L),
+                new Transaction("GBP", new BigDecimal(100000).setScale(4, RoundingMode.HALF_EVEN), 5L, 6L),
+                new Transaction("GBP", amount, 6L, 5L) };
+
+        String jsonInString = mapper.writeValueAsString(Arrays.asList(transactions));
+        StringEntity entity = new StringEntity(jsonInString);
+        HttpPost request = new HttpPost(uri);
+        request.setHeader("Content-type", "application/json");
+        request.setEntity(entity);
+        HttpResponse response = client.execute(request);
+        int statusCode = response.getStatusLine().getStatusCode();
+        assertTrue(statusCode == 200);
+        String jsonString = EntityUtils.toString(response.getEntity());
+        TransactionResult[] results = mapper.readValue(jsonString, TransactionResult[].class);
+        assertTrue(results.length == 4);
+        assertTrue(results[0].isSuccess());
+        assertTrue(!results[1].isSuccess());
+        assertTrue(!results[2].isSuccess());
+        assertTrue(results[3].isSuccess());
+    }
+
+    /*
+       TC C3 Positive Category = TransactionService
+       Scenario: test transaction sent twice with the same Idempotency-Key, applied once,
+                 the same key with a different transaction is rejected
+                 return 200 OK twice, then 422
+    */
+    @Test
+    public void testTransactionIdempotencyKey() throws Exception {
+        BigDecimal hundred = new BigDecimal(100).setScale(4, RoundingMode.HALF_EVEN);
+        long from = h2DaoFactory.getAccountDAO().createAccount(new Account("idemfrom", hundred, "USD"));
+        long to = h2DaoFactory.getAccountDAO().createAccount(new Account("idemto", hundred, "USD"));
+        Transaction transaction = new Transaction("USD", new BigDecimal(10).setScale(4, RoundingMode.HALF_EVEN),
+                from, to);
+
+        assertTrue(postTransaction(transaction, "key-c3") == 200);
+        assertTrue(postTransaction(transaction, "key-c3") == 200);
+        assertTrue(h2DaoFactory.getAccountDAO().getAccountById(from).getBalance()
+                .equals(new BigDecimal(90).setScale(4, RoundingMode.HALF_EVEN)));
+
+        Transaction other = new Transaction("USD", new BigDecimal(20).setScale(4, RoundingMode.HALF_EVEN), from, to);
+        assertTrue(postTransaction(other, "key-c3") == 422);
+
+        // a failed transfer is replayed as failed, even once it could succeed
+        Transaction tooMuch = new Transaction("USD", new BigDecimal(1000).setScale(4, RoundingMode.HALF_EVEN),
+                from, to);
+        assertTrue(postTransaction(tooMuch, "key-c3-fail") == 500);
+        h2DaoFactory.getAccountDAO().updateAccountBalance(from, 10000000L);
+        assertTrue(postTransaction(tooMuch, "key-c3-fail") == 500);
+        assertTrue(h2DaoFactory.getAccountDAO().getAccountById(to).getBalance()
+                .equals(new BigDecimal(110).setScale(4, RoundingMode.HALF_EVEN)));
+    }
+
+    /*
+       TC C4 Negative Category = TransactionService
+       Scenario: test transaction failing without being applied, here on an account lock timeout,
+                 gives its Idempotency-Key up so that a retry with the key is applied
+                 return 500, then 200 OK
+    */
+    @Test
+    public void testTransactionIdempotencyKeyReleased() throws Exception {
+        BigDecimal hundred = new BigDecimal(100).setScale(4, RoundingMode.HALF_EVEN);
+        long from = h2DaoFactory.getAccountDAO().createAccount(new Account("idemlockfrom", hundred, "USD"));
+        long to = h2DaoFactory.getAccountDAO().createAccount(new Account("idemlockto", hundred, "USD"));
+        Transaction transaction = new Transaction("USD", new BigDecimal(10).setScale(4, RoundingMode.HALF_EVEN),
+                from, to);
+
+        AccountLocks.Held held = AccountLocks.getInstance().acquire(from);
+        try {
+            assertTrue(postTransaction(transaction, "key-c4") == 500);
+        } finally {
+            held.release();
+        }
+        assertTrue(postTransaction(transaction, "key-c4") == 200);
+        assertTrue(h2DaoFactory.getAccountDAO().getAccountById(from).getBalance()
+                .equals(new BigDecimal(90).setScale(4, RoundingMode.HALF_EVEN)));
+    }
+
+    private int postTransaction(Transaction transaction, String idempotencyKey)
+            throws IOException, URISyntaxException {
+        HttpPost request = new HttpPost(builder.setPath("/transaction").build());
+        request.setHeader("Content-type", "application/json");
+        request.setHeader("Idempotency-Key", idempotencyKey);
+        request.setEntity(new StringEntity(mapper.writeValueAsString(transaction)));
+        HttpResponse response = client.execute(request);
+        EntityUtils.consume(response.getEntity());
+        return response.getStatusLine().getStatusCode();
+    }
 
 }
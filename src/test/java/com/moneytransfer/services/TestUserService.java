@@ -1,5 +1,6 @@
 package com.moneytransfer.services;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
@@ -24,6 +25,32 @@ import com.moneytransfer.model.User;
  */
 public class TestUserService extends TestService {
 
+    /*
+       TC D9 Positive Category = UserService
+       Scenario: read all users page by page, in user id order
+                 return 200 OK
+     */
+    @Test
+    public void testGetAllUsersPages() throws Exception {
+        int total = h2DaoFactory.getUserDAO().getAllUsers().size();
+        int read = 0;
+        long afterId = 0;
+        for (;;) {
+            URI uri = builder.setPath("/user/all").setParameter("afterId", String.valueOf(afterId))
+                    .setParameter("limit", "2").build();
+            HttpResponse response = client.execute(new HttpGet(uri));
+            assertEquals(200, response.getStatusLine().getStatusCode());
+            User[] users = mapper.readValue(EntityUtils.toString(response.getEntity()), User[].class);
+            assertTrue(users.length <= 2);
+            if (users.length == 0) {
+                break;
+            }
+            read += users.length;
+            afterId = users[users.length - 1].getUserId();
+        }
+        assertEquals(total, read);
+    }
+
     /*
        TC D1 Positive Category = UserService
        Scenario: test get user by given user name